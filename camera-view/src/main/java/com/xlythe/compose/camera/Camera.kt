@@ -22,6 +22,7 @@ import androidx.lifecycle.Lifecycle
 import androidx.lifecycle.LifecycleEventObserver
 import com.xlythe.view.camera.Barcode
 import com.xlythe.view.camera.CameraView
+import com.xlythe.view.camera.RollingRecording
 import com.xlythe.view.camera.VideoStream
 import java.io.File
 
@@ -48,6 +49,7 @@ enum class LensFacing {
 interface CameraController {
     fun takePicture(file: File)
     fun startRecording(file: File)
+    fun startRecording(recording: RollingRecording)
     fun stopRecording()
     fun stream(): VideoStream?
     fun toggleCamera()
@@ -74,6 +76,11 @@ private class CameraControllerImpl(
             ?: Log.e(TAG, "View not available for startRecording")
     }
 
+    override fun startRecording(recording: RollingRecording) {
+        getView()?.startRecording(recording)
+            ?: Log.e(TAG, "View not available for startRecording")
+    }
+
     override fun stopRecording() {
         getView()?.stopRecording()
             ?: Log.e(TAG, "View not available for stopRecording")
@@ -0,0 +1,101 @@
+package com.xlythe.compose.camera
+
+import androidx.annotation.RequiresApi
+import com.xlythe.view.camera.VideoStream
+import com.xlythe.view.camera.stream.CallbackFrameSink
+import com.xlythe.view.camera.stream.EncodedFrame
+import com.xlythe.view.camera.stream.FramePublisher
+import com.xlythe.view.camera.stream.FrameQueue
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.awaitClose
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.buffer
+import kotlinx.coroutines.flow.callbackFlow
+import kotlinx.coroutines.flow.flow
+import java.util.concurrent.Flow as JavaFlow
+
+/**
+ * Collects the encoded video frames of the stream. Frames wait in a queue until the collector is
+ * ready for them, and [overflow] decides what happens once more than [capacity] are waiting.
+ *
+ * @param overflow One of [FramePublisher.Overflow].
+ * @param capacity The number of frames that can wait for the collector.
+ */
+fun VideoStream.frames(
+    @FramePublisher.Overflow overflow: Int = FramePublisher.Overflow.BUFFER,
+    capacity: Int = FramePublisher.DEFAULT_CAPACITY
+): Flow<EncodedFrame> = flow {
+    val queue = FrameQueue(overflow, capacity)
+
+    // The sink only signals that frames are waiting. The queue decides which of them to keep.
+    val signals = callbackFlow {
+        val sink = CallbackFrameSink(object : CallbackFrameSink.Listener {
+            override fun onFrame(frame: EncodedFrame) {
+                if (queue.offer(frame)) {
+                    trySend(Unit)
+                } else {
+                    close(IllegalStateException("Cannot queue more than $capacity frames for a collector that isn't keeping up"))
+                }
+            }
+
+            override fun onClosed() {
+                close()
+            }
+        })
+        addSink(sink)
+        awaitClose { removeSink(sink) }
+    }.buffer(Channel.CONFLATED)
+
+    signals.collect {
+        while (true) {
+            emit(queue.poll() ?: break)
+        }
+    }
+
+    // The stream ended. Hand over whatever was still waiting.
+    while (true) {
+        emit(queue.poll() ?: break)
+    }
+}
+
+/**
+ * Adapts the publisher into a cold [Flow]. Each collection is a new subscription, which is
+ * cancelled when the collector stops. Publishers need API 30; on older devices, use
+ * [VideoStream.frames] instead.
+ */
+@RequiresApi(30)
+fun FramePublisher.asFlow(
+    @FramePublisher.Overflow overflow: Int = FramePublisher.Overflow.BUFFER,
+    capacity: Int = FramePublisher.DEFAULT_CAPACITY
+): Flow<EncodedFrame> = flow {
+    // Only one frame is ever requested at a time, so the publisher's queue is the only buffer.
+    val channel = Channel<EncodedFrame>(Channel.UNLIMITED)
+    var subscription: JavaFlow.Subscription? = null
+    subscribe(object : JavaFlow.Subscriber<EncodedFrame> {
+        override fun onSubscribe(s: JavaFlow.Subscription) {
+            subscription = s
+            s.request(1)
+        }
+
+        override fun onNext(item: EncodedFrame) {
+            channel.trySend(item)
+        }
+
+        override fun onError(throwable: Throwable) {
+            channel.close(throwable)
+        }
+
+        override fun onComplete() {
+            channel.close()
+        }
+    }, overflow, capacity)
+
+    try {
+        for (frame in channel) {
+            emit(frame)
+            subscription?.request(1)
+        }
+    } finally {
+        subscription?.cancel()
+    }
+}
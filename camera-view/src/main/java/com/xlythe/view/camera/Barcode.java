@@ -1,10 +1,13 @@
 package com.xlythe.view.camera;
 
+import android.graphics.Rect;
+
 import androidx.annotation.IntDef;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public class Barcode {
@@ -163,13 +166,23 @@ public class Barcode {
   public static class ContactInfo {
     private final com.google.mlkit.vision.barcode.common.Barcode.ContactInfo mContactInfo;
 
+    // Built on first access. Guarded by this.
+    @Nullable private PersonName mName;
+    @Nullable private List<Address> mAddresses;
+    @Nullable private List<Email> mEmails;
+    @Nullable private List<Phone> mPhones;
+
     private ContactInfo(com.google.mlkit.vision.barcode.common.Barcode.ContactInfo contactInfo) {
       this.mContactInfo = contactInfo;
     }
 
     @Nullable
-    public PersonName getName() {
-      return new PersonName(mContactInfo.getName());
+    public synchronized PersonName getName() {
+      if (mName == null) {
+        com.google.mlkit.vision.barcode.common.Barcode.PersonName name = mContactInfo.getName();
+        mName = name == null ? null : new PersonName(name);
+      }
+      return mName;
     }
 
     @Nullable
@@ -182,31 +195,46 @@ public class Barcode {
       return mContactInfo.getTitle();
     }
 
+    /** Returns the contact's addresses. The list is shared between callers and can't be modified. */
     @NonNull
-    public List<Address> getAddresses() {
-      List<Address> list = new ArrayList<>(mContactInfo.getAddresses().size());
-      for (com.google.mlkit.vision.barcode.common.Barcode.Address address : mContactInfo.getAddresses()) {
-        list.add(new Address(address));
+    public synchronized List<Address> getAddresses() {
+      if (mAddresses == null) {
+        List<com.google.mlkit.vision.barcode.common.Barcode.Address> addresses = mContactInfo.getAddresses();
+        List<Address> list = new ArrayList<>(addresses.size());
+        for (com.google.mlkit.vision.barcode.common.Barcode.Address address : addresses) {
+          list.add(new Address(address));
+        }
+        mAddresses = Collections.unmodifiableList(list);
       }
-      return list;
+      return mAddresses;
     }
 
+    /** Returns the contact's emails. The list is shared between callers and can't be modified. */
     @NonNull
-    public List<Email> getEmails() {
-      List<Email> list = new ArrayList<>(mContactInfo.getAddresses().size());
-      for (com.google.mlkit.vision.barcode.common.Barcode.Email email : mContactInfo.getEmails()) {
-        list.add(new Email(email));
+    public synchronized List<Email> getEmails() {
+      if (mEmails == null) {
+        List<com.google.mlkit.vision.barcode.common.Barcode.Email> emails = mContactInfo.getEmails();
+        List<Email> list = new ArrayList<>(emails.size());
+        for (com.google.mlkit.vision.barcode.common.Barcode.Email email : emails) {
+          list.add(new Email(email));
+        }
+        mEmails = Collections.unmodifiableList(list);
       }
-      return list;
+      return mEmails;
     }
 
+    /** Returns the contact's phone numbers. The list is shared between callers and can't be modified. */
     @NonNull
-    public List<Phone> getPhones() {
-      List<Phone> list = new ArrayList<>(mContactInfo.getAddresses().size());
-      for (com.google.mlkit.vision.barcode.common.Barcode.Phone phone : mContactInfo.getPhones()) {
-        list.add(new Phone(phone));
+    public synchronized List<Phone> getPhones() {
+      if (mPhones == null) {
+        List<com.google.mlkit.vision.barcode.common.Barcode.Phone> phones = mContactInfo.getPhones();
+        List<Phone> list = new ArrayList<>(phones.size());
+        for (com.google.mlkit.vision.barcode.common.Barcode.Phone phone : phones) {
+          list.add(new Phone(phone));
+        }
+        mPhones = Collections.unmodifiableList(list);
       }
-      return list;
+      return mPhones;
     }
 
     @NonNull
@@ -411,18 +439,30 @@ public class Barcode {
   public static class CalendarEvent {
     private final com.google.mlkit.vision.barcode.common.Barcode.CalendarEvent mCalendarEvent;
 
+    // Built on first access. Guarded by this.
+    @Nullable private CalendarDateTime mStart;
+    @Nullable private CalendarDateTime mEnd;
+
     private CalendarEvent(com.google.mlkit.vision.barcode.common.Barcode.CalendarEvent calendarEvent) {
       this.mCalendarEvent = calendarEvent;
     }
 
     @Nullable
-    public CalendarDateTime getStart() {
-      return new CalendarDateTime(mCalendarEvent.getStart());
+    public synchronized CalendarDateTime getStart() {
+      if (mStart == null) {
+        com.google.mlkit.vision.barcode.common.Barcode.CalendarDateTime start = mCalendarEvent.getStart();
+        mStart = start == null ? null : new CalendarDateTime(start);
+      }
+      return mStart;
     }
 
     @Nullable
-    public CalendarDateTime getEnd() {
-      return new CalendarDateTime(mCalendarEvent.getEnd());
+    public synchronized CalendarDateTime getEnd() {
+      if (mEnd == null) {
+        com.google.mlkit.vision.barcode.common.Barcode.CalendarDateTime end = mCalendarEvent.getEnd();
+        mEnd = end == null ? null : new CalendarDateTime(end);
+      }
+      return mEnd;
     }
 
     @Nullable
@@ -521,83 +561,215 @@ public class Barcode {
     }
   }
 
-  private final com.google.mlkit.vision.barcode.common.Barcode mBarcode;
+  /** Returned by {@link #getTrackingId()} for barcodes that aren't being tracked. */
+  public static final int NO_TRACKING_ID = -1;
+
+  /** The detection, if it came from ML Kit. Null for barcodes found by other decoders. */
+  @Nullable private volatile com.google.mlkit.vision.barcode.common.Barcode mBarcode;
+
+  // What's known about barcodes that didn't come from ML Kit.
+  @Format private volatile int mFormat;
+  @Nullable private volatile String mRawValue;
+  @Nullable private volatile Rect mBoundingBox;
+
+  /** Identifies this barcode across frames. Set by {@link BarcodeTracker}. */
+  private volatile int mTrackingId = NO_TRACKING_ID;
+
+  /**
+   * The typed payload (a {@link ContactInfo}, {@link WiFi}, etc), built the first time it's asked
+   * for. Most callers only ever read the raw value, so there's no sense building it for every
+   * detection, and a barcode only carries the one payload that matches its {@link #getType()}.
+   * Guarded by this.
+   */
+  @Nullable private Object mPayload;
 
   Barcode(com.google.mlkit.vision.barcode.common.Barcode barcode) {
     this.mBarcode = barcode;
   }
 
+  /**
+   * Creates a barcode found by a {@link BarcodeDecoder} other than ML Kit. Only the format, raw
+   * value and bounding box are known, so {@link #getType()} is {@link Type#UNKNOWN} and there are no
+   * typed payloads.
+   *
+   * @param boundingBox Where the barcode was found, in the coordinates of the upright image that
+   *                    was scanned, or null if unknown.
+   */
+  public Barcode(@Format int format, @Nullable String rawValue, @Nullable Rect boundingBox) {
+    this.mFormat = format;
+    this.mRawValue = rawValue;
+    this.mBoundingBox = boundingBox == null ? null : new Rect(boundingBox);
+  }
+
+  /** Replaces this barcode's contents with a newer detection of the same barcode. */
+  synchronized void update(Barcode barcode) {
+    this.mBarcode = barcode.mBarcode;
+    this.mFormat = barcode.mFormat;
+    this.mRawValue = barcode.mRawValue;
+    this.mBoundingBox = barcode.mBoundingBox;
+    this.mPayload = null;
+  }
+
+  void setTrackingId(int trackingId) {
+    this.mTrackingId = trackingId;
+  }
+
+  /**
+   * Returns an id that stays the same for as long as a {@link BarcodeTracker} follows this barcode
+   * from frame to frame, or {@link #NO_TRACKING_ID} if it isn't being tracked.
+   */
+  public int getTrackingId() {
+    return mTrackingId;
+  }
+
+  /**
+   * Returns where the barcode was found, in the coordinates of the upright image that was scanned,
+   * or null if unknown.
+   */
+  @Nullable
+  public Rect getBoundingBox() {
+    com.google.mlkit.vision.barcode.common.Barcode barcode = mBarcode;
+    return barcode == null ? mBoundingBox : barcode.getBoundingBox();
+  }
+
   @Format
   public int getFormat() {
-    return mBarcode.getFormat();
+    com.google.mlkit.vision.barcode.common.Barcode barcode = mBarcode;
+    return barcode == null ? mFormat : barcode.getFormat();
   }
 
   @Type
   public int getType() {
-    return mBarcode.getValueType();
+    com.google.mlkit.vision.barcode.common.Barcode barcode = mBarcode;
+    return barcode == null ? Type.UNKNOWN : barcode.getValueType();
   }
 
   @Nullable
-  public CalendarEvent getCalendarEvent() {
-    com.google.mlkit.vision.barcode.common.Barcode.CalendarEvent event = mBarcode.getCalendarEvent();
-    return event == null ? null : new CalendarEvent(event);
+  public synchronized CalendarEvent getCalendarEvent() {
+    if (!(mPayload instanceof CalendarEvent)) {
+      com.google.mlkit.vision.barcode.common.Barcode barcode = mBarcode;
+      com.google.mlkit.vision.barcode.common.Barcode.CalendarEvent event = barcode == null ? null : barcode.getCalendarEvent();
+      if (event == null) {
+        return null;
+      }
+      mPayload = new CalendarEvent(event);
+    }
+    return (CalendarEvent) mPayload;
   }
 
   @Nullable
-  public ContactInfo getContactInfo() {
-    com.google.mlkit.vision.barcode.common.Barcode.ContactInfo info = mBarcode.getContactInfo();
-    return info == null ? null : new ContactInfo(info);
+  public synchronized ContactInfo getContactInfo() {
+    if (!(mPayload instanceof ContactInfo)) {
+      com.google.mlkit.vision.barcode.common.Barcode barcode = mBarcode;
+      com.google.mlkit.vision.barcode.common.Barcode.ContactInfo info = barcode == null ? null : barcode.getContactInfo();
+      if (info == null) {
+        return null;
+      }
+      mPayload = new ContactInfo(info);
+    }
+    return (ContactInfo) mPayload;
   }
 
   @Nullable
-  public DriverLicense getDriverLicense() {
-    com.google.mlkit.vision.barcode.common.Barcode.DriverLicense license = mBarcode.getDriverLicense();
-    return license == null ? null : new DriverLicense(license);
+  public synchronized DriverLicense getDriverLicense() {
+    if (!(mPayload instanceof DriverLicense)) {
+      com.google.mlkit.vision.barcode.common.Barcode barcode = mBarcode;
+      com.google.mlkit.vision.barcode.common.Barcode.DriverLicense license = barcode == null ? null : barcode.getDriverLicense();
+      if (license == null) {
+        return null;
+      }
+      mPayload = new DriverLicense(license);
+    }
+    return (DriverLicense) mPayload;
   }
 
   @Nullable
-  public Email getEmail() {
-    com.google.mlkit.vision.barcode.common.Barcode.Email email = mBarcode.getEmail();
-    return email == null ? null : new Email(email);
+  public synchronized Email getEmail() {
+    if (!(mPayload instanceof Email)) {
+      com.google.mlkit.vision.barcode.common.Barcode barcode = mBarcode;
+      com.google.mlkit.vision.barcode.common.Barcode.Email email = barcode == null ? null : barcode.getEmail();
+      if (email == null) {
+        return null;
+      }
+      mPayload = new Email(email);
+    }
+    return (Email) mPayload;
   }
 
   @Nullable
-  public GeoPoint getGeoPoint() {
-    com.google.mlkit.vision.barcode.common.Barcode.GeoPoint point = mBarcode.getGeoPoint();
-    return point == null ? null : new GeoPoint(point);
+  public synchronized GeoPoint getGeoPoint() {
+    if (!(mPayload instanceof GeoPoint)) {
+      com.google.mlkit.vision.barcode.common.Barcode barcode = mBarcode;
+      com.google.mlkit.vision.barcode.common.Barcode.GeoPoint point = barcode == null ? null : barcode.getGeoPoint();
+      if (point == null) {
+        return null;
+      }
+      mPayload = new GeoPoint(point);
+    }
+    return (GeoPoint) mPayload;
   }
 
   @Nullable
-  public Phone getPhone() {
-    com.google.mlkit.vision.barcode.common.Barcode.Phone phone = mBarcode.getPhone();
-    return phone == null ? null : new Phone(phone);
+  public synchronized Phone getPhone() {
+    if (!(mPayload instanceof Phone)) {
+      com.google.mlkit.vision.barcode.common.Barcode barcode = mBarcode;
+      com.google.mlkit.vision.barcode.common.Barcode.Phone phone = barcode == null ? null : barcode.getPhone();
+      if (phone == null) {
+        return null;
+      }
+      mPayload = new Phone(phone);
+    }
+    return (Phone) mPayload;
   }
 
   @Nullable
-  public Sms getSms() {
-    com.google.mlkit.vision.barcode.common.Barcode.Sms sms = mBarcode.getSms();
-    return sms == null ? null : new Sms(sms);
+  public synchronized Sms getSms() {
+    if (!(mPayload instanceof Sms)) {
+      com.google.mlkit.vision.barcode.common.Barcode barcode = mBarcode;
+      com.google.mlkit.vision.barcode.common.Barcode.Sms sms = barcode == null ? null : barcode.getSms();
+      if (sms == null) {
+        return null;
+      }
+      mPayload = new Sms(sms);
+    }
+    return (Sms) mPayload;
   }
 
   @Nullable
-  public UrlBookmark getUrl() {
-    com.google.mlkit.vision.barcode.common.Barcode.UrlBookmark url = mBarcode.getUrl();
-    return url == null ? null : new UrlBookmark(url);
+  public synchronized UrlBookmark getUrl() {
+    if (!(mPayload instanceof UrlBookmark)) {
+      com.google.mlkit.vision.barcode.common.Barcode barcode = mBarcode;
+      com.google.mlkit.vision.barcode.common.Barcode.UrlBookmark url = barcode == null ? null : barcode.getUrl();
+      if (url == null) {
+        return null;
+      }
+      mPayload = new UrlBookmark(url);
+    }
+    return (UrlBookmark) mPayload;
   }
 
   @Nullable
-  public WiFi getWifi() {
-    com.google.mlkit.vision.barcode.common.Barcode.WiFi wifi = mBarcode.getWifi();
-    return wifi == null ? null : new WiFi(wifi);
+  public synchronized WiFi getWifi() {
+    if (!(mPayload instanceof WiFi)) {
+      com.google.mlkit.vision.barcode.common.Barcode barcode = mBarcode;
+      com.google.mlkit.vision.barcode.common.Barcode.WiFi wifi = barcode == null ? null : barcode.getWifi();
+      if (wifi == null) {
+        return null;
+      }
+      mPayload = new WiFi(wifi);
+    }
+    return (WiFi) mPayload;
   }
 
   @Nullable
   public String getDisplayValue() {
-    return mBarcode.getDisplayValue();
+    com.google.mlkit.vision.barcode.common.Barcode barcode = mBarcode;
+    return barcode == null ? mRawValue : barcode.getDisplayValue();
   }
 
   @Nullable
   public String getRawValue() {
-    return mBarcode.getRawValue();
+    com.google.mlkit.vision.barcode.common.Barcode barcode = mBarcode;
+    return barcode == null ? mRawValue : barcode.getRawValue();
   }
 }
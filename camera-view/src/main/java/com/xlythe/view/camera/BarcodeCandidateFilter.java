@@ -0,0 +1,268 @@
+package com.xlythe.view.camera;
+
+import androidx.annotation.FloatRange;
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * A quick look at a frame's brightness, to decide whether it's worth handing to a
+ * {@link BarcodeDecoder} at all. Most frames a scanner sees have nothing in them, and decoding is
+ * far more expensive than looking.
+ *
+ * The frame is split into square cells, and each cell is sampled on a sparse grid. Barcodes are
+ * made of sharp, regular transitions between dark and light, so a cell that contains one has many
+ * neighbouring samples that differ by a lot, along its rows (bars and finder patterns) or its
+ * columns (bars in a rotated frame). A frame is a candidate once enough cells are that busy. Smooth
+ * surfaces, shadows and sensor noise rarely are.
+ *
+ * The filter errs towards letting frames through, as a skipped barcode is worse than a wasted
+ * decode. How often it skips frames, and how long it takes, is kept in its {@link Stats}.
+ */
+public final class BarcodeCandidateFilter {
+  /** How far apart, in pixels, samples are by default. */
+  static final int DEFAULT_SAMPLE_STEP = 2;
+
+  /** The width and height, in pixels, of each cell by default. */
+  static final int DEFAULT_CELL_SIZE = 32;
+
+  /** How different, in brightness, neighbouring samples must be to count as an edge by default. */
+  static final int DEFAULT_EDGE_THRESHOLD = 40;
+
+  /** The fraction of a cell's samples that must be edges by default. */
+  static final float DEFAULT_MIN_EDGE_DENSITY = 0.1f;
+
+  /** How many busy cells make a frame a candidate by default. */
+  static final int DEFAULT_MIN_CANDIDATE_CELLS = 2;
+
+  private final int mSampleStep;
+  private final int mCellSize;
+  private final int mEdgeThreshold;
+  private final float mMinEdgeDensity;
+  private final int mMinCandidateCells;
+
+  /** Guarded by this. */
+  private long mCheckedFrames;
+  private long mCandidateFrames;
+  private long mTotalNanos;
+
+  /** A filter with the default settings. */
+  public BarcodeCandidateFilter() {
+    this(new Builder());
+  }
+
+  private BarcodeCandidateFilter(Builder builder) {
+    mSampleStep = builder.mSampleStep;
+    mCellSize = builder.mCellSize;
+    mEdgeThreshold = builder.mEdgeThreshold;
+    mMinEdgeDensity = builder.mMinEdgeDensity;
+    mMinCandidateCells = builder.mMinCandidateCells;
+  }
+
+  /**
+   * Returns true if the frame may contain a barcode, and so should be decoded. The buffer's
+   * position is left unchanged.
+   *
+   * @param luma The brightness of each pixel, one byte per pixel, starting at the buffer's position.
+   * @param rowStride The distance, in bytes, between the start of one row and the next.
+   */
+  @WorkerThread
+  public boolean hasCandidate(ByteBuffer luma, int width, int height, int rowStride) {
+    long start = System.nanoTime();
+    boolean found = countBusyCells(luma, width, height, rowStride) >= mMinCandidateCells;
+    long elapsed = System.nanoTime() - start;
+    synchronized (this) {
+      mCheckedFrames++;
+      if (found) {
+        mCandidateFrames++;
+      }
+      mTotalNanos += elapsed;
+    }
+    return found;
+  }
+
+  /** Counts busy cells, stopping early once there are enough to make the frame a candidate. */
+  private int countBusyCells(ByteBuffer luma, int width, int height, int rowStride) {
+    int base = luma.position();
+    int busyCells = 0;
+    for (int top = 0; top < height; top += mCellSize) {
+      int bottom = Math.min(top + mCellSize, height);
+      for (int left = 0; left < width; left += mCellSize) {
+        int right = Math.min(left + mCellSize, width);
+        if (isBusy(luma, base, rowStride, left, top, right, bottom, width, height)) {
+          if (++busyCells >= mMinCandidateCells) {
+            return busyCells;
+          }
+        }
+      }
+    }
+    return busyCells;
+  }
+
+  /** Returns true if enough of the cell's samples sit on a sharp edge, along its rows or columns. */
+  private boolean isBusy(ByteBuffer luma, int base, int rowStride, int left, int top, int right, int bottom, int width, int height) {
+    int samples = 0;
+    int rowEdges = 0;
+    int columnEdges = 0;
+    for (int y = top; y < bottom; y += mSampleStep) {
+      int row = base + y * rowStride;
+      boolean hasNextRow = y + mSampleStep < height;
+      for (int x = left; x < right; x += mSampleStep) {
+        int value = luma.get(row + x) & 0xFF;
+        if (x + mSampleStep < width && Math.abs(value - (luma.get(row + x + mSampleStep) & 0xFF)) >= mEdgeThreshold) {
+          rowEdges++;
+        }
+        if (hasNextRow && Math.abs(value - (luma.get(row + mSampleStep * rowStride + x) & 0xFF)) >= mEdgeThreshold) {
+          columnEdges++;
+        }
+        samples++;
+      }
+    }
+    return samples > 0 && Math.max(rowEdges, columnEdges) >= mMinEdgeDensity * samples;
+  }
+
+  /** Returns how many frames have been checked, and how many were let through. */
+  public synchronized Stats getStats() {
+    return new Stats(mCheckedFrames, mCandidateFrames, mTotalNanos);
+  }
+
+  /** Clears the stats, such as when starting a new scanning session. */
+  public synchronized void resetStats() {
+    mCheckedFrames = 0;
+    mCandidateFrames = 0;
+    mTotalNanos = 0;
+  }
+
+  @NonNull
+  @Override
+  public String toString() {
+    return "BarcodeCandidateFilter{" +
+            "sampleStep=" + mSampleStep +
+            ", cellSize=" + mCellSize +
+            ", edgeThreshold=" + mEdgeThreshold +
+            ", minEdgeDensity=" + mMinEdgeDensity +
+            ", minCandidateCells=" + mMinCandidateCells +
+            '}';
+  }
+
+  /** A snapshot of how a {@link BarcodeCandidateFilter} has been doing. */
+  public static final class Stats {
+    private final long mCheckedFrames;
+    private final long mCandidateFrames;
+    private final long mTotalNanos;
+
+    Stats(long checkedFrames, long candidateFrames, long totalNanos) {
+      mCheckedFrames = checkedFrames;
+      mCandidateFrames = candidateFrames;
+      mTotalNanos = totalNanos;
+    }
+
+    /** Returns the number of frames looked at. */
+    public long getCheckedFrames() {
+      return mCheckedFrames;
+    }
+
+    /** Returns the number of frames that may contain a barcode, and were decoded. */
+    public long getCandidateFrames() {
+      return mCandidateFrames;
+    }
+
+    /** Returns the number of frames that were skipped without being decoded. */
+    public long getSkippedFrames() {
+      return mCheckedFrames - mCandidateFrames;
+    }
+
+    /** Returns the fraction of frames skipped, from 0 to 1. */
+    public float getSkipRate() {
+      return mCheckedFrames == 0 ? 0 : (float) getSkippedFrames() / mCheckedFrames;
+    }
+
+    /** Returns how long looking at a frame took, on average. */
+    public double getAverageMillis() {
+      return mCheckedFrames == 0 ? 0 : mTotalNanos / 1e6 / mCheckedFrames;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+      return "Stats{" +
+              "checkedFrames=" + mCheckedFrames +
+              ", candidateFrames=" + mCandidateFrames +
+              ", skipRate=" + String.format(Locale.US, "%.2f", getSkipRate()) +
+              ", averageMillis=" + String.format(Locale.US, "%.3f", getAverageMillis()) +
+              '}';
+    }
+  }
+
+  public static class Builder {
+    private int mSampleStep = DEFAULT_SAMPLE_STEP;
+    private int mCellSize = DEFAULT_CELL_SIZE;
+    private int mEdgeThreshold = DEFAULT_EDGE_THRESHOLD;
+    private float mMinEdgeDensity = DEFAULT_MIN_EDGE_DENSITY;
+    private int mMinCandidateCells = DEFAULT_MIN_CANDIDATE_CELLS;
+
+    /**
+     * Sets how far apart, in pixels, samples are taken. Larger steps are faster, but can step over
+     * the bars of small barcodes. Defaults to 2.
+     */
+    public Builder setSampleStep(@IntRange(from = 1) int sampleStep) {
+      mSampleStep = sampleStep;
+      return this;
+    }
+
+    /**
+     * Sets the width and height, in pixels, of each cell. Should be no larger than the smallest
+     * barcode you expect to see. Defaults to 32.
+     */
+    public Builder setCellSize(@IntRange(from = 1) int cellSize) {
+      mCellSize = cellSize;
+      return this;
+    }
+
+    /**
+     * Sets how different, in brightness from 0 to 255, neighbouring samples must be to count as an
+     * edge. Lower values find fainter barcodes, but let more noise through. Defaults to 40.
+     */
+    public Builder setEdgeThreshold(@IntRange(from = 1, to = 255) int edgeThreshold) {
+      mEdgeThreshold = edgeThreshold;
+      return this;
+    }
+
+    /**
+     * Sets the fraction of a cell's samples, along either its rows or its columns, that must be
+     * edges for the cell to look like part of a barcode. Defaults to 0.1.
+     */
+    public Builder setMinEdgeDensity(@FloatRange(from = 0, to = 1) float minEdgeDensity) {
+      mMinEdgeDensity = minEdgeDensity;
+      return this;
+    }
+
+    /** Sets how many cells must look like part of a barcode to decode the frame. Defaults to 2. */
+    public Builder setMinCandidateCells(@IntRange(from = 1) int minCandidateCells) {
+      mMinCandidateCells = minCandidateCells;
+      return this;
+    }
+
+    public BarcodeCandidateFilter build() {
+      if (mSampleStep < 1) {
+        throw new IllegalStateException("Cannot sample every " + mSampleStep + " pixels");
+      }
+      if (mCellSize < mSampleStep) {
+        throw new IllegalStateException("Cannot split a frame into cells of " + mCellSize + " pixels when sampling every " + mSampleStep);
+      }
+      if (mEdgeThreshold < 1 || mEdgeThreshold > 255) {
+        throw new IllegalStateException("Cannot detect edges with a threshold of " + mEdgeThreshold);
+      }
+      if (mMinEdgeDensity < 0 || mMinEdgeDensity > 1) {
+        throw new IllegalStateException("Cannot require an edge density of " + mMinEdgeDensity);
+      }
+      if (mMinCandidateCells < 1) {
+        throw new IllegalStateException("Cannot require " + mMinCandidateCells + " candidate cells");
+      }
+      return new BarcodeCandidateFilter(this);
+    }
+  }
+}
@@ -0,0 +1,38 @@
+package com.xlythe.view.camera;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Finds barcodes in a greyscale image. Barcodes only need brightness, so decoders are handed the
+ * luma (Y) plane of a camera frame, and nothing else.
+ *
+ * {@link MlKitBarcodeDecoder} is used by default. {@link ZxingBarcodeDecoder} runs anywhere Java
+ * does, including on a plain JVM, which makes it handy for comparing decoders and for measuring
+ * scanning throughput off device. Pass a decoder to
+ * {@link CameraView#enterBarcodeScanner(CameraView.BarcodeDetectorListener, BarcodeDecoder, android.graphics.Rect, int)}
+ * to use it.
+ *
+ * Frames are decoded one at a time, on a background thread, so a decoder may block until it's done
+ * and may reuse its own buffers from one frame to the next.
+ */
+public interface BarcodeDecoder {
+  /**
+   * Finds the barcodes in a frame.
+   *
+   * @param luma The frame's brightness, one byte per pixel, starting at the buffer's position. Only
+   *             valid until this method returns.
+   * @param width The width of the frame, in pixels.
+   * @param height The height of the frame, in pixels.
+   * @param rowStride The distance between the start of each row, in bytes. At least the width.
+   * @param rotation How far the frame must be rotated clockwise to be upright, in degrees. Bounding
+   *                 boxes are returned in upright coordinates.
+   * @return The barcodes found, or an empty list if there were none or the frame couldn't be read.
+   */
+  @NonNull
+  @WorkerThread
+  List<Barcode> decode(ByteBuffer luma, int width, int height, int rowStride, int rotation);
+}
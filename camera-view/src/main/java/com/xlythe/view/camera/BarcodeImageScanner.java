@@ -0,0 +1,579 @@
+package com.xlythe.view.camera;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.util.Log;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.UiThread;
+import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
+import androidx.core.content.ContextCompat;
+
+import com.xlythe.view.camera.stream.MediaScheduler;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scans photos that are already on the device, such as a gallery import or a folder of receipts,
+ * for barcodes.
+ *
+ * Each photo is decoded at a reduced size, with its EXIF rotation handed to the decoder, and only
+ * its brightness is kept. Photos are scanned by a few workers at once on the
+ * {@link MediaScheduler}'s analysis threads, each with its own {@link BarcodeDecoder}, and results
+ * are handed back on the main thread in the same order the photos were given, no matter which
+ * finished first. A {@link Batch} can be cancelled at any time.
+ */
+public final class BarcodeImageScanner {
+  private static final String TAG = CameraView.class.getSimpleName();
+
+  /** The longest side, in pixels, photos are decoded at by default. */
+  static final int DEFAULT_MAX_IMAGE_SIZE = 2048;
+
+  /** Creates a decoder for each worker, as decoders hold on to buffers and can't be shared. */
+  public interface DecoderFactory {
+    BarcodeDecoder create();
+  }
+
+  /** Hears about a {@link Batch} as it's scanned. Called on the main thread. */
+  public interface Listener {
+    /** Called with each photo's result, in the same order the photos were given. */
+    @UiThread
+    void onImageScanned(Result result);
+
+    /** Called whenever another photo has been scanned, in whatever order they finish. */
+    @UiThread
+    void onProgress(int scanned, int total);
+
+    /** Called once, after the last result, or as soon as the batch is cancelled. */
+    @UiThread
+    void onFinished(boolean cancelled);
+  }
+
+  /** Turns a photo into a brightness plane. Swapped out in tests, where there are no real photos. */
+  @VisibleForTesting
+  interface ImageLoader {
+    /**
+     * @param maxSize The longest side to decode the photo at, or 0 for its full size.
+     * @param reuse A plane from an earlier photo, whose buffer can be reused, or null.
+     */
+    Luma load(Uri uri, int maxSize, @Nullable Luma reuse) throws IOException;
+  }
+
+  private final DecoderFactory mDecoderFactory;
+  private final ImageLoader mImageLoader;
+  private final Executor mExecutor;
+  private final Executor mCallbackExecutor;
+  private final int mMaxParallelism;
+  private final int mMaxImageSize;
+
+  private BarcodeImageScanner(Builder builder) {
+    mDecoderFactory = builder.mDecoderFactory;
+    mImageLoader = builder.mImageLoader;
+    mExecutor = builder.mExecutor;
+    mCallbackExecutor = builder.mCallbackExecutor;
+    mMaxParallelism = builder.mMaxParallelism;
+    mMaxImageSize = builder.mMaxImageSize;
+  }
+
+  /** Starts scanning the photos, which can be file or content uris. */
+  public Batch scan(List<Uri> images, Listener listener) {
+    Batch batch = new Batch(new ArrayList<>(images), listener);
+    int workers = Math.min(mMaxParallelism, images.size());
+    if (workers == 0) {
+      batch.postFinished(false);
+    }
+    for (int i = 0; i < workers; i++) {
+      mExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          work(batch);
+        }
+      });
+    }
+    return batch;
+  }
+
+  /** Starts scanning the photo files. */
+  public Batch scanFiles(List<File> images, Listener listener) {
+    List<Uri> uris = new ArrayList<>(images.size());
+    for (File image : images) {
+      uris.add(Uri.fromFile(image));
+    }
+    return scan(uris, listener);
+  }
+
+  /** Scans photos from the batch, one at a time, until there are none left or it's cancelled. */
+  @WorkerThread
+  private void work(Batch batch) {
+    // Every photo the worker takes must be reported, or the batch never finishes. So if there's no
+    // decoder, the worker still takes its share of photos, and reports them as failed.
+    BarcodeDecoder decoder = null;
+    IOException decoderError = null;
+    try {
+      decoder = mDecoderFactory.create();
+    } catch (RuntimeException e) {
+      Log.e(TAG, "Failed to create a barcode decoder", e);
+      decoderError = new IOException("Cannot create a barcode decoder", e);
+    }
+
+    Luma luma = null;
+    try {
+      int index;
+      while (!batch.isCancelled() && (index = batch.mNextImage.getAndIncrement()) < batch.getTotal()) {
+        Uri uri = batch.mImages.get(index);
+        Result result;
+        try {
+          if (decoder == null) {
+            throw decoderError;
+          }
+          luma = mImageLoader.load(uri, mMaxImageSize, luma);
+          List<Barcode> barcodes = decoder.decode(ByteBuffer.wrap(luma.mData), luma.mWidth, luma.mHeight, luma.mWidth, luma.mRotation);
+          result = new Result(index, uri, barcodes, null);
+        } catch (IOException e) {
+          Log.w(TAG, "Failed to scan " + uri + " for barcodes", e);
+          result = new Result(index, uri, Collections.<Barcode>emptyList(), e);
+        } catch (RuntimeException e) {
+          // Eg. a SecurityException for a photo we lost access to, or a decoder that choked on it.
+          Log.w(TAG, "Failed to scan " + uri + " for barcodes", e);
+          result = new Result(index, uri, Collections.<Barcode>emptyList(), new IOException("Cannot scan " + uri, e));
+        }
+        batch.onImageScanned(result);
+      }
+    } finally {
+      if (decoder instanceof Closeable) {
+        try {
+          ((Closeable) decoder).close();
+        } catch (IOException e) {
+          Log.w(TAG, "Failed to close barcode decoder", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns how much to shrink a photo by, as a power of two, so that its longer side is no more
+   * than the given size.
+   */
+  static int getSampleSize(int width, int height, int maxSize) {
+    int sampleSize = 1;
+    if (maxSize > 0) {
+      while (Math.max(width, height) / sampleSize > maxSize) {
+        sampleSize *= 2;
+      }
+    }
+    return sampleSize;
+  }
+
+  @NonNull
+  @Override
+  public String toString() {
+    return "BarcodeImageScanner{" +
+            "maxParallelism=" + mMaxParallelism +
+            ", maxImageSize=" + mMaxImageSize +
+            '}';
+  }
+
+  /** The barcodes found in a single photo. */
+  public static final class Result {
+    private final int mIndex;
+    private final Uri mUri;
+    private final List<Barcode> mBarcodes;
+    @Nullable private final IOException mError;
+
+    Result(int index, Uri uri, List<Barcode> barcodes, @Nullable IOException error) {
+      mIndex = index;
+      mUri = uri;
+      mBarcodes = barcodes;
+      mError = error;
+    }
+
+    /** Returns where the photo was in the list handed to {@link #scan(List, Listener)}. */
+    public int getIndex() {
+      return mIndex;
+    }
+
+    public Uri getUri() {
+      return mUri;
+    }
+
+    /** Returns the barcodes found, which is empty if there were none or the photo couldn't be read. */
+    public List<Barcode> getBarcodes() {
+      return mBarcodes;
+    }
+
+    /**
+     * Returns why the photo couldn't be read or scanned, or null if it was scanned. Failures other
+     * than I/O, such as a {@link SecurityException}, are wrapped and can be found in the cause.
+     */
+    @Nullable
+    public IOException getError() {
+      return mError;
+    }
+
+    /** Returns true if the photo was read and scanned, whether or not it had any barcodes. */
+    public boolean isSuccessful() {
+      return mError == null;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+      return "Result{" +
+              "index=" + mIndex +
+              ", uri=" + mUri +
+              ", barcodes=" + mBarcodes +
+              ", error=" + mError +
+              '}';
+    }
+  }
+
+  /** A set of photos being scanned. */
+  public final class Batch {
+    private final List<Uri> mImages;
+    private final Listener mListener;
+
+    /** The next photo a worker should pick up. */
+    private final AtomicInteger mNextImage = new AtomicInteger();
+
+    /** Finished results that can't be handed back yet, as an earlier photo is still being scanned. Guarded by this. */
+    private final Result[] mResults;
+
+    /** The number of photos that have been scanned. Guarded by this. */
+    private int mScanned;
+
+    /** The next result to hand back. Guarded by this. */
+    private int mNextResult;
+
+    /** The progress last handed back. Only touched while holding {@link #mListener}. */
+    private int mReportedProgress;
+
+    /** Set once the listener has been told the batch is finished. Only touched while holding {@link #mListener}. */
+    private boolean mIsFinished;
+
+    private volatile boolean mIsCancelled;
+
+    private Batch(List<Uri> images, Listener listener) {
+      mImages = images;
+      mListener = listener;
+      mResults = new Result[images.size()];
+    }
+
+    public int getTotal() {
+      return mImages.size();
+    }
+
+    /** Returns the number of photos that have been scanned so far. */
+    public synchronized int getScannedCount() {
+      return mScanned;
+    }
+
+    /**
+     * Stops scanning. Photos that are already being scanned are allowed to finish, but no more
+     * results are handed back.
+     */
+    public void cancel() {
+      if (mIsCancelled) {
+        return;
+      }
+      mIsCancelled = true;
+      postFinished(true);
+    }
+
+    public boolean isCancelled() {
+      return mIsCancelled;
+    }
+
+    private void onImageScanned(Result result) {
+      synchronized (this) {
+        mResults[result.getIndex()] = result;
+        mScanned++;
+      }
+      mCallbackExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          deliver();
+        }
+      });
+    }
+
+    /**
+     * Hands back every result that's ready, in order. Held under a lock so callbacks never overlap.
+     * Progress and results are read together, as an earlier call may have already handed back the
+     * results of photos that finished after it was posted.
+     */
+    private void deliver() {
+      synchronized (mListener) {
+        if (mIsFinished || mIsCancelled) {
+          return;
+        }
+        int scanned;
+        List<Result> ready = new ArrayList<>();
+        synchronized (this) {
+          scanned = mScanned;
+          while (mNextResult < getTotal() && mResults[mNextResult] != null) {
+            ready.add(mResults[mNextResult]);
+            mResults[mNextResult++] = null;
+          }
+        }
+        if (scanned > mReportedProgress) {
+          mReportedProgress = scanned;
+          mListener.onProgress(scanned, getTotal());
+        }
+        for (Result result : ready) {
+          if (mIsCancelled) {
+            return;
+          }
+          mListener.onImageScanned(result);
+        }
+        if (mNextResult == getTotal() && !mIsCancelled) {
+          mIsFinished = true;
+          mListener.onFinished(false);
+        }
+      }
+    }
+
+    private void postFinished(final boolean cancelled) {
+      mCallbackExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          synchronized (mListener) {
+            if (mIsFinished) {
+              return;
+            }
+            mIsFinished = true;
+            mListener.onFinished(cancelled);
+          }
+        }
+      });
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+      return "Batch{" +
+              "total=" + getTotal() +
+              ", scanned=" + getScannedCount() +
+              ", cancelled=" + mIsCancelled +
+              '}';
+    }
+  }
+
+  /** The brightness of a photo, one byte per pixel, along with how it must be rotated to be upright. */
+  static final class Luma {
+    byte[] mData;
+    int mWidth;
+    int mHeight;
+    int mRotation;
+
+    /** A row of pixels, reused while converting. */
+    private int[] mRow = new int[0];
+
+    Luma(int width, int height, int rotation) {
+      mData = new byte[width * height];
+      mWidth = width;
+      mHeight = height;
+      mRotation = rotation;
+    }
+
+    /** Reuses this plane for a photo of the given size, growing its buffer only if it must. */
+    Luma reset(int width, int height, int rotation) {
+      if (mData.length < width * height) {
+        mData = new byte[width * height];
+      }
+      mWidth = width;
+      mHeight = height;
+      mRotation = rotation;
+      return this;
+    }
+
+    /** Copies the brightness of the bitmap, one row at a time, to avoid a second full size copy. */
+    void set(Bitmap bitmap) {
+      if (mRow.length < mWidth) {
+        mRow = new int[mWidth];
+      }
+      for (int y = 0; y < mHeight; y++) {
+        bitmap.getPixels(mRow, 0, mWidth, 0, y, mWidth, 1);
+        toLuma(mRow, mWidth, mData, y * mWidth);
+      }
+    }
+
+    /** Converts ARGB pixels to brightness, with the BT.601 weights the camera's luma plane uses. */
+    static void toLuma(int[] pixels, int count, byte[] out, int offset) {
+      for (int i = 0; i < count; i++) {
+        int pixel = pixels[i];
+        int r = (pixel >> 16) & 0xFF;
+        int g = (pixel >> 8) & 0xFF;
+        int b = pixel & 0xFF;
+        out[offset + i] = (byte) ((r * 77 + g * 150 + b * 29 + 128) >> 8);
+      }
+    }
+  }
+
+  /** Reads photos through a {@link ContentResolver}, which handles both file and content uris. */
+  private static final class ContentImageLoader implements ImageLoader {
+    private final ContentResolver mContentResolver;
+
+    ContentImageLoader(Context context) {
+      mContentResolver = context.getApplicationContext().getContentResolver();
+    }
+
+    @Override
+    public Luma load(Uri uri, int maxSize, @Nullable Luma reuse) throws IOException {
+      int rotation;
+      try (InputStream in = open(uri)) {
+        rotation = new Exif(in).getRotation();
+      } catch (IOException e) {
+        // Not every format carries EXIF data, and those that don't are already upright.
+        rotation = 0;
+      }
+
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      options.inJustDecodeBounds = true;
+      try (InputStream in = open(uri)) {
+        BitmapFactory.decodeStream(in, null, options);
+      }
+      if (options.outWidth <= 0 || options.outHeight <= 0) {
+        throw new IOException("Cannot read the size of " + uri);
+      }
+
+      options.inJustDecodeBounds = false;
+      options.inSampleSize = getSampleSize(options.outWidth, options.outHeight, maxSize);
+      options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+      Bitmap bitmap;
+      try (InputStream in = open(uri)) {
+        bitmap = BitmapFactory.decodeStream(in, null, options);
+      } catch (OutOfMemoryError e) {
+        // Photos are decoded in parallel, so one that's huge can run out of memory where it wouldn't
+        // alone. Fail just this photo, rather than the worker.
+        throw new IOException("Cannot fit " + uri + " in memory", e);
+      }
+      if (bitmap == null) {
+        throw new IOException("Cannot decode " + uri);
+      }
+
+      try {
+        Luma luma = reuse == null
+                ? new Luma(bitmap.getWidth(), bitmap.getHeight(), rotation)
+                : reuse.reset(bitmap.getWidth(), bitmap.getHeight(), rotation);
+        luma.set(bitmap);
+        return luma;
+      } catch (OutOfMemoryError e) {
+        throw new IOException("Cannot fit " + uri + " in memory", e);
+      } finally {
+        bitmap.recycle();
+      }
+    }
+
+    private InputStream open(Uri uri) throws IOException {
+      InputStream in = mContentResolver.openInputStream(uri);
+      if (in == null) {
+        throw new FileNotFoundException("Cannot open " + uri);
+      }
+      return in;
+    }
+  }
+
+  public static class Builder {
+    private final Context mContext;
+    private DecoderFactory mDecoderFactory = new DecoderFactory() {
+      @Override
+      public BarcodeDecoder create() {
+        return new MlKitBarcodeDecoder(Barcode.Format.ALL_FORMATS);
+      }
+    };
+    private int mMaxParallelism = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+    private int mMaxImageSize = DEFAULT_MAX_IMAGE_SIZE;
+    @Nullable private ImageLoader mImageLoader;
+    @Nullable private Executor mExecutor;
+    @Nullable private Executor mCallbackExecutor;
+
+    public Builder(Context context) {
+      mContext = context;
+    }
+
+    /** Sets how decoders are created, one per worker. Defaults to ML Kit, looking for every format. */
+    public Builder setDecoderFactory(DecoderFactory decoderFactory) {
+      mDecoderFactory = decoderFactory;
+      return this;
+    }
+
+    /**
+     * Sets how many photos are scanned at once. Each one holds a decoded photo in memory. Defaults
+     * to one less than the number of cores, up to 4.
+     */
+    public Builder setMaxParallelism(@IntRange(from = 1) int maxParallelism) {
+      mMaxParallelism = maxParallelism;
+      return this;
+    }
+
+    /**
+     * Sets the longest side, in pixels, to decode photos at. Photos are shrunk by powers of two
+     * while they're decoded, which is far faster and uses far less memory than decoding them in
+     * full. Defaults to 2048.
+     *
+     * @param maxImageSize The size in pixels, or 0 to decode photos at their full size.
+     */
+    public Builder setMaxImageSize(@IntRange(from = 0) int maxImageSize) {
+      mMaxImageSize = maxImageSize;
+      return this;
+    }
+
+    @VisibleForTesting
+    Builder setImageLoader(ImageLoader imageLoader) {
+      mImageLoader = imageLoader;
+      return this;
+    }
+
+    @VisibleForTesting
+    Builder setExecutor(Executor executor) {
+      mExecutor = executor;
+      return this;
+    }
+
+    @VisibleForTesting
+    Builder setCallbackExecutor(Executor callbackExecutor) {
+      mCallbackExecutor = callbackExecutor;
+      return this;
+    }
+
+    public BarcodeImageScanner build() {
+      if (mMaxParallelism < 1) {
+        throw new IllegalStateException("Cannot scan " + mMaxParallelism + " photos at once");
+      }
+      if (mMaxImageSize < 0) {
+        throw new IllegalStateException("Cannot decode photos at " + mMaxImageSize + " pixels");
+      }
+      if (mImageLoader == null) {
+        mImageLoader = new ContentImageLoader(mContext);
+      }
+      if (mExecutor == null) {
+        mExecutor = new Executor() {
+          @Override
+          public void execute(Runnable runnable) {
+            MediaScheduler.getInstance().submit("BarcodeImageScanner", MediaScheduler.PRIORITY_ANALYSIS, runnable);
+          }
+        };
+      }
+      if (mCallbackExecutor == null) {
+        mCallbackExecutor = ContextCompat.getMainExecutor(mContext);
+      }
+      return new BarcodeImageScanner(this);
+    }
+  }
+}
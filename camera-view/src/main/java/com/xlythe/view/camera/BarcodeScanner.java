@@ -1,70 +1,135 @@
 package com.xlythe.view.camera;
 
-import android.Manifest;
-import android.graphics.ImageFormat;
-import android.media.Image;
-import android.media.ImageReader;
-import android.os.Build;
+import android.graphics.RectF;
+import android.os.SystemClock;
 import android.util.Log;
-import android.view.Surface;
 
+import androidx.annotation.IntRange;
+import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
-import androidx.annotation.RequiresPermission;
+import androidx.annotation.WorkerThread;
 
-import com.google.android.gms.tasks.Tasks;
-import com.google.common.util.concurrent.SettableFuture;
-import com.google.mlkit.vision.barcode.BarcodeScannerOptions;
-import com.google.mlkit.vision.barcode.BarcodeScanning;
-import com.google.mlkit.vision.common.InputImage;
 import com.xlythe.view.camera.CameraView.BarcodeDetectorListener;
-import com.xlythe.view.camera.stream.VideoRecorder;
 
-import java.util.ArrayList;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.List;
-import java.util.Objects;
-import java.util.concurrent.ExecutionException;
-
-import static android.os.Process.THREAD_PRIORITY_DISPLAY;
-import static android.os.Process.THREAD_PRIORITY_VIDEO;
-import static android.os.Process.setThreadPriority;
 
 /**
  * When created, you must pass a {@link BarcodeDetectorListener}. Once {@link #start()} is called,
  * the listener will be called whenever a {@link Barcode} is discovered until {@link #stop()} is
  * called.
+ *
+ * Frames come from a {@link FrameDispatcher}, alongside any other {@link FrameAnalyzer}s, and are
+ * scanned no more often than {@link #setMaxScansPerSecond(float)} allows. While scans keep finding
+ * nothing, they're spaced further apart to save battery. Frames that arrive while a scan is still
+ * running, or too soon after the last one, are dropped.
+ *
+ * Only the luma plane of each frame is handed to the {@link BarcodeDecoder}, which is ML Kit unless
+ * another is given. If a {@link BarcodeCandidateFilter} is set, frames it skips aren't decoded, and
+ * are reported as scans that found nothing.
  */
-@RequiresApi(18)
-class BarcodeScanner {
+@RequiresApi(19)
+class BarcodeScanner implements FrameAnalyzer {
   private static final String TAG = CameraView.class.getSimpleName();
 
-  /** Draws on our surface. */
-  private final VideoRecorder.Canvas mCanvas;
+  /** How many frames are scanned each second by default. More rarely makes scanning feel faster. */
+  static final float DEFAULT_SCANS_PER_SECOND = 10;
+
+  /** Hands us frames from the camera. */
+  private final FrameDispatcher mDispatcher;
+
+  /** Finds barcodes in frames. Guarded by {@link #mDecoderLock}. */
+  private final BarcodeDecoder mDecoder;
+
+  /** True if we created {@link #mDecoder}, and so should close it once we're done. */
+  private final boolean mOwnsDecoder;
+
+  /** Held while decoding, so that the decoder isn't closed in the middle of a scan. */
+  private final Object mDecoderLock = new Object();
 
-  /** Processes frames. */
-  private final com.google.mlkit.vision.barcode.BarcodeScanner mScanner;
+  /** Set once we've closed {@link #mDecoder}. Guarded by {@link #mDecoderLock}. */
+  private boolean mIsDecoderClosed;
 
   /** Allows us to report events back to the caller. */
   private final BarcodeDetectorListener mListener;
 
-  /** The rotation of the image. */
-  private int mCameraOrientation;
+  /** The part of the preview to scan, in normalized coordinates, or null for all of it. */
+  @Nullable private RectF mRegionOfInterest;
+
+  /** The largest frames are scanned at, along their longer side, or 0 for no limit. */
+  private int mMaxAnalysisSize;
 
   /**
-   * If true, the background thread will continue to loop and process frames. Once false, the thread
-   * will shut down.
+   * Crops and shrinks frames before they're scanned. Null if frames are scanned as they are. Only
+   * used by one scan at a time.
    */
+  @Nullable private volatile LumaCropper mLumaCropper;
+
+  /** Decides which frames are worth decoding. Null if every frame is decoded. */
+  @Nullable private volatile BarcodeCandidateFilter mCandidateFilter;
+
+  /** Once false, frames will be dropped instead of scanned. */
   private volatile boolean mIsAlive;
 
-  /** The background thread processing frames for us. */
-  private Thread mThread;
+  /**
+   * Decides which frames get scanned. The dispatcher hands us every frame it can, as the spacing
+   * depends on what the last scan found. Only used by one scan at a time, once set.
+   */
+  private volatile ScanRateLimiter mRateLimiter = new ScanRateLimiter(DEFAULT_SCANS_PER_SECOND);
+
+  /** A simple barcode scanner, backed by ML Kit. */
+  public BarcodeScanner(FrameDispatcher dispatcher, BarcodeDetectorListener listener, @Barcode.Format int format, @Barcode.Format int... formats) {
+    this(dispatcher, listener, new MlKitBarcodeDecoder(format, formats), true);
+  }
 
-  /** A simple barcode scanner. */
-  public BarcodeScanner(VideoRecorder.Canvas canvas, BarcodeDetectorListener listener, @Barcode.Format int format, @Barcode.Format int... formats) {
-    this.mCanvas = canvas;
-    this.mScanner = BarcodeScanning.getClient(new BarcodeScannerOptions.Builder()
-            .setBarcodeFormats(format, formats)
-            .build());
+  /** A barcode scanner that finds barcodes with the given decoder. The caller still owns the decoder. */
+  public BarcodeScanner(FrameDispatcher dispatcher, BarcodeDetectorListener listener, BarcodeDecoder decoder) {
+    this(dispatcher, listener, decoder, false);
+  }
+
+  private BarcodeScanner(FrameDispatcher dispatcher, BarcodeDetectorListener listener, BarcodeDecoder decoder, boolean ownsDecoder) {
+    this.mDispatcher = dispatcher;
     this.mListener = listener;
+    this.mDecoder = decoder;
+    this.mOwnsDecoder = ownsDecoder;
+  }
+
+  /**
+   * Sets the most frames to scan each second. Scanning slows further on its own while nothing is
+   * found.
+   */
+  public void setMaxScansPerSecond(float scansPerSecond) {
+    mRateLimiter = new ScanRateLimiter(scansPerSecond);
+  }
+
+  /** Skips decoding frames that the filter doesn't think have a barcode in them. */
+  public void setCandidateFilter(@Nullable BarcodeCandidateFilter filter) {
+    mCandidateFilter = filter;
+  }
+
+  /**
+   * Only scans part of the preview, such as a viewfinder box drawn over it. Must be called before
+   * {@link #start()}.
+   *
+   * @param region Normalized coordinates, from 0 to 1, of the preview as the user sees it. Null to
+   *               scan the whole preview.
+   */
+  public void setRegionOfInterest(@Nullable RectF region) {
+    mRegionOfInterest = region == null ? null : new RectF(region);
+  }
+
+  /**
+   * Shrinks frames until their longer side is no more than the given size before scanning them.
+   * Smaller frames scan much faster, and barcodes that fill a reasonable part of the view are still
+   * found. Must be called before {@link #start()}.
+   *
+   * @param maxSize The size in pixels, or 0 to scan frames at the camera's resolution.
+   */
+  public void setMaxAnalysisSize(@IntRange(from = 0) int maxSize) {
+    mMaxAnalysisSize = maxSize;
   }
 
   /** @return True if actively scanning. False otherwise. */
@@ -73,7 +138,6 @@ class BarcodeScanner {
   }
 
   /** Starts scanning. */
-  @RequiresPermission(Manifest.permission.CAMERA)
   public void start() {
     if (isScanning()) {
       Log.w(TAG, "BarcodeScanner is already running");
@@ -81,126 +145,80 @@ class BarcodeScanner {
     }
 
     mIsAlive = true;
-    mThread =
-            new Thread() {
-              @RequiresPermission(Manifest.permission.CAMERA)
-              @Override
-              public void run() {
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
-                  setThreadPriority(THREAD_PRIORITY_VIDEO);
-                } else {
-                  setThreadPriority(THREAD_PRIORITY_DISPLAY);
-                }
-
-                SettableFuture<CameraMetadata> requestedSizeFuture = SettableFuture.create();
-                SettableFuture<Surface> providedSurface = SettableFuture.create();
-                VideoRecorder.SurfaceProvider surfaceProvider = (width, height, orientation, flipped) -> {
-                  mCameraOrientation = orientation;
-                  requestedSizeFuture.set(new CameraMetadata(width, height, orientation, flipped));
-                  try {
-                    return providedSurface.get();
-                  } catch (ExecutionException | InterruptedException e) {
-                    throw new RuntimeException(e);
-                  }
-                };
-                mCanvas.attachSurface(surfaceProvider);
-
-                ImageReader imageReader = null;
-                try {
-                  CameraMetadata metadata = Objects.requireNonNull(requestedSizeFuture.get());
-                  imageReader = ImageReader.newInstance(metadata.getWidth(), metadata.getHeight(), ImageFormat.YUV_420_888, 2);
-                  providedSurface.set(imageReader.getSurface());
-
-                  while (isAlive()) {
-                    Image image = imageReader.acquireLatestImage();
-                    if (image != null) {
-                      try {
-                        processFrame(image);
-                      } finally {
-                        image.close();
-                      }
-                    } else {
-                      try {
-                        Thread.sleep(10);
-                      } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                        break;
-                      }
-                    }
-                  }
-
-                } catch (ExecutionException | InterruptedException e) {
-                  Log.e(TAG, "Exception with barcode scanner stream", e);
-                } finally {
-                  stopInternal();
-                  if (imageReader != null) {
-                    mCanvas.detachSurface(surfaceProvider);
-                    imageReader.close();
-                  }
-                }
-              }
-            };
-    mThread.start();
-  }
-
-  private void stopInternal() {
-    mIsAlive = false;
+    mLumaCropper = mRegionOfInterest != null || mMaxAnalysisSize > 0 ? new LumaCropper(mRegionOfInterest, mMaxAnalysisSize) : null;
+    mDispatcher.add(this, FrameAnalyzer.Options.DEFAULT);
   }
 
   /** Stops scanning. */
   public void stop() {
-    stopInternal();
-    if (mThread != null) {
-      try {
-        mThread.join(300);
-      } catch (InterruptedException e) {
-        Log.e(TAG, "Interrupted while joining BarcodeScanner thread", e);
-        Thread.currentThread().interrupt();
-      }
+    if (!isScanning()) {
+      return;
     }
-  }
 
-  private void processFrame(Image mediaImage) {
-    InputImage image = InputImage.fromMediaImage(mediaImage, mCameraOrientation);
-    try {
-      List<com.google.mlkit.vision.barcode.common.Barcode> barcodes = Tasks.await(mScanner.process(image));
-      List<Barcode> list = new ArrayList<>(barcodes.size());
-      for (com.google.mlkit.vision.barcode.common.Barcode barcode : barcodes) {
-        list.add(new Barcode(barcode));
+    mIsAlive = false;
+    mDispatcher.remove(this);
+    if (mOwnsDecoder && mDecoder instanceof Closeable) {
+      // Waits for a scan that's still running to finish first.
+      synchronized (mDecoderLock) {
+        mIsDecoderClosed = true;
+        try {
+          ((Closeable) mDecoder).close();
+        } catch (IOException e) {
+          Log.w(TAG, "Failed to close barcode decoder", e);
+        }
       }
-      mListener.onBarcodeFound(list);
-    } catch (ExecutionException | InterruptedException e) {
-      Log.w(TAG, "Barcode processing failed", e);
     }
-  }
 
-  private static class CameraMetadata {
-    final int width;
-    final int height;
-    final int orientation;
-    final boolean flipped;
-
-    CameraMetadata(int width, int height, int orientation, boolean flipped) {
-      this.width = width;
-      this.height = height;
-      this.orientation = orientation;
-      this.flipped = flipped;
+    // Nothing is in view once we stop looking.
+    if (mListener instanceof BarcodeTracker) {
+      ((BarcodeTracker) mListener).reset();
     }
+  }
 
-    int getWidth() {
-      return width;
+  /** Scans a frame, if it's time to. Frames that arrive meanwhile are dropped, all but the latest. */
+  @WorkerThread
+  @Override
+  public void analyze(Frame frame) {
+    if (!mIsAlive || !mRateLimiter.tryStartScan(SystemClock.elapsedRealtime())) {
+      return;
     }
 
-    int getHeight() {
-      return height;
+    ByteBuffer luma;
+    int width;
+    int height;
+    int rowStride;
+    LumaCropper cropper = mLumaCropper;
+    if (cropper != null && cropper.isNeeded(frame.getWidth(), frame.getHeight())) {
+      // Only one frame is scanned at a time, so the cropper's buffer is free to reuse.
+      cropper.crop(frame.getBuffer(Frame.PLANE_Y), frame.getRowStride(Frame.PLANE_Y), frame.getPixelStride(Frame.PLANE_Y),
+              frame.getWidth(), frame.getHeight(), frame.getRotation(), frame.isFlipped());
+      luma = ByteBuffer.wrap(cropper.getBuffer());
+      width = cropper.getWidth();
+      height = cropper.getHeight();
+      rowStride = width;
+    } else {
+      luma = frame.getBuffer(Frame.PLANE_Y);
+      width = frame.getWidth();
+      height = frame.getHeight();
+      rowStride = frame.getRowStride(Frame.PLANE_Y);
     }
 
-    int getOrientation() {
-      return orientation;
+    List<Barcode> barcodes;
+    BarcodeCandidateFilter filter = mCandidateFilter;
+    if (filter != null && !filter.hasCandidate(luma, width, height, rowStride)) {
+      // Nothing in view looks like a barcode, so there's no need to pay for a decode.
+      barcodes = Collections.emptyList();
+    } else {
+      synchronized (mDecoderLock) {
+        if (mIsDecoderClosed) {
+          return;
+        }
+        barcodes = mDecoder.decode(luma, width, height, rowStride, frame.getRotation());
+      }
     }
-
-    boolean isFlipped() {
-      return flipped;
+    mRateLimiter.onScanFinished(!barcodes.isEmpty());
+    if (mIsAlive) {
+      mListener.onBarcodeFound(barcodes);
     }
   }
 }
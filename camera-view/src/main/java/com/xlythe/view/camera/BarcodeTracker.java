@@ -0,0 +1,254 @@
+package com.xlythe.view.camera;
+
+import android.graphics.Rect;
+import android.os.SystemClock;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Follows barcodes from one scan to the next, and only reports when something changes. Pass it to
+ * {@link CameraView#enterBarcodeScanner(CameraView.BarcodeDetectorListener, int, int...)} in place
+ * of a {@link CameraView.BarcodeDetectorListener}.
+ *
+ * Detections are matched to the barcodes already being tracked by their raw value and by how much
+ * their bounding boxes overlap. Each tracked barcode keeps its {@link Barcode#getTrackingId()} and
+ * the same {@link Barcode} object for as long as it's in view, with its contents refreshed from the
+ * latest scan.
+ *
+ * A barcode appears once it's been seen for {@link #setAppearDebounceMillis(long)}, is updated when
+ * it moves noticeably, and is lost once it's gone unseen for {@link #setLostDebounceMillis(long)}.
+ * Scans that find the same barcodes in the same places report nothing at all.
+ *
+ * The listener is called on the scanner's thread.
+ */
+public class BarcodeTracker implements CameraView.BarcodeDetectorListener {
+  /** How long a barcode must be seen for before it appears, by default. */
+  private static final long DEFAULT_APPEAR_DEBOUNCE_MILLIS = 0;
+
+  /** How long a barcode can go unseen before it's lost, by default. Covers a few missed scans. */
+  private static final long DEFAULT_LOST_DEBOUNCE_MILLIS = 500;
+
+  /** How much boxes must overlap, as intersection over union, to match without a raw value. */
+  private static final float MIN_MATCH_OVERLAP = 0.3f;
+
+  /** How much a box can shift, as intersection over union with where it was, before it's updated. */
+  private static final float MIN_UNCHANGED_OVERLAP = 0.9f;
+
+  public interface Listener {
+    /** Called when a barcode comes into view. */
+    void onBarcodeAppeared(Barcode barcode);
+
+    /** Called when a barcode already in view moves or changes. */
+    void onBarcodeUpdated(Barcode barcode);
+
+    /** Called when a barcode has left the view. */
+    void onBarcodeLost(Barcode barcode);
+  }
+
+  private final Listener mListener;
+
+  /** Every barcode being tracked, including ones that haven't appeared yet. Guarded by this. */
+  private final List<Track> mTracks = new ArrayList<>();
+
+  private long mAppearDebounceMillis = DEFAULT_APPEAR_DEBOUNCE_MILLIS;
+  private long mLostDebounceMillis = DEFAULT_LOST_DEBOUNCE_MILLIS;
+
+  /** The id given to the next new barcode. */
+  private int mNextTrackingId;
+
+  public BarcodeTracker(Listener listener) {
+    mListener = listener;
+  }
+
+  /**
+   * Sets how long a barcode must be seen for before it appears. Filters out barcodes that are only
+   * misread for a moment. Defaults to 0, where barcodes appear as soon as they're seen.
+   */
+  public synchronized BarcodeTracker setAppearDebounceMillis(@IntRange(from = 0) long millis) {
+    mAppearDebounceMillis = millis;
+    return this;
+  }
+
+  /**
+   * Sets how long a barcode can go unseen before it's lost. Rides out scans that miss a barcode
+   * still in view. Defaults to 500ms.
+   */
+  public synchronized BarcodeTracker setLostDebounceMillis(@IntRange(from = 0) long millis) {
+    mLostDebounceMillis = millis;
+    return this;
+  }
+
+  /** Returns the barcodes currently in view. */
+  public synchronized List<Barcode> getBarcodes() {
+    List<Barcode> barcodes = new ArrayList<>(mTracks.size());
+    for (Track track : mTracks) {
+      if (track.mHasAppeared) {
+        barcodes.add(track.mBarcode);
+      }
+    }
+    return barcodes;
+  }
+
+  /** Loses every barcode in view, such as once scanning stops. */
+  public synchronized void reset() {
+    for (Track track : mTracks) {
+      if (track.mHasAppeared) {
+        mListener.onBarcodeLost(track.mBarcode);
+      }
+    }
+    mTracks.clear();
+  }
+
+  @Override
+  public void onBarcodeFound(List<Barcode> barcodes) {
+    onBarcodeFound(barcodes, SystemClock.elapsedRealtime());
+  }
+
+  @VisibleForTesting
+  synchronized void onBarcodeFound(List<Barcode> barcodes, long nowMillis) {
+    for (Track track : mTracks) {
+      track.mIsMatched = false;
+    }
+
+    for (Barcode detection : barcodes) {
+      Track track = findTrack(detection);
+      if (track == null) {
+        detection.setTrackingId(mNextTrackingId++);
+        track = new Track(detection, nowMillis);
+        mTracks.add(track);
+      } else {
+        track.mBarcode.update(detection);
+        track.mLastSeenMillis = nowMillis;
+      }
+      track.mIsMatched = true;
+    }
+
+    for (int i = 0; i < mTracks.size(); i++) {
+      Track track = mTracks.get(i);
+      if (!track.mIsMatched) {
+        if (nowMillis - track.mLastSeenMillis >= mLostDebounceMillis) {
+          mTracks.remove(i--);
+          if (track.mHasAppeared) {
+            mListener.onBarcodeLost(track.mBarcode);
+          }
+        }
+      } else if (!track.mHasAppeared) {
+        if (nowMillis - track.mFirstSeenMillis >= mAppearDebounceMillis) {
+          track.mHasAppeared = true;
+          track.markReported();
+          mListener.onBarcodeAppeared(track.mBarcode);
+        }
+      } else if (track.hasChanged()) {
+        track.markReported();
+        mListener.onBarcodeUpdated(track.mBarcode);
+      }
+    }
+  }
+
+  /**
+   * Finds the tracked barcode that best matches a detection, or null if it's a new barcode. A
+   * matching raw value counts for more than any overlap, but barcodes with different raw values
+   * never match.
+   */
+  @Nullable
+  private Track findTrack(Barcode detection) {
+    Track best = null;
+    float bestScore = 0;
+    String rawValue = detection.getRawValue();
+    Rect box = detection.getBoundingBox();
+    for (Track track : mTracks) {
+      if (track.mIsMatched || track.mBarcode.getFormat() != detection.getFormat()) {
+        continue;
+      }
+
+      String trackedValue = track.mBarcode.getRawValue();
+      boolean sameValue = rawValue != null && rawValue.equals(trackedValue);
+      if (!sameValue && rawValue != null && trackedValue != null) {
+        continue;
+      }
+
+      float overlap = getOverlap(box, track.mBarcode.getBoundingBox());
+      if (!sameValue && overlap < MIN_MATCH_OVERLAP) {
+        continue;
+      }
+
+      float score = (sameValue ? 1 : 0) + overlap;
+      if (best == null || score > bestScore) {
+        best = track;
+        bestScore = score;
+      }
+    }
+    return best;
+  }
+
+  /** Returns the intersection over union of two boxes, or 0 if either is unknown. */
+  @VisibleForTesting
+  static float getOverlap(@Nullable Rect a, @Nullable Rect b) {
+    if (a == null || b == null) {
+      return 0;
+    }
+    long width = Math.min(a.right, b.right) - Math.max(a.left, b.left);
+    long height = Math.min(a.bottom, b.bottom) - Math.max(a.top, b.top);
+    if (width <= 0 || height <= 0) {
+      return 0;
+    }
+    long intersection = width * height;
+    long union = (long) a.width() * a.height() + (long) b.width() * b.height() - intersection;
+    return union <= 0 ? 0 : (float) intersection / union;
+  }
+
+  @NonNull
+  @Override
+  public synchronized String toString() {
+    return "BarcodeTracker{" +
+            "tracks=" + mTracks.size() +
+            ", appearDebounce=" + mAppearDebounceMillis + "ms" +
+            ", lostDebounce=" + mLostDebounceMillis + "ms" +
+            '}';
+  }
+
+  private static class Track {
+    /** The object handed to the listener. Refreshed in place with each new detection. */
+    final Barcode mBarcode;
+    final long mFirstSeenMillis;
+    long mLastSeenMillis;
+    boolean mHasAppeared;
+
+    /** True if the barcode was seen in the scan being processed. */
+    boolean mIsMatched;
+
+    /** What the listener was last told, so that small changes aren't reported. */
+    @Nullable Rect mReportedBox;
+    @Nullable String mReportedValue;
+
+    Track(Barcode barcode, long nowMillis) {
+      mBarcode = barcode;
+      mFirstSeenMillis = nowMillis;
+      mLastSeenMillis = nowMillis;
+    }
+
+    boolean hasChanged() {
+      String value = mBarcode.getRawValue();
+      if (value == null ? mReportedValue != null : !value.equals(mReportedValue)) {
+        return true;
+      }
+      Rect box = mBarcode.getBoundingBox();
+      if (box == null || mReportedBox == null) {
+        return box != mReportedBox;
+      }
+      return getOverlap(box, mReportedBox) < MIN_UNCHANGED_OVERLAP;
+    }
+
+    void markReported() {
+      Rect box = mBarcode.getBoundingBox();
+      mReportedBox = box == null ? null : new Rect(box);
+      mReportedValue = mBarcode.getRawValue();
+    }
+  }
+}
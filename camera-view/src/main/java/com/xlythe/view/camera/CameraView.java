@@ -6,6 +6,7 @@ import android.content.Context;
 import android.content.res.TypedArray;
 import android.graphics.Matrix;
 import android.graphics.Rect;
+import android.graphics.RectF;
 import android.graphics.SurfaceTexture;
 import android.os.Build;
 import android.os.Bundle;
@@ -25,6 +26,8 @@ import android.view.WindowManager;
 import android.widget.FrameLayout;
 import android.widget.ImageView;
 
+import androidx.annotation.FloatRange;
+import androidx.annotation.IntRange;
 import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 import androidx.annotation.RequiresPermission;
@@ -224,8 +227,14 @@ public class CameraView extends FrameLayout {
     private boolean mIsImageConfirmationEnabled;
     private boolean mIsVideoConfirmationEnabled;
 
+    @Nullable
+    private FrameDispatcher mFrameDispatcher;
+
     @Nullable
     private BarcodeScanner mBarcodeScanner;
+    private float mMaxBarcodeScansPerSecond = BarcodeScanner.DEFAULT_SCANS_PER_SECOND;
+    @Nullable
+    private BarcodeCandidateFilter mBarcodeCandidateFilter;
 
     // When true, avoid adding/removing views. While usually harmless (although it can cause state
     // loss), it's especially important since calling removeView(TextureView) after
@@ -659,6 +668,10 @@ public class CameraView extends FrameLayout {
     protected void onClose() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
             exitBarcodeScanner();
+            if (mFrameDispatcher != null) {
+                mFrameDispatcher.close();
+                mFrameDispatcher = null;
+            }
         }
         mCameraModule.close();
 
@@ -735,12 +748,23 @@ public class CameraView extends FrameLayout {
         mCameraModule.startRecording(file);
     }
 
+    /**
+     * Takes a video that's split across many files, for long running captures. Each segment is
+     * passed to {@link RollingRecording.OnSegmentFinalizedListener} once it's complete, and video
+     * confirmation is skipped. Recording continues until {@link #stopRecording()} is called.
+     * @param recording Describes where segments are written, and how large they can grow.
+     */
+    public void startRecording(RollingRecording recording) {
+        Log.v(TAG, "Recording a rolling video");
+        mCameraModule.startRecording(recording);
+    }
+
     /**
      * Stops an in progress video.
      */
     public void stopRecording() {
         Log.v(TAG, "Stopped recording a video");
-        if (isVideoConfirmationEnabled()) {
+        if (isVideoConfirmationEnabled() && !mCameraModule.isRollingRecording()) {
             mCameraModule.pause();
         }
 
@@ -822,6 +846,39 @@ public class CameraView extends FrameLayout {
         return new VideoStream.Builder().attach(mCameraModule).setParams(params).build();
     }
 
+    /**
+     * Starts handing camera frames to the analyzer, on a background thread. Every analyzer, the
+     * barcode scanner included, shares a single camera output, and each is rate limited on its own.
+     * Analyzers are removed when the camera closes.
+     */
+    @RequiresApi(19)
+    @RequiresPermission(Manifest.permission.CAMERA)
+    @UiThread
+    public void addFrameAnalyzer(FrameAnalyzer analyzer, FrameAnalyzer.Options options) {
+        if (!isOpen()) {
+            throw new IllegalStateException("Camera must be open before analyzing frames");
+        }
+
+        getFrameDispatcher().add(analyzer, options);
+    }
+
+    /** Stops handing camera frames to the analyzer. A frame it's analyzing is allowed to finish. */
+    @RequiresApi(19)
+    @UiThread
+    public void removeFrameAnalyzer(FrameAnalyzer analyzer) {
+        if (mFrameDispatcher != null) {
+            mFrameDispatcher.remove(analyzer);
+        }
+    }
+
+    @RequiresApi(19)
+    private FrameDispatcher getFrameDispatcher() {
+        if (mFrameDispatcher == null) {
+            mFrameDispatcher = new FrameDispatcher(mCameraModule.getCameraCanvas());
+        }
+        return mFrameDispatcher;
+    }
+
     public interface BarcodeDetectorListener {
         void onBarcodeFound(List<Barcode> barcodes);
     }
@@ -829,6 +886,55 @@ public class CameraView extends FrameLayout {
     @RequiresApi(19)
     @RequiresPermission(Manifest.permission.CAMERA)
     public void enterBarcodeScanner(BarcodeDetectorListener listener, @Barcode.Format int format, @Barcode.Format int... formats) {
+        enterBarcodeScanner(listener, null, 0, format, formats);
+    }
+
+    /**
+     * Scans for barcodes in part of the preview only, such as inside a viewfinder box, and at a
+     * reduced resolution. Only the brightness of that part of each frame is scanned, which is several
+     * times faster than scanning the whole frame.
+     *
+     * @param regionOfInterest The part of the preview to scan, in this view's coordinates, or null to
+     *                         scan the whole preview.
+     * @param maxAnalysisSize The most pixels to scan along the longer side of the region, or 0 to
+     *                        scan it at the camera's resolution.
+     */
+    @RequiresApi(19)
+    @RequiresPermission(Manifest.permission.CAMERA)
+    @UiThread
+    public void enterBarcodeScanner(BarcodeDetectorListener listener,
+                                    @Nullable Rect regionOfInterest,
+                                    @IntRange(from = 0) int maxAnalysisSize,
+                                    @Barcode.Format int format,
+                                    @Barcode.Format int... formats) {
+        checkCanScanForBarcodes(maxAnalysisSize);
+        RectF region = regionOfInterest == null ? null : toPreviewRegion(regionOfInterest);
+        startBarcodeScanner(new BarcodeScanner(getFrameDispatcher(), listener, format, formats), region, maxAnalysisSize);
+    }
+
+    /**
+     * Scans for barcodes with a decoder of your choosing, such as a {@link ZxingBarcodeDecoder}, in
+     * place of ML Kit. The decoder is handed the brightness of each frame, on a background thread.
+     * It isn't closed when scanning stops, so it can be reused.
+     *
+     * @param regionOfInterest The part of the preview to scan, in this view's coordinates, or null to
+     *                         scan the whole preview.
+     * @param maxAnalysisSize The most pixels to scan along the longer side of the region, or 0 to
+     *                        scan it at the camera's resolution.
+     */
+    @RequiresApi(19)
+    @RequiresPermission(Manifest.permission.CAMERA)
+    @UiThread
+    public void enterBarcodeScanner(BarcodeDetectorListener listener,
+                                    BarcodeDecoder decoder,
+                                    @Nullable Rect regionOfInterest,
+                                    @IntRange(from = 0) int maxAnalysisSize) {
+        checkCanScanForBarcodes(maxAnalysisSize);
+        RectF region = regionOfInterest == null ? null : toPreviewRegion(regionOfInterest);
+        startBarcodeScanner(new BarcodeScanner(getFrameDispatcher(), listener, decoder), region, maxAnalysisSize);
+    }
+
+    private void checkCanScanForBarcodes(int maxAnalysisSize) {
         if (!isOpen()) {
             throw new IllegalStateException("Camera must be open before scanning for barcodes");
         }
@@ -837,10 +943,88 @@ public class CameraView extends FrameLayout {
             throw new IllegalStateException("Barcode scanner cannot be started twice");
         }
 
-        mBarcodeScanner = new BarcodeScanner(mCameraModule.getCanvas(), listener, format, formats);
+        if (maxAnalysisSize < 0) {
+            throw new IllegalArgumentException("Cannot scan for barcodes at " + maxAnalysisSize + " pixels");
+        }
+    }
+
+    @RequiresApi(19)
+    @RequiresPermission(Manifest.permission.CAMERA)
+    @UiThread
+    private void startBarcodeScanner(BarcodeScanner scanner, @Nullable RectF region, int maxAnalysisSize) {
+        mBarcodeScanner = scanner;
+        mBarcodeScanner.setMaxScansPerSecond(mMaxBarcodeScansPerSecond);
+        mBarcodeScanner.setCandidateFilter(mBarcodeCandidateFilter);
+        mBarcodeScanner.setRegionOfInterest(region);
+        mBarcodeScanner.setMaxAnalysisSize(maxAnalysisSize);
         mBarcodeScanner.start();
     }
 
+    /**
+     * Maps a rectangle in this view onto the preview, undoing the transform that scales and rotates
+     * the preview to fit the view.
+     *
+     * @return The region in normalized coordinates, from 0 to 1, of the preview as it's shown.
+     */
+    @UiThread
+    private RectF toPreviewRegion(Rect rect) {
+        int width = mCameraView.getWidth();
+        int height = mCameraView.getHeight();
+        if (width == 0 || height == 0) {
+            throw new IllegalStateException("Cannot map a region of interest before the preview is laid out");
+        }
+
+        RectF region = new RectF(rect);
+        Matrix inverse = new Matrix();
+        if (getTransform(new Matrix()).invert(inverse)) {
+            inverse.mapRect(region);
+        }
+        region.set(region.left / width, region.top / height, region.right / width, region.bottom / height);
+        if (!region.intersect(0, 0, 1, 1)) {
+            throw new IllegalArgumentException("Cannot scan for barcodes outside of the preview");
+        }
+        return region;
+    }
+
+    /**
+     * Sets the most camera frames the barcode scanner will scan each second. Scanning also slows
+     * down on its own while nothing is found, and speeds back up as soon as something is.
+     */
+    @RequiresApi(19)
+    public void setMaxBarcodeScansPerSecond(@FloatRange(from = 0, fromInclusive = false) float scansPerSecond) {
+        if (scansPerSecond <= 0) {
+            throw new IllegalArgumentException("Cannot scan for barcodes " + scansPerSecond + " times per second");
+        }
+        mMaxBarcodeScansPerSecond = scansPerSecond;
+        if (mBarcodeScanner != null) {
+            mBarcodeScanner.setMaxScansPerSecond(scansPerSecond);
+        }
+    }
+
+    public float getMaxBarcodeScansPerSecond() {
+        return mMaxBarcodeScansPerSecond;
+    }
+
+    /**
+     * Skips decoding frames that the filter doesn't think have a barcode in them. Checking is much
+     * cheaper than decoding, which saves a lot of battery while the camera is pointed at nothing.
+     * The filter's stats show how many frames it skipped.
+     *
+     * @param filter The filter to check frames with, or null to decode every frame.
+     */
+    @RequiresApi(19)
+    public void setBarcodeCandidateFilter(@Nullable BarcodeCandidateFilter filter) {
+        mBarcodeCandidateFilter = filter;
+        if (mBarcodeScanner != null) {
+            mBarcodeScanner.setCandidateFilter(filter);
+        }
+    }
+
+    @Nullable
+    public BarcodeCandidateFilter getBarcodeCandidateFilter() {
+        return mBarcodeCandidateFilter;
+    }
+
     @RequiresApi(19)
     public void exitBarcodeScanner() {
         if (mBarcodeScanner != null) {
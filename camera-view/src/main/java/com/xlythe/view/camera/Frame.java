@@ -0,0 +1,169 @@
+package com.xlythe.view.camera;
+
+import android.media.Image;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A YUV_420_888 camera frame, shared by every {@link FrameAnalyzer} that's looking at it. The
+ * frame's planes are read directly from the camera's buffers, without copying them.
+ *
+ * Frames are reference counted. Each analyzer holds a reference for as long as
+ * {@link FrameAnalyzer#analyze(Frame)} runs, and the frame goes back to the camera once the last
+ * reference is released. An analyzer that wants to keep a frame past that can {@link #acquire()} it,
+ * and must {@link #release()} it once it's done. The camera only has a few frames to hand out, so
+ * hold on to them briefly.
+ */
+@RequiresApi(19)
+public final class Frame {
+  /** The brightness plane. Its pixel stride is always 1. */
+  public static final int PLANE_Y = 0;
+  /** The blue difference plane, at half the width and height of {@link #PLANE_Y}. */
+  public static final int PLANE_U = 1;
+  /** The red difference plane, at half the width and height of {@link #PLANE_Y}. */
+  public static final int PLANE_V = 2;
+
+  /** Where this frame goes once it's released. */
+  private final Pool mPool;
+
+  /** The camera's frame. Null while this frame sits in the pool. Guarded by this. */
+  @Nullable private Image mImage;
+
+  /** How many references are held. Guarded by this. */
+  private int mReferences;
+
+  private int mRotation;
+  private boolean mIsFlipped;
+
+  private Frame(Pool pool) {
+    mPool = pool;
+  }
+
+  public int getWidth() {
+    return getImage().getWidth();
+  }
+
+  public int getHeight() {
+    return getImage().getHeight();
+  }
+
+  /** Returns when the frame was captured, in nanoseconds, on the camera's clock. */
+  public long getTimestamp() {
+    return getImage().getTimestamp();
+  }
+
+  /** Returns how far the frame must be rotated clockwise, in degrees, to appear upright. */
+  public int getRotation() {
+    return mRotation;
+  }
+
+  /** Returns true if the preview is mirrored, as it is for front facing cameras. */
+  public boolean isFlipped() {
+    return mIsFlipped;
+  }
+
+  /**
+   * Returns the pixels of a plane. The buffer is a read only view of the camera's buffer, with its
+   * own position, so it can be read without affecting other analyzers.
+   *
+   * @param plane One of {@link #PLANE_Y}, {@link #PLANE_U} or {@link #PLANE_V}.
+   */
+  public ByteBuffer getBuffer(int plane) {
+    return getImage().getPlanes()[plane].getBuffer().asReadOnlyBuffer();
+  }
+
+  /** Returns the distance, in bytes, between the start of one row of a plane and the next. */
+  public int getRowStride(int plane) {
+    return getImage().getPlanes()[plane].getRowStride();
+  }
+
+  /** Returns the distance, in bytes, between one pixel of a plane and the next. */
+  public int getPixelStride(int plane) {
+    return getImage().getPlanes()[plane].getPixelStride();
+  }
+
+  /** Holds on to the frame until {@link #release()} is called. */
+  public synchronized Frame acquire() {
+    if (mReferences == 0) {
+      throw new IllegalStateException("Cannot acquire a frame after it's been released");
+    }
+    mReferences++;
+    return this;
+  }
+
+  /** Lets go of the frame. Once every reference is released, the frame goes back to the camera. */
+  public void release() {
+    Image image;
+    synchronized (this) {
+      if (mReferences == 0) {
+        throw new IllegalStateException("Cannot release a frame more times than it was acquired");
+      }
+      if (--mReferences > 0) {
+        return;
+      }
+      image = mImage;
+      mImage = null;
+    }
+    image.close();
+    mPool.recycle(this);
+  }
+
+  private synchronized Image getImage() {
+    if (mImage == null) {
+      throw new IllegalStateException("Cannot read a frame after it's been released");
+    }
+    return mImage;
+  }
+
+  @NonNull
+  @Override
+  public synchronized String toString() {
+    return "Frame{" +
+            "image=" + mImage +
+            ", references=" + mReferences +
+            ", rotation=" + mRotation +
+            ", flipped=" + mIsFlipped +
+            '}';
+  }
+
+  /**
+   * Reuses frames once they're released, so that wrapping a camera image doesn't allocate. There
+   * are never more frames than images the camera can hand out at once.
+   */
+  static final class Pool {
+    /** Guarded by this. */
+    private final ArrayDeque<Frame> mFrames = new ArrayDeque<>();
+
+    /** Returns a frame around the given image, with a single reference held by the caller. */
+    Frame obtain(Image image, int rotation, boolean flipped) {
+      Frame frame;
+      synchronized (this) {
+        frame = mFrames.poll();
+      }
+      if (frame == null) {
+        frame = new Frame(this);
+      }
+      synchronized (frame) {
+        frame.mImage = image;
+        frame.mReferences = 1;
+        frame.mRotation = rotation;
+        frame.mIsFlipped = flipped;
+      }
+      return frame;
+    }
+
+    private synchronized void recycle(Frame frame) {
+      mFrames.push(frame);
+    }
+
+    /** Returns the number of frames waiting to be reused. */
+    synchronized int size() {
+      return mFrames.size();
+    }
+  }
+}
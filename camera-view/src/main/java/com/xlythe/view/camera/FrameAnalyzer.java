@@ -0,0 +1,72 @@
+package com.xlythe.view.camera;
+
+import androidx.annotation.FloatRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+import androidx.annotation.WorkerThread;
+
+/**
+ * Looks at camera frames as they arrive, such as to scan for barcodes, detect motion or run a
+ * model. Every analyzer added to a {@link CameraView} shares a single camera output, so adding more
+ * doesn't ask the camera for more streams.
+ *
+ * Each analyzer sees at most one frame at a time, on a background thread. If frames arrive faster
+ * than it can handle them, it's handed the most recent one once it's ready, and the ones in between
+ * are skipped.
+ *
+ * @see CameraView#addFrameAnalyzer(FrameAnalyzer, Options)
+ */
+@RequiresApi(19)
+public interface FrameAnalyzer {
+  /**
+   * Called with each frame to analyze. The frame is only valid until this returns, unless it's
+   * {@link Frame#acquire() acquired}.
+   */
+  @WorkerThread
+  void analyze(Frame frame);
+
+  /** How an analyzer is fed frames. */
+  final class Options {
+    /** Options for an analyzer that sees every frame it has time for. */
+    public static final Options DEFAULT = new Builder().build();
+
+    private final float mMaxFramesPerSecond;
+
+    private Options(float maxFramesPerSecond) {
+      this.mMaxFramesPerSecond = maxFramesPerSecond;
+    }
+
+    /** Returns the most frames analyzed each second, or 0 if there's no limit. */
+    public float getMaxFramesPerSecond() {
+      return mMaxFramesPerSecond;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+      return "Options{" +
+              "maxFramesPerSecond=" + mMaxFramesPerSecond +
+              '}';
+    }
+
+    public static class Builder {
+      private float mMaxFramesPerSecond;
+
+      /**
+       * Sets the most frames to analyze each second. Frames in between are skipped. Defaults to 0,
+       * which analyzes frames as fast as the analyzer can keep up.
+       */
+      public Builder setMaxFramesPerSecond(@FloatRange(from = 0) float maxFramesPerSecond) {
+        mMaxFramesPerSecond = maxFramesPerSecond;
+        return this;
+      }
+
+      public Options build() {
+        if (mMaxFramesPerSecond < 0) {
+          throw new IllegalStateException("Cannot analyze " + mMaxFramesPerSecond + " frames per second");
+        }
+        return new Options(mMaxFramesPerSecond);
+      }
+    }
+  }
+}
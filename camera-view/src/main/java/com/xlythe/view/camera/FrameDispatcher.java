@@ -0,0 +1,354 @@
+package com.xlythe.view.camera;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import androidx.annotation.VisibleForTesting;
+
+import com.xlythe.view.camera.stream.MediaScheduler;
+import com.xlythe.view.camera.stream.VideoRecorder;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * Feeds camera frames to any number of {@link FrameAnalyzer}s from a single camera output. The
+ * output is attached to the camera when the first analyzer is added, and detached once the last one
+ * is removed.
+ *
+ * Frames are received on a dedicated thread and handed to each analyzer without being copied. Each
+ * analyzer runs on the {@link MediaScheduler}'s analysis threads, one frame at a time, and has its
+ * own rate limit. While an analyzer is busy, only the latest frame is kept for it, so a slow
+ * analyzer never holds up the others or falls behind the camera.
+ */
+@RequiresApi(19)
+class FrameDispatcher {
+  private static final String TAG = CameraView.class.getSimpleName();
+
+  /**
+   * The number of frames the camera can have handed out at once. Each analyzer holds up to two, one
+   * being analyzed and one waiting. If they're all taken, new frames are skipped until one is
+   * released.
+   */
+  private static final int MAX_IMAGES = 4;
+
+  /** Draws on our surface. */
+  private final VideoRecorder.Canvas mCanvas;
+
+  /** Runs analyzers. */
+  private final Executor mExecutor;
+
+  /** Wraps camera images so that they can be shared between analyzers. */
+  private final Frame.Pool mPool = new Frame.Pool();
+
+  /** The analyzers frames are handed to, in the order they were added. */
+  private final List<AnalyzerSlot> mSlots = new CopyOnWriteArrayList<>();
+
+  /** The rotation of the image. */
+  private volatile int mCameraOrientation;
+
+  /** True if the preview is mirrored. */
+  private volatile boolean mIsFlipped;
+
+  /** The thread frames are received on. Non-null while attached to the camera. */
+  @Nullable private HandlerThread mThread;
+  @Nullable private Handler mHandler;
+
+  /** Receives frames from the camera. Guarded by this. */
+  @Nullable private ImageReader mImageReader;
+
+  /** Hands the camera a surface that delivers its frames to us. */
+  private final VideoRecorder.SurfaceProvider mSurfaceProvider = new VideoRecorder.SurfaceProvider() {
+    @Override
+    public Surface getSurface(int width, int height, int orientation, boolean flipped) {
+      return onSurfaceRequested(width, height, orientation, flipped);
+    }
+  };
+
+  private final ImageReader.OnImageAvailableListener mOnImageAvailableListener = new ImageReader.OnImageAvailableListener() {
+    @Override
+    public void onImageAvailable(ImageReader reader) {
+      onFrameAvailable(reader);
+    }
+  };
+
+  FrameDispatcher(VideoRecorder.Canvas canvas) {
+    this(canvas, new Executor() {
+      @Override
+      public void execute(Runnable runnable) {
+        MediaScheduler.getInstance().submit("FrameAnalyzer", MediaScheduler.PRIORITY_ANALYSIS, runnable);
+      }
+    });
+  }
+
+  @VisibleForTesting
+  FrameDispatcher(VideoRecorder.Canvas canvas, Executor executor) {
+    mCanvas = canvas;
+    mExecutor = executor;
+  }
+
+  /**
+   * Starts handing frames to the analyzer.
+   *
+   * @throws IllegalStateException If the analyzer was already added.
+   */
+  void add(FrameAnalyzer analyzer, FrameAnalyzer.Options options) {
+    if (findSlot(analyzer) != null) {
+      throw new IllegalStateException("Frame analyzer cannot be added twice");
+    }
+    mSlots.add(new AnalyzerSlot(analyzer, options, mExecutor));
+    if (mThread == null) {
+      attach();
+    }
+  }
+
+  /**
+   * Stops handing frames to the analyzer. A frame it's already analyzing is allowed to finish.
+   *
+   * @return True if the analyzer had been added.
+   */
+  boolean remove(FrameAnalyzer analyzer) {
+    AnalyzerSlot slot = findSlot(analyzer);
+    if (slot == null) {
+      return false;
+    }
+    mSlots.remove(slot);
+    slot.close();
+    if (mSlots.isEmpty() && mThread != null) {
+      detach();
+    }
+    return true;
+  }
+
+  /** Returns true if any analyzers have been added. */
+  boolean isActive() {
+    return !mSlots.isEmpty();
+  }
+
+  /** Removes every analyzer. */
+  void close() {
+    for (AnalyzerSlot slot : mSlots) {
+      remove(slot.mAnalyzer);
+    }
+  }
+
+  @Nullable
+  private AnalyzerSlot findSlot(FrameAnalyzer analyzer) {
+    for (AnalyzerSlot slot : mSlots) {
+      if (slot.mAnalyzer == analyzer) {
+        return slot;
+      }
+    }
+    return null;
+  }
+
+  private void attach() {
+    mThread = new HandlerThread("CameraView-frames", Process.THREAD_PRIORITY_BACKGROUND);
+    mThread.start();
+    mHandler = new Handler(mThread.getLooper());
+    mHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        mCanvas.attachSurface(mSurfaceProvider);
+      }
+    });
+  }
+
+  private void detach() {
+    HandlerThread thread = mThread;
+    Handler handler = mHandler;
+    mThread = null;
+    mHandler = null;
+    handler.post(new Runnable() {
+      @Override
+      public void run() {
+        mCanvas.detachSurface(mSurfaceProvider);
+        closeImageReader();
+      }
+    });
+    thread.quitSafely();
+    try {
+      thread.join(300);
+    } catch (InterruptedException e) {
+      Log.e(TAG, "Interrupted while waiting for frames to stop", e);
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Creates a reader for the camera to draw its frames into. If the camera is reconfigured, the
+   * existing reader is reused if it's still the right size.
+   */
+  private synchronized Surface onSurfaceRequested(int width, int height, int orientation, boolean flipped) {
+    mCameraOrientation = orientation;
+    mIsFlipped = flipped;
+    if (mImageReader != null) {
+      if (mImageReader.getWidth() == width && mImageReader.getHeight() == height) {
+        return mImageReader.getSurface();
+      }
+      mImageReader.close();
+    }
+    mImageReader = ImageReader.newInstance(width, height, ImageFormat.YUV_420_888, MAX_IMAGES);
+    mImageReader.setOnImageAvailableListener(mOnImageAvailableListener, mHandler);
+    return mImageReader.getSurface();
+  }
+
+  private synchronized void closeImageReader() {
+    if (mImageReader != null) {
+      mImageReader.setOnImageAvailableListener(null, null);
+      mImageReader.close();
+      mImageReader = null;
+    }
+  }
+
+  /** Called on {@link #mHandler}'s thread whenever the camera has drawn a new frame. */
+  private void onFrameAvailable(ImageReader reader) {
+    Image image;
+    try {
+      image = reader.acquireLatestImage();
+    } catch (IllegalStateException e) {
+      // The reader was closed, or analyzers still hold every image it can hand out.
+      return;
+    }
+    if (image != null) {
+      dispatch(image, SystemClock.elapsedRealtime());
+    }
+  }
+
+  /** Offers the image to every analyzer. It's closed once none of them need it anymore. */
+  @VisibleForTesting
+  void dispatch(Image image, long nowMillis) {
+    Frame frame = mPool.obtain(image, mCameraOrientation, mIsFlipped);
+    try {
+      for (AnalyzerSlot slot : mSlots) {
+        slot.offer(frame, nowMillis);
+      }
+    } finally {
+      frame.release();
+    }
+  }
+
+  @VisibleForTesting
+  Frame.Pool getPool() {
+    return mPool;
+  }
+
+  @NonNull
+  @Override
+  public String toString() {
+    return "FrameDispatcher{" +
+            "analyzers=" + mSlots +
+            ", orientation=" + mCameraOrientation +
+            ", flipped=" + mIsFlipped +
+            '}';
+  }
+
+  /** Keeps the latest frame for a single analyzer, and runs it whenever the analyzer is free. */
+  private static class AnalyzerSlot implements Runnable {
+    private final FrameAnalyzer mAnalyzer;
+    private final Executor mExecutor;
+
+    /** Decides which frames are analyzed. Null if there's no limit. Guarded by this. */
+    @Nullable private final ScanRateLimiter mRateLimiter;
+
+    /** The frame to analyze next. Guarded by this. */
+    @Nullable private Frame mPending;
+
+    /** True while the analyzer has frames to work through. Guarded by this. */
+    private boolean mIsRunning;
+
+    /** Set once the analyzer is removed. Guarded by this. */
+    private boolean mIsClosed;
+
+    /** The number of frames skipped because the analyzer was still busy. Guarded by this. */
+    private long mSkippedFrames;
+
+    AnalyzerSlot(FrameAnalyzer analyzer, FrameAnalyzer.Options options, Executor executor) {
+      mAnalyzer = analyzer;
+      mExecutor = executor;
+      mRateLimiter = options.getMaxFramesPerSecond() > 0 ? new ScanRateLimiter(options.getMaxFramesPerSecond()) : null;
+    }
+
+    /** Queues the frame for the analyzer, replacing any frame it hasn't gotten to yet. */
+    void offer(Frame frame, long nowMillis) {
+      Frame skipped;
+      boolean start;
+      synchronized (this) {
+        if (mIsClosed || (mRateLimiter != null && !mRateLimiter.tryStartScan(nowMillis))) {
+          return;
+        }
+        skipped = mPending;
+        mPending = frame.acquire();
+        start = !mIsRunning;
+        mIsRunning = true;
+        if (skipped != null) {
+          mSkippedFrames++;
+        }
+      }
+      if (skipped != null) {
+        skipped.release();
+      }
+      if (start) {
+        mExecutor.execute(this);
+      }
+    }
+
+    /** Analyzes frames until none are left waiting. */
+    @Override
+    public void run() {
+      while (true) {
+        Frame frame;
+        synchronized (this) {
+          frame = mPending;
+          mPending = null;
+          if (frame == null) {
+            mIsRunning = false;
+            break;
+          }
+        }
+        try {
+          mAnalyzer.analyze(frame);
+        } catch (RuntimeException e) {
+          Log.e(TAG, "Failed to analyze a frame with " + mAnalyzer, e);
+        } finally {
+          frame.release();
+        }
+      }
+    }
+
+    /** Stops handing frames to the analyzer, and lets go of the one it hasn't gotten to yet. */
+    void close() {
+      Frame pending;
+      synchronized (this) {
+        mIsClosed = true;
+        pending = mPending;
+        mPending = null;
+      }
+      if (pending != null) {
+        pending.release();
+      }
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+      return "AnalyzerSlot{" +
+              "analyzer=" + mAnalyzer +
+              ", rateLimiter=" + mRateLimiter +
+              ", running=" + mIsRunning +
+              ", skippedFrames=" + mSkippedFrames +
+              '}';
+    }
+  }
+}
@@ -9,8 +9,10 @@ import android.os.Looper;
 import android.os.Parcelable;
 import android.util.Log;
 
+import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 
+import com.xlythe.view.camera.stream.SharedCanvas;
 import com.xlythe.view.camera.stream.VideoRecorder;
 
 import java.io.File;
@@ -30,6 +32,9 @@ public abstract class ICameraModule {
     // When true, pictures and videos will try to match the aspect ratio of the preview
     private boolean mMatchPreviewAspectRatio = true;
 
+    // Shares a single camera output between every recorder and custom surface
+    @Nullable private SharedCanvas mSharedCanvas;
+
     public ICameraModule(CameraView view) {
         mView = view;
     }
@@ -58,8 +63,23 @@ public abstract class ICameraModule {
 
     }
 
+    /**
+     * Returns a canvas that any number of recorders and custom surfaces can draw from at once. They
+     * all share a single camera output, which is copied into each of them on the GPU.
+     */
     @RequiresApi(18)
-    public VideoRecorder.Canvas getCanvas() {
+    public synchronized VideoRecorder.Canvas getCanvas() {
+        if (mSharedCanvas == null) {
+            mSharedCanvas = new SharedCanvas(getCameraCanvas());
+        }
+        return mSharedCanvas;
+    }
+
+    /**
+     * Returns a canvas that attaches each surface to the camera as its own output. Only use this for
+     * surfaces the GPU can't draw into, such as an ImageReader that reads YUV frames on the CPU.
+     */
+    VideoRecorder.Canvas getCameraCanvas() {
         return new VideoRecorder.Canvas() {
             @Override
             public void attachSurface(VideoRecorder.SurfaceProvider surfaceProvider) {
@@ -131,6 +151,22 @@ public abstract class ICameraModule {
      */
     public abstract void startRecording(File file);
 
+    /**
+     * Records a video that's split across many files, moving on to a new file as each segment fills
+     * up. Modules that can't do this report a failure instead.
+     */
+    public void startRecording(RollingRecording recording) {
+        Log.w(TAG, "Rolling recordings are not supported by " + getClass().getSimpleName());
+        onVideoFailed();
+    }
+
+    /**
+     * Returns true if the current recording was started with a {@link RollingRecording}.
+     */
+    public boolean isRollingRecording() {
+        return false;
+    }
+
     /**
      * Stops recording the video. It's recommended that you set a timeout when recording to avoid
      * excessively large files.
@@ -0,0 +1,193 @@
+package com.xlythe.view.camera;
+
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Cuts a region out of a camera frame's luma plane and shrinks it, ready for barcode detection.
+ * Barcodes only need brightness, so the chroma planes are never read, and the result is a tightly
+ * packed luma plane of its own.
+ *
+ * The region is given in normalized coordinates of the upright preview, as the user sees it, and is
+ * rotated into the frame's own orientation here. Shrinking skips whole rows and columns, which is
+ * far cheaper than filtering and loses little, since barcodes are high contrast.
+ *
+ * The output buffer is reused from frame to frame for as long as its size stays the same.
+ */
+final class LumaCropper {
+  /** The largest the output may be along its longer side, or 0 for no limit. */
+  private final int mMaxSize;
+
+  /** The region to keep, in normalized upright coordinates, or null to keep the whole frame. */
+  @Nullable private final RectF mRegion;
+
+  /** The region of the last frame that was cropped, in frame pixels. */
+  private final Rect mCrop = new Rect();
+
+  /** How many frame pixels each output pixel steps over. */
+  private int mStep = 1;
+
+  private int mWidth;
+  private int mHeight;
+  private byte[] mBuffer = new byte[0];
+
+  /**
+   * @param region The region to keep, in normalized coordinates of the upright preview, or null for
+   *               the whole frame.
+   * @param maxSize The largest the output may be along its longer side, or 0 for no limit.
+   */
+  LumaCropper(@Nullable RectF region, int maxSize) {
+    if (maxSize < 0) {
+      throw new IllegalArgumentException("Cannot limit analysis to " + maxSize + " pixels");
+    }
+    mRegion = region == null ? null : new RectF(region);
+    mMaxSize = maxSize;
+  }
+
+  /** Returns true if frames of the given size need cropping or shrinking at all. */
+  boolean isNeeded(int frameWidth, int frameHeight) {
+    return mRegion != null || (mMaxSize > 0 && Math.max(frameWidth, frameHeight) > mMaxSize);
+  }
+
+  /**
+   * Crops and shrinks a frame.
+   *
+   * @param luma The frame's Y plane.
+   * @param rowStride The distance between the start of each row, in bytes.
+   * @param pixelStride The distance between each pixel in a row, in bytes.
+   * @param orientation How far the frame must be rotated clockwise to be upright, in degrees.
+   * @param flipped True if the preview is mirrored, as it is for front facing cameras.
+   */
+  void crop(ByteBuffer luma, int rowStride, int pixelStride, int frameWidth, int frameHeight, int orientation, boolean flipped) {
+    if (mRegion == null) {
+      mCrop.set(0, 0, frameWidth, frameHeight);
+    } else {
+      toFrameRect(mRegion, frameWidth, frameHeight, orientation, flipped, mCrop);
+    }
+
+    int cropWidth = mCrop.right - mCrop.left;
+    int cropHeight = mCrop.bottom - mCrop.top;
+    int longestSide = Math.max(cropWidth, cropHeight);
+    mStep = mMaxSize == 0 ? 1 : Math.max(1, (longestSide + mMaxSize - 1) / mMaxSize);
+
+    // Keep the dimensions even, as decoders that take NV21 need, since each chroma sample covers
+    // a 2x2 block.
+    int width = Math.max(2, (cropWidth / mStep) & ~1);
+    int height = Math.max(2, (cropHeight / mStep) & ~1);
+    if (width != mWidth || height != mHeight) {
+      mWidth = width;
+      mHeight = height;
+      mBuffer = new byte[width * height];
+    }
+
+    int limit = luma.limit();
+    for (int y = 0; y < height; y++) {
+      int rowStart = (mCrop.top + y * mStep) * rowStride + mCrop.left * pixelStride;
+      int out = y * width;
+      int columnStep = mStep * pixelStride;
+      if (columnStep == 1 && rowStart + width <= limit) {
+        luma.position(rowStart);
+        luma.get(mBuffer, out, width);
+        continue;
+      }
+      for (int x = 0, in = rowStart; x < width && in < limit; x++, in += columnStep) {
+        mBuffer[out + x] = luma.get(in);
+      }
+    }
+    luma.rewind();
+  }
+
+  /** Returns the luma output, {@link #getWidth()} pixels to a row with no padding. */
+  byte[] getBuffer() {
+    return mBuffer;
+  }
+
+  int getWidth() {
+    return mWidth;
+  }
+
+  int getHeight() {
+    return mHeight;
+  }
+
+  /** Returns the region of the last frame that was cropped, in frame pixels. */
+  Rect getCrop() {
+    return mCrop;
+  }
+
+  /** Returns how many frame pixels each output pixel covers, along each side. */
+  int getStep() {
+    return mStep;
+  }
+
+  /**
+   * Maps a region of the upright preview onto the frame it came from.
+   *
+   * @param region Normalized coordinates, from 0 to 1, of the upright preview.
+   * @param orientation How far the frame must be rotated clockwise to be upright, in degrees.
+   * @param flipped True if the preview is mirrored.
+   * @param out Where to write the region, in frame pixels. Clamped to the frame.
+   */
+  static void toFrameRect(RectF region, int frameWidth, int frameHeight, int orientation, boolean flipped, Rect out) {
+    float left = flipped ? 1 - region.right : region.left;
+    float right = flipped ? 1 - region.left : region.right;
+    float top = region.top;
+    float bottom = region.bottom;
+
+    // Undo the rotation. An upright point (u, v) came from the frame point (x, y).
+    float x0, y0, x1, y1;
+    switch (((orientation % 360) + 360) % 360) {
+      case 90:
+        x0 = top;
+        x1 = bottom;
+        y0 = 1 - right;
+        y1 = 1 - left;
+        break;
+      case 180:
+        x0 = 1 - right;
+        x1 = 1 - left;
+        y0 = 1 - bottom;
+        y1 = 1 - top;
+        break;
+      case 270:
+        x0 = 1 - bottom;
+        x1 = 1 - top;
+        y0 = left;
+        y1 = right;
+        break;
+      default:
+        x0 = left;
+        x1 = right;
+        y0 = top;
+        y1 = bottom;
+        break;
+    }
+
+    out.set(clamp((int) (x0 * frameWidth), frameWidth),
+            clamp((int) (y0 * frameHeight), frameHeight),
+            clamp((int) Math.ceil(x1 * frameWidth), frameWidth),
+            clamp((int) Math.ceil(y1 * frameHeight), frameHeight));
+    if (out.right - out.left < 2 || out.bottom - out.top < 2) {
+      // Too small to hold a barcode. Fall back to the whole frame rather than scanning nothing.
+      out.set(0, 0, frameWidth, frameHeight);
+    }
+  }
+
+  private static int clamp(int value, int max) {
+    return Math.max(0, Math.min(max, value));
+  }
+
+  @NonNull
+  @Override
+  public String toString() {
+    return "LumaCropper{" +
+            "region=" + (mRegion == null ? "full" : "[" + mRegion.left + ", " + mRegion.top + ", " + mRegion.right + ", " + mRegion.bottom + "]") +
+            ", maxSize=" + mMaxSize +
+            '}';
+  }
+}
@@ -0,0 +1,97 @@
+package com.xlythe.view.camera;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import com.google.android.gms.tasks.Tasks;
+import com.google.mlkit.vision.barcode.BarcodeScannerOptions;
+import com.google.mlkit.vision.barcode.BarcodeScanning;
+import com.google.mlkit.vision.common.InputImage;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Decodes barcodes with ML Kit. This is the decoder {@link CameraView} uses unless told otherwise.
+ *
+ * ML Kit only accepts whole images, so the luma plane is copied into an NV21 buffer with neutral
+ * chroma, which it reads as a plain greyscale image. The buffer is reused from frame to frame for as
+ * long as the frame size stays the same.
+ *
+ * ML Kit needs an Android device to run. Close the decoder once it's no longer needed to free the
+ * model.
+ */
+public class MlKitBarcodeDecoder implements BarcodeDecoder, Closeable {
+  private static final String TAG = CameraView.class.getSimpleName();
+
+  /** The value of Cb and Cr that carries no color. */
+  private static final byte NEUTRAL_CHROMA = (byte) 128;
+
+  private final com.google.mlkit.vision.barcode.BarcodeScanner mScanner;
+
+  private int mWidth;
+  private int mHeight;
+  private byte[] mBuffer = new byte[0];
+
+  public MlKitBarcodeDecoder(@Barcode.Format int format, @Barcode.Format int... formats) {
+    mScanner = BarcodeScanning.getClient(new BarcodeScannerOptions.Builder()
+            .setBarcodeFormats(format, formats)
+            .build());
+  }
+
+  @NonNull
+  @WorkerThread
+  @Override
+  public List<Barcode> decode(ByteBuffer luma, int width, int height, int rowStride, int rotation) {
+    if (width != mWidth || height != mHeight) {
+      mWidth = width;
+      mHeight = height;
+      mBuffer = new byte[width * height * 3 / 2];
+      Arrays.fill(mBuffer, width * height, mBuffer.length, NEUTRAL_CHROMA);
+    }
+
+    // The last row is often shorter than the row stride, so copy row by row.
+    int start = luma.position();
+    for (int y = 0; y < height; y++) {
+      luma.position(start + y * rowStride);
+      luma.get(mBuffer, y * width, width);
+    }
+    luma.position(start);
+
+    InputImage image = InputImage.fromByteArray(mBuffer, width, height, rotation, InputImage.IMAGE_FORMAT_NV21);
+    List<com.google.mlkit.vision.barcode.common.Barcode> barcodes;
+    try {
+      barcodes = Tasks.await(mScanner.process(image));
+    } catch (ExecutionException e) {
+      Log.w(TAG, "Barcode processing failed", e);
+      return Collections.emptyList();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return Collections.emptyList();
+    }
+
+    List<Barcode> list = new ArrayList<>(barcodes.size());
+    for (com.google.mlkit.vision.barcode.common.Barcode barcode : barcodes) {
+      list.add(new Barcode(barcode));
+    }
+    return list;
+  }
+
+  @Override
+  public void close() {
+    mScanner.close();
+  }
+
+  @NonNull
+  @Override
+  public String toString() {
+    return "MlKitBarcodeDecoder";
+  }
+}
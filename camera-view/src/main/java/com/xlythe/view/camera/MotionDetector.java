@@ -0,0 +1,448 @@
+package com.xlythe.view.camera;
+
+import android.graphics.Rect;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import androidx.annotation.WorkerThread;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link FrameAnalyzer} that notices when something in view moves, so that more expensive work,
+ * such as scanning for barcodes, recording or streaming at a high bitrate, only runs while it's
+ * worth running.
+ *
+ * Each frame's brightness is sampled on a sparse grid and averaged into blocks. A block is moving
+ * when its average differs enough from the previous frame's, after removing any change shared by
+ * the whole frame, such as the camera adjusting its exposure. Motion starts once enough blocks have
+ * been moving for a few frames in a row, and stops once nothing has moved for a while.
+ *
+ * Frames are analyzed into arrays allocated up front, so a detector that's running but seeing
+ * nothing doesn't allocate. A {@link Motion} is only created when motion starts or stops.
+ *
+ * <pre>
+ * cameraView.addFrameAnalyzer(new MotionDetector(listener),
+ *     new FrameAnalyzer.Options.Builder().setMaxFramesPerSecond(10).build());
+ * </pre>
+ */
+@RequiresApi(19)
+public final class MotionDetector implements FrameAnalyzer {
+  /** The number of blocks across a frame by default. */
+  static final int DEFAULT_COLUMNS = 16;
+
+  /** The number of blocks down a frame by default. */
+  static final int DEFAULT_ROWS = 12;
+
+  /** How far apart, in pixels, samples are by default. */
+  static final int DEFAULT_SAMPLE_STEP = 4;
+
+  /** How much, in brightness, a block's average must change to be moving by default. */
+  static final int DEFAULT_BLOCK_THRESHOLD = 12;
+
+  /** How many blocks must be moving for a frame to have motion in it by default. */
+  static final int DEFAULT_MIN_MOVING_BLOCKS = 2;
+
+  /** How many frames in a row must have motion in them before motion starts by default. */
+  static final int DEFAULT_START_FRAMES = 2;
+
+  /** How long nothing can move for before motion stops by default. */
+  static final long DEFAULT_STOP_DELAY_MILLIS = 1000;
+
+  public interface Listener {
+    /** Called once something starts moving, with the blocks that were moving. */
+    @WorkerThread
+    void onMotionStarted(Motion motion);
+
+    /** Called once nothing has moved for a while, with every block that moved in the meantime. */
+    @WorkerThread
+    void onMotionStopped(Motion motion);
+  }
+
+  private final Listener mListener;
+  private final int mColumns;
+  private final int mRows;
+  private final int mSampleStep;
+  private final int mBlockThreshold;
+  private final int mMinMovingBlocks;
+  private final int mStartFrames;
+  private final long mStopDelayNanos;
+
+  /** The average brightness of each block, in this frame and the last. Swapped after each frame. */
+  private int[] mCurrent;
+  private int[] mPrevious;
+
+  /** The blocks moving in this frame, and every block that's moved since motion started. */
+  private final boolean[] mMask;
+  private final boolean[] mRegion;
+
+  /** The size of the frames being compared. A frame of another size starts the comparison over. */
+  private int mWidth;
+  private int mHeight;
+  private boolean mHasPrevious;
+
+  /** How many frames in a row have had motion in them. */
+  private int mMovingFrames;
+
+  /** When motion was last seen, on the camera's clock. */
+  private long mLastMotionNanos;
+
+  private volatile boolean mIsMoving;
+
+  /** A detector with the default settings. */
+  public MotionDetector(Listener listener) {
+    this(new Builder(listener));
+  }
+
+  private MotionDetector(Builder builder) {
+    mListener = builder.mListener;
+    mColumns = builder.mColumns;
+    mRows = builder.mRows;
+    mSampleStep = builder.mSampleStep;
+    mBlockThreshold = builder.mBlockThreshold;
+    mMinMovingBlocks = builder.mMinMovingBlocks;
+    mStartFrames = builder.mStartFrames;
+    mStopDelayNanos = builder.mStopDelayMillis * 1_000_000L;
+
+    int blocks = mColumns * mRows;
+    mCurrent = new int[blocks];
+    mPrevious = new int[blocks];
+    mMask = new boolean[blocks];
+    mRegion = new boolean[blocks];
+  }
+
+  @Override
+  public void analyze(Frame frame) {
+    analyze(frame.getBuffer(Frame.PLANE_Y), frame.getWidth(), frame.getHeight(),
+            frame.getRowStride(Frame.PLANE_Y), frame.getRotation(), frame.getTimestamp());
+  }
+
+  /**
+   * Compares the frame's brightness with the last frame's. The buffer's position is left unchanged.
+   *
+   * @param luma The brightness of each pixel, one byte per pixel, starting at the buffer's position.
+   * @param rowStride The distance, in bytes, between the start of one row and the next.
+   * @param rotation How far the frame must be rotated clockwise, in degrees, to appear upright.
+   * @param timestampNanos When the frame was captured.
+   */
+  @WorkerThread
+  synchronized void analyze(ByteBuffer luma, int width, int height, int rowStride, int rotation, long timestampNanos) {
+    if (width != mWidth || height != mHeight) {
+      mWidth = width;
+      mHeight = height;
+      mHasPrevious = false;
+    }
+
+    average(luma, width, height, rowStride);
+    if (!mHasPrevious) {
+      swap();
+      mHasPrevious = true;
+      return;
+    }
+
+    int movingBlocks = compare();
+    swap();
+
+    if (movingBlocks >= mMinMovingBlocks) {
+      mMovingFrames++;
+      mLastMotionNanos = timestampNanos;
+      if (mIsMoving) {
+        merge();
+      } else if (mMovingFrames >= mStartFrames) {
+        mIsMoving = true;
+        System.arraycopy(mMask, 0, mRegion, 0, mRegion.length);
+        mListener.onMotionStarted(new Motion(mMask, mColumns, mRows, width, height, rotation));
+      }
+    } else {
+      mMovingFrames = 0;
+      if (mIsMoving && timestampNanos - mLastMotionNanos >= mStopDelayNanos) {
+        mIsMoving = false;
+        mListener.onMotionStopped(new Motion(mRegion, mColumns, mRows, width, height, rotation));
+      }
+    }
+  }
+
+  /** Averages the brightness of each block into {@link #mCurrent}. */
+  private void average(ByteBuffer luma, int width, int height, int rowStride) {
+    int base = luma.position();
+    for (int row = 0; row < mRows; row++) {
+      int top = row * height / mRows;
+      int bottom = (row + 1) * height / mRows;
+      for (int column = 0; column < mColumns; column++) {
+        int left = column * width / mColumns;
+        int right = (column + 1) * width / mColumns;
+        int sum = 0;
+        int samples = 0;
+        for (int y = top; y < bottom; y += mSampleStep) {
+          int offset = base + y * rowStride;
+          for (int x = left; x < right; x += mSampleStep) {
+            sum += luma.get(offset + x) & 0xFF;
+            samples++;
+          }
+        }
+        mCurrent[row * mColumns + column] = samples == 0 ? 0 : sum / samples;
+      }
+    }
+  }
+
+  /**
+   * Marks the blocks that changed since the last frame in {@link #mMask}, and returns how many did.
+   * The change shared by every block is taken out first, so that the whole frame brightening or
+   * darkening doesn't count as motion.
+   */
+  private int compare() {
+    int blocks = mCurrent.length;
+    int shared = 0;
+    for (int i = 0; i < blocks; i++) {
+      shared += mCurrent[i] - mPrevious[i];
+    }
+    shared /= blocks;
+
+    int movingBlocks = 0;
+    for (int i = 0; i < blocks; i++) {
+      boolean moving = Math.abs(mCurrent[i] - mPrevious[i] - shared) >= mBlockThreshold;
+      mMask[i] = moving;
+      if (moving) {
+        movingBlocks++;
+      }
+    }
+    return movingBlocks;
+  }
+
+  /** Adds the blocks moving in this frame to {@link #mRegion}. */
+  private void merge() {
+    for (int i = 0; i < mMask.length; i++) {
+      mRegion[i] |= mMask[i];
+    }
+  }
+
+  private void swap() {
+    int[] previous = mPrevious;
+    mPrevious = mCurrent;
+    mCurrent = previous;
+  }
+
+  /** Returns true if something is moving. */
+  public boolean isMoving() {
+    return mIsMoving;
+  }
+
+  /**
+   * Forgets the last frame and any motion in progress, such as when the camera switches. The
+   * listener isn't told that motion stopped.
+   */
+  public synchronized void reset() {
+    mHasPrevious = false;
+    mMovingFrames = 0;
+    mIsMoving = false;
+  }
+
+  @NonNull
+  @Override
+  public String toString() {
+    return "MotionDetector{" +
+            "columns=" + mColumns +
+            ", rows=" + mRows +
+            ", sampleStep=" + mSampleStep +
+            ", blockThreshold=" + mBlockThreshold +
+            ", minMovingBlocks=" + mMinMovingBlocks +
+            ", startFrames=" + mStartFrames +
+            ", stopDelayMillis=" + mStopDelayNanos / 1_000_000L +
+            ", moving=" + mIsMoving +
+            '}';
+  }
+
+  /**
+   * Where motion was seen, as a grid of blocks laid over the frame. Blocks are in the frame's own
+   * orientation, before it's rotated by {@link #getRotation()} to appear upright.
+   */
+  public static final class Motion {
+    private final boolean[] mMask;
+    private final int mColumns;
+    private final int mRows;
+    private final int mFrameWidth;
+    private final int mFrameHeight;
+    private final int mRotation;
+
+    Motion(boolean[] mask, int columns, int rows, int frameWidth, int frameHeight, int rotation) {
+      mMask = mask.clone();
+      mColumns = columns;
+      mRows = rows;
+      mFrameWidth = frameWidth;
+      mFrameHeight = frameHeight;
+      mRotation = rotation;
+    }
+
+    /** Returns the number of blocks across the frame. */
+    public int getColumns() {
+      return mColumns;
+    }
+
+    /** Returns the number of blocks down the frame. */
+    public int getRows() {
+      return mRows;
+    }
+
+    /** Returns true if the block at the given column and row moved. */
+    public boolean isMoving(int column, int row) {
+      return mMask[row * mColumns + column];
+    }
+
+    /** Returns how many blocks moved. */
+    public int getMovingBlockCount() {
+      int count = 0;
+      for (boolean moving : mMask) {
+        if (moving) {
+          count++;
+        }
+      }
+      return count;
+    }
+
+    /**
+     * Returns the smallest rectangle, in the frame's pixels, that holds every block that moved, or
+     * null if none did. Useful for only scanning the part of the frame that changed.
+     */
+    @Nullable
+    public Rect getBounds() {
+      int left = mColumns;
+      int top = mRows;
+      int right = -1;
+      int bottom = -1;
+      for (int row = 0; row < mRows; row++) {
+        for (int column = 0; column < mColumns; column++) {
+          if (isMoving(column, row)) {
+            left = Math.min(left, column);
+            top = Math.min(top, row);
+            right = Math.max(right, column);
+            bottom = Math.max(bottom, row);
+          }
+        }
+      }
+      if (right < 0) {
+        return null;
+      }
+      return new Rect(
+              left * mFrameWidth / mColumns,
+              top * mFrameHeight / mRows,
+              (right + 1) * mFrameWidth / mColumns,
+              (bottom + 1) * mFrameHeight / mRows);
+    }
+
+    public int getFrameWidth() {
+      return mFrameWidth;
+    }
+
+    public int getFrameHeight() {
+      return mFrameHeight;
+    }
+
+    /** Returns how far the frame must be rotated clockwise, in degrees, to appear upright. */
+    public int getRotation() {
+      return mRotation;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+      return "Motion{" +
+              "movingBlocks=" + getMovingBlockCount() +
+              ", bounds=" + getBounds() +
+              ", frameWidth=" + mFrameWidth +
+              ", frameHeight=" + mFrameHeight +
+              ", rotation=" + mRotation +
+              '}';
+    }
+  }
+
+  public static class Builder {
+    private final Listener mListener;
+    private int mColumns = DEFAULT_COLUMNS;
+    private int mRows = DEFAULT_ROWS;
+    private int mSampleStep = DEFAULT_SAMPLE_STEP;
+    private int mBlockThreshold = DEFAULT_BLOCK_THRESHOLD;
+    private int mMinMovingBlocks = DEFAULT_MIN_MOVING_BLOCKS;
+    private int mStartFrames = DEFAULT_START_FRAMES;
+    private long mStopDelayMillis = DEFAULT_STOP_DELAY_MILLIS;
+
+    public Builder(Listener listener) {
+      mListener = listener;
+    }
+
+    /**
+     * Sets how many blocks the frame is split into, across and down. More blocks find smaller
+     * movements, and give a finer mask, but are noisier. Defaults to 16 by 12.
+     */
+    public Builder setGridSize(@IntRange(from = 1) int columns, @IntRange(from = 1) int rows) {
+      mColumns = columns;
+      mRows = rows;
+      return this;
+    }
+
+    /**
+     * Sets how far apart, in pixels, samples are taken. Larger steps are faster, and as samples are
+     * averaged, rarely miss anything. Defaults to 4.
+     */
+    public Builder setSampleStep(@IntRange(from = 1) int sampleStep) {
+      mSampleStep = sampleStep;
+      return this;
+    }
+
+    /**
+     * Sets how much, in brightness from 0 to 255, a block's average must change between frames for
+     * it to be moving. Lower values notice subtler motion, but also sensor noise. Defaults to 12.
+     */
+    public Builder setBlockThreshold(@IntRange(from = 1, to = 255) int blockThreshold) {
+      mBlockThreshold = blockThreshold;
+      return this;
+    }
+
+    /** Sets how many blocks must be moving for a frame to have motion in it. Defaults to 2. */
+    public Builder setMinMovingBlocks(@IntRange(from = 1) int minMovingBlocks) {
+      mMinMovingBlocks = minMovingBlocks;
+      return this;
+    }
+
+    /**
+     * Sets how many analyzed frames in a row must have motion in them before motion starts. Filters
+     * out flickers that only last a frame. Defaults to 2.
+     */
+    public Builder setStartFrames(@IntRange(from = 1) int startFrames) {
+      mStartFrames = startFrames;
+      return this;
+    }
+
+    /**
+     * Sets how long nothing can move for before motion stops. Rides out pauses in the middle of a
+     * movement. Defaults to 1000ms.
+     */
+    public Builder setStopDelayMillis(@IntRange(from = 0) long stopDelayMillis) {
+      mStopDelayMillis = stopDelayMillis;
+      return this;
+    }
+
+    public MotionDetector build() {
+      if (mColumns < 1 || mRows < 1) {
+        throw new IllegalStateException("Cannot split a frame into " + mColumns + "x" + mRows + " blocks");
+      }
+      if (mSampleStep < 1) {
+        throw new IllegalStateException("Cannot sample every " + mSampleStep + " pixels");
+      }
+      if (mBlockThreshold < 1 || mBlockThreshold > 255) {
+        throw new IllegalStateException("Cannot detect motion with a threshold of " + mBlockThreshold);
+      }
+      if (mMinMovingBlocks < 1 || mMinMovingBlocks > mColumns * mRows) {
+        throw new IllegalStateException("Cannot require " + mMinMovingBlocks + " moving blocks out of " + mColumns * mRows);
+      }
+      if (mStartFrames < 1) {
+        throw new IllegalStateException("Cannot require " + mStartFrames + " frames of motion");
+      }
+      if (mStopDelayMillis < 0) {
+        throw new IllegalStateException("Cannot wait " + mStopDelayMillis + "ms for motion to stop");
+      }
+      return new MotionDetector(this);
+    }
+  }
+}
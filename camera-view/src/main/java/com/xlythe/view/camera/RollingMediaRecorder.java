@@ -0,0 +1,139 @@
+package com.xlythe.view.camera;
+
+import android.media.CamcorderProfile;
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.RestrictTo;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Drives a {@link RollingRecording} on top of {@link MediaRecorder}. On API 26+, the recorder is
+ * handed the next file as the current one fills up, so it switches files without dropping a frame.
+ * MediaRecorder can only do this based on file size, so a segment duration is converted into a size
+ * using the bit rate of the recording's profile.
+ *
+ * On older devices, the recorder stops once a segment is full and has to be restarted, which leaves
+ * a short gap between segments.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+public class RollingMediaRecorder implements MediaRecorder.OnInfoListener {
+    private static final String TAG = CameraView.TAG;
+
+    private final RollingRecording mRecording;
+
+    /** Called on the main thread when the recorder stopped itself, and must be restarted. */
+    private final Runnable mOnRestartRequired;
+
+    /** The segment currently being written. */
+    @Nullable private File mFile;
+
+    /** The segment that the recorder will switch to once the current one is full. */
+    @Nullable private File mNextFile;
+
+    public RollingMediaRecorder(RollingRecording recording, Runnable onRestartRequired) {
+        mRecording = recording;
+        mOnRestartRequired = onRestartRequired;
+    }
+
+    public RollingRecording getRecording() {
+        return mRecording;
+    }
+
+    /**
+     * Sets the output file, limits and info listener on the recorder. Call this in place of
+     * {@link MediaRecorder#setOutputFile(String)}, after the profile has been set.
+     */
+    public void configure(MediaRecorder recorder, @Nullable CamcorderProfile profile) {
+        mFile = mRecording.nextFile();
+        mNextFile = null;
+        recorder.setOutputFile(mFile.getAbsolutePath());
+
+        long segmentSize = getSegmentSize(profile);
+        if (Build.VERSION.SDK_INT >= 26 && segmentSize > 0) {
+            recorder.setMaxDuration(0);
+            recorder.setMaxFileSize(segmentSize);
+        } else {
+            recorder.setMaxDuration((int) mRecording.getSegmentDuration());
+            recorder.setMaxFileSize(mRecording.getSegmentSize());
+        }
+        recorder.setOnInfoListener(this);
+    }
+
+    /**
+     * Returns the size that each segment should be capped at. If only a duration was given, it's
+     * estimated from the profile. Returns {@link CameraView#INDEFINITE_VIDEO_SIZE} if it's unknown.
+     */
+    long getSegmentSize(@Nullable CamcorderProfile profile) {
+        long segmentSize = mRecording.getSegmentSize();
+        if (mRecording.getSegmentDuration() > 0 && profile != null) {
+            long bitRate = (long) profile.videoBitRate + profile.audioBitRate;
+            long estimatedSize = bitRate / 8 * mRecording.getSegmentDuration() / 1000;
+            if (segmentSize <= 0 || estimatedSize < segmentSize) {
+                segmentSize = estimatedSize;
+            }
+        }
+        return segmentSize;
+    }
+
+    @Override
+    public void onInfo(MediaRecorder recorder, int what, int extra) {
+        if (Build.VERSION.SDK_INT >= 26) {
+            switch (what) {
+                case MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_APPROACHING:
+                    File nextFile = mRecording.nextFile();
+                    try {
+                        recorder.setNextOutputFile(nextFile);
+                        mNextFile = nextFile;
+                    } catch (IOException | IllegalStateException e) {
+                        Log.e(TAG, "Failed to set the next video segment. Recording will restart instead.", e);
+                    }
+                    return;
+                case MediaRecorder.MEDIA_RECORDER_INFO_NEXT_OUTPUT_FILE_STARTED:
+                    File finishedFile = mFile;
+                    mFile = mNextFile;
+                    mNextFile = null;
+                    if (finishedFile != null) {
+                        mRecording.onSegmentFinalized(finishedFile);
+                    }
+                    return;
+            }
+        }
+
+        switch (what) {
+            case MediaRecorder.MEDIA_RECORDER_INFO_MAX_DURATION_REACHED:
+            case MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED:
+                Log.d(TAG, "Video segment is full. Restarting the recording.");
+                new Handler(Looper.getMainLooper()).post(mOnRestartRequired);
+                break;
+        }
+    }
+
+    /**
+     * Called once the recorder has been stopped. The current segment is finalized, and a next segment
+     * that was never started is cleaned up.
+     */
+    public void onStopped() {
+        if (mNextFile != null && mNextFile.exists() && mNextFile.length() == 0 && !mNextFile.delete()) {
+            Log.w(TAG, "Failed to clean up unused video segment " + mNextFile);
+        }
+        mNextFile = null;
+
+        File file = mFile;
+        mFile = null;
+        if (file == null) {
+            return;
+        }
+        if (file.exists() && file.length() > 0) {
+            mRecording.onSegmentFinalized(file);
+        } else if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Failed to clean up empty video segment " + file);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.xlythe.view.camera;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Describes a recording that's split across many files, for captures that run for hours or days.
+ * Once a segment reaches its duration (or size), the camera moves on to a new file and the finished
+ * one is handed to {@link OnSegmentFinalizedListener}. Older segments are deleted according to the
+ * retention policy, so the directory never grows without bound.
+ *
+ * Pass this to {@link CameraView#startRecording(RollingRecording)}. Segments are never shown for
+ * confirmation, and {@link CameraView.OnVideoCapturedListener} is only told about failures.
+ */
+public class RollingRecording {
+    private static final String TAG = CameraView.TAG;
+
+    static final String PREFIX = "segment_";
+    static final String EXTENSION = ".mp4";
+
+    /** Where the segments are written. */
+    private final File mDirectory;
+
+    /** The target length of each segment, or {@link CameraView#INDEFINITE_VIDEO_DURATION}. */
+    private final long mSegmentDurationMillis;
+
+    /** The target size of each segment, or {@link CameraView#INDEFINITE_VIDEO_SIZE}. */
+    private final long mSegmentSizeBytes;
+
+    /** The number of segments kept in the directory, or 0 to keep them all. */
+    private final int mMaxSegments;
+
+    /** The total size of the segments kept in the directory, or 0 for no limit. */
+    private final long mMaxTotalSizeBytes;
+
+    @Nullable private final OnSegmentFinalizedListener mOnSegmentFinalizedListener;
+
+    /** Used to keep segment names unique, even when two are created within the same millisecond. */
+    private long mLastSegmentTime;
+
+    private RollingRecording(File directory,
+                             long segmentDurationMillis,
+                             long segmentSizeBytes,
+                             int maxSegments,
+                             long maxTotalSizeBytes,
+                             @Nullable OnSegmentFinalizedListener onSegmentFinalizedListener) {
+        mDirectory = directory;
+        mSegmentDurationMillis = segmentDurationMillis;
+        mSegmentSizeBytes = segmentSizeBytes;
+        mMaxSegments = maxSegments;
+        mMaxTotalSizeBytes = maxTotalSizeBytes;
+        mOnSegmentFinalizedListener = onSegmentFinalizedListener;
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    public long getSegmentDuration() {
+        return mSegmentDurationMillis;
+    }
+
+    public long getSegmentSize() {
+        return mSegmentSizeBytes;
+    }
+
+    public int getMaxSegments() {
+        return mMaxSegments;
+    }
+
+    public long getMaxTotalSize() {
+        return mMaxTotalSizeBytes;
+    }
+
+    /**
+     * Returns a new file for the next segment. Segments are named after the time they were created,
+     * so sorting them by name also sorts them chronologically.
+     */
+    public synchronized File nextFile() {
+        long time = Math.max(System.currentTimeMillis(), mLastSegmentTime + 1);
+        mLastSegmentTime = time;
+        return new File(mDirectory, String.format(Locale.US, "%s%013d%s", PREFIX, time, EXTENSION));
+    }
+
+    /**
+     * Called by the camera once a segment has been closed and is safe to read. Applies the retention
+     * policy and then notifies the listener on the main thread.
+     */
+    public void onSegmentFinalized(File file) {
+        Log.d(TAG, "Finalized video segment " + file);
+        applyRetentionPolicy(file);
+        if (mOnSegmentFinalizedListener != null) {
+            new Handler(Looper.getMainLooper()).post(() -> mOnSegmentFinalizedListener.onSegmentFinalized(file));
+        }
+    }
+
+    /**
+     * Deletes the oldest segments in the directory until it's within the retention limits. The
+     * segment that was just finalized is always kept, so that the listener can use it.
+     */
+    synchronized void applyRetentionPolicy(File newestSegment) {
+        if (mMaxSegments <= 0 && mMaxTotalSizeBytes <= 0) {
+            return;
+        }
+
+        List<File> segments = getSegments();
+        long totalSize = 0;
+        for (File segment : segments) {
+            totalSize += segment.length();
+        }
+
+        int count = segments.size();
+        for (File segment : segments) {
+            boolean overCount = mMaxSegments > 0 && count > mMaxSegments;
+            boolean overSize = mMaxTotalSizeBytes > 0 && totalSize > mMaxTotalSizeBytes;
+            if (!overCount && !overSize) {
+                break;
+            }
+            if (segment.equals(newestSegment)) {
+                break;
+            }
+
+            long length = segment.length();
+            if (segment.delete()) {
+                count--;
+                totalSize -= length;
+            } else {
+                Log.w(TAG, "Failed to delete old video segment " + segment);
+            }
+        }
+    }
+
+    /** Returns the segments in the directory, oldest first. */
+    @NonNull
+    List<File> getSegments() {
+        File[] files = mDirectory.listFiles((dir, name) -> name.startsWith(PREFIX) && name.endsWith(EXTENSION));
+        if (files == null) {
+            return new ArrayList<>();
+        }
+        Arrays.sort(files);
+        return new ArrayList<>(Arrays.asList(files));
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "RollingRecording{" +
+                "directory=" + mDirectory +
+                ", segmentDuration=" + mSegmentDurationMillis +
+                ", segmentSize=" + mSegmentSizeBytes +
+                ", maxSegments=" + mMaxSegments +
+                ", maxTotalSize=" + mMaxTotalSizeBytes +
+                '}';
+    }
+
+    public interface OnSegmentFinalizedListener {
+        void onSegmentFinalized(File file);
+    }
+
+    public static class Builder {
+        private final File mDirectory;
+        private long mSegmentDurationMillis = CameraView.INDEFINITE_VIDEO_DURATION;
+        private long mSegmentSizeBytes = CameraView.INDEFINITE_VIDEO_SIZE;
+        private int mMaxSegments;
+        private long mMaxTotalSizeBytes;
+        @Nullable private OnSegmentFinalizedListener mOnSegmentFinalizedListener;
+
+        /** @param directory Where the segments will be written. It will be created if needed. */
+        public Builder(File directory) {
+            mDirectory = directory;
+        }
+
+        /** Sets the length of each segment, in milliseconds. */
+        public Builder setSegmentDuration(long durationMillis) {
+            mSegmentDurationMillis = durationMillis;
+            return this;
+        }
+
+        /** Sets the size of each segment, in bytes. */
+        public Builder setSegmentSize(long sizeBytes) {
+            mSegmentSizeBytes = sizeBytes;
+            return this;
+        }
+
+        /** Keeps at most this many segments. Older segments are deleted. */
+        public Builder setMaxSegments(int maxSegments) {
+            mMaxSegments = maxSegments;
+            return this;
+        }
+
+        /** Keeps at most this many bytes of segments. Older segments are deleted. */
+        public Builder setMaxTotalSize(long sizeBytes) {
+            mMaxTotalSizeBytes = sizeBytes;
+            return this;
+        }
+
+        /** Called on the main thread every time a segment is closed and ready to be read. */
+        public Builder setOnSegmentFinalizedListener(@Nullable OnSegmentFinalizedListener listener) {
+            mOnSegmentFinalizedListener = listener;
+            return this;
+        }
+
+        public RollingRecording build() {
+            if (mSegmentDurationMillis == CameraView.INDEFINITE_VIDEO_DURATION
+                    && mSegmentSizeBytes == CameraView.INDEFINITE_VIDEO_SIZE) {
+                throw new IllegalArgumentException("A segment duration or size is required");
+            }
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                throw new IllegalArgumentException("Unable to create directory " + mDirectory);
+            }
+            return new RollingRecording(
+                    mDirectory,
+                    mSegmentDurationMillis,
+                    mSegmentSizeBytes,
+                    mMaxSegments,
+                    mMaxTotalSizeBytes,
+                    mOnSegmentFinalizedListener);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.xlythe.view.camera;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Decides which camera frames are worth scanning for barcodes. Scans are spaced out to a target
+ * rate, and once several scans in a row have found nothing, the spacing doubles after every further
+ * empty scan, up to a limit. A scanner pointed at an empty scene then costs very little, and the
+ * first scan that finds something puts it straight back to full speed.
+ */
+final class ScanRateLimiter {
+  /** How many empty scans in a row are allowed before backing off. */
+  static final int EMPTY_SCANS_BEFORE_BACKOFF = 5;
+
+  /** The furthest apart scans are spaced while backed off, unless the target rate is slower. */
+  static final long MAX_BACKOFF_INTERVAL_MILLIS = 500;
+
+  /** The spacing between scans at the target rate. */
+  private final long mIntervalMillis;
+
+  /** How many scans in a row have found nothing. */
+  private int mEmptyScans;
+
+  /** When the last scan started, or {@link Long#MIN_VALUE} if there hasn't been one. */
+  private long mLastScanMillis = Long.MIN_VALUE;
+
+  /** @param scansPerSecond The most scans to run each second. */
+  ScanRateLimiter(float scansPerSecond) {
+    if (scansPerSecond <= 0) {
+      throw new IllegalArgumentException("Cannot scan " + scansPerSecond + " times per second");
+    }
+    mIntervalMillis = (long) (1000 / scansPerSecond);
+  }
+
+  /** Returns true, and counts a scan as started, if enough time has passed since the last one. */
+  boolean tryStartScan(long nowMillis) {
+    if (mLastScanMillis != Long.MIN_VALUE && nowMillis - mLastScanMillis < getIntervalMillis()) {
+      return false;
+    }
+    mLastScanMillis = nowMillis;
+    return true;
+  }
+
+  /** Records whether the last scan found anything, which decides how long until the next one. */
+  void onScanFinished(boolean found) {
+    if (found) {
+      mEmptyScans = 0;
+    } else if (mEmptyScans < Integer.MAX_VALUE) {
+      mEmptyScans++;
+    }
+  }
+
+  /** Returns how long to wait between the start of one scan and the next. */
+  long getIntervalMillis() {
+    if (mEmptyScans < EMPTY_SCANS_BEFORE_BACKOFF) {
+      return mIntervalMillis;
+    }
+    int doublings = Math.min(mEmptyScans - EMPTY_SCANS_BEFORE_BACKOFF + 1, 16);
+    long backoffMillis = Math.min(MAX_BACKOFF_INTERVAL_MILLIS, Math.max(1, mIntervalMillis) << doublings);
+    return Math.max(mIntervalMillis, backoffMillis);
+  }
+
+  @NonNull
+  @Override
+  public String toString() {
+    return "ScanRateLimiter{" +
+            "interval=" + getIntervalMillis() + "ms" +
+            ", emptyScans=" + mEmptyScans +
+            '}';
+  }
+}
@@ -2,15 +2,29 @@ package com.xlythe.view.camera;
 
 import android.Manifest;
 import android.annotation.SuppressLint;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
+import androidx.annotation.FloatRange;
+import androidx.annotation.IntDef;
+import androidx.annotation.IntRange;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 import androidx.annotation.RequiresPermission;
 
+import com.xlythe.view.camera.stream.AudioCodec;
 import com.xlythe.view.camera.stream.AudioRecorder;
+import com.xlythe.view.camera.stream.FramePublisher;
+import com.xlythe.view.camera.stream.FrameSink;
+import com.xlythe.view.camera.stream.LatencyHistogram;
+import com.xlythe.view.camera.stream.LayerSelector;
 import com.xlythe.view.camera.stream.LossyPipedOutputStream;
+import com.xlythe.view.camera.stream.QualityGovernor;
+import com.xlythe.view.camera.stream.StreamMetrics;
+import com.xlythe.view.camera.stream.StreamStats;
+import com.xlythe.view.camera.stream.SurfaceSplitter;
 import com.xlythe.view.camera.stream.VideoRecorder;
 
 import java.io.Closeable;
@@ -18,11 +32,26 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
 
 @RequiresApi(18)
 public class VideoStream implements Closeable {
   private static final String TAG = VideoStream.class.getSimpleName();
 
+  /** The renditions of a simulcast stream. Streams without simulcast only have {@link Layer#FULL}. */
+  @Retention(RetentionPolicy.SOURCE)
+  @IntDef({
+          Layer.FULL,
+          Layer.LOW,
+  })
+  public @interface Layer {
+    /** The camera's own resolution. */
+    int FULL = 0;
+    /** A smaller rendition, scaled by {@link Params#getSimulcastScale()}. */
+    int LOW = 1;
+  }
+
   /** Determines if this is encoding or decoding a video stream. */
   private final InputType mInputType;
 
@@ -31,12 +60,43 @@ public class VideoStream implements Closeable {
   @Nullable private final AudioRecorder mAudioRecorder;
   /** Encodes a video stream. Non-null for video streams of type {@link InputType.CAMERA_MODULE}. */
   @Nullable private final VideoRecorder mVideoRecorder;
+  /** Encodes the {@link Layer#LOW} rendition. Non-null for simulcast streams. */
+  @Nullable private final VideoRecorder mLowVideoRecorder;
 
   // ---------- Output ----------
   /** Exposes a handle to read the encoded audio bytes from the stream. Non-null for audio streams. */
   @Nullable private final InputStream mAudioInputStream;
   /** Exposes a handle to read the encoded video bytes from the stream. Non-null for video streams. */
   @Nullable private final InputStream mVideoInputStream;
+  /** Exposes a handle to read the {@link Layer#LOW} rendition. Non-null for simulcast streams. */
+  @Nullable private final InputStream mLowVideoInputStream;
+  /** Publishes the encoded video frames. Created the first time it's asked for. */
+  @Nullable private FramePublisher mFramePublisher;
+  /** Publishes the {@link Layer#LOW} rendition. Created the first time it's asked for. */
+  @Nullable private FramePublisher mLowFramePublisher;
+
+  // ---------- Thermal ----------
+  /** Scales back the video as the device heats up. Null unless set. */
+  @Nullable private QualityGovernor mQualityGovernor;
+
+  // ---------- Metrics ----------
+  /** Counts frames as they're encoded, written, dropped and played. */
+  private final StreamMetrics mMetrics = new StreamMetrics();
+  /** Posts stats to {@link #mOnStatsListener} on the main thread. */
+  private final Handler mHandler = new Handler(Looper.getMainLooper());
+  @Nullable private OnStatsListener mOnStatsListener;
+  private long mStatsIntervalMillis;
+  private final Runnable mStatsRunnable = new Runnable() {
+    @Override
+    public void run() {
+      OnStatsListener listener = mOnStatsListener;
+      if (listener == null) {
+        return;
+      }
+      listener.onStats(mMetrics.takeIntervalStats());
+      mHandler.postDelayed(this, mStatsIntervalMillis);
+    }
+  };
 
   @RequiresPermission(allOf = {
           Manifest.permission.CAMERA,
@@ -51,6 +111,15 @@ public class VideoStream implements Closeable {
       try {
         audioInputStream = new PipedInputStream();
         audioRecorder = new AudioRecorder(params.isLossy() ? new LossyPipedOutputStream(audioInputStream) : new PipedOutputStream(audioInputStream));
+        audioRecorder.setMetrics(mMetrics);
+        audioRecorder.setPacketized(params.isAudioPacketized());
+        audioRecorder.setCodec(params.getAudioCodec());
+        audioRecorder.setSilenceSuppressionEnabled(params.isSilenceSuppressionEnabled());
+        audioRecorder.setSilenceThreshold(params.getSilenceThresholdDb());
+        audioRecorder.setSilenceHangoverMillis(params.getSilenceHangoverMillis());
+        if (params.isLowLatencyAudioEnabled()) {
+          audioRecorder.setLowLatencyEnabled(cameraModule.getContext(), true);
+        }
         audioRecorder.start();
       } catch (IOException e) {
         audioRecorder = null;
@@ -65,34 +134,92 @@ public class VideoStream implements Closeable {
     }
 
     if (params.isVideoEnabled()) {
+      VideoRecorder.Canvas canvas = cameraModule.getCanvas();
+      VideoRecorder.Canvas lowCanvas = null;
+      if (params.isSimulcastEnabled()) {
+        // The camera can only feed one surface, so it's split on the GPU into one per rendition.
+        SurfaceSplitter surfaceSplitter = new SurfaceSplitter(canvas, 1f, params.getSimulcastScale());
+        canvas = surfaceSplitter.getCanvas(Layer.FULL);
+        lowCanvas = surfaceSplitter.getCanvas(Layer.LOW);
+      }
+
       VideoRecorder videoRecorder;
       PipedInputStream videoInputStream;
       try {
         videoInputStream = new PipedInputStream();
-        videoRecorder = new VideoRecorder(
-                cameraModule.getCanvas(),
-                params.isLossy() ? new LossyPipedOutputStream(videoInputStream) : new PipedOutputStream(videoInputStream));
-        if (params.getBitRate() != 0) {
-          videoRecorder.setBitRate(params.getBitRate());
-        }
-        if (params.getFrameRate() != 0) {
-          videoRecorder.setFrameRate(params.getFrameRate());
-        }
-        if (params.getIFrameInterval() != 0) {
-          videoRecorder.setIFrameInterval(params.getIFrameInterval());
-        }
-        videoRecorder.start();
+        videoRecorder = startVideoRecorder(canvas, videoInputStream, params, Layer.FULL);
+        mMetrics.setPipe(videoInputStream);
       } catch (IOException e) {
         videoRecorder = null;
         videoInputStream = null;
       }
 
+      VideoRecorder lowVideoRecorder = null;
+      PipedInputStream lowVideoInputStream = null;
+      if (lowCanvas != null) {
+        try {
+          lowVideoInputStream = new PipedInputStream();
+          lowVideoRecorder = startVideoRecorder(lowCanvas, lowVideoInputStream, params, Layer.LOW);
+        } catch (IOException e) {
+          lowVideoRecorder = null;
+          lowVideoInputStream = null;
+        }
+      }
+
       mVideoRecorder = videoRecorder;
       mVideoInputStream = videoInputStream;
+      mLowVideoRecorder = lowVideoRecorder;
+      mLowVideoInputStream = lowVideoInputStream;
     } else {
       mVideoRecorder = null;
       mVideoInputStream = null;
+      mLowVideoRecorder = null;
+      mLowVideoInputStream = null;
+    }
+  }
+
+  /**
+   * Starts recording one rendition of the video into the given pipe. Only the {@link Layer#FULL}
+   * rendition reports to {@link #mMetrics}, so that stats describe a single stream.
+   */
+  @RequiresPermission(Manifest.permission.CAMERA)
+  private VideoRecorder startVideoRecorder(VideoRecorder.Canvas canvas,
+                                           PipedInputStream videoInputStream,
+                                           Params params,
+                                           @Layer int layer) throws IOException {
+    boolean isFullLayer = layer == Layer.FULL;
+    PipedOutputStream videoOutputStream;
+    if (params.isLossy()) {
+      LossyPipedOutputStream lossyOutputStream = new LossyPipedOutputStream(videoInputStream);
+      if (isFullLayer) {
+        lossyOutputStream.setMetrics(mMetrics);
+      }
+      videoOutputStream = lossyOutputStream;
+    } else {
+      videoOutputStream = new PipedOutputStream(videoInputStream);
+    }
+    VideoRecorder videoRecorder = new VideoRecorder(canvas, videoOutputStream);
+    if (isFullLayer) {
+      videoRecorder.setMetrics(mMetrics);
+    }
+    videoRecorder.setLayer(layer);
+    if (params.getBitRate() != 0) {
+      videoRecorder.setBitRate(params.getBitRate());
     }
+    if (!isFullLayer) {
+      // Bit rate scales with the number of pixels.
+      float scale = params.getSimulcastScale();
+      videoRecorder.setBitRate((int) (videoRecorder.getBitRate() * scale * scale));
+    }
+    if (params.getFrameRate() != 0) {
+      videoRecorder.setFrameRate(params.getFrameRate());
+    }
+    if (params.getIFrameInterval() != 0) {
+      videoRecorder.setIFrameInterval(params.getIFrameInterval());
+    }
+    videoRecorder.setLatencyTracingEnabled(params.isLatencyTracingEnabled());
+    videoRecorder.start();
+    return videoRecorder;
   }
 
   private VideoStream(@Nullable InputStream audioStream,
@@ -101,19 +228,26 @@ public class VideoStream implements Closeable {
 
     mAudioRecorder = null;
     mVideoRecorder = null;
+    mLowVideoRecorder = null;
 
     mAudioInputStream = audioStream;
     mVideoInputStream = videoStream;
+    mLowVideoInputStream = null;
   }
 
   @Override
   public void close() {
+    mHandler.removeCallbacks(mStatsRunnable);
+    setQualityGovernor(null);
     if (mAudioRecorder != null) {
       mAudioRecorder.stop();
     }
     if (mVideoRecorder != null) {
       mVideoRecorder.stop();
     }
+    if (mLowVideoRecorder != null) {
+      mLowVideoRecorder.stop();
+    }
     if (mAudioInputStream != null) {
       try {
         mAudioInputStream.close();
@@ -128,6 +262,13 @@ public class VideoStream implements Closeable {
         // ignored
       }
     }
+    if (mLowVideoInputStream != null) {
+      try {
+        mLowVideoInputStream.close();
+      } catch (IOException e) {
+        // ignored
+      }
+    }
     Log.d(TAG, "VideoStream closed");
   }
 
@@ -158,6 +299,204 @@ public class VideoStream implements Closeable {
     return mVideoInputStream;
   }
 
+  /**
+   * Returns the number of renditions the video is encoded at. This is 2 for simulcast streams (see
+   * {@link Params.Builder#setSimulcastEnabled(boolean)}), and 1 otherwise.
+   */
+  public int getLayerCount() {
+    return mLowVideoInputStream == null ? 1 : 2;
+  }
+
+  /** Returns a handle to read a single rendition of a simulcast stream. */
+  public InputStream getVideoInputStream(@Layer int layer) {
+    if (layer == Layer.FULL) {
+      return getVideoInputStream();
+    }
+    if (layer != Layer.LOW || mLowVideoInputStream == null) {
+      throw new IllegalStateException("Cannot get an input stream for layer " + layer + " from this source");
+    }
+    return mLowVideoInputStream;
+  }
+
+  /**
+   * Tees the encoded video into the given sink, such as an {@link com.xlythe.view.camera.stream.Mp4Sink}.
+   * The sink is closed when this stream closes. Only streams from a camera can have sinks.
+   */
+  public void addSink(FrameSink sink) {
+    if (mVideoRecorder == null) {
+      throw new IllegalStateException("Cannot attach a sink to this source");
+    }
+    mVideoRecorder.addSink(sink);
+  }
+
+  /** Tees a single rendition of a simulcast stream into the given sink. */
+  public void addSink(FrameSink sink, @Layer int layer) {
+    getVideoRecorder(layer).addSink(sink);
+  }
+
+  /**
+   * Attaches a selector to every rendition of the stream, so that it can switch between them. When
+   * the selector switches, the new rendition is asked for a key frame so that the switch happens
+   * right away.
+   */
+  public void addSink(final LayerSelector selector) {
+    if (mVideoRecorder == null) {
+      throw new IllegalStateException("Cannot attach a sink to this source");
+    }
+    selector.setOnLayerRequestedListener(new LayerSelector.OnLayerRequestedListener() {
+      @Override
+      public void onLayerRequested(int layer) {
+        if (layer < getLayerCount()) {
+          requestKeyFrame(layer);
+        } else {
+          Log.w(TAG, "Cannot switch to layer " + layer + " of a stream with " + getLayerCount() + " layers");
+        }
+      }
+    });
+    mVideoRecorder.addSink(selector);
+    if (mLowVideoRecorder != null) {
+      mLowVideoRecorder.addSink(selector);
+    }
+  }
+
+  /**
+   * Detaches a sink previously added with {@link #addSink(FrameSink)}, from every rendition it was
+   * attached to. The sink is not closed.
+   */
+  public void removeSink(FrameSink sink) {
+    if (mVideoRecorder == null) {
+      throw new IllegalStateException("Cannot detach a sink from this source");
+    }
+    mVideoRecorder.removeSink(sink);
+    if (mLowVideoRecorder != null) {
+      mLowVideoRecorder.removeSink(sink);
+    }
+  }
+
+  /**
+   * Asks the encoder of the given rendition for a key frame as soon as possible, such as when a new
+   * viewer joins. Only streams from a camera can be asked.
+   */
+  public void requestKeyFrame(@Layer int layer) {
+    getVideoRecorder(layer).requestKeyFrame();
+  }
+
+  private VideoRecorder getVideoRecorder(@Layer int layer) {
+    VideoRecorder videoRecorder = layer == Layer.FULL ? mVideoRecorder : layer == Layer.LOW ? mLowVideoRecorder : null;
+    if (videoRecorder == null) {
+      throw new IllegalStateException("Cannot find layer " + layer + " in this source");
+    }
+    return videoRecorder;
+  }
+
+  /**
+   * Returns a publisher of the encoded video frames, for consumers that would rather be pushed
+   * frames as they ask for them than read from {@link #getVideoInputStream()}. Subscribers are
+   * completed when this stream closes. Only streams from a camera can be published.
+   */
+  @RequiresApi(30)
+  public synchronized FramePublisher getFramePublisher() {
+    if (mVideoRecorder == null) {
+      throw new IllegalStateException("Cannot publish frames from this source");
+    }
+    if (mFramePublisher == null) {
+      mFramePublisher = new FramePublisher();
+      mVideoRecorder.addSink(mFramePublisher);
+    }
+    return mFramePublisher;
+  }
+
+  /**
+   * Returns a publisher of a single rendition of a simulcast stream. To let a subscriber switch
+   * renditions, attach a {@link LayerSelector} around its own {@link FramePublisher} instead.
+   */
+  @RequiresApi(30)
+  public synchronized FramePublisher getFramePublisher(@Layer int layer) {
+    if (layer == Layer.FULL) {
+      return getFramePublisher();
+    }
+    VideoRecorder videoRecorder = getVideoRecorder(layer);
+    if (mLowFramePublisher == null) {
+      mLowFramePublisher = new FramePublisher();
+      videoRecorder.addSink(mLowFramePublisher);
+    }
+    return mLowFramePublisher;
+  }
+
+  /**
+   * Lets the governor scale back the bit rate, frame rate and resolution of the video as the device
+   * heats up, and restore them as it cools down. Every rendition is scaled by the same amount. A
+   * single governor can be shared between several streams. Ignored for streams that aren't
+   * recording from a camera.
+   */
+  public synchronized void setQualityGovernor(@Nullable QualityGovernor governor) {
+    if (mQualityGovernor != null) {
+      if (mVideoRecorder != null) {
+        mQualityGovernor.removeTarget(mVideoRecorder);
+      }
+      if (mLowVideoRecorder != null) {
+        mQualityGovernor.removeTarget(mLowVideoRecorder);
+      }
+    }
+    mQualityGovernor = governor;
+    if (governor != null) {
+      if (mVideoRecorder != null) {
+        governor.addTarget(mVideoRecorder);
+      }
+      if (mLowVideoRecorder != null) {
+        governor.addTarget(mLowVideoRecorder);
+      }
+    }
+  }
+
+  @Nullable
+  public synchronized QualityGovernor getQualityGovernor() {
+    return mQualityGovernor;
+  }
+
+  /**
+   * Returns a snapshot of how the video is performing. Rates, averages and maximums cover the time
+   * since the stream started, and reading them never resets them. For stats over a sliding
+   * interval, use {@link #setOnStatsListener(OnStatsListener, long)}. Encoder stats are filled in
+   * for streams from a camera, and decoder stats once the stream is being played by a
+   * {@link VideoView}.
+   */
+  public StreamStats getStats() {
+    return mMetrics.getStats();
+  }
+
+  /**
+   * Calls the listener on the main thread with fresh {@link StreamStats} every interval, until the
+   * stream closes or the listener is cleared. Rates, averages and maximums cover the time since the
+   * previous report. The listener has its own window, so {@link #getStats()} can still be called
+   * alongside it.
+   */
+  public void setOnStatsListener(@Nullable OnStatsListener listener, long intervalMillis) {
+    if (listener != null && intervalMillis <= 0) {
+      throw new IllegalArgumentException("Cannot report stats every " + intervalMillis + "ms");
+    }
+    mHandler.removeCallbacks(mStatsRunnable);
+    mOnStatsListener = listener;
+    mStatsIntervalMillis = intervalMillis;
+    if (listener != null) {
+      mMetrics.takeIntervalStats();
+      mHandler.postDelayed(mStatsRunnable, intervalMillis);
+    }
+  }
+
+  /**
+   * Returns how long traced frames spent in the given stage. Frames are only traced if the stream
+   * was recorded with {@link Params.Builder#setLatencyTracingEnabled(boolean)}. The recording side
+   * fills in the encode and write stages, and the playing side fills in the rest.
+   */
+  public LatencyHistogram getLatencyHistogram(@LatencyHistogram.Stage int stage) {
+    return mMetrics.getLatencyHistogram(stage);
+  }
+
+  StreamMetrics getMetrics() {
+    return mMetrics;
+  }
+
   @NonNull
   @Override
   public String toString() {
@@ -165,9 +504,14 @@ public class VideoStream implements Closeable {
             "InputType=" + mInputType +
             ", HasAudio=" + hasAudio() +
             ", HasVideo=" + hasVideo() +
+            ", Layers=" + getLayerCount() +
             '}';
   }
 
+  public interface OnStatsListener {
+    void onStats(StreamStats stats);
+  }
+
   private enum InputType {
     UNKNOWN, INPUT_STREAM, CAMERA_MODULE;
   }
@@ -236,19 +580,46 @@ public class VideoStream implements Closeable {
     private final int mFrameRate;
     private final int mIFrameInterval;
     private final boolean mIsLossy;
+    private final boolean mIsLatencyTracingEnabled;
+    private final boolean mIsSimulcastEnabled;
+    private final float mSimulcastScale;
+    private final boolean mIsLowLatencyAudioEnabled;
+    private final boolean mIsAudioPacketized;
+    @AudioCodec.Type private final int mAudioCodec;
+    private final boolean mIsSilenceSuppressionEnabled;
+    private final float mSilenceThresholdDb;
+    private final int mSilenceHangoverMillis;
 
     private Params(boolean audioEnabled,
                    boolean videoEnabled,
                    int bitRate,
                    int frameRate,
                    int iframeInterval,
-                   boolean isLossy) {
+                   boolean isLossy,
+                   boolean isLatencyTracingEnabled,
+                   boolean isSimulcastEnabled,
+                   float simulcastScale,
+                   boolean isLowLatencyAudioEnabled,
+                   boolean isAudioPacketized,
+                   @AudioCodec.Type int audioCodec,
+                   boolean isSilenceSuppressionEnabled,
+                   float silenceThresholdDb,
+                   int silenceHangoverMillis) {
       this.mAudioEnabled = audioEnabled;
       this.mVideoEnabled = videoEnabled;
       this.mBitRate = bitRate;
       this.mFrameRate = frameRate;
       this.mIFrameInterval = iframeInterval;
       this.mIsLossy = isLossy;
+      this.mIsLatencyTracingEnabled = isLatencyTracingEnabled;
+      this.mIsSimulcastEnabled = isSimulcastEnabled;
+      this.mSimulcastScale = simulcastScale;
+      this.mIsLowLatencyAudioEnabled = isLowLatencyAudioEnabled;
+      this.mIsAudioPacketized = isAudioPacketized;
+      this.mAudioCodec = audioCodec;
+      this.mIsSilenceSuppressionEnabled = isSilenceSuppressionEnabled;
+      this.mSilenceThresholdDb = silenceThresholdDb;
+      this.mSilenceHangoverMillis = silenceHangoverMillis;
     }
 
     public boolean isAudioEnabled() {
@@ -275,6 +646,46 @@ public class VideoStream implements Closeable {
       return mIsLossy;
     }
 
+    public boolean isLatencyTracingEnabled() {
+      return mIsLatencyTracingEnabled;
+    }
+
+    public boolean isSimulcastEnabled() {
+      return mIsSimulcastEnabled;
+    }
+
+    /** Returns how much smaller the width and height of the {@link Layer#LOW} rendition are. */
+    public float getSimulcastScale() {
+      return mSimulcastScale;
+    }
+
+    public boolean isLowLatencyAudioEnabled() {
+      return mIsLowLatencyAudioEnabled;
+    }
+
+    public boolean isAudioPacketized() {
+      return mIsAudioPacketized;
+    }
+
+    @AudioCodec.Type
+    public int getAudioCodec() {
+      return mAudioCodec;
+    }
+
+    public boolean isSilenceSuppressionEnabled() {
+      return mIsSilenceSuppressionEnabled;
+    }
+
+    /** Returns how loud audio must be to be sent, in dB relative to full scale. */
+    public float getSilenceThresholdDb() {
+      return mSilenceThresholdDb;
+    }
+
+    /** Returns how long audio keeps being sent after it was last loud enough. */
+    public int getSilenceHangoverMillis() {
+      return mSilenceHangoverMillis;
+    }
+
     public static class Builder {
       private boolean mAudioEnabled = true;
       private boolean mVideoEnabled = true;
@@ -282,6 +693,15 @@ public class VideoStream implements Closeable {
       private int mFrameRate;
       private int mIFrameInterval;
       private boolean mIsLossy = true;
+      private boolean mIsLatencyTracingEnabled;
+      private boolean mIsSimulcastEnabled;
+      private float mSimulcastScale = 0.5f;
+      private boolean mIsLowLatencyAudioEnabled;
+      private boolean mIsAudioPacketized;
+      @AudioCodec.Type private int mAudioCodec = AudioCodec.Type.PCM;
+      private boolean mIsSilenceSuppressionEnabled;
+      private float mSilenceThresholdDb = AudioRecorder.DEFAULT_SILENCE_THRESHOLD_DB;
+      private int mSilenceHangoverMillis = AudioRecorder.DEFAULT_SILENCE_HANGOVER_MILLIS;
 
       public Builder setAudioEnabled(boolean audioEnabled) {
         this.mAudioEnabled = audioEnabled;
@@ -313,12 +733,112 @@ public class VideoStream implements Closeable {
         return this;
       }
 
+      /**
+       * Stamps each video frame with when it was captured, encoded and written, so that the latency
+       * of each stage can be measured. See {@link VideoStream#getLatencyHistogram(int)}.
+       */
+      public Builder setLatencyTracingEnabled(boolean enabled) {
+        mIsLatencyTracingEnabled = enabled;
+        return this;
+      }
+
+      /**
+       * Encodes the video twice, once at full size and once scaled down, so that small viewers
+       * don't need to decode the full sized stream. The camera's frames are copied into both
+       * encoders on the GPU. See {@link Layer}.
+       */
+      public Builder setSimulcastEnabled(boolean enabled) {
+        mIsSimulcastEnabled = enabled;
+        return this;
+      }
+
+      /**
+       * Sets how much the width and height of the {@link Layer#LOW} rendition are scaled by.
+       * Defaults to 0.5, a quarter of the pixels. Its bit rate is scaled to match.
+       */
+      public Builder setSimulcastScale(@FloatRange(from = 0, fromInclusive = false, to = 1, toInclusive = false) float scale) {
+        mSimulcastScale = scale;
+        return this;
+      }
+
+      /**
+       * Records audio at the device's native sample rate and burst size, for two-way streams where
+       * audio delay matters most. Players switch to low latency playback on their own. The buffer
+       * latency on each end is reported in {@link StreamStats}.
+       */
+      public Builder setLowLatencyAudioEnabled(boolean enabled) {
+        mIsLowLatencyAudioEnabled = enabled;
+        return this;
+      }
+
+      /**
+       * Sends audio as numbered, timestamped packets, so that players can hold back a little audio
+       * to smooth over late packets, and conceal lost ones rather than clicking. Disabled by default,
+       * as it changes what {@link VideoStream#getAudioInputStream()} returns from raw PCM to packets,
+       * which only this library's players understand.
+       */
+      public Builder setAudioPacketized(boolean packetized) {
+        mIsAudioPacketized = packetized;
+        return this;
+      }
+
+      /**
+       * Compresses each audio packet in software, for devices without the hardware or CPU to spare
+       * for AAC. {@link AudioCodec.Type#IMA_ADPCM} sends a quarter of the bytes of PCM, and
+       * {@link AudioCodec.Type#MULAW} half, at a small cost in quality. Requires packetized audio.
+       * Players pick up the codec on their own.
+       */
+      public Builder setAudioCodec(@AudioCodec.Type int codec) {
+        mAudioCodec = codec;
+        return this;
+      }
+
+      /**
+       * Replaces silent stretches of audio with small markers, which players fill back in with
+       * comfort noise. Requires packetized audio. How much is saved is reported in
+       * {@link StreamStats#getAudioSuppressionRatio()}.
+       */
+      public Builder setSilenceSuppressionEnabled(boolean enabled) {
+        mIsSilenceSuppressionEnabled = enabled;
+        return this;
+      }
+
+      /**
+       * Sets how loud audio must be to be sent, in dB relative to full scale. Defaults to
+       * {@link AudioRecorder#DEFAULT_SILENCE_THRESHOLD_DB}. Raise it for noisy rooms.
+       */
+      public Builder setSilenceThreshold(@FloatRange(to = 0) float thresholdDb) {
+        mSilenceThresholdDb = thresholdDb;
+        return this;
+      }
+
+      /**
+       * Sets how long audio keeps being sent after it was last loud enough, so that quiet word
+       * endings aren't cut off. Defaults to {@link AudioRecorder#DEFAULT_SILENCE_HANGOVER_MILLIS}.
+       */
+      public Builder setSilenceHangoverMillis(@IntRange(from = 0) int hangoverMillis) {
+        mSilenceHangoverMillis = hangoverMillis;
+        return this;
+      }
+
       public Params build() {
         if (!mAudioEnabled && !mVideoEnabled) {
           throw new IllegalStateException("Cannot create a stream with both audio and video disabled");
         }
+        if (mSimulcastScale <= 0 || mSimulcastScale >= 1) {
+          throw new IllegalStateException("Cannot create a simulcast layer at scale " + mSimulcastScale);
+        }
+        if (mAudioCodec != AudioCodec.Type.PCM && !mIsAudioPacketized) {
+          throw new IllegalStateException("Cannot compress audio without packetized audio");
+        }
+        if (mIsSilenceSuppressionEnabled && !mIsAudioPacketized) {
+          throw new IllegalStateException("Cannot suppress silence without packetized audio");
+        }
+        if (mSilenceHangoverMillis < 0) {
+          throw new IllegalStateException("Cannot use a negative silence hangover");
+        }
 
-        return new Params(mAudioEnabled, mVideoEnabled, mBitRate, mFrameRate, mIFrameInterval, mIsLossy);
+        return new Params(mAudioEnabled, mVideoEnabled, mBitRate, mFrameRate, mIFrameInterval, mIsLossy, mIsLatencyTracingEnabled, mIsSimulcastEnabled, mSimulcastScale, mIsLowLatencyAudioEnabled, mIsAudioPacketized, mAudioCodec, mIsSilenceSuppressionEnabled, mSilenceThresholdDb, mSilenceHangoverMillis);
       }
     }
   }
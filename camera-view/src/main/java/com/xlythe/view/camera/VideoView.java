@@ -348,6 +348,7 @@ public class VideoView extends FrameLayout implements TextureView.SurfaceTexture
 
         if (videoStream.hasAudio()) {
             mAudioPlayer = new AudioPlayer(videoStream.getAudioInputStream());
+            mAudioPlayer.setMetrics(videoStream.getMetrics());
             mAudioPlayer.setStreamEndListener(() -> new Handler(Looper.getMainLooper()).post(() -> {
                 setPlayingState(false);
                 videoStream.close();
@@ -357,6 +358,7 @@ public class VideoView extends FrameLayout implements TextureView.SurfaceTexture
         if (videoStream.hasVideo()) {
             @SuppressLint("Recycle") Surface surface = new Surface(mTextureView.getSurfaceTexture());
             mVideoPlayer = new VideoPlayer(surface, videoStream.getVideoInputStream());
+            mVideoPlayer.setMetrics(videoStream.getMetrics());
             mVideoPlayer.setStreamEndListener(() -> new Handler(Looper.getMainLooper()).post(() -> {
                 setPlayingState(false);
                 videoStream.close();
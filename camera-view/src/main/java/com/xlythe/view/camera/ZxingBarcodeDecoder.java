@@ -0,0 +1,298 @@
+package com.xlythe.view.camera;
+
+import android.graphics.Rect;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.MultiFormatReader;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.PlanarYUVLuminanceSource;
+import com.google.zxing.Reader;
+import com.google.zxing.Result;
+import com.google.zxing.ResultPoint;
+import com.google.zxing.common.HybridBinarizer;
+import com.google.zxing.multi.GenericMultipleBarcodeReader;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes barcodes with ZXing, in pure Java. It's usually slower than {@link MlKitBarcodeDecoder}
+ * on a device, but it doesn't need Google Play services and it runs on a plain JVM, so the same
+ * decoder can be benchmarked off device.
+ *
+ * ZXing is not bundled with this library. Add {@code com.google.zxing:core} to your own
+ * dependencies to use this decoder.
+ *
+ * Frames are copied upright before they're decoded, so that 1D barcodes run the way the user sees
+ * them and bounding boxes come back in upright coordinates, as they do from ML Kit. The copy is
+ * reused from frame to frame for as long as the frame size stays the same.
+ */
+public class ZxingBarcodeDecoder implements BarcodeDecoder {
+  /** Every format both ML Kit and ZXing can read. */
+  private static final int[] ALL_FORMATS = {
+          Barcode.Format.CODE_128,
+          Barcode.Format.CODE_39,
+          Barcode.Format.CODE_93,
+          Barcode.Format.CODABAR,
+          Barcode.Format.DATA_MATRIX,
+          Barcode.Format.EAN_13,
+          Barcode.Format.EAN_8,
+          Barcode.Format.ITF,
+          Barcode.Format.QR_CODE,
+          Barcode.Format.UPC_A,
+          Barcode.Format.UPC_E,
+          Barcode.Format.PDF417,
+          Barcode.Format.AZTEC
+  };
+
+  private final MultiFormatReader mReader = new MultiFormatReader();
+  private final Map<DecodeHintType, Object> mHints = new EnumMap<>(DecodeHintType.class);
+
+  /** Finds several barcodes in a frame, by decoding the parts left over after each one is found. */
+  private final GenericMultipleBarcodeReader mMultipleReader = new GenericMultipleBarcodeReader(new Reader() {
+    // MultiFormatReader#decode rebuilds its readers on every call. Reuse the ones we've set up.
+    @Override
+    public Result decode(BinaryBitmap image) throws NotFoundException {
+      return mReader.decodeWithState(image);
+    }
+
+    @Override
+    public Result decode(BinaryBitmap image, Map<DecodeHintType, ?> hints) throws NotFoundException {
+      return mReader.decodeWithState(image);
+    }
+
+    @Override
+    public void reset() {
+      mReader.reset();
+    }
+  });
+
+  private byte[] mBuffer = new byte[0];
+  private byte[] mRow = new byte[0];
+
+  public ZxingBarcodeDecoder(@Barcode.Format int format, @Barcode.Format int... formats) {
+    Collection<BarcodeFormat> possibleFormats = EnumSet.noneOf(BarcodeFormat.class);
+    addFormat(possibleFormats, format);
+    for (int f : formats) {
+      addFormat(possibleFormats, f);
+    }
+    if (possibleFormats.isEmpty()) {
+      throw new IllegalArgumentException("Cannot decode barcodes without any supported formats");
+    }
+    mHints.put(DecodeHintType.POSSIBLE_FORMATS, possibleFormats);
+    mReader.setHints(mHints);
+  }
+
+  /**
+   * Looks harder for barcodes, at the cost of speed. Finds more barcodes that are small, blurry or
+   * at an angle. Off by default.
+   */
+  public ZxingBarcodeDecoder setTryHarder(boolean tryHarder) {
+    if (tryHarder) {
+      mHints.put(DecodeHintType.TRY_HARDER, Boolean.TRUE);
+    } else {
+      mHints.remove(DecodeHintType.TRY_HARDER);
+    }
+    mReader.setHints(mHints);
+    return this;
+  }
+
+  @NonNull
+  @WorkerThread
+  @Override
+  public List<Barcode> decode(ByteBuffer luma, int width, int height, int rowStride, int rotation) {
+    rotation = ((rotation % 360) + 360) % 360;
+    boolean sideways = rotation == 90 || rotation == 270;
+    int uprightWidth = sideways ? height : width;
+    int uprightHeight = sideways ? width : height;
+    copyUpright(luma, width, height, rowStride, rotation);
+
+    BinaryBitmap bitmap = new BinaryBitmap(new HybridBinarizer(new PlanarYUVLuminanceSource(
+            mBuffer, uprightWidth, uprightHeight, 0, 0, uprightWidth, uprightHeight, false)));
+    Result[] results;
+    try {
+      results = mMultipleReader.decodeMultiple(bitmap, mHints);
+    } catch (NotFoundException e) {
+      return Collections.emptyList();
+    } finally {
+      mReader.reset();
+    }
+
+    List<Barcode> list = new ArrayList<>(results.length);
+    for (Result result : results) {
+      list.add(new Barcode(fromZxingFormat(result.getBarcodeFormat()), result.getText(), getBoundingBox(result.getResultPoints())));
+    }
+    return list;
+  }
+
+  /** Copies the luma plane into {@link #mBuffer}, rotated clockwise so that it's upright. */
+  private void copyUpright(ByteBuffer luma, int width, int height, int rowStride, int rotation) {
+    if (mBuffer.length != width * height) {
+      mBuffer = new byte[width * height];
+    }
+    if (mRow.length < width) {
+      mRow = new byte[width];
+    }
+
+    int start = luma.position();
+    for (int y = 0; y < height; y++) {
+      luma.position(start + y * rowStride);
+      if (rotation == 0) {
+        luma.get(mBuffer, y * width, width);
+        continue;
+      }
+
+      luma.get(mRow, 0, width);
+      switch (rotation) {
+        case 90:
+          // The frame's row y becomes the upright image's column (height - 1 - y).
+          for (int x = 0, out = height - 1 - y; x < width; x++, out += height) {
+            mBuffer[out] = mRow[x];
+          }
+          break;
+        case 180:
+          for (int x = 0, out = (height - 1 - y) * width + width - 1; x < width; x++, out--) {
+            mBuffer[out] = mRow[x];
+          }
+          break;
+        case 270:
+          // The frame's row y becomes the upright image's column y, read from the bottom up.
+          for (int x = 0, out = (width - 1) * height + y; x < width; x++, out -= height) {
+            mBuffer[out] = mRow[x];
+          }
+          break;
+        default:
+          throw new IllegalArgumentException("Cannot rotate a frame by " + rotation + " degrees");
+      }
+    }
+    luma.position(start);
+  }
+
+  /**
+   * Returns the smallest box around the points ZXing found, or null if it found none. 1D barcodes
+   * are found along a single line, so their boxes are only a pixel tall.
+   */
+  @Nullable
+  private static Rect getBoundingBox(@Nullable ResultPoint[] points) {
+    if (points == null) {
+      return null;
+    }
+
+    int left = Integer.MAX_VALUE;
+    int top = Integer.MAX_VALUE;
+    int right = Integer.MIN_VALUE;
+    int bottom = Integer.MIN_VALUE;
+    for (ResultPoint point : points) {
+      if (point == null) {
+        continue;
+      }
+      left = Math.min(left, (int) point.getX());
+      top = Math.min(top, (int) point.getY());
+      right = Math.max(right, (int) point.getX());
+      bottom = Math.max(bottom, (int) point.getY());
+    }
+    return left > right ? null : new Rect(left, top, right + 1, bottom + 1);
+  }
+
+  private static void addFormat(Collection<BarcodeFormat> formats, @Barcode.Format int format) {
+    if (format == Barcode.Format.ALL_FORMATS) {
+      for (int f : ALL_FORMATS) {
+        formats.add(toZxingFormat(f));
+      }
+      return;
+    }
+    BarcodeFormat zxingFormat = toZxingFormat(format);
+    if (zxingFormat != null) {
+      formats.add(zxingFormat);
+    }
+  }
+
+  @Nullable
+  static BarcodeFormat toZxingFormat(@Barcode.Format int format) {
+    switch (format) {
+      case Barcode.Format.CODE_128:
+        return BarcodeFormat.CODE_128;
+      case Barcode.Format.CODE_39:
+        return BarcodeFormat.CODE_39;
+      case Barcode.Format.CODE_93:
+        return BarcodeFormat.CODE_93;
+      case Barcode.Format.CODABAR:
+        return BarcodeFormat.CODABAR;
+      case Barcode.Format.DATA_MATRIX:
+        return BarcodeFormat.DATA_MATRIX;
+      case Barcode.Format.EAN_13:
+        return BarcodeFormat.EAN_13;
+      case Barcode.Format.EAN_8:
+        return BarcodeFormat.EAN_8;
+      case Barcode.Format.ITF:
+        return BarcodeFormat.ITF;
+      case Barcode.Format.QR_CODE:
+        return BarcodeFormat.QR_CODE;
+      case Barcode.Format.UPC_A:
+        return BarcodeFormat.UPC_A;
+      case Barcode.Format.UPC_E:
+        return BarcodeFormat.UPC_E;
+      case Barcode.Format.PDF417:
+        return BarcodeFormat.PDF_417;
+      case Barcode.Format.AZTEC:
+        return BarcodeFormat.AZTEC;
+      default:
+        return null;
+    }
+  }
+
+  @Barcode.Format
+  static int fromZxingFormat(BarcodeFormat format) {
+    switch (format) {
+      case CODE_128:
+        return Barcode.Format.CODE_128;
+      case CODE_39:
+        return Barcode.Format.CODE_39;
+      case CODE_93:
+        return Barcode.Format.CODE_93;
+      case CODABAR:
+        return Barcode.Format.CODABAR;
+      case DATA_MATRIX:
+        return Barcode.Format.DATA_MATRIX;
+      case EAN_13:
+        return Barcode.Format.EAN_13;
+      case EAN_8:
+        return Barcode.Format.EAN_8;
+      case ITF:
+        return Barcode.Format.ITF;
+      case QR_CODE:
+        return Barcode.Format.QR_CODE;
+      case UPC_A:
+        return Barcode.Format.UPC_A;
+      case UPC_E:
+        return Barcode.Format.UPC_E;
+      case PDF_417:
+        return Barcode.Format.PDF417;
+      case AZTEC:
+        return Barcode.Format.AZTEC;
+      default:
+        return Barcode.Format.UNKNOWN;
+    }
+  }
+
+  @NonNull
+  @Override
+  public String toString() {
+    return "ZxingBarcodeDecoder{" +
+            "formats=" + mHints.get(DecodeHintType.POSSIBLE_FORMATS) +
+            ", tryHarder=" + mHints.containsKey(DecodeHintType.TRY_HARDER) +
+            '}';
+  }
+}
@@ -21,6 +21,8 @@ import com.xlythe.view.camera.CameraView;
 import com.xlythe.view.camera.ICameraModule;
 import com.xlythe.view.camera.LocationProvider;
 import com.xlythe.view.camera.PermissionChecker;
+import com.xlythe.view.camera.RollingMediaRecorder;
+import com.xlythe.view.camera.RollingRecording;
 import com.xlythe.view.camera.stream.VideoRecorder;
 
 import java.io.ByteArrayOutputStream;
@@ -50,6 +52,7 @@ public class LegacyCameraModule extends ICameraModule {
 
     private MediaRecorder mVideoRecorder;
     private File mVideoFile;
+    @Nullable private RollingMediaRecorder mRollingMediaRecorder;
 
     private final Map<VideoRecorder.SurfaceProvider, LegacySurfaceHolder> mSurfaceProviders = new ArrayMap<>();
 
@@ -153,7 +156,25 @@ public class LegacyCameraModule extends ICameraModule {
 
     @Override
     public void startRecording(File file) {
+        mRollingMediaRecorder = null;
         mVideoFile = file;
+        startVideoRecorder();
+    }
+
+    @Override
+    public void startRecording(RollingRecording recording) {
+        mRollingMediaRecorder = new RollingMediaRecorder(recording, () -> {
+            // The segment filled up before the recorder could switch files, so it stopped itself.
+            if (isRollingRecording() && mRollingMediaRecorder.getRecording() == recording) {
+                stopRecording();
+                startRecording(recording);
+            }
+        });
+        mVideoFile = null;
+        startVideoRecorder();
+    }
+
+    private void startVideoRecorder() {
         mVideoRecorder = new MediaRecorder();
 
         mCamera.unlock();
@@ -161,83 +182,118 @@ public class LegacyCameraModule extends ICameraModule {
 
         mVideoRecorder.setAudioSource(MediaRecorder.AudioSource.DEFAULT);
         mVideoRecorder.setVideoSource(MediaRecorder.VideoSource.DEFAULT);
+        CamcorderProfile profile = getVideoProfile();
+        mVideoRecorder.setProfile(profile);
+        if (mRollingMediaRecorder != null) {
+            mRollingMediaRecorder.configure(mVideoRecorder, profile);
+        } else {
+            mVideoRecorder.setOutputFile(mVideoFile.getAbsolutePath());
+            mVideoRecorder.setMaxDuration((int) getMaxVideoDuration());
+            mVideoRecorder.setMaxFileSize(getMaxVideoSize());
+            mVideoRecorder.setOnInfoListener((mr, what, extra) -> {
+                switch (what) {
+                    case MediaRecorder.MEDIA_RECORDER_INFO_MAX_DURATION_REACHED:
+                        Log.w(TAG, "Max duration for recording reached");
+                        break;
+                    case MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED:
+                        Log.w(TAG, "Max filesize for recording reached");
+                        break;
+                }
+            });
+        }
+        mVideoRecorder.setOrientationHint(getRelativeCameraOrientation(false /* isPreview */));
+
+        Location location = getLocation(getContext());
+        if (location != null) {
+            mVideoRecorder.setLocation((float) location.getLatitude(), (float) location.getLongitude());
+        }
+
+        try {
+            mVideoRecorder.prepare();
+            mVideoRecorder.start();
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            releaseVideoRecorder();
+            mRollingMediaRecorder = null;
+            onVideoFailed();
+        }
+    }
+
+    /**
+     * Frees the recorder's native resources and hands the camera back to us. Rolling recordings
+     * restart the recorder for every segment, so anything left behind here adds up quickly.
+     */
+    private void releaseVideoRecorder() {
+        mVideoRecorder.reset();
+        mVideoRecorder.release();
+        mVideoRecorder = null;
+        if (mCamera != null) {
+            try {
+                mCamera.lock();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to lock the camera after recording", e);
+            }
+        }
+    }
+
+    private CamcorderProfile getVideoProfile() {
         switch (getQuality()) {
             case MAX:
                 if (CamcorderProfile.hasProfile(mActiveCamera, CamcorderProfile.QUALITY_HIGH)) {
-                    mVideoRecorder.setProfile(CamcorderProfile.get(CamcorderProfile.QUALITY_HIGH));
-                    break;
+                    return CamcorderProfile.get(CamcorderProfile.QUALITY_HIGH);
                 }
                 // Fall-through
             case HIGH:
                 if (CamcorderProfile.hasProfile(mActiveCamera, CamcorderProfile.QUALITY_1080P)) {
-                    mVideoRecorder.setProfile(CamcorderProfile.get(CamcorderProfile.QUALITY_1080P));
-                    break;
+                    return CamcorderProfile.get(CamcorderProfile.QUALITY_1080P);
                 }
                 // Fall-through
             case MEDIUM:
                 if (CamcorderProfile.hasProfile(mActiveCamera, CamcorderProfile.QUALITY_720P)) {
-                    mVideoRecorder.setProfile(CamcorderProfile.get(CamcorderProfile.QUALITY_720P));
-                    break;
+                    return CamcorderProfile.get(CamcorderProfile.QUALITY_720P);
                 }
                 // Fall-through
             case LOW:
                 if (CamcorderProfile.hasProfile(mActiveCamera, CamcorderProfile.QUALITY_480P)) {
-                    mVideoRecorder.setProfile(CamcorderProfile.get(CamcorderProfile.QUALITY_480P));
-                    break;
+                    return CamcorderProfile.get(CamcorderProfile.QUALITY_480P);
                 }
                 // Fall-through
             default:
-                mVideoRecorder.setProfile(CamcorderProfile.get(CamcorderProfile.QUALITY_LOW));
-                break;
-        }
-        mVideoRecorder.setOutputFile(file.getAbsolutePath());
-        mVideoRecorder.setMaxDuration((int) getMaxVideoDuration());
-        mVideoRecorder.setMaxFileSize(getMaxVideoSize());
-        mVideoRecorder.setMaxDuration((int) getMaxVideoDuration());
-        mVideoRecorder.setMaxFileSize(getMaxVideoSize());
-        mVideoRecorder.setOrientationHint(getRelativeCameraOrientation(false /* isPreview */));
-        mVideoRecorder.setOnInfoListener((mr, what, extra) -> {
-            switch (what) {
-                case MediaRecorder.MEDIA_RECORDER_INFO_MAX_DURATION_REACHED:
-                    Log.w(TAG, "Max duration for recording reached");
-                    break;
-                case MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED:
-                    Log.w(TAG, "Max filesize for recording reached");
-                    break;
-            }
-        });
-
-        Location location = getLocation(getContext());
-        if (location != null) {
-            mVideoRecorder.setLocation((float) location.getLatitude(), (float) location.getLongitude());
-        }
-
-        try {
-            mVideoRecorder.prepare();
-            mVideoRecorder.start();
-        } catch (IOException | RuntimeException e) {
-            e.printStackTrace();
-            mVideoRecorder = null;
-            onVideoFailed();
+                return CamcorderProfile.get(CamcorderProfile.QUALITY_LOW);
         }
     }
 
     @Override
     public void stopRecording() {
         if (mVideoRecorder != null) {
+            RollingMediaRecorder rollingMediaRecorder = mRollingMediaRecorder;
+            mRollingMediaRecorder = null;
             try {
                 mVideoRecorder.stop();
-                showVideoConfirmation(mVideoFile);
+                if (rollingMediaRecorder == null) {
+                    showVideoConfirmation(mVideoFile);
+                }
             } catch (RuntimeException e) {
                 Log.e(TAG, "Failed to stop video recorder. This can happen if a video is stopped too quickly. :(", e);
-                onVideoFailed();
+                if (rollingMediaRecorder == null) {
+                    onVideoFailed();
+                }
+            }
+            if (rollingMediaRecorder != null) {
+                // A segment that filled up has already been closed by the recorder, even if stop failed.
+                rollingMediaRecorder.onStopped();
             }
-            mVideoRecorder = null;
+            releaseVideoRecorder();
         } else {
             onVideoFailed();
         }
     }
 
+    @Override
+    public boolean isRollingRecording() {
+        return mVideoRecorder != null && mRollingMediaRecorder != null;
+    }
+
     @Override
     public boolean isRecording() {
         return mVideoRecorder != null;
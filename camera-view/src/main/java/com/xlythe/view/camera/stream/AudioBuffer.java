@@ -1,19 +1,41 @@
 package com.xlythe.view.camera.stream;
 
+import android.content.Context;
+import android.media.AudioManager;
+
+import androidx.annotation.Nullable;
 import androidx.annotation.RestrictTo;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 /**
  * A buffer that grabs the smallest supported sample rate for {@link android.media.AudioTrack} and
- * {@link android.media.AudioRecord}.
+ * {@link android.media.AudioRecord}. In low latency mode, it instead uses the device's native
+ * sample rate, and is read and written one burst at a time.
  */
 @RestrictTo(RestrictTo.Scope.LIBRARY)
 public abstract class AudioBuffer {
   private static final int[] POSSIBLE_SAMPLE_RATES =
           new int[] {8000, 11025, 16000, 22050, 44100, 48000};
 
+  /** The sample rate to assume if the device doesn't report its own. */
+  private static final int DEFAULT_NATIVE_SAMPLE_RATE = 48000;
+
+  /** The burst size to assume if the device doesn't report its own. */
+  private static final int DEFAULT_FRAMES_PER_BURST = 256;
+
+  /** The number of bursts to size the buffer for in low latency mode, if the device allows it. */
+  static final int BURSTS_PER_BUFFER = 2;
+
+  /** The size of a single frame of mono, 16 bit PCM. */
+  static final int BYTES_PER_FRAME = 2;
+
   private final int mSize;
   private final int mSampleRate;
+  private final int mFramesPerBurst;
   private final byte[] mData;
+  @Nullable private final ByteBuffer mDirectData;
 
   protected AudioBuffer() {
     int size = -1;
@@ -36,7 +58,61 @@ public abstract class AudioBuffer {
 
     this.mSize = size;
     this.mSampleRate = sampleRate;
+    this.mFramesPerBurst = 0;
+    mData = new byte[size];
+    mDirectData = null;
+  }
+
+  /**
+   * A buffer for low latency audio. Bursts are the chunks the audio hardware moves data in, and
+   * reading or writing whole bursts at the native sample rate keeps audio on the fast path, where
+   * it isn't resampled or mixed with an extra period of delay.
+   */
+  protected AudioBuffer(int sampleRate, int framesPerBurst) {
+    int burstSize = framesPerBurst * BYTES_PER_FRAME;
+    int size = getMinBufferSize(sampleRate);
+    if (!validSize(size)) {
+      size = burstSize * BURSTS_PER_BUFFER;
+    }
+
+    // Round up to a whole number of bursts, so that reads and writes line up with the hardware.
+    size = Math.max(burstSize, (size + burstSize - 1) / burstSize * burstSize);
+
+    this.mSize = size;
+    this.mSampleRate = sampleRate;
+    this.mFramesPerBurst = framesPerBurst;
     mData = new byte[size];
+    mDirectData = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+  }
+
+  /**
+   * Returns the sample rate the device's audio hardware runs at. Audio at any other rate has to be
+   * resampled, which rules out the low latency path.
+   */
+  public static int getNativeSampleRate(Context context) {
+    return getProperty(context, AudioManager.PROPERTY_OUTPUT_SAMPLE_RATE, DEFAULT_NATIVE_SAMPLE_RATE);
+  }
+
+  /** Returns the number of frames the device's audio hardware moves at once. */
+  public static int getFramesPerBurst(Context context) {
+    return getProperty(context, AudioManager.PROPERTY_OUTPUT_FRAMES_PER_BUFFER, DEFAULT_FRAMES_PER_BURST);
+  }
+
+  private static int getProperty(Context context, String key, int defaultValue) {
+    AudioManager audioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+    if (audioManager == null) {
+      return defaultValue;
+    }
+    String value = audioManager.getProperty(key);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      int parsed = Integer.parseInt(value);
+      return parsed > 0 ? parsed : defaultValue;
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
   }
 
   public int getSize() {
@@ -47,10 +123,31 @@ public abstract class AudioBuffer {
     return mSampleRate;
   }
 
+  /** Returns the number of frames in a burst, or 0 if this buffer isn't for low latency audio. */
+  public int getFramesPerBurst() {
+    return mFramesPerBurst;
+  }
+
+  /** Returns the size of a burst in bytes, or the whole buffer if this isn't for low latency audio. */
+  public int getBurstSize() {
+    return mFramesPerBurst == 0 ? mSize : mFramesPerBurst * BYTES_PER_FRAME;
+  }
+
   public byte[] data() {
     return mData;
   }
 
+  /**
+   * Returns a direct buffer, which the audio framework and file channels can use without copying
+   * it through the Java heap. Only available for low latency audio.
+   */
+  public ByteBuffer directData() {
+    if (mDirectData == null) {
+      throw new IllegalStateException("Cannot get a direct buffer outside of low latency mode");
+    }
+    return mDirectData;
+  }
+
   protected abstract boolean validSize(int size);
 
   protected abstract int getMinBufferSize(int sampleRate);
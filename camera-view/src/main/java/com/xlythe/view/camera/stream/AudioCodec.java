@@ -0,0 +1,87 @@
+package com.xlythe.view.camera.stream;
+
+import androidx.annotation.IntDef;
+import androidx.annotation.Nullable;
+import androidx.annotation.RestrictTo;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Compresses packets of 16 bit PCM audio, for devices without a hardware audio encoder or the CPU
+ * to spare for a software one. The codecs are simple enough to cost a tiny fraction of a core, and
+ * every packet can be decoded on its own, so a lost packet never corrupts the ones after it.
+ *
+ * Encoding and decoding work on buffers owned by the caller, and never allocate.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+public abstract class AudioCodec {
+  /** The codecs that audio packets can be compressed with. */
+  @Retention(RetentionPolicy.SOURCE)
+  @IntDef({
+          Type.PCM,
+          Type.MULAW,
+          Type.IMA_ADPCM,
+  })
+  public @interface Type {
+    /** Uncompressed. 16 bits per sample. */
+    int PCM = 0;
+    /** G.711 mu-law. 8 bits per sample, for 2:1 compression that's near transparent for speech. */
+    int MULAW = 1;
+    /** IMA ADPCM. 4 bits per sample, for 4:1 compression with a little added hiss. */
+    int IMA_ADPCM = 2;
+  }
+
+  /**
+   * Creates a codec of the given type. Encoders keep state between packets, so each stream needs
+   * its own instance.
+   *
+   * @return The codec, or null for {@link Type#PCM}, which needs no codec.
+   * @throws IllegalArgumentException If the codec isn't known.
+   */
+  @Nullable
+  public static AudioCodec create(@Type int type) {
+    switch (type) {
+      case Type.PCM:
+        return null;
+      case Type.MULAW:
+        return new MuLawCodec();
+      case Type.IMA_ADPCM:
+        return new ImaAdpcmCodec();
+      default:
+        throw new IllegalArgumentException("Cannot create an audio codec of type " + type);
+    }
+  }
+
+  @Type
+  public abstract int getType();
+
+  /** Returns the most bytes that encoding the given number of samples can produce. */
+  public abstract int getMaxEncodedSize(int samples);
+
+  /**
+   * Encodes a packet of audio.
+   *
+   * @param pcm 16 bit little endian PCM.
+   * @param len The number of bytes of PCM.
+   * @param out Where to write the packet. Must have room for {@link #getMaxEncodedSize(int)}.
+   * @return The size of the encoded packet.
+   */
+  public abstract int encode(byte[] pcm, int len, byte[] out);
+
+  /** Returns the number of samples an encoded packet holds. */
+  public abstract int getSampleCount(byte[] data, int len);
+
+  /**
+   * Decodes a packet of audio.
+   *
+   * @param out Where to write the samples. Must have room for {@link #getSampleCount(byte[], int)}.
+   * @return The number of samples written.
+   */
+  public abstract int decode(byte[] data, int len, short[] out);
+
+  /** Reads a 16 bit little endian sample. */
+  static int readSample(byte[] pcm, int offset) {
+    return (short) ((pcm[offset] & 0xFF) | (pcm[offset + 1] << 8));
+  }
+}
@@ -0,0 +1,245 @@
+package com.xlythe.view.camera.stream;
+
+import androidx.annotation.IntDef;
+import androidx.annotation.RestrictTo;
+
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * A packet of audio, sent by an {@link AudioRecorder} whose stream is packetized. Each packet is
+ * numbered and timestamped, so that the {@link AudioPlayer} can tell when packets have been lost
+ * and how much their arrival jitters. Packets are written with the same length-prefixed field
+ * layout as {@link VideoFrame}.
+ *
+ * A frame doesn't copy the data it's built with, so a recorder can build every frame from the same
+ * reused buffer, as long as each frame is written out before the buffer is filled again.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+class AudioFrame {
+  private static final byte FIELD_TYPE = 1;
+  private static final byte FIELD_SEQUENCE = 2;
+  private static final byte FIELD_PRESENTATION_TIME_US = 3;
+  private static final byte FIELD_DATA = 4;
+  private static final byte FIELD_DURATION_US = 5;
+
+  /** The length and id that precede every field. */
+  private static final int FIELD_HEADER_SIZE = 5;
+
+  // The frame's type.
+  @Type private final int type;
+  // Increases by one with every packet, so that gaps reveal lost packets.
+  private final int sequence;
+  // When the first sample of the packet was captured, in microseconds since the stream began.
+  private final long presentationTimeUs;
+  // The audio. 16 bit little endian PCM, or compressed with the stream's AudioCodec.
+  private final byte[] data;
+  // How much of data is audio. The rest of the array is unused.
+  private final int dataLength;
+  // For silence, how long the silence lasts.
+  private final long durationUs;
+
+  private AudioFrame(@Type int type, int sequence, long presentationTimeUs, byte[] data, int dataLength, long durationUs) {
+    this.type = type;
+    this.sequence = sequence;
+    this.presentationTimeUs = presentationTimeUs;
+    this.data = data;
+    this.dataLength = dataLength;
+    this.durationUs = durationUs;
+  }
+
+  /** Parses an AudioFrame from a byte[]. */
+  public static AudioFrame fromBytes(byte[] bytes) {
+    AudioFrame.Builder builder = new AudioFrame.Builder();
+
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    while (buffer.hasRemaining()) {
+      int len = buffer.getInt();
+      if (len < 1) continue;
+
+      byte frameType = buffer.get();
+      byte[] data = new byte[len - 1];
+      buffer.get(data);
+
+      try {
+        switch (frameType) {
+          case FIELD_TYPE:
+            builder.type(Ints.fromByteArray(data));
+            break;
+          case FIELD_SEQUENCE:
+            builder.sequence(Ints.fromByteArray(data));
+            break;
+          case FIELD_PRESENTATION_TIME_US:
+            builder.presentationTimeUs(Longs.fromByteArray(data));
+            break;
+          case FIELD_DATA:
+            builder.data(data);
+            break;
+          case FIELD_DURATION_US:
+            builder.durationUs(Longs.fromByteArray(data));
+            break;
+        }
+      } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+        // skip
+      }
+    }
+    return builder.build();
+  }
+
+  public byte[] asBytes() {
+    ByteBuffer buffer = ByteBuffer.allocate(getSize());
+    writeTo(buffer);
+    return buffer.array();
+  }
+
+  /** Returns how many bytes {@link #writeTo(ByteBuffer)} writes. */
+  public int getSize() {
+    int size = 3 * FIELD_HEADER_SIZE + Ints.BYTES + Ints.BYTES + Longs.BYTES;
+    if (data != null) {
+      size += FIELD_HEADER_SIZE + dataLength;
+    }
+    if (durationUs != 0) {
+      size += FIELD_HEADER_SIZE + Longs.BYTES;
+    }
+    return size;
+  }
+
+  /** Writes the frame into the buffer, in the layout read by {@link #fromBytes(byte[])}. */
+  public void writeTo(ByteBuffer buffer) {
+    writeField(buffer, FIELD_TYPE, Ints.BYTES).putInt(type);
+    writeField(buffer, FIELD_SEQUENCE, Ints.BYTES).putInt(sequence);
+    writeField(buffer, FIELD_PRESENTATION_TIME_US, Longs.BYTES).putLong(presentationTimeUs);
+    if (data != null) {
+      writeField(buffer, FIELD_DATA, dataLength).put(data, 0, dataLength);
+    }
+    if (durationUs != 0) {
+      writeField(buffer, FIELD_DURATION_US, Longs.BYTES).putLong(durationUs);
+    }
+  }
+
+  /** Writes a field's length and id, leaving the buffer ready for its value. */
+  private static ByteBuffer writeField(ByteBuffer buffer, byte field, int length) {
+    // LENGTH
+    buffer.putInt(length + 1);
+    // FIELD
+    return buffer.put(field);
+  }
+
+  @Type
+  public int getType() {
+    return type;
+  }
+
+  public int getSequence() {
+    return sequence;
+  }
+
+  public long getPresentationTimeUs() {
+    return presentationTimeUs;
+  }
+
+  public byte[] getData() {
+    if (data == null) {
+      return new byte[0];
+    }
+    return dataLength == data.length ? data : Arrays.copyOf(data, dataLength);
+  }
+
+  /** Returns how long a {@link Type#SILENCE} frame lasts. */
+  public long getDurationUs() {
+    return durationUs;
+  }
+
+  /** Returns the audio as 16 bit samples. */
+  public short[] getSamples() {
+    short[] samples = new short[getSampleCount()];
+    getSamples(samples);
+    return samples;
+  }
+
+  /** Returns how many 16 bit samples {@link #getSamples(short[])} writes. */
+  public int getSampleCount() {
+    return data == null ? 0 : dataLength / AudioBuffer.BYTES_PER_FRAME;
+  }
+
+  /**
+   * Copies the audio into {@code out} as 16 bit samples, so that players can reuse their buffers.
+   *
+   * @return The number of samples written.
+   */
+  public int getSamples(short[] out) {
+    int count = getSampleCount();
+    if (count > 0) {
+      ByteBuffer.wrap(data, 0, count * AudioBuffer.BYTES_PER_FRAME).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(out, 0, count);
+    }
+    return count;
+  }
+
+  /** The type of data within this frame. */
+  @Retention(RetentionPolicy.SOURCE)
+  @IntDef({
+          Type.DATA,
+          Type.SILENCE,
+  })
+  public @interface Type {
+    int DATA = 0;
+    /** Stands in for audio that was too quiet to be worth sending. Carries a duration, but no data. */
+    int SILENCE = 1;
+  }
+
+  static class Builder {
+    @Type private int type;
+    private int sequence;
+    private long presentationTimeUs;
+    private byte[] data;
+    private int dataLength;
+    private long durationUs;
+
+    Builder() {}
+
+    Builder(@Type int type) {
+      this.type = type;
+    }
+
+    Builder type(@Type int type) {
+      this.type = type;
+      return this;
+    }
+
+    Builder sequence(int sequence) {
+      this.sequence = sequence;
+      return this;
+    }
+
+    Builder presentationTimeUs(long presentationTimeUs) {
+      this.presentationTimeUs = presentationTimeUs;
+      return this;
+    }
+
+    Builder data(byte[] data) {
+      return data(data, data.length);
+    }
+
+    /** Uses the first {@code length} bytes of the array, without copying them. */
+    Builder data(byte[] data, int length) {
+      this.data = data;
+      this.dataLength = length;
+      return this;
+    }
+
+    Builder durationUs(long durationUs) {
+      this.durationUs = durationUs;
+      return this;
+    }
+
+    AudioFrame build() {
+      return new AudioFrame(type, sequence, presentationTimeUs, data, dataLength, durationUs);
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package com.xlythe.view.camera.stream;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Describes the audio that follows it in an audio stream. Recorders in low latency mode record at
+ * the device's native sample rate, which the player has no other way of knowing, and packetized
+ * recorders change the stream's layout, so both write this before any audio. Streams without a
+ * header are raw PCM, played at the rate {@link AudioBuffer} picks by default.
+ */
+final class AudioHeader {
+  /** The size of the header, in bytes. */
+  static final int SIZE = 16;
+
+  /** "CVAH". As 16 bit samples, it's far louder than the silence streams begin with. */
+  private static final int MAGIC = 0x43564148;
+
+  /** Set if the stream was recorded in low latency mode, and should be played in it too. */
+  static final int FLAG_LOW_LATENCY = 1;
+
+  /**
+   * Set if the audio is split into length-prefixed {@link AudioFrame}s, rather than being raw PCM.
+   * The frames per burst are then the number of frames in each packet.
+   */
+  static final int FLAG_PACKETIZED = 1 << 1;
+
+  /** The {@link AudioCodec} packets are compressed with is kept in the second byte of the flags. */
+  private static final int CODEC_SHIFT = 8;
+  private static final int CODEC_MASK = 0xFF;
+
+  private final int mSampleRate;
+  private final int mFramesPerBurst;
+  private final int mFlags;
+
+  AudioHeader(int sampleRate, int framesPerBurst, int flags) {
+    mSampleRate = sampleRate;
+    mFramesPerBurst = framesPerBurst;
+    mFlags = flags;
+  }
+
+  AudioHeader(int sampleRate, int framesPerBurst, int flags, @AudioCodec.Type int codec) {
+    this(sampleRate, framesPerBurst, flags | ((codec & CODEC_MASK) << CODEC_SHIFT));
+  }
+
+  /** Parses a header, or returns null if the bytes are audio instead. */
+  @Nullable
+  static AudioHeader parse(byte[] bytes, int len) {
+    if (len < SIZE) {
+      return null;
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, SIZE);
+    if (buffer.getInt() != MAGIC) {
+      return null;
+    }
+    int sampleRate = buffer.getInt();
+    int framesPerBurst = buffer.getInt();
+    int flags = buffer.getInt();
+    if (sampleRate <= 0 || framesPerBurst <= 0) {
+      return null;
+    }
+    return new AudioHeader(sampleRate, framesPerBurst, flags);
+  }
+
+  byte[] toByteArray() {
+    return ByteBuffer.allocate(SIZE)
+            .putInt(MAGIC)
+            .putInt(mSampleRate)
+            .putInt(mFramesPerBurst)
+            .putInt(mFlags)
+            .array();
+  }
+
+  int getSampleRate() {
+    return mSampleRate;
+  }
+
+  /** Returns the burst size of the recording device, a hint for how much the player should buffer. */
+  int getFramesPerBurst() {
+    return mFramesPerBurst;
+  }
+
+  boolean isLowLatency() {
+    return (mFlags & FLAG_LOW_LATENCY) != 0;
+  }
+
+  boolean isPacketized() {
+    return (mFlags & FLAG_PACKETIZED) != 0;
+  }
+
+  /** Returns the codec that packets are compressed with. Raw streams are always PCM. */
+  @AudioCodec.Type
+  int getCodec() {
+    return (mFlags >> CODEC_SHIFT) & CODEC_MASK;
+  }
+
+  @NonNull
+  @Override
+  public String toString() {
+    return "AudioHeader{" +
+            "sampleRate=" + mSampleRate +
+            ", framesPerBurst=" + mFramesPerBurst +
+            ", flags=" + mFlags +
+            '}';
+  }
+}
@@ -1,19 +1,23 @@
 package com.xlythe.view.camera.stream;
 
+import android.media.AudioAttributes;
 import android.media.AudioFormat;
 import android.media.AudioManager;
+import android.media.AudioTimestamp;
 import android.media.AudioTrack;
+import android.os.Build;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
 
+import com.google.common.primitives.Ints;
 import com.xlythe.view.camera.CameraView;
 
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-
-import static android.os.Process.THREAD_PRIORITY_AUDIO;
-import static android.os.Process.setThreadPriority;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * A fire-once class. When created, you must pass a {@link InputStream}. Once {@link #start()} is
@@ -23,20 +27,32 @@ import static android.os.Process.setThreadPriority;
 public class AudioPlayer {
   private static final String TAG = CameraView.class.getSimpleName();
 
+  /** How many bursts are written between each measurement of the output latency. */
+  private static final int LATENCY_SAMPLE_INTERVAL = 50;
+
   /** The audio stream we're reading from. */
   private final InputStream mInputStream;
 
   /** An optional listener that fires when the InputStream has ended. */
   @Nullable private volatile StreamEndListener mStreamEndListener;
 
+  /** Optionally records how long audio waits before it's played. */
+  @Nullable private volatile StreamMetrics mMetrics;
+
+  /** If true, gaps in packetized audio are filled with comfort noise rather than silence. */
+  private volatile boolean mIsComfortNoiseEnabled = true;
+
+  /** The most recently measured output latency, or 0 if it hasn't been measured. */
+  private volatile long mLatencyUs;
+
   /**
    * If true, the background thread will continue to loop and play audio. Once false, the thread
    * will shut down.
    */
   private volatile boolean mIsAlive;
 
-  /** The background thread playing audio for us. */
-  private Thread mThread;
+  /** The background task playing audio for us. */
+  private MediaScheduler.Task mTask;
 
   /**
    * A simple audio player.
@@ -51,6 +67,28 @@ public class AudioPlayer {
     mStreamEndListener = listener;
   }
 
+  /** Reports the output latency to the given metrics. */
+  public void setMetrics(@Nullable StreamMetrics metrics) {
+    mMetrics = metrics;
+  }
+
+  /**
+   * Sets whether silence markers and concealed packets are filled in with a faint hiss, matching
+   * the background noise of the recording, or with silence. Enabled by default, since dead silence
+   * can sound like the stream has dropped. Only applies to packetized streams.
+   */
+  public void setComfortNoiseEnabled(boolean enabled) {
+    mIsComfortNoiseEnabled = enabled;
+  }
+
+  /**
+   * Returns how long audio most recently waited between being written and being played, or 0 if it
+   * hasn't been measured. Only measured for streams recorded in low latency mode or packetized.
+   */
+  public long getLatencyUs() {
+    return mLatencyUs;
+  }
+
   /** @return True if currently playing. */
   public boolean isPlaying() {
     return mIsAlive;
@@ -58,32 +96,48 @@ public class AudioPlayer {
 
   /** Starts playing the stream. */
   public void start() {
-    if (mThread != null) {
+    if (mTask != null) {
       Log.w(TAG, "AudioPlayer cannot be started more than once");
       return;
     }
 
     mIsAlive = true;
-    mThread =
-            new Thread() {
+    mTask = MediaScheduler.getInstance().submitLoop("AudioPlayer", MediaScheduler.PRIORITY_AUDIO,
+            new Runnable() {
               @Override
               public void run() {
-                setThreadPriority(THREAD_PRIORITY_AUDIO);
-
-                Buffer buffer = new Buffer();
-                AudioTrack audioTrack =
-                        new AudioTrack(
-                                AudioManager.STREAM_VOICE_CALL,
-                                buffer.getSampleRate(),
-                                AudioFormat.CHANNEL_OUT_MONO,
-                                AudioFormat.ENCODING_PCM_16BIT,
-                                buffer.getSize(),
-                                AudioTrack.MODE_STREAM);
-                audioTrack.play();
-                Log.d(TAG, "Started playing audio");
-
-                int len;
+                AudioTrack audioTrack = null;
                 try {
+                  // Streams recorded in low latency mode, or split into packets, begin with a
+                  // header. Anything else is audio.
+                  byte[] headerBytes = new byte[AudioHeader.SIZE];
+                  int headerLen = readFully(headerBytes);
+                  AudioHeader header = AudioHeader.parse(headerBytes, headerLen);
+                  if (header != null && header.isPacketized()) {
+                    audioTrack = header.isLowLatency()
+                            ? createLowLatencyTrack(header)
+                            : createTrack(header.getSampleRate(), new Buffer(header.getSampleRate(), header.getFramesPerBurst()).getSize());
+                    audioTrack.play();
+                    playPackets(audioTrack, header);
+                    return;
+                  }
+                  if (header != null && header.isLowLatency()) {
+                    audioTrack = createLowLatencyTrack(header);
+                    audioTrack.play();
+                    playWithLowLatency(audioTrack, header);
+                    return;
+                  }
+
+                  Buffer buffer = new Buffer();
+                  audioTrack = createTrack(header != null ? header.getSampleRate() : buffer.getSampleRate(), buffer.getSize());
+                  audioTrack.play();
+                  Log.d(TAG, "Started playing audio");
+
+                  if (header == null && headerLen > 0) {
+                    audioTrack.write(headerBytes, 0, headerLen);
+                  }
+
+                  int len;
                   while (isPlaying() && (len = mInputStream.read(buffer.data())) > 0) {
                     audioTrack.write(buffer.data(), 0, len);
                   }
@@ -91,7 +145,9 @@ public class AudioPlayer {
                   Log.e(TAG, "Exception with playing audio stream", e);
                 } finally {
                   stopInternal();
-                  audioTrack.release();
+                  if (audioTrack != null) {
+                    audioTrack.release();
+                  }
 
                   StreamEndListener listener = mStreamEndListener;
                   if (listener != null) {
@@ -99,8 +155,273 @@ public class AudioPlayer {
                   }
                 }
               }
-            };
-    mThread.start();
+            });
+  }
+
+  /**
+   * Reads until the buffer is full or the stream ends.
+   *
+   * @return The number of bytes read.
+   */
+  private int readFully(byte[] buffer) throws IOException {
+    int bytesRead = 0;
+    while (bytesRead < buffer.length) {
+      int read = mInputStream.read(buffer, bytesRead, buffer.length - bytesRead);
+      if (read == -1) {
+        break;
+      }
+      bytesRead += read;
+    }
+    return bytesRead;
+  }
+
+  /**
+   * Creates a track on the fast mixer path, when the device allows it. The stream's sample rate
+   * must match the device's native rate for the fast path to be granted, which is the case when
+   * both ends run on similar hardware.
+   */
+  private AudioTrack createLowLatencyTrack(AudioHeader header) {
+    Buffer buffer = new Buffer(header.getSampleRate(), header.getFramesPerBurst());
+    if (Build.VERSION.SDK_INT >= 26) {
+      return new AudioTrack.Builder()
+              .setAudioAttributes(new AudioAttributes.Builder()
+                      .setUsage(AudioAttributes.USAGE_VOICE_COMMUNICATION)
+                      .setContentType(AudioAttributes.CONTENT_TYPE_SPEECH)
+                      .build())
+              .setAudioFormat(new AudioFormat.Builder()
+                      .setSampleRate(header.getSampleRate())
+                      .setChannelMask(AudioFormat.CHANNEL_OUT_MONO)
+                      .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                      .build())
+              .setBufferSizeInBytes(buffer.getSize())
+              .setTransferMode(AudioTrack.MODE_STREAM)
+              .setPerformanceMode(AudioTrack.PERFORMANCE_MODE_LOW_LATENCY)
+              .build();
+    }
+    return createTrack(header.getSampleRate(), buffer.getSize());
+  }
+
+  private static AudioTrack createTrack(int sampleRate, int bufferSize) {
+    return new AudioTrack(
+            AudioManager.STREAM_VOICE_CALL,
+            sampleRate,
+            AudioFormat.CHANNEL_OUT_MONO,
+            AudioFormat.ENCODING_PCM_16BIT,
+            bufferSize,
+            AudioTrack.MODE_STREAM);
+  }
+
+  private void playWithLowLatency(AudioTrack audioTrack, AudioHeader header) throws IOException {
+    int sampleRate = header.getSampleRate();
+    int framesPerBurst = header.getFramesPerBurst();
+    Buffer buffer = new Buffer(sampleRate, framesPerBurst);
+    int burstSize = buffer.getBurstSize();
+
+    int underruns = shrinkBuffer(audioTrack, framesPerBurst);
+
+    // Files (including sockets and pipes opened as a ParcelFileDescriptor) can be read straight
+    // into a direct buffer. Anything else has to be read into a byte[].
+    FileChannel channel = mInputStream instanceof FileInputStream ? ((FileInputStream) mInputStream).getChannel() : null;
+    ByteBuffer directData = buffer.directData();
+    AudioTimestamp timestamp = new AudioTimestamp();
+    long framesWritten = 0;
+    int writes = 0;
+    Log.d(TAG, "Started playing low latency audio with " + header);
+
+    while (isPlaying()) {
+      int len;
+      if (channel != null) {
+        directData.clear();
+        directData.limit(burstSize);
+        len = channel.read(directData);
+        if (len <= 0) {
+          break;
+        }
+        directData.flip();
+        audioTrack.write(directData, len, AudioTrack.WRITE_BLOCKING);
+      } else {
+        len = mInputStream.read(buffer.data(), 0, burstSize);
+        if (len <= 0) {
+          break;
+        }
+        audioTrack.write(buffer.data(), 0, len);
+      }
+
+      framesWritten += len / AudioBuffer.BYTES_PER_FRAME;
+      underruns = growBufferOnUnderrun(audioTrack, underruns, framesPerBurst);
+      if (++writes % LATENCY_SAMPLE_INTERVAL == 0) {
+        measureLatency(audioTrack, timestamp, framesWritten, sampleRate);
+      }
+    }
+  }
+
+  /**
+   * Plays a stream of {@link AudioFrame}s. Packets are received on their own task and held in a
+   * {@link JitterBuffer}, while this thread pulls audio out of it at the speaker's pace. A late or
+   * lost packet never stalls the speaker. The gap is concealed instead, and playback speeds up or
+   * slows down slightly until the buffer is back to holding the right amount of audio.
+   */
+  private void playPackets(AudioTrack audioTrack, AudioHeader header) {
+    AudioCodec codec;
+    try {
+      codec = AudioCodec.create(header.getCodec());
+    } catch (IllegalArgumentException e) {
+      Log.e(TAG, "Unsupported audio stream " + header, e);
+      return;
+    }
+
+    int sampleRate = header.getSampleRate();
+    int framesPerBurst = header.getFramesPerBurst();
+    JitterBuffer jitterBuffer = new JitterBuffer(sampleRate);
+    jitterBuffer.setMetrics(mMetrics);
+    jitterBuffer.setComfortNoiseEnabled(mIsComfortNoiseEnabled);
+    MediaScheduler.Task receiver = MediaScheduler.getInstance().submitLoop("AudioPlayer:receive", MediaScheduler.PRIORITY_AUDIO,
+            () -> receivePackets(jitterBuffer, codec));
+
+    // Low latency tracks are written a burst at a time. Others are written 10ms at a time, so that
+    // concealment and rate changes kick in soon after the jitter buffer needs them.
+    int chunkSize = header.isLowLatency() ? framesPerBurst : sampleRate / 100;
+    short[] samples = new short[chunkSize];
+    int underruns = header.isLowLatency() ? shrinkBuffer(audioTrack, framesPerBurst) : 0;
+    AudioTimestamp timestamp = new AudioTimestamp();
+    long framesWritten = 0;
+    int writes = 0;
+    Log.d(TAG, "Started playing packetized audio with " + header);
+
+    try {
+      while (isPlaying()) {
+        jitterBuffer.read(samples, chunkSize);
+        audioTrack.write(samples, 0, chunkSize);
+
+        framesWritten += chunkSize;
+        if (header.isLowLatency()) {
+          underruns = growBufferOnUnderrun(audioTrack, underruns, framesPerBurst);
+        }
+        if (++writes % LATENCY_SAMPLE_INTERVAL == 0) {
+          measureLatency(audioTrack, timestamp, framesWritten, sampleRate);
+        }
+      }
+    } finally {
+      Log.d(TAG, "Finished playing packetized audio with " + jitterBuffer);
+      try {
+        receiver.await(300);
+      } catch (InterruptedException e) {
+        Log.e(TAG, "Interrupted while waiting for AudioPlayer to stop receiving", e);
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /** Reads packets into the jitter buffer until the stream ends, which also ends playback. */
+  private void receivePackets(JitterBuffer jitterBuffer, @Nullable AudioCodec codec) {
+    try {
+      AudioFrame frame;
+      while (isPlaying() && (frame = readFrame()) != null) {
+        long arrivalTimeUs = System.nanoTime() / 1000;
+        switch (frame.getType()) {
+          case AudioFrame.Type.DATA:
+            put(jitterBuffer, frame, codec, arrivalTimeUs);
+            break;
+          case AudioFrame.Type.SILENCE:
+            jitterBuffer.putSilence(frame.getSequence(), frame.getPresentationTimeUs(), frame.getDurationUs(), arrivalTimeUs);
+            break;
+        }
+      }
+    } catch (IOException e) {
+      if (isPlaying()) {
+        Log.e(TAG, "Exception with receiving audio packets", e);
+      }
+    } finally {
+      stopInternal();
+    }
+  }
+
+  /** Decodes the packet into one of the jitter buffer's spare arrays, and adds it. */
+  private static void put(JitterBuffer jitterBuffer, AudioFrame frame, @Nullable AudioCodec codec, long arrivalTimeUs) {
+    short[] samples;
+    int length;
+    if (codec == null) {
+      samples = jitterBuffer.obtainBuffer(frame.getSampleCount());
+      length = frame.getSamples(samples);
+    } else {
+      byte[] data = frame.getData();
+      samples = jitterBuffer.obtainBuffer(codec.getSampleCount(data, data.length));
+      length = codec.decode(data, data.length, samples);
+    }
+    jitterBuffer.put(frame.getSequence(), frame.getPresentationTimeUs(), samples, length, arrivalTimeUs);
+  }
+
+  /** Reads the next length-prefixed packet, or returns null if the stream has ended. */
+  @Nullable
+  private AudioFrame readFrame() throws IOException {
+    byte[] lengthBytes = new byte[4];
+    if (readFully(lengthBytes) < lengthBytes.length) {
+      return null;
+    }
+    int len = Ints.fromByteArray(lengthBytes);
+    if (len < 0) {
+      throw new IOException("Negative length");
+    }
+
+    byte[] bytes = new byte[len];
+    if (readFully(bytes) < len) {
+      return null;
+    }
+    return AudioFrame.fromBytes(bytes);
+  }
+
+  /**
+   * Starts the track with as little buffered as the device allows. Together with
+   * {@link #growBufferOnUnderrun}, this settles on the smallest buffer that plays without glitches.
+   *
+   * @return The track's underrun count so far.
+   */
+  private static int shrinkBuffer(AudioTrack audioTrack, int framesPerBurst) {
+    if (Build.VERSION.SDK_INT < 24) {
+      return 0;
+    }
+    audioTrack.setBufferSizeInFrames(framesPerBurst * AudioBuffer.BURSTS_PER_BUFFER);
+    return audioTrack.getUnderrunCount();
+  }
+
+  /**
+   * Grows the track's buffer by a burst if it has run dry since the last check.
+   *
+   * @return The track's underrun count so far.
+   */
+  private static int growBufferOnUnderrun(AudioTrack audioTrack, int underruns, int framesPerBurst) {
+    if (Build.VERSION.SDK_INT < 24) {
+      return underruns;
+    }
+    int newUnderruns = audioTrack.getUnderrunCount();
+    if (newUnderruns > underruns) {
+      int bufferSize = Math.min(audioTrack.getBufferSizeInFrames() + framesPerBurst, audioTrack.getBufferCapacityInFrames());
+      audioTrack.setBufferSizeInFrames(bufferSize);
+      Log.d(TAG, "Audio underrun. Increased buffer to " + bufferSize + " frames");
+    }
+    return newUnderruns;
+  }
+
+  private void measureLatency(AudioTrack audioTrack, AudioTimestamp timestamp, long framesWritten, int sampleRate) {
+    if (!audioTrack.getTimestamp(timestamp)) {
+      return;
+    }
+
+    long latencyUs = getLatencyUs(System.nanoTime(), timestamp.nanoTime, timestamp.framePosition, framesWritten, sampleRate);
+    mLatencyUs = latencyUs;
+    StreamMetrics metrics = mMetrics;
+    if (metrics != null) {
+      metrics.onLatency(LatencyHistogram.Stage.AUDIO_OUTPUT, latencyUs);
+    }
+  }
+
+  /**
+   * Returns how long the most recently written frame will wait until it's played. The timestamp
+   * pins one frame to the time it was played, and the frames after it follow at the sample rate.
+   */
+  static long getLatencyUs(long nowNs, long timestampNs, long timestampFramePosition, long framesWritten, int sampleRate) {
+    long playTimeNs = timestampNs + (framesWritten - timestampFramePosition) * 1_000_000_000L / sampleRate;
+    return Math.max(0, (playTimeNs - nowNs) / 1000);
   }
 
   private void stopInternal() {
@@ -115,21 +436,27 @@ public class AudioPlayer {
 
   /** Stops playing the stream. */
   public void stop() {
-    if (mThread == null) {
+    if (mTask == null) {
       Log.w(TAG, "AudioPlayer not started");
       return;
     }
 
     stopInternal();
     try {
-      mThread.join(300);
+      mTask.await(300);
     } catch (InterruptedException e) {
-      Log.e(TAG, "Interrupted while joining AudioPlayer thread", e);
+      Log.e(TAG, "Interrupted while waiting for AudioPlayer to stop", e);
       Thread.currentThread().interrupt();
     }
   }
 
   private static class Buffer extends AudioBuffer {
+    Buffer() {}
+
+    Buffer(int sampleRate, int framesPerBurst) {
+      super(sampleRate, framesPerBurst);
+    }
+
     @Override
     protected boolean validSize(int size) {
       return size != AudioTrack.ERROR && size != AudioTrack.ERROR_BAD_VALUE;
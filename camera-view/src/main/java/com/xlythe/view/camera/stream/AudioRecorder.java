@@ -1,21 +1,25 @@
 package com.xlythe.view.camera.stream;
 
 import android.Manifest;
+import android.content.Context;
 import android.media.AudioFormat;
 import android.media.AudioRecord;
+import android.media.AudioTimestamp;
 import android.media.MediaRecorder;
+import android.os.Build;
 import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
+import androidx.annotation.Nullable;
 import androidx.annotation.RequiresPermission;
 
 import com.xlythe.view.camera.CameraView;
 
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-
-import static android.os.Process.THREAD_PRIORITY_AUDIO;
-import static android.os.Process.setThreadPriority;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * When created, you must pass a {@link ParcelFileDescriptor}. Once {@link #start()} is called, the
@@ -24,17 +28,71 @@ import static android.os.Process.setThreadPriority;
 public class AudioRecorder {
   private static final String TAG = CameraView.class.getSimpleName();
 
+  /** How many bursts are read between each measurement of the input latency. */
+  private static final int LATENCY_SAMPLE_INTERVAL = 50;
+
+  /** Audio quieter than this, in dB relative to full scale, is silence. Room noise sits well below. */
+  public static final float DEFAULT_SILENCE_THRESHOLD_DB = -45f;
+
+  /** How long audio keeps being sent after it was last loud, to avoid chopping off words. */
+  public static final int DEFAULT_SILENCE_HANGOVER_MILLIS = 300;
+
+  /**
+   * Consecutive silent reads are merged into a single marker, up to this long. Kept well under the
+   * player's jitter buffer, so that waiting on a marker never runs it dry.
+   */
+  private static final long MAX_SILENCE_DURATION_US = 10_000;
+
   /** The stream to write to. */
   private final OutputStream mOutputStream;
 
+  /** Set to record in low latency mode. Used to look up the device's native audio properties. */
+  @Nullable private volatile Context mLowLatencyContext;
+
+  /** If true, audio is split into numbered, timestamped packets. */
+  private volatile boolean mIsPacketized;
+
+  /** The sequence number of the next packet. Only touched by the recording thread. */
+  private int mSequence;
+
+  /** The codec packets are compressed with. */
+  @AudioCodec.Type private volatile int mCodecType = AudioCodec.Type.PCM;
+
+  /** Compresses packets, or null for PCM. Only touched by the recording thread. */
+  @Nullable private AudioCodec mCodec;
+
+  /** Reused to hold compressed packets. Only touched by the recording thread. */
+  private byte[] mEncodeBuffer = new byte[0];
+
+  /** Reused to hold each length-prefixed packet as it's written. Only touched by the recording thread. */
+  private ByteBuffer mPacketBuffer = ByteBuffer.allocate(0);
+
+  /** If true, silent stretches of a packetized stream are replaced by silence markers. */
+  private volatile boolean mIsSilenceSuppressionEnabled;
+  private volatile float mSilenceThresholdDb = DEFAULT_SILENCE_THRESHOLD_DB;
+  private volatile int mSilenceHangoverMillis = DEFAULT_SILENCE_HANGOVER_MILLIS;
+
+  /** Decides what counts as silence. Only touched by the recording thread. */
+  @Nullable private VoiceActivityDetector mVoiceActivityDetector;
+
+  /** The position and length of the silence waiting to be written. Only touched by the recording thread. */
+  private long mSilencePosition;
+  private long mSilentFrames;
+
+  /** Optionally records how long audio waits before it's read. */
+  @Nullable private volatile StreamMetrics mMetrics;
+
+  /** The most recently measured input latency, or 0 if it hasn't been measured. */
+  private volatile long mLatencyUs;
+
   /**
    * If true, the background thread will continue to loop and record audio. Once false, the thread
    * will shut down.
    */
   private volatile boolean mIsAlive;
 
-  /** The background thread recording audio for us. */
-  private Thread mThread;
+  /** The background task recording audio for us. */
+  private MediaScheduler.Task mTask;
 
   /**
    * A simple audio recorder.
@@ -54,6 +112,89 @@ public class AudioRecorder {
     this.mOutputStream = outputStream;
   }
 
+  /**
+   * Records at the device's native sample rate, a burst at a time, using the microphone source with
+   * the shortest input path. This gives up the echo cancellation of voice call audio for much lower
+   * latency. The stream begins with a small header describing the audio, which
+   * {@link AudioPlayer} understands. Must be set before {@link #start()}.
+   */
+  public void setLowLatencyEnabled(Context context, boolean enabled) {
+    mLowLatencyContext = enabled ? context.getApplicationContext() : null;
+  }
+
+  public boolean isLowLatencyEnabled() {
+    return mLowLatencyContext != null;
+  }
+
+  /**
+   * Splits the stream into numbered, timestamped packets, so that {@link AudioPlayer} can tell
+   * when audio has been lost or delayed and smooth over it. Without this, the stream is raw PCM
+   * and lost audio is heard as clicks. Must be set before {@link #start()}.
+   */
+  public void setPacketized(boolean packetized) {
+    mIsPacketized = packetized;
+  }
+
+  public boolean isPacketized() {
+    return mIsPacketized;
+  }
+
+  /**
+   * Compresses the audio in each packet. mu-law halves the size of the audio and IMA ADPCM quarters
+   * it, for a tiny fraction of a core. Only applies to packetized streams. Must be set before
+   * {@link #start()}.
+   */
+  public void setCodec(@AudioCodec.Type int codec) {
+    mCodecType = codec;
+  }
+
+  @AudioCodec.Type
+  public int getCodec() {
+    return mCodecType;
+  }
+
+  /**
+   * Replaces silent stretches of audio with small markers, which players fill back in with silence
+   * or comfort noise. Most of a conversation is silence, so this saves most of the bandwidth. Only
+   * applies to packetized streams. Must be set before {@link #start()}.
+   */
+  public void setSilenceSuppressionEnabled(boolean enabled) {
+    mIsSilenceSuppressionEnabled = enabled;
+  }
+
+  public boolean isSilenceSuppressionEnabled() {
+    return mIsSilenceSuppressionEnabled;
+  }
+
+  /**
+   * Sets how loud audio must be to be sent, in dB relative to full scale. Defaults to
+   * {@link #DEFAULT_SILENCE_THRESHOLD_DB}. Must be set before {@link #start()}.
+   */
+  public void setSilenceThreshold(float thresholdDb) {
+    mSilenceThresholdDb = thresholdDb;
+  }
+
+  /**
+   * Sets how long audio keeps being sent after it was last loud enough. Defaults to
+   * {@link #DEFAULT_SILENCE_HANGOVER_MILLIS}. Must be set before {@link #start()}.
+   */
+  public void setSilenceHangoverMillis(int hangoverMillis) {
+    mSilenceHangoverMillis = hangoverMillis;
+  }
+
+  /** Reports the input latency, and how much audio was recorded and suppressed, to the given metrics. */
+  public void setMetrics(@Nullable StreamMetrics metrics) {
+    mMetrics = metrics;
+  }
+
+  /**
+   * Returns how long audio most recently waited between the microphone and being read, or 0 if it
+   * hasn't been measured. Only measured in low latency mode on API 24+.
+   */
+  public long getLatencyUs() {
+    return mLatencyUs;
+  }
+
   /** @return True if actively recording. False otherwise. */
   public boolean isRecording() {
     return mIsAlive;
@@ -68,12 +209,17 @@ public class AudioRecorder {
     }
 
     mIsAlive = true;
-    mThread =
-            new Thread() {
+    mSequence = 0;
+    mTask = MediaScheduler.getInstance().submitLoop("AudioRecorder", MediaScheduler.PRIORITY_AUDIO,
+            new Runnable() {
               @RequiresPermission(Manifest.permission.RECORD_AUDIO)
               @Override
               public void run() {
-                setThreadPriority(THREAD_PRIORITY_AUDIO);
+                Context context = mLowLatencyContext;
+                if (context != null) {
+                  recordWithLowLatency(context);
+                  return;
+                }
 
                 Buffer buffer = new Buffer();
                 AudioRecord record =
@@ -96,11 +242,17 @@ public class AudioRecorder {
                 // While we're running, we'll read the bytes from the AudioRecord and write them
                 // to our output stream.
                 try {
+                  startPackets(buffer.getSampleRate());
+                  if (isPacketized()) {
+                    writeHeader(new AudioHeader(buffer.getSampleRate(), buffer.getSize() / AudioBuffer.BYTES_PER_FRAME, AudioHeader.FLAG_PACKETIZED, getPacketCodec()));
+                  }
+
+                  long framesRead = 0;
                   while (isRecording()) {
                     int len = record.read(buffer.data(), 0, buffer.getSize());
                     if (len >= 0 && len <= buffer.getSize()) {
-                      mOutputStream.write(buffer.data(), 0, len);
-                      mOutputStream.flush();
+                      write(buffer.data(), len, framesRead, buffer.getSampleRate());
+                      framesRead += len / AudioBuffer.BYTES_PER_FRAME;
                     } else {
                       Log.w(TAG, "Unexpected length returned: " + len);
                     }
@@ -117,8 +269,243 @@ public class AudioRecorder {
                   record.release();
                 }
               }
-            };
-    mThread.start();
+            });
+  }
+
+  @RequiresPermission(Manifest.permission.RECORD_AUDIO)
+  private void recordWithLowLatency(Context context) {
+    int sampleRate = AudioBuffer.getNativeSampleRate(context);
+    int framesPerBurst = AudioBuffer.getFramesPerBurst(context);
+    Buffer buffer = new Buffer(sampleRate, framesPerBurst);
+
+    AudioRecord record;
+    if (Build.VERSION.SDK_INT >= 23) {
+      record = new AudioRecord.Builder()
+              .setAudioSource(MediaRecorder.AudioSource.VOICE_RECOGNITION)
+              .setAudioFormat(new AudioFormat.Builder()
+                      .setSampleRate(sampleRate)
+                      .setChannelMask(AudioFormat.CHANNEL_IN_MONO)
+                      .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                      .build())
+              .setBufferSizeInBytes(buffer.getSize())
+              .build();
+    } else {
+      record = new AudioRecord(
+              MediaRecorder.AudioSource.VOICE_RECOGNITION,
+              sampleRate,
+              AudioFormat.CHANNEL_IN_MONO,
+              AudioFormat.ENCODING_PCM_16BIT,
+              buffer.getSize());
+    }
+
+    if (record.getState() != AudioRecord.STATE_INITIALIZED) {
+      Log.w(TAG, "Failed to start recording low latency audio");
+      record.release();
+      mIsAlive = false;
+      return;
+    }
+
+    // Files (including sockets and pipes opened as a ParcelFileDescriptor) can be written straight
+    // from a direct buffer. Anything else, including packets, has to be handed a byte[].
+    boolean isPacketized = isPacketized();
+    FileChannel channel = !isPacketized && mOutputStream instanceof FileOutputStream ? ((FileOutputStream) mOutputStream).getChannel() : null;
+
+    record.startRecording();
+    Log.d(TAG, "Started recording low latency audio at " + sampleRate + "Hz, " + framesPerBurst + " frames per burst");
+
+    try {
+      startPackets(sampleRate);
+      int flags = AudioHeader.FLAG_LOW_LATENCY | (isPacketized ? AudioHeader.FLAG_PACKETIZED : 0);
+      writeHeader(new AudioHeader(sampleRate, framesPerBurst, flags, getPacketCodec()));
+
+      int burstSize = buffer.getBurstSize();
+      ByteBuffer directData = buffer.directData();
+      AudioTimestamp timestamp = new AudioTimestamp();
+      long framesRead = 0;
+      int reads = 0;
+      while (isRecording()) {
+        int len;
+        if (channel != null) {
+          directData.clear();
+          len = record.read(directData, burstSize);
+          if (len > 0 && len <= burstSize) {
+            // AudioRecord doesn't move the buffer's position, so it's done by hand.
+            directData.limit(len);
+            while (directData.hasRemaining()) {
+              channel.write(directData);
+            }
+            StreamMetrics metrics = mMetrics;
+            if (metrics != null) {
+              metrics.onAudioRecorded(len, false);
+            }
+          }
+        } else {
+          len = record.read(buffer.data(), 0, burstSize);
+          if (len > 0 && len <= burstSize) {
+            write(buffer.data(), len, framesRead, sampleRate);
+          }
+        }
+
+        if (len < 0 || len > burstSize) {
+          Log.w(TAG, "Unexpected length returned: " + len);
+          continue;
+        }
+
+        framesRead += len / AudioBuffer.BYTES_PER_FRAME;
+        if (++reads % LATENCY_SAMPLE_INTERVAL == 0) {
+          measureLatency(record, timestamp, framesRead, sampleRate);
+        }
+      }
+    } catch (IOException e) {
+      Log.e(TAG, "Exception with recording audio stream", e);
+    } finally {
+      stopInternal();
+      try {
+        record.stop();
+      } catch (IllegalStateException e) {
+        Log.e(TAG, "Failed to stop AudioRecord", e);
+      }
+      record.release();
+    }
+  }
+
+  private void writeHeader(AudioHeader header) throws IOException {
+    mOutputStream.write(header.toByteArray());
+    mOutputStream.flush();
+  }
+
+  /** Sets up the codec and silence detection, for packetized streams. */
+  private void startPackets(int sampleRate) {
+    mSilentFrames = 0;
+    mVoiceActivityDetector = isPacketized() && isSilenceSuppressionEnabled()
+            ? new VoiceActivityDetector(sampleRate, mSilenceThresholdDb, mSilenceHangoverMillis)
+            : null;
+    mCodec = isPacketized() ? AudioCodec.create(mCodecType) : null;
+  }
+
+  /** Returns the codec packets are compressed with, which is always PCM for raw streams. */
+  @AudioCodec.Type
+  private int getPacketCodec() {
+    AudioCodec codec = mCodec;
+    return codec == null ? AudioCodec.Type.PCM : codec.getType();
+  }
+
+  /**
+   * Writes audio that was just read. Raw streams are written as is, while packetized streams wrap
+   * it in a numbered packet, stamped with the position of its first frame. Silence is held back and
+   * sent as a marker instead, once it's long enough or once the silence ends.
+   */
+  private void write(byte[] data, int len, long framePosition, int sampleRate) throws IOException {
+    StreamMetrics metrics = mMetrics;
+    if (!mIsPacketized) {
+      if (metrics != null) {
+        metrics.onAudioRecorded(len, false);
+      }
+      // Pipes only wake their reader on flush, so every write is flushed.
+      mOutputStream.write(data, 0, len);
+      mOutputStream.flush();
+      return;
+    }
+
+    if (len == 0) {
+      return;
+    }
+
+    VoiceActivityDetector detector = mVoiceActivityDetector;
+    if (detector != null && !detector.isSpeech(data, len)) {
+      if (metrics != null) {
+        metrics.onAudioRecorded(len, true);
+      }
+      if (mSilentFrames == 0) {
+        mSilencePosition = framePosition;
+      }
+      mSilentFrames += len / AudioBuffer.BYTES_PER_FRAME;
+      if (mSilentFrames * 1_000_000L / sampleRate >= MAX_SILENCE_DURATION_US) {
+        writeSilence(sampleRate);
+      }
+      return;
+    }
+
+    if (mSilentFrames > 0) {
+      writeSilence(sampleRate);
+    }
+    if (metrics != null) {
+      metrics.onAudioRecorded(len, false);
+    }
+    // Packets are written before the next read, so they can point straight at the buffers.
+    AudioCodec codec = mCodec;
+    AudioFrame.Builder builder = new AudioFrame.Builder(AudioFrame.Type.DATA)
+            .sequence(mSequence++)
+            .presentationTimeUs(framePosition * 1_000_000L / sampleRate);
+    if (codec == null) {
+      builder.data(data, len);
+    } else {
+      builder.data(mEncodeBuffer, encode(codec, data, len));
+    }
+    writeFrame(builder.build());
+  }
+
+  /**
+   * Compresses audio into {@link #mEncodeBuffer}.
+   *
+   * @return The size of the compressed audio.
+   */
+  private int encode(AudioCodec codec, byte[] data, int len) {
+    int maxSize = codec.getMaxEncodedSize(len / AudioBuffer.BYTES_PER_FRAME);
+    if (mEncodeBuffer.length < maxSize) {
+      mEncodeBuffer = new byte[maxSize];
+    }
+    return codec.encode(data, len, mEncodeBuffer);
+  }
+
+  private void writeSilence(int sampleRate) throws IOException {
+    writeFrame(new AudioFrame.Builder(AudioFrame.Type.SILENCE)
+            .sequence(mSequence++)
+            .presentationTimeUs(mSilencePosition * 1_000_000L / sampleRate)
+            .durationUs(mSilentFrames * 1_000_000L / sampleRate)
+            .build());
+    mSilentFrames = 0;
+  }
+
+  /**
+   * Writes a length-prefixed packet. The length and the frame go out in a single write and flush,
+   * so a lossy pipe drops all or none of it.
+   */
+  private void writeFrame(AudioFrame audioFrame) throws IOException {
+    int size = audioFrame.getSize();
+    if (mPacketBuffer.capacity() < 4 + size) {
+      mPacketBuffer = ByteBuffer.allocate(4 + size);
+    }
+    mPacketBuffer.clear();
+    mPacketBuffer.putInt(size);
+    audioFrame.writeTo(mPacketBuffer);
+    mOutputStream.write(mPacketBuffer.array(), 0, mPacketBuffer.position());
+    mOutputStream.flush();
+  }
+
+  private void measureLatency(AudioRecord record, AudioTimestamp timestamp, long framesRead, int sampleRate) {
+    if (Build.VERSION.SDK_INT < 24) {
+      return;
+    }
+    if (record.getTimestamp(timestamp, AudioTimestamp.TIMEBASE_MONOTONIC) != AudioRecord.SUCCESS) {
+      return;
+    }
+
+    long latencyUs = getLatencyUs(System.nanoTime(), timestamp.nanoTime, timestamp.framePosition, framesRead, sampleRate);
+    mLatencyUs = latencyUs;
+    StreamMetrics metrics = mMetrics;
+    if (metrics != null) {
+      metrics.onLatency(LatencyHistogram.Stage.AUDIO_INPUT, latencyUs);
+    }
+  }
+
+  /**
+   * Returns how long ago the most recently read frame was captured. The timestamp pins one frame to
+   * the time it was captured, and the frames after it follow at the sample rate.
+   */
+  static long getLatencyUs(long nowNs, long timestampNs, long timestampFramePosition, long framesRead, int sampleRate) {
+    long captureTimeNs = timestampNs + (framesRead - timestampFramePosition) * 1_000_000_000L / sampleRate;
+    return Math.max(0, (nowNs - captureTimeNs) / 1000);
   }
 
   private void stopInternal() {
@@ -134,14 +521,20 @@ public class AudioRecorder {
   public void stop() {
     stopInternal();
     try {
-      mThread.join(300);
+      mTask.await(300);
     } catch (InterruptedException e) {
-      Log.e(TAG, "Interrupted while joining AudioRecorder thread", e);
+      Log.e(TAG, "Interrupted while waiting for AudioRecorder to stop", e);
       Thread.currentThread().interrupt();
     }
   }
 
   private static class Buffer extends AudioBuffer {
+    Buffer() {}
+
+    Buffer(int sampleRate, int framesPerBurst) {
+      super(sampleRate, framesPerBurst);
+    }
+
     @Override
     protected boolean validSize(int size) {
       return size != AudioRecord.ERROR && size != AudioRecord.ERROR_BAD_VALUE;
@@ -0,0 +1,149 @@
+package com.xlythe.view.camera.stream;
+
+import androidx.annotation.RestrictTo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes ISO base media file format (MP4) boxes into a reusable, growable buffer. Boxes are opened
+ * with {@link #start(String)} and their sizes are filled in once {@link #end()} is called, so they
+ * can be nested freely.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+final class BoxWriter {
+  private static final int MAX_DEPTH = 16;
+
+  private byte[] mBuffer;
+  private int mSize;
+
+  /** The offsets of the boxes that are currently open. */
+  private final int[] mOpenBoxes = new int[MAX_DEPTH];
+  private int mDepth;
+
+  BoxWriter(int initialCapacity) {
+    mBuffer = new byte[initialCapacity];
+  }
+
+  /** Clears the buffer so that it can be reused, without releasing its memory. */
+  void reset() {
+    mSize = 0;
+    mDepth = 0;
+  }
+
+  /** Returns the number of bytes written so far. */
+  int size() {
+    return mSize;
+  }
+
+  /** Opens a box of the given type. */
+  BoxWriter start(String type) {
+    if (mDepth == MAX_DEPTH) {
+      throw new IllegalStateException("Boxes are nested too deeply");
+    }
+    mOpenBoxes[mDepth++] = mSize;
+    u32(0);
+    fourCc(type);
+    return this;
+  }
+
+  /** Opens a full box, which is a box with a version and flags. */
+  BoxWriter startFull(String type, int version, int flags) {
+    start(type);
+    u8(version);
+    u24(flags);
+    return this;
+  }
+
+  /** Closes the most recently opened box, filling in its size. */
+  BoxWriter end() {
+    if (mDepth == 0) {
+      throw new IllegalStateException("No box is open");
+    }
+    int offset = mOpenBoxes[--mDepth];
+    set32(offset, mSize - offset);
+    return this;
+  }
+
+  BoxWriter u8(int value) {
+    ensureCapacity(1);
+    mBuffer[mSize++] = (byte) value;
+    return this;
+  }
+
+  BoxWriter u16(int value) {
+    ensureCapacity(2);
+    mBuffer[mSize++] = (byte) (value >>> 8);
+    mBuffer[mSize++] = (byte) value;
+    return this;
+  }
+
+  BoxWriter u24(int value) {
+    ensureCapacity(3);
+    mBuffer[mSize++] = (byte) (value >>> 16);
+    mBuffer[mSize++] = (byte) (value >>> 8);
+    mBuffer[mSize++] = (byte) value;
+    return this;
+  }
+
+  BoxWriter u32(long value) {
+    ensureCapacity(4);
+    set32(mSize, value);
+    mSize += 4;
+    return this;
+  }
+
+  BoxWriter u64(long value) {
+    u32(value >>> 32);
+    u32(value);
+    return this;
+  }
+
+  BoxWriter zeros(int count) {
+    ensureCapacity(count);
+    Arrays.fill(mBuffer, mSize, mSize + count, (byte) 0);
+    mSize += count;
+    return this;
+  }
+
+  BoxWriter fourCc(String type) {
+    return bytes(type.getBytes(StandardCharsets.US_ASCII));
+  }
+
+  BoxWriter bytes(byte[] data) {
+    return bytes(data, 0, data.length);
+  }
+
+  BoxWriter bytes(byte[] data, int offset, int length) {
+    ensureCapacity(length);
+    System.arraycopy(data, offset, mBuffer, mSize, length);
+    mSize += length;
+    return this;
+  }
+
+  /** Overwrites 4 bytes at an earlier position, such as an offset that wasn't known in advance. */
+  void set32(int position, long value) {
+    mBuffer[position] = (byte) (value >>> 24);
+    mBuffer[position + 1] = (byte) (value >>> 16);
+    mBuffer[position + 2] = (byte) (value >>> 8);
+    mBuffer[position + 3] = (byte) value;
+  }
+
+  /** Writes everything in the buffer to the given stream. */
+  void writeTo(OutputStream outputStream) throws IOException {
+    outputStream.write(mBuffer, 0, mSize);
+  }
+
+  /** Returns a copy of the buffer. */
+  byte[] toByteArray() {
+    return Arrays.copyOf(mBuffer, mSize);
+  }
+
+  private void ensureCapacity(int length) {
+    if (mSize + length > mBuffer.length) {
+      mBuffer = Arrays.copyOf(mBuffer, Math.max(mBuffer.length * 2, mSize + length));
+    }
+  }
+}
@@ -0,0 +1,54 @@
+package com.xlythe.view.camera.stream;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+
+/**
+ * A {@link FrameSink} that hands each encoded frame to a listener. Unlike a {@link FramePublisher},
+ * it works on every API level a {@link VideoRecorder} does, so it's what the Kotlin
+ * {@code VideoStream.frames()} flow is built on.
+ */
+@RequiresApi(18)
+public final class CallbackFrameSink extends FrameSink {
+  public interface Listener {
+    /** Called on the recorder's thread for every frame. This blocks the encoder, so return quickly. */
+    void onFrame(EncodedFrame frame);
+
+    /** Called once the sink is closed, such as when the stream ends. */
+    void onClosed();
+  }
+
+  private final Listener mListener;
+  private volatile boolean mIsClosed;
+
+  public CallbackFrameSink(Listener listener) {
+    mListener = listener;
+  }
+
+  @Override
+  void onFrame(VideoFrame frame) {
+    if (mIsClosed) {
+      return;
+    }
+    mListener.onFrame(EncodedFrame.from(frame));
+  }
+
+  @Override
+  public void close() {
+    synchronized (this) {
+      if (mIsClosed) {
+        return;
+      }
+      mIsClosed = true;
+    }
+    mListener.onClosed();
+  }
+
+  @NonNull
+  @Override
+  public String toString() {
+    return "CallbackFrameSink{" +
+            "closed=" + mIsClosed +
+            '}';
+  }
+}
@@ -0,0 +1,377 @@
+package com.xlythe.view.camera.stream;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+import com.google.common.primitives.Ints;
+import com.xlythe.view.camera.CameraView;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A {@link FrameSink} that continuously records the encoded stream into a fixed size, memory mapped
+ * circular file. Once something interesting happens, the last few seconds can be exported with
+ * {@link #exportMp4(File, long)} or {@link #exportStream(OutputStream, long)}.
+ *
+ * The file never grows beyond its capacity, and recording a frame doesn't allocate any memory. Only
+ * the most recent header and codec config are kept outside of the file, since they're needed to
+ * decode anything at all.
+ */
+@RequiresApi(18)
+public class DvrBuffer extends FrameSink {
+  private static final String TAG = CameraView.class.getSimpleName();
+
+  private static final int DEFAULT_CAPACITY = 32 * 1024 * 1024;
+  private static final int DEFAULT_MAX_KEY_FRAMES = 512;
+
+  /** Each record is laid out as [length][presentationTimeUs][flags][data]. */
+  private static final int RECORD_HEADER_SIZE = 4 + 8 + 4;
+
+  /** A record length that means the rest of the file is unused, and the next record is at 0. */
+  private static final int PADDING = -1;
+
+  /** The file backing the buffer. */
+  private final File mFile;
+
+  /** The file, kept open for as long as the mapping is in use. */
+  private final RandomAccessFile mRandomAccessFile;
+
+  /** The memory mapped contents of the file. */
+  private final MappedByteBuffer mBuffer;
+
+  /** The size of the file, in bytes. */
+  private final int mCapacity;
+
+  // Positions are logical, meaning they only ever increase. The physical offset within the file is
+  // the position modulo the capacity. Anything older than a capacity behind the write position has
+  // been overwritten.
+  private long mWritePosition;
+
+  /** Nothing before this position can be decoded with the current codec config. */
+  private long mStartPosition;
+
+  // A ring of the most recent key frames, oldest first starting at mKeyFrameHead.
+  private final long[] mKeyFramePositions;
+  private final long[] mKeyFrameTimesUs;
+  private int mKeyFrameHead;
+  private int mKeyFrameCount;
+
+  @Nullable private VideoFrame mHeader;
+  @Nullable private VideoFrame mCodecConfig;
+
+  /** The timestamp of the most recently recorded frame. */
+  private long mLastPresentationTimeUs = -1;
+
+  private boolean mIsClosed;
+
+  private DvrBuffer(File file, int capacity, int maxKeyFrames) throws IOException {
+    mFile = file;
+    mCapacity = capacity;
+    mKeyFramePositions = new long[maxKeyFrames];
+    mKeyFrameTimesUs = new long[maxKeyFrames];
+
+    mRandomAccessFile = new RandomAccessFile(file, "rw");
+    try {
+      mRandomAccessFile.setLength(capacity);
+      mBuffer = mRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    } catch (IOException e) {
+      mRandomAccessFile.close();
+      throw e;
+    }
+  }
+
+  /** Returns the file backing this buffer. */
+  public File getFile() {
+    return mFile;
+  }
+
+  /** Returns the size of the file backing this buffer, in bytes. */
+  public int getCapacity() {
+    return mCapacity;
+  }
+
+  /**
+   * Returns how much video, in microseconds, can currently be exported. This is measured from the
+   * oldest key frame that hasn't been overwritten yet.
+   */
+  public synchronized long getBufferedDurationUs() {
+    int oldest = findOldestKeyFrame();
+    if (oldest < 0) {
+      return 0;
+    }
+    return mLastPresentationTimeUs - mKeyFrameTimesUs[oldest];
+  }
+
+  @Override
+  synchronized void onFrame(VideoFrame frame) {
+    if (mIsClosed) {
+      return;
+    }
+
+    if (frame.getType() == VideoFrame.Type.HEADER) {
+      mHeader = frame;
+      return;
+    }
+
+    if (frame.isCodecConfig()) {
+      // Frames encoded with an older config can't be decoded with the new one, so forget them.
+      mCodecConfig = frame;
+      mStartPosition = mWritePosition;
+      mKeyFrameCount = 0;
+      return;
+    }
+
+    byte[] data = frame.getData();
+    if (mCodecConfig == null || data == null || data.length == 0) {
+      return;
+    }
+
+    int recordSize = RECORD_HEADER_SIZE + data.length;
+    if (recordSize > mCapacity) {
+      Log.w(TAG, "Dropping frame of " + data.length + " bytes, which is larger than the DVR buffer");
+      return;
+    }
+
+    int offset = (int) (mWritePosition % mCapacity);
+    if (offset + recordSize > mCapacity) {
+      // The record doesn't fit before the end of the file. Mark the remainder as unused and wrap.
+      if (mCapacity - offset >= 4) {
+        mBuffer.putInt(offset, PADDING);
+      }
+      mWritePosition += mCapacity - offset;
+      offset = 0;
+    }
+
+    mBuffer.putInt(offset, data.length);
+    mBuffer.putLong(offset + 4, frame.getPresentationTimeUs());
+    mBuffer.putInt(offset + 12, frame.getFlags());
+    mBuffer.position(offset + RECORD_HEADER_SIZE);
+    mBuffer.put(data);
+
+    if (frame.isKeyFrame()) {
+      int index;
+      if (mKeyFrameCount == mKeyFramePositions.length) {
+        index = mKeyFrameHead;
+        mKeyFrameHead = (mKeyFrameHead + 1) % mKeyFramePositions.length;
+      } else {
+        index = (mKeyFrameHead + mKeyFrameCount) % mKeyFramePositions.length;
+        mKeyFrameCount++;
+      }
+      mKeyFramePositions[index] = mWritePosition;
+      mKeyFrameTimesUs[index] = frame.getPresentationTimeUs();
+    }
+
+    mWritePosition += recordSize;
+    mLastPresentationTimeUs = frame.getPresentationTimeUs();
+  }
+
+  /**
+   * Writes the last {@code durationMillis} of video to an MP4 file. The export begins on the key
+   * frame at or before that point, so slightly more video than requested may be written.
+   *
+   * @return False if there was nothing to export.
+   */
+  public boolean exportMp4(File file, long durationMillis) throws IOException {
+    Mp4Sink sink = new Mp4Sink(file);
+    try {
+      return export(sink, durationMillis);
+    } finally {
+      sink.close();
+    }
+  }
+
+  /**
+   * Writes the last {@code durationMillis} of video as length prefixed frames, the same format that
+   * {@link com.xlythe.view.camera.VideoStream} uses for its video channel. The output stream is not
+   * closed.
+   *
+   * @return False if there was nothing to export.
+   */
+  public boolean exportStream(OutputStream outputStream, long durationMillis) throws IOException {
+    return export(new FrameSink() {
+      @Override
+      void onFrame(VideoFrame frame) throws IOException {
+        byte[] bytes = frame.asBytes();
+        outputStream.write(Ints.toByteArray(bytes.length));
+        outputStream.write(bytes);
+      }
+
+      @Override
+      public void close() {}
+    }, durationMillis);
+  }
+
+  /** Replays the last {@code durationMillis} of video, starting from a key frame, into the sink. */
+  private boolean export(FrameSink sink, long durationMillis) throws IOException {
+    VideoFrame header;
+    VideoFrame codecConfig;
+    long position;
+    long endPosition;
+    ByteBuffer buffer;
+    synchronized (this) {
+      if (mIsClosed) {
+        throw new IllegalStateException("Cannot export from a closed DVR buffer");
+      }
+
+      int keyFrame = findKeyFrame(mLastPresentationTimeUs - durationMillis * 1000);
+      if (mHeader == null || mCodecConfig == null || keyFrame < 0) {
+        return false;
+      }
+      header = mHeader;
+      codecConfig = mCodecConfig;
+      position = mKeyFramePositions[keyFrame];
+      endPosition = mWritePosition;
+      buffer = mBuffer.duplicate();
+    }
+
+    // Frames are copied out without holding the lock, so that the encoder isn't blocked. The
+    // writer may lap us while we do this, in which case we stop at the last intact frame.
+    sink.onFrame(header);
+    sink.onFrame(codecConfig);
+    while (position < endPosition) {
+      int offset = (int) (position % mCapacity);
+      if (mCapacity - offset < RECORD_HEADER_SIZE) {
+        position += mCapacity - offset;
+        continue;
+      }
+
+      int length = buffer.getInt(offset);
+      if (length == PADDING) {
+        position += mCapacity - offset;
+        continue;
+      }
+
+      long presentationTimeUs = buffer.getLong(offset + 4);
+      int flags = buffer.getInt(offset + 12);
+      if (length < 0 || offset + RECORD_HEADER_SIZE + length > mCapacity) {
+        Log.w(TAG, "DVR buffer is corrupt at position " + position);
+        break;
+      }
+      byte[] data = new byte[length];
+      buffer.position(offset + RECORD_HEADER_SIZE);
+      buffer.get(data);
+
+      if (!isIntact(position)) {
+        Log.w(TAG, "DVR buffer was overwritten while exporting");
+        break;
+      }
+
+      sink.onFrame(new VideoFrame.Builder(VideoFrame.Type.DATA)
+              .data(data)
+              .presentationTimeUs(presentationTimeUs)
+              .flags(flags)
+              .build());
+      position += RECORD_HEADER_SIZE + length;
+    }
+    return true;
+  }
+
+  /** Returns true if the record at the given position hasn't been overwritten. */
+  private synchronized boolean isIntact(long position) {
+    return position >= mStartPosition && position >= mWritePosition - mCapacity;
+  }
+
+  /**
+   * Returns the index of the newest key frame at or before the given timestamp. If the buffer doesn't
+   * reach back that far, the oldest key frame is returned instead. Returns -1 if there are none.
+   */
+  private int findKeyFrame(long presentationTimeUs) {
+    int oldest = findOldestKeyFrame();
+    if (oldest < 0) {
+      return -1;
+    }
+
+    int result = oldest;
+    for (int i = 0; i < mKeyFrameCount; i++) {
+      int index = (mKeyFrameHead + i) % mKeyFramePositions.length;
+      if (mKeyFramePositions[index] < mKeyFramePositions[oldest]) {
+        continue;
+      }
+      if (mKeyFrameTimesUs[index] > presentationTimeUs) {
+        break;
+      }
+      result = index;
+    }
+    return result;
+  }
+
+  /** Returns the index of the oldest key frame that hasn't been overwritten, or -1 if none. */
+  private int findOldestKeyFrame() {
+    for (int i = 0; i < mKeyFrameCount; i++) {
+      int index = (mKeyFrameHead + i) % mKeyFramePositions.length;
+      if (isIntact(mKeyFramePositions[index])) {
+        return index;
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  public synchronized void close() {
+    if (mIsClosed) {
+      return;
+    }
+    mIsClosed = true;
+
+    try {
+      mRandomAccessFile.close();
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to close DVR buffer " + mFile, e);
+    }
+  }
+
+  @NonNull
+  @Override
+  public String toString() {
+    return "DvrBuffer{" +
+            "file=" + mFile +
+            ", capacity=" + mCapacity +
+            ", keyFrames=" + mKeyFrameCount +
+            '}';
+  }
+
+  public static class Builder {
+    private final File mFile;
+    private int mCapacity = DEFAULT_CAPACITY;
+    private int mMaxKeyFrames = DEFAULT_MAX_KEY_FRAMES;
+
+    /** @param file The file backing the buffer. Any existing contents will be overwritten. */
+    public Builder(File file) {
+      mFile = file;
+    }
+
+    /**
+     * Sets the size of the file, in bytes. At a given bit rate, this determines how far back the
+     * buffer reaches. For example, 4Mbps video fills 32MB in roughly a minute.
+     */
+    public Builder setCapacity(int capacity) {
+      mCapacity = capacity;
+      return this;
+    }
+
+    /** Sets how many key frames are indexed. Older key frames can no longer be exported from. */
+    public Builder setMaxKeyFrames(int maxKeyFrames) {
+      mMaxKeyFrames = maxKeyFrames;
+      return this;
+    }
+
+    public DvrBuffer build() throws IOException {
+      if (mCapacity < RECORD_HEADER_SIZE) {
+        throw new IllegalArgumentException("Capacity is too small");
+      }
+      if (mMaxKeyFrames < 1) {
+        throw new IllegalArgumentException("At least one key frame must be indexed");
+      }
+      return new DvrBuffer(mFile, mCapacity, mMaxKeyFrames);
+    }
+  }
+}
@@ -0,0 +1,135 @@
+package com.xlythe.view.camera.stream;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A single frame of an encoded video stream, as handed to subscribers of a {@link FramePublisher}.
+ *
+ * Header frames describe the stream (its size, orientation and encoder settings) and carry no data.
+ * Every other frame carries encoded H.264 data, which is either codec config (SPS/PPS), a key frame,
+ * or a frame that depends on the frames before it.
+ */
+public final class EncodedFrame {
+  private final VideoFrame mFrame;
+
+  private EncodedFrame(VideoFrame frame) {
+    mFrame = frame;
+  }
+
+  static EncodedFrame from(VideoFrame frame) {
+    return new EncodedFrame(frame);
+  }
+
+  /** Returns true if this frame describes the stream, rather than carrying encoded data. */
+  public boolean isHeader() {
+    return mFrame.getType() == VideoFrame.Type.HEADER;
+  }
+
+  /**
+   * Returns which rendition of a simulcast stream this frame belongs to, where 0 is the full sized
+   * rendition. Always 0 for streams without simulcast.
+   */
+  public int getLayer() {
+    return mFrame.getLayer();
+  }
+
+  /** Returns the width of the video. Only set on header frames. */
+  public int getWidth() {
+    return mFrame.getWidth();
+  }
+
+  /** Returns the height of the video. Only set on header frames. */
+  public int getHeight() {
+    return mFrame.getHeight();
+  }
+
+  /** Returns the orientation of the video, in degrees. Only set on header frames. */
+  public int getOrientation() {
+    return mFrame.getOrientation();
+  }
+
+  /** Returns true if the video is mirrored horizontally. Only set on header frames. */
+  public boolean isFlipped() {
+    return mFrame.isFlipped();
+  }
+
+  /** Returns the bit rate of the video. Only set on header frames. */
+  public int getBitRate() {
+    return mFrame.getBitRate();
+  }
+
+  /** Returns the frame rate of the video. Only set on header frames. */
+  public int getFrameRate() {
+    return mFrame.getFrameRate();
+  }
+
+  /** Returns the key frame interval of the video, in seconds. Only set on header frames. */
+  public int getIFrameInterval() {
+    return mFrame.getIFrameInterval();
+  }
+
+  /**
+   * Returns the encoded data. The array is shared with every other subscriber, so it must not be
+   * modified. Empty for header frames.
+   */
+  public byte[] getData() {
+    byte[] data = mFrame.getData();
+    return data == null ? new byte[0] : data;
+  }
+
+  /** Returns the presentation time of this frame, in microseconds. */
+  public long getPresentationTimeUs() {
+    return mFrame.getPresentationTimeUs();
+  }
+
+  /** Returns the {@link android.media.MediaCodec} buffer flags of this frame. */
+  public int getFlags() {
+    return mFrame.getFlags();
+  }
+
+  /** Returns true if this frame can be decoded without any of the frames that came before it. */
+  public boolean isKeyFrame() {
+    return mFrame.isKeyFrame();
+  }
+
+  /** Returns true if this frame holds codec specific data (eg. SPS/PPS) instead of media data. */
+  public boolean isCodecConfig() {
+    return mFrame.isCodecConfig();
+  }
+
+  /** Returns true if this is the final frame of the stream. */
+  public boolean isEndOfStream() {
+    return mFrame.isEndOfStream();
+  }
+
+  /**
+   * Returns this frame in the wire format written to {@link com.xlythe.view.camera.VideoStream#getVideoInputStream()},
+   * without its length prefix.
+   */
+  public byte[] toByteArray() {
+    return mFrame.asBytes();
+  }
+
+  VideoFrame getVideoFrame() {
+    return mFrame;
+  }
+
+  @NonNull
+  @Override
+  public String toString() {
+    if (isHeader()) {
+      return "EncodedFrame{" +
+              "header" +
+              ", width=" + getWidth() +
+              ", height=" + getHeight() +
+              ", orientation=" + getOrientation() +
+              '}';
+    }
+    return "EncodedFrame{" +
+            "size=" + getData().length +
+            ", presentationTimeUs=" + getPresentationTimeUs() +
+            ", keyFrame=" + isKeyFrame() +
+            ", codecConfig=" + isCodecConfig() +
+            '}';
+  }
+}
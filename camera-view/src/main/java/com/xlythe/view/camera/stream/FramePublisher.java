@@ -0,0 +1,312 @@
+package com.xlythe.view.camera.stream;
+
+import android.util.Log;
+
+import androidx.annotation.IntDef;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+import com.xlythe.view.camera.CameraView;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the encoded frames of a {@link VideoRecorder} to any number of
+ * {@link Flow.Subscriber}s, honoring the demand that each subscriber signals. Frames are delivered
+ * on whichever thread produced them or requested them, so consumers don't need a thread of their
+ * own. Subscribers that do slow work in {@link Flow.Subscriber#onNext(Object)} should hand it off,
+ * as it otherwise holds up the encoder.
+ *
+ * Frames that arrive while a subscriber has no outstanding demand are queued for it, and once its
+ * queue is full they are handled according to its {@link Overflow} policy. Dropping an encoded frame
+ * would corrupt every frame after it up to the next key frame, so frames are only ever dropped a
+ * whole group at a time, and delivery resumes at a key frame. Header and codec config frames are
+ * never dropped, and are replayed to subscribers that join late.
+ */
+@RequiresApi(30)
+public class FramePublisher extends FrameSink implements Flow.Publisher<EncodedFrame> {
+  private static final String TAG = CameraView.class.getSimpleName();
+
+  /** The number of frames queued for a subscriber, if it didn't ask for a different amount. */
+  public static final int DEFAULT_CAPACITY = 64;
+
+  /** What to do with a subscriber's frames once its queue is full. */
+  @Retention(RetentionPolicy.SOURCE)
+  @IntDef({
+          Overflow.BUFFER,
+          Overflow.DROP_OLDEST,
+          Overflow.LATEST,
+  })
+  public @interface Overflow {
+    /**
+     * Every frame is delivered. If the queue fills up, the subscriber is failed with an
+     * {@link IllegalStateException}, as it can't keep up with the stream.
+     */
+    int BUFFER = 0;
+    /** The oldest queued frames are dropped, up until the next key frame. */
+    int DROP_OLDEST = 1;
+    /**
+     * Whenever a key frame arrives, anything still queued is dropped so that the subscriber skips
+     * ahead to the most recent frames. Useful for previews and analysis, which only care about now.
+     */
+    int LATEST = 2;
+  }
+
+  private final List<FrameSubscription> mSubscriptions = new CopyOnWriteArrayList<>();
+
+  /** The most recent header frame, replayed to subscribers that join late. Guarded by this. */
+  @Nullable private EncodedFrame mHeaderFrame;
+
+  /** The most recent codec config frame, replayed to subscribers that join late. Guarded by this. */
+  @Nullable private EncodedFrame mCodecConfigFrame;
+
+  /** Set once the stream has ended. Guarded by this. */
+  private boolean mIsClosed;
+
+  /** Subscribes with the {@link Overflow#BUFFER} policy and the default capacity. */
+  @Override
+  public void subscribe(Flow.Subscriber<? super EncodedFrame> subscriber) {
+    subscribe(subscriber, Overflow.BUFFER, DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Subscribes to the stream. The subscriber receives the current header and codec config frames,
+   * followed by the stream from its next key frame.
+   *
+   * @param overflow What to do once more than {@code capacity} frames are waiting for demand.
+   * @param capacity The number of frames that can be queued while the subscriber has no demand.
+   */
+  public void subscribe(Flow.Subscriber<? super EncodedFrame> subscriber, @Overflow int overflow, int capacity) {
+    if (subscriber == null) {
+      throw new NullPointerException("Subscriber cannot be null");
+    }
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Capacity must be at least 1");
+    }
+
+    FrameSubscription subscription = new FrameSubscription(this, subscriber, overflow, capacity);
+    synchronized (this) {
+      if (mIsClosed) {
+        subscription.complete();
+      } else {
+        if (mHeaderFrame != null) {
+          subscription.offer(mHeaderFrame);
+        }
+        if (mCodecConfigFrame != null) {
+          subscription.offer(mCodecConfigFrame);
+        }
+        mSubscriptions.add(subscription);
+      }
+    }
+    subscriber.onSubscribe(subscription);
+    subscription.drain();
+  }
+
+  /** Returns the number of subscribers currently attached. */
+  public int getSubscriberCount() {
+    return mSubscriptions.size();
+  }
+
+  @Override
+  void onFrame(VideoFrame videoFrame) {
+    EncodedFrame frame = EncodedFrame.from(videoFrame);
+
+    // Subscriptions that overflow remove themselves, but still need to be drained to learn why.
+    List<FrameSubscription> subscriptions;
+    synchronized (this) {
+      if (mIsClosed) {
+        return;
+      }
+      if (frame.isHeader()) {
+        mHeaderFrame = frame;
+      } else if (frame.isCodecConfig()) {
+        mCodecConfigFrame = frame;
+      }
+      subscriptions = new ArrayList<>(mSubscriptions);
+      for (FrameSubscription subscription : subscriptions) {
+        subscription.offer(frame);
+      }
+    }
+    for (FrameSubscription subscription : subscriptions) {
+      subscription.drain();
+    }
+  }
+
+  /** Ends the stream. Subscribers are completed once they've received the frames already queued. */
+  @Override
+  public void close() {
+    synchronized (this) {
+      if (mIsClosed) {
+        return;
+      }
+      mIsClosed = true;
+      for (FrameSubscription subscription : mSubscriptions) {
+        subscription.complete();
+      }
+    }
+    for (FrameSubscription subscription : mSubscriptions) {
+      subscription.drain();
+    }
+    mSubscriptions.clear();
+  }
+
+  private void remove(FrameSubscription subscription) {
+    mSubscriptions.remove(subscription);
+  }
+
+  @NonNull
+  @Override
+  public String toString() {
+    return "FramePublisher{" +
+            "subscribers=" + mSubscriptions.size() +
+            '}';
+  }
+
+  /** Tracks the demand and queued frames of a single subscriber. */
+  private static class FrameSubscription implements Flow.Subscription {
+    private final FramePublisher mPublisher;
+    private final Flow.Subscriber<? super EncodedFrame> mSubscriber;
+    /** Frames waiting for demand. */
+    private final FrameQueue mQueue;
+
+    /** Set once no more frames will be queued. Guarded by this. */
+    private boolean mIsDone;
+
+    /** The reason the subscription failed, if it did. Guarded by this. */
+    @Nullable private Throwable mError;
+
+    /** The number of frames the subscriber has asked for, but not yet received. */
+    private final AtomicLong mRequested = new AtomicLong();
+
+    /** Makes sure only one thread calls into the subscriber at a time. */
+    private final AtomicInteger mWorkInProgress = new AtomicInteger();
+
+    /** Set once the subscriber has cancelled, or has been sent a terminal signal. */
+    private volatile boolean mIsCancelled;
+
+    FrameSubscription(FramePublisher publisher,
+                      Flow.Subscriber<? super EncodedFrame> subscriber,
+                      @Overflow int overflow,
+                      int capacity) {
+      mPublisher = publisher;
+      mSubscriber = subscriber;
+      mQueue = new FrameQueue(overflow, capacity);
+    }
+
+    synchronized void offer(EncodedFrame frame) {
+      if (mIsDone || mIsCancelled) {
+        return;
+      }
+
+      if (!mQueue.offer(frame)) {
+        fail(new IllegalStateException("Cannot queue more than " + mQueue.getCapacity() + " frames for a subscriber that isn't keeping up"));
+      }
+    }
+
+    private void fail(Throwable error) {
+      mQueue.clear();
+      mError = error;
+      mIsDone = true;
+      mPublisher.remove(this);
+    }
+
+    synchronized void complete() {
+      mIsDone = true;
+    }
+
+    @Nullable
+    private EncodedFrame poll() {
+      return mQueue.poll();
+    }
+
+    @Override
+    public void request(long n) {
+      if (n <= 0) {
+        synchronized (this) {
+          fail(new IllegalArgumentException("Cannot request " + n + " frames"));
+        }
+        drain();
+        return;
+      }
+
+      long current;
+      long next;
+      do {
+        current = mRequested.get();
+        next = current + n;
+        if (next < 0) {
+          next = Long.MAX_VALUE;
+        }
+      } while (!mRequested.compareAndSet(current, next));
+      drain();
+    }
+
+    @Override
+    public void cancel() {
+      mIsCancelled = true;
+      mPublisher.remove(this);
+      mQueue.clear();
+    }
+
+    /**
+     * Delivers as many queued frames as the subscriber has asked for, followed by a terminal signal
+     * once the queue is empty. Safe to call from any thread.
+     */
+    void drain() {
+      if (mWorkInProgress.getAndIncrement() != 0) {
+        return;
+      }
+
+      int missed = 1;
+      do {
+        while (!mIsCancelled) {
+          Throwable error;
+          synchronized (this) {
+            error = mError;
+          }
+          if (error != null) {
+            mIsCancelled = true;
+            mSubscriber.onError(error);
+            break;
+          }
+
+          if (mRequested.get() > 0) {
+            EncodedFrame frame = poll();
+            if (frame != null) {
+              if (mRequested.get() != Long.MAX_VALUE) {
+                mRequested.decrementAndGet();
+              }
+              try {
+                mSubscriber.onNext(frame);
+              } catch (RuntimeException e) {
+                Log.e(TAG, "Subscriber threw while receiving a frame. Cancelling it.", e);
+                cancel();
+              }
+              continue;
+            }
+          }
+
+          boolean isComplete;
+          synchronized (this) {
+            isComplete = mIsDone && mQueue.isEmpty();
+          }
+          if (isComplete) {
+            mIsCancelled = true;
+            mPublisher.remove(this);
+            mSubscriber.onComplete();
+          }
+          break;
+        }
+        missed = mWorkInProgress.addAndGet(-missed);
+      } while (missed != 0);
+    }
+  }
+}
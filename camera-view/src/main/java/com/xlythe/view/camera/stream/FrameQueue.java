@@ -0,0 +1,157 @@
+package com.xlythe.view.camera.stream;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RestrictTo;
+
+import com.xlythe.view.camera.CameraView;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Holds encoded frames for a consumer that isn't ready for them yet, following a
+ * {@link FramePublisher.Overflow} policy once it's full.
+ *
+ * Dropping an encoded frame would corrupt every frame after it up to the next key frame, so frames
+ * are only ever dropped a whole group at a time, and the queue resumes at a key frame. Header and
+ * codec config frames are never dropped, and don't count towards the capacity. The queue also
+ * starts by waiting for a key frame, as a consumer can only begin decoding at one.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+public final class FrameQueue {
+  private static final String TAG = CameraView.class.getSimpleName();
+
+  @FramePublisher.Overflow private final int mOverflow;
+  private final int mCapacity;
+
+  /** Guarded by this. */
+  private final ArrayDeque<EncodedFrame> mQueue = new ArrayDeque<>();
+
+  /** The number of frames in the queue that are neither headers nor codec config. Guarded by this. */
+  private int mMediaFrameCount;
+
+  /** Set while frames are skipped until the next key frame. Guarded by this. */
+  private boolean mAwaitingKeyFrame = true;
+
+  /**
+   * @param overflow What to do once more than {@code capacity} frames are waiting.
+   * @param capacity The number of frames that can wait.
+   */
+  public FrameQueue(@FramePublisher.Overflow int overflow, int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Capacity must be at least 1");
+    }
+    mOverflow = overflow;
+    mCapacity = capacity;
+  }
+
+  /**
+   * Queues the frame, dropping older frames if the policy allows it.
+   *
+   * @return False if the queue is full and its policy is {@link FramePublisher.Overflow#BUFFER}, in
+   *     which case the consumer can't keep up and should be failed.
+   */
+  public synchronized boolean offer(EncodedFrame frame) {
+    if (frame.isHeader() || frame.isCodecConfig()) {
+      mQueue.add(frame);
+      return true;
+    }
+
+    if (mAwaitingKeyFrame) {
+      if (!frame.isKeyFrame() && !frame.isEndOfStream()) {
+        return true;
+      }
+      mAwaitingKeyFrame = false;
+    }
+
+    if (mOverflow == FramePublisher.Overflow.LATEST && frame.isKeyFrame()) {
+      dropMediaFrames(mMediaFrameCount);
+    }
+
+    mQueue.add(frame);
+    mMediaFrameCount++;
+
+    if (mMediaFrameCount > mCapacity) {
+      if (mOverflow == FramePublisher.Overflow.BUFFER) {
+        return false;
+      }
+      dropOldestGroup();
+    }
+    return true;
+  }
+
+  /** Returns the oldest frame, or null if the queue is empty. */
+  @Nullable
+  public synchronized EncodedFrame poll() {
+    EncodedFrame frame = mQueue.poll();
+    if (frame != null && !frame.isHeader() && !frame.isCodecConfig()) {
+      mMediaFrameCount--;
+    }
+    return frame;
+  }
+
+  public synchronized boolean isEmpty() {
+    return mQueue.isEmpty();
+  }
+
+  public synchronized void clear() {
+    mQueue.clear();
+    mMediaFrameCount = 0;
+  }
+
+  /** Returns the number of frames that can wait before the policy kicks in. */
+  public int getCapacity() {
+    return mCapacity;
+  }
+
+  /**
+   * Drops the oldest queued frame, and every frame after it that depends on it, stopping at the
+   * next key frame. If there is no later key frame, all frames are dropped until one arrives.
+   */
+  private void dropOldestGroup() {
+    int count = 0;
+    boolean foundKeyFrame = false;
+    for (EncodedFrame frame : mQueue) {
+      if (frame.isHeader() || frame.isCodecConfig()) {
+        continue;
+      }
+      if (count > 0 && frame.isKeyFrame()) {
+        foundKeyFrame = true;
+        break;
+      }
+      count++;
+    }
+    dropMediaFrames(count);
+    if (!foundKeyFrame) {
+      mAwaitingKeyFrame = true;
+    }
+    Log.d(TAG, "Dropped " + count + " frames for a slow consumer");
+  }
+
+  /** Removes the oldest media frames from the queue, leaving headers and codec config in place. */
+  private void dropMediaFrames(int count) {
+    Iterator<EncodedFrame> iterator = mQueue.iterator();
+    while (count > 0 && iterator.hasNext()) {
+      EncodedFrame frame = iterator.next();
+      if (frame.isHeader() || frame.isCodecConfig()) {
+        continue;
+      }
+      iterator.remove();
+      mMediaFrameCount--;
+      count--;
+    }
+  }
+
+  @NonNull
+  @Override
+  public synchronized String toString() {
+    return "FrameQueue{" +
+            "overflow=" + mOverflow +
+            ", capacity=" + mCapacity +
+            ", size=" + mQueue.size() +
+            '}';
+  }
+}
@@ -0,0 +1,28 @@
+package com.xlythe.view.camera.stream;
+
+import androidx.annotation.RequiresApi;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Receives a copy of every encoded {@link VideoFrame} that a {@link VideoRecorder} writes to its
+ * stream. Sinks let the already encoded video be reused (eg. saved to a file) without paying for a
+ * second encoder.
+ *
+ * A sink that's attached after the recorder has started will first be given the most recent
+ * {@link VideoFrame.Type#HEADER} and codec config frames, so that it can always describe the stream.
+ * Once the recorder stops, all attached sinks are closed.
+ */
+@RequiresApi(18)
+public abstract class FrameSink implements Closeable {
+  /**
+   * Called on the recorder's thread for every frame. This blocks the encoder, so implementations
+   * should return quickly. Throwing an exception detaches the sink from the recorder.
+   */
+  abstract void onFrame(VideoFrame frame) throws IOException;
+
+  /** Releases any resources held by this sink. Frames received afterwards will be ignored. */
+  @Override
+  public abstract void close();
+}
@@ -0,0 +1,642 @@
+package com.xlythe.view.camera.stream;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import androidx.annotation.VisibleForTesting;
+
+import com.xlythe.view.camera.CameraView;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * A {@link FrameSink} that cuts the encoded stream into fragmented MP4 (CMAF) segments and keeps a
+ * rolling HLS playlist alongside them. The directory can then be served by any static file server.
+ *
+ * Segments always begin on a key frame, so their duration is at least the stream's iframe interval.
+ * Within a segment, samples are flushed to disk as short fragments so that memory stays bounded no
+ * matter how long the segments are. Nothing is re-encoded.
+ */
+@RequiresApi(18)
+public class HlsSegmenter extends FrameSink {
+  private static final String TAG = CameraView.class.getSimpleName();
+
+  /** The name of the playlist written to the directory. */
+  public static final String PLAYLIST_NAME = "playlist.m3u8";
+
+  private static final long DEFAULT_SEGMENT_DURATION_MILLIS = 4000;
+  private static final long DEFAULT_FRAGMENT_DURATION_MILLIS = 500;
+  private static final int DEFAULT_MAX_SEGMENTS = 6;
+
+  /** Sample timestamps are written in units of 1/90000th of a second. */
+  private static final int TIMESCALE = 90000;
+  private static final int TRACK_ID = 1;
+
+  private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x020000;
+  private static final int TRUN_DATA_OFFSET_PRESENT = 0x000001;
+  private static final int TRUN_SAMPLE_DURATION_PRESENT = 0x000100;
+  private static final int TRUN_SAMPLE_SIZE_PRESENT = 0x000200;
+  private static final int TRUN_SAMPLE_FLAGS_PRESENT = 0x000400;
+  private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+  private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+  /** Where segments and the playlist are written. */
+  private final File mDirectory;
+
+  /** The minimum duration of a segment. Segments are only cut on key frames. */
+  private final long mSegmentDurationUs;
+
+  /** How long samples are buffered in memory before they're flushed to the segment file. */
+  private final long mFragmentDurationUs;
+
+  /** The number of segments kept on disk and in the playlist. */
+  private final int mMaxSegments;
+
+  /** Holds the moof box (or the init segment) while it's being written. */
+  private final BoxWriter mBoxWriter = new BoxWriter(4 * 1024);
+
+  /** Holds the samples of the current fragment, converted to length prefixed NAL units. */
+  private final BoxWriter mMediaData = new BoxWriter(64 * 1024);
+
+  // The samples of the current fragment. The duration of the last sample isn't known until the
+  // next one arrives, which is why fragments are only flushed once a newer sample is available.
+  private int[] mSampleSizes = new int[64];
+  private int[] mSampleDurations = new int[64];
+  private int[] mSampleFlags = new int[64];
+  private int mSampleCount;
+  private long mFragmentStartUs;
+  private long mLastPresentationTimeUs = -1;
+  private int mFragmentSequence = 1;
+
+  /** The segments currently listed in the playlist, oldest first. */
+  private final ArrayDeque<Segment> mSegments = new ArrayDeque<>();
+  private int mMediaSequence;
+  private int mDiscontinuitySequence;
+
+  /** The segment currently being written to. */
+  @Nullable private OutputStream mSegmentStream;
+  @Nullable private String mSegmentName;
+  private long mSegmentStartUs;
+
+  /** Every sample's timestamp is relative to the first sample. */
+  private long mStreamStartUs = -1;
+
+  @Nullable private VideoFrame mHeader;
+  @Nullable private byte[] mSps;
+  @Nullable private byte[] mPps;
+  @Nullable private String mInitName;
+  private int mInitCount;
+
+  private boolean mIsClosed;
+
+  private HlsSegmenter(File directory, long segmentDurationMillis, long fragmentDurationMillis, int maxSegments) {
+    mDirectory = directory;
+    mSegmentDurationUs = segmentDurationMillis * 1000;
+    mFragmentDurationUs = fragmentDurationMillis * 1000;
+    mMaxSegments = maxSegments;
+  }
+
+  /** Returns the playlist that lists the segments. */
+  public File getPlaylist() {
+    return new File(mDirectory, PLAYLIST_NAME);
+  }
+
+  @Override
+  synchronized void onFrame(VideoFrame frame) throws IOException {
+    if (mIsClosed) {
+      return;
+    }
+
+    if (frame.getType() == VideoFrame.Type.HEADER) {
+      mHeader = frame;
+      return;
+    }
+
+    if (frame.isCodecConfig()) {
+      onCodecConfig(frame);
+      return;
+    }
+
+    if (mInitName == null || frame.getData() == null || frame.getData().length == 0) {
+      return;
+    }
+
+    long presentationTimeUs = frame.getPresentationTimeUs();
+    if (mLastPresentationTimeUs >= 0 && presentationTimeUs <= mLastPresentationTimeUs) {
+      Log.w(TAG, "Dropping out of order frame at " + presentationTimeUs);
+      return;
+    }
+
+    if (mSampleCount > 0) {
+      mSampleDurations[mSampleCount - 1] = (int) (toTimescale(presentationTimeUs) - toTimescale(mLastPresentationTimeUs));
+      boolean isNewSegment = frame.isKeyFrame() && presentationTimeUs - mSegmentStartUs >= mSegmentDurationUs;
+      if (isNewSegment || presentationTimeUs - mFragmentStartUs >= mFragmentDurationUs) {
+        flushFragment();
+      }
+      if (isNewSegment) {
+        finishSegment(presentationTimeUs);
+      }
+    }
+
+    if (mSegmentStream == null) {
+      if (!frame.isKeyFrame()) {
+        // Segments must be independently decodable, so wait for the next key frame.
+        return;
+      }
+      startSegment(presentationTimeUs);
+    }
+
+    appendSample(frame);
+  }
+
+  private void onCodecConfig(VideoFrame frame) throws IOException {
+    byte[] sps = null;
+    byte[] pps = null;
+    for (byte[] unit : NalUnits.split(frame.getData())) {
+      if (unit.length == 0) {
+        continue;
+      }
+      switch (NalUnits.getType(unit[0])) {
+        case NalUnits.TYPE_SPS:
+          sps = unit;
+          break;
+        case NalUnits.TYPE_PPS:
+          pps = unit;
+          break;
+      }
+    }
+
+    if (sps == null || sps.length < 4 || pps == null) {
+      Log.w(TAG, "Ignoring codec config without an SPS and PPS");
+      return;
+    }
+
+    if (mHeader == null) {
+      Log.w(TAG, "Ignoring codec config received before the header");
+      return;
+    }
+
+    if (Arrays.equals(sps, mSps) && Arrays.equals(pps, mPps)) {
+      return;
+    }
+
+    // The encoder was reconfigured. Samples from the old configuration can't share a segment with
+    // the new one, so close out what we have. The playlist will mark the discontinuity.
+    if (mSegmentStream != null) {
+      long endUs = mLastPresentationTimeUs + getDefaultSampleDurationUs();
+      if (mSampleCount > 0) {
+        mSampleDurations[mSampleCount - 1] = (int) (toTimescale(endUs) - toTimescale(mLastPresentationTimeUs));
+        flushFragment();
+      }
+      finishSegment(endUs);
+    }
+
+    mSps = sps;
+    mPps = pps;
+    mInitName = "init_" + mInitCount++ + ".mp4";
+    writeInitSegment(new File(mDirectory, mInitName), mHeader, sps, pps);
+  }
+
+  private void writeInitSegment(File file, VideoFrame header, byte[] sps, byte[] pps) throws IOException {
+    BoxWriter w = mBoxWriter;
+    w.reset();
+
+    w.start("ftyp").fourCc("iso6").u32(0).fourCc("iso6").fourCc("cmfc").fourCc("mp41").end();
+
+    w.start("moov");
+    w.startFull("mvhd", 0, 0)
+            .u32(0) // creation time
+            .u32(0) // modification time
+            .u32(1000) // timescale
+            .u32(0) // duration
+            .u32(0x00010000) // rate
+            .u16(0x0100) // volume
+            .zeros(10);
+    writeMatrix(w, 0);
+    w.zeros(24) // pre_defined
+            .u32(TRACK_ID + 1) // next track id
+            .end();
+
+    w.start("trak");
+    w.startFull("tkhd", 0, 0x3 /* enabled, in movie */)
+            .u32(0) // creation time
+            .u32(0) // modification time
+            .u32(TRACK_ID)
+            .u32(0) // reserved
+            .u32(0) // duration
+            .zeros(8)
+            .u16(0) // layer
+            .u16(0) // alternate group
+            .u16(0) // volume
+            .u16(0); // reserved
+    writeMatrix(w, header.getOrientation());
+    w.u32((long) header.getWidth() << 16)
+            .u32((long) header.getHeight() << 16)
+            .end();
+
+    w.start("mdia");
+    w.startFull("mdhd", 0, 0)
+            .u32(0) // creation time
+            .u32(0) // modification time
+            .u32(TIMESCALE)
+            .u32(0) // duration
+            .u16(0x55C4) // language: und
+            .u16(0)
+            .end();
+    w.startFull("hdlr", 0, 0)
+            .u32(0)
+            .fourCc("vide")
+            .zeros(12)
+            .bytes("VideoHandler\0".getBytes(StandardCharsets.US_ASCII))
+            .end();
+
+    w.start("minf");
+    w.startFull("vmhd", 0, 1).u16(0).zeros(6).end();
+    w.start("dinf");
+    w.startFull("dref", 0, 0).u32(1);
+    w.startFull("url ", 0, 1 /* self contained */).end();
+    w.end();
+    w.end();
+
+    w.start("stbl");
+    w.startFull("stsd", 0, 0).u32(1);
+    w.start("avc1")
+            .zeros(6)
+            .u16(1) // data reference index
+            .zeros(16)
+            .u16(header.getWidth())
+            .u16(header.getHeight())
+            .u32(0x00480000) // 72 dpi
+            .u32(0x00480000) // 72 dpi
+            .u32(0)
+            .u16(1) // frame count
+            .zeros(32) // compressor name
+            .u16(0x0018) // depth
+            .u16(0xFFFF); // pre_defined
+    w.start("avcC")
+            .u8(1) // configuration version
+            .u8(sps[1]) // profile
+            .u8(sps[2]) // profile compatibility
+            .u8(sps[3]) // level
+            .u8(0xFF) // 4 byte NAL unit lengths
+            .u8(0xE1) // 1 SPS
+            .u16(sps.length)
+            .bytes(sps)
+            .u8(1) // 1 PPS
+            .u16(pps.length)
+            .bytes(pps);
+    if (isHighProfile(sps[1] & 0xFF)) {
+      w.u8(0xFC | 1) // 4:2:0 chroma
+              .u8(0xF8) // 8 bit luma
+              .u8(0xF8) // 8 bit chroma
+              .u8(0); // no SPS extensions
+    }
+    w.end(); // avcC
+    w.end(); // avc1
+    w.end(); // stsd
+    w.startFull("stts", 0, 0).u32(0).end();
+    w.startFull("stsc", 0, 0).u32(0).end();
+    w.startFull("stsz", 0, 0).u32(0).u32(0).end();
+    w.startFull("stco", 0, 0).u32(0).end();
+    w.end(); // stbl
+    w.end(); // minf
+    w.end(); // mdia
+    w.end(); // trak
+
+    w.start("mvex");
+    w.startFull("trex", 0, 0)
+            .u32(TRACK_ID)
+            .u32(1) // sample description index
+            .u32(0) // default duration
+            .u32(0) // default size
+            .u32(0) // default flags
+            .end();
+    w.end();
+    w.end(); // moov
+
+    try (OutputStream outputStream = new FileOutputStream(file)) {
+      w.writeTo(outputStream);
+    }
+  }
+
+  private static boolean isHighProfile(int profile) {
+    return profile == 100 || profile == 110 || profile == 122 || profile == 144;
+  }
+
+  private static void writeMatrix(BoxWriter w, int orientation) {
+    int a = 0x00010000;
+    int b = 0;
+    int c = 0;
+    int d = 0x00010000;
+    switch (orientation) {
+      case 90:
+        a = 0;
+        b = 0x00010000;
+        c = 0xFFFF0000;
+        d = 0;
+        break;
+      case 180:
+        a = 0xFFFF0000;
+        d = 0xFFFF0000;
+        break;
+      case 270:
+        a = 0;
+        b = 0xFFFF0000;
+        c = 0x00010000;
+        d = 0;
+        break;
+    }
+    w.u32(a & 0xFFFFFFFFL).u32(b & 0xFFFFFFFFL).u32(0)
+            .u32(c & 0xFFFFFFFFL).u32(d & 0xFFFFFFFFL).u32(0)
+            .u32(0).u32(0).u32(0x40000000);
+  }
+
+  private void startSegment(long presentationTimeUs) throws IOException {
+    if (mStreamStartUs < 0) {
+      mStreamStartUs = presentationTimeUs;
+    }
+    mSegmentName = "segment_" + (mMediaSequence + mSegments.size()) + ".m4s";
+    mSegmentStream = new FileOutputStream(new File(mDirectory, mSegmentName));
+    mSegmentStartUs = presentationTimeUs;
+  }
+
+  private void appendSample(VideoFrame frame) {
+    if (mSampleCount == mSampleSizes.length) {
+      int capacity = mSampleCount * 2;
+      mSampleSizes = Arrays.copyOf(mSampleSizes, capacity);
+      mSampleDurations = Arrays.copyOf(mSampleDurations, capacity);
+      mSampleFlags = Arrays.copyOf(mSampleFlags, capacity);
+    }
+    if (mSampleCount == 0) {
+      mFragmentStartUs = frame.getPresentationTimeUs();
+    }
+
+    // MP4 stores NAL units prefixed by their length, rather than separated by start codes.
+    byte[] data = frame.getData();
+    int sizeBefore = mMediaData.size();
+    int payload = NalUnits.findPayload(data, 0, data.length);
+    if (payload == data.length) {
+      mMediaData.u32(data.length).bytes(data);
+    } else {
+      while (payload < data.length) {
+        int payloadEnd = NalUnits.findPayloadEnd(data, payload, data.length);
+        if (payloadEnd > payload) {
+          mMediaData.u32(payloadEnd - payload).bytes(data, payload, payloadEnd - payload);
+        }
+        payload = NalUnits.findPayload(data, payloadEnd, data.length);
+      }
+    }
+
+    mSampleSizes[mSampleCount] = mMediaData.size() - sizeBefore;
+    mSampleDurations[mSampleCount] = 0;
+    mSampleFlags[mSampleCount] = frame.isKeyFrame() ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC;
+    mSampleCount++;
+    mLastPresentationTimeUs = frame.getPresentationTimeUs();
+  }
+
+  /** Writes the buffered samples to the current segment as a moof/mdat pair. */
+  private void flushFragment() throws IOException {
+    OutputStream outputStream = mSegmentStream;
+    if (mSampleCount == 0 || outputStream == null) {
+      return;
+    }
+
+    BoxWriter w = mBoxWriter;
+    w.reset();
+    w.start("moof");
+    w.startFull("mfhd", 0, 0).u32(mFragmentSequence++).end();
+    w.start("traf");
+    w.startFull("tfhd", 0, TFHD_DEFAULT_BASE_IS_MOOF).u32(TRACK_ID).end();
+    w.startFull("tfdt", 1, 0).u64(toTimescale(mFragmentStartUs)).end();
+    w.startFull("trun", 0, TRUN_DATA_OFFSET_PRESENT
+            | TRUN_SAMPLE_DURATION_PRESENT
+            | TRUN_SAMPLE_SIZE_PRESENT
+            | TRUN_SAMPLE_FLAGS_PRESENT)
+            .u32(mSampleCount);
+    int dataOffsetPosition = w.size();
+    w.u32(0);
+    for (int i = 0; i < mSampleCount; i++) {
+      w.u32(mSampleDurations[i] & 0xFFFFFFFFL).u32(mSampleSizes[i]).u32(mSampleFlags[i] & 0xFFFFFFFFL);
+    }
+    w.end(); // trun
+    w.end(); // traf
+    w.end(); // moof
+
+    // The data offset is relative to the start of the moof, and points past the mdat header.
+    w.set32(dataOffsetPosition, w.size() + 8);
+    w.u32(8 + mMediaData.size()).fourCc("mdat");
+    w.writeTo(outputStream);
+    mMediaData.writeTo(outputStream);
+
+    mMediaData.reset();
+    mSampleCount = 0;
+  }
+
+  private void finishSegment(long endUs) throws IOException {
+    OutputStream outputStream = mSegmentStream;
+    if (outputStream == null) {
+      return;
+    }
+    mSegmentStream = null;
+    outputStream.close();
+
+    mSegments.add(new Segment(mSegmentName, mInitName, (endUs - mSegmentStartUs) / 1_000_000d));
+    while (mSegments.size() > mMaxSegments) {
+      removeOldestSegment();
+    }
+    writePlaylist(false /* ended */);
+  }
+
+  private void removeOldestSegment() {
+    Segment segment = mSegments.removeFirst();
+    mMediaSequence++;
+    delete(new File(mDirectory, segment.name));
+
+    Segment next = mSegments.peekFirst();
+    if (next != null && !next.initName.equals(segment.initName)) {
+      // The discontinuity between the two segments has scrolled out of the playlist.
+      mDiscontinuitySequence++;
+    }
+    if ((next == null || !next.initName.equals(segment.initName)) && !segment.initName.equals(mInitName)) {
+      delete(new File(mDirectory, segment.initName));
+    }
+  }
+
+  private void writePlaylist(boolean ended) throws IOException {
+    long targetDuration = (long) Math.ceil(mSegmentDurationUs / 1_000_000d);
+    for (Segment segment : mSegments) {
+      targetDuration = Math.max(targetDuration, Math.round(segment.durationSeconds));
+    }
+
+    StringBuilder builder = new StringBuilder();
+    builder.append("#EXTM3U\n");
+    builder.append("#EXT-X-VERSION:7\n");
+    builder.append("#EXT-X-TARGETDURATION:").append(targetDuration).append('\n');
+    builder.append("#EXT-X-MEDIA-SEQUENCE:").append(mMediaSequence).append('\n');
+    if (mDiscontinuitySequence > 0) {
+      builder.append("#EXT-X-DISCONTINUITY-SEQUENCE:").append(mDiscontinuitySequence).append('\n');
+    }
+    builder.append("#EXT-X-INDEPENDENT-SEGMENTS\n");
+    String initName = null;
+    for (Segment segment : mSegments) {
+      if (!segment.initName.equals(initName)) {
+        if (initName != null) {
+          builder.append("#EXT-X-DISCONTINUITY\n");
+        }
+        initName = segment.initName;
+        builder.append("#EXT-X-MAP:URI=\"").append(initName).append("\"\n");
+      }
+      builder.append(String.format(Locale.US, "#EXTINF:%.3f,\n", segment.durationSeconds));
+      builder.append(segment.name).append('\n');
+    }
+    if (ended) {
+      builder.append("#EXT-X-ENDLIST\n");
+    }
+
+    // Write to a temporary file first, so that a reader never sees a half written playlist.
+    File playlist = getPlaylist();
+    File temp = new File(mDirectory, PLAYLIST_NAME + ".tmp");
+    try (Writer writer = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+      writer.write(builder.toString());
+    }
+    if (!temp.renameTo(playlist)) {
+      throw new IOException("Failed to update playlist " + playlist);
+    }
+  }
+
+  private long getDefaultSampleDurationUs() {
+    VideoFrame header = mHeader;
+    if (header != null && header.getFrameRate() > 0) {
+      return 1_000_000L / header.getFrameRate();
+    }
+    return 33_333L;
+  }
+
+  /**
+   * Returns the time since the stream started, in the track's timescale. Kept as a long, as at 90kHz
+   * it passes the range of an int after about 6.6 hours.
+   */
+  private long toTimescale(long presentationTimeUs) {
+    return (presentationTimeUs - mStreamStartUs) * TIMESCALE / 1_000_000L;
+  }
+
+  private static void delete(File file) {
+    if (file.exists() && !file.delete()) {
+      Log.w(TAG, "Failed to delete " + file);
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    if (mIsClosed) {
+      return;
+    }
+    mIsClosed = true;
+
+    try {
+      if (mSegmentStream != null) {
+        long endUs = mLastPresentationTimeUs + getDefaultSampleDurationUs();
+        if (mSampleCount > 0) {
+          mSampleDurations[mSampleCount - 1] = (int) (toTimescale(endUs) - toTimescale(mLastPresentationTimeUs));
+          flushFragment();
+        }
+        finishSegment(endUs);
+      }
+      if (!mSegments.isEmpty()) {
+        writePlaylist(true /* ended */);
+      }
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to finalize HLS playlist in " + mDirectory, e);
+    } finally {
+      OutputStream outputStream = mSegmentStream;
+      if (outputStream != null) {
+        try {
+          outputStream.close();
+        } catch (IOException e) {
+          // ignored
+        }
+      }
+    }
+  }
+
+  @NonNull
+  @Override
+  public String toString() {
+    return "HlsSegmenter{" +
+            "directory=" + mDirectory +
+            ", mediaSequence=" + mMediaSequence +
+            ", segments=" + mSegments.size() +
+            '}';
+  }
+
+  @VisibleForTesting
+  synchronized int getSegmentCount() {
+    return mSegments.size();
+  }
+
+  private static class Segment {
+    final String name;
+    final String initName;
+    final double durationSeconds;
+
+    Segment(String name, String initName, double durationSeconds) {
+      this.name = name;
+      this.initName = initName;
+      this.durationSeconds = durationSeconds;
+    }
+  }
+
+  public static class Builder {
+    private final File mDirectory;
+    private long mSegmentDurationMillis = DEFAULT_SEGMENT_DURATION_MILLIS;
+    private long mFragmentDurationMillis = DEFAULT_FRAGMENT_DURATION_MILLIS;
+    private int mMaxSegments = DEFAULT_MAX_SEGMENTS;
+
+    /** @param directory Where the segments and playlist will be written. */
+    public Builder(File directory) {
+      mDirectory = directory;
+    }
+
+    /**
+     * Sets the minimum duration of each segment. Segments are only cut on key frames, so pair this
+     * with {@link com.xlythe.view.camera.VideoStream.Params.Builder#setIFrameInterval(int)}.
+     */
+    public Builder setSegmentDuration(long durationMillis) {
+      mSegmentDurationMillis = durationMillis;
+      return this;
+    }
+
+    /** Sets how long samples are held in memory before they're flushed to the current segment. */
+    public Builder setFragmentDuration(long durationMillis) {
+      mFragmentDurationMillis = durationMillis;
+      return this;
+    }
+
+    /** Sets how many segments are kept. Older segments are deleted from disk. */
+    public Builder setMaxSegments(int maxSegments) {
+      mMaxSegments = maxSegments;
+      return this;
+    }
+
+    public HlsSegmenter build() throws IOException {
+      if (mMaxSegments < 1) {
+        throw new IllegalArgumentException("At least one segment must be kept");
+      }
+      if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+        throw new IOException("Unable to create directory " + mDirectory);
+      }
+      return new HlsSegmenter(mDirectory, mSegmentDurationMillis, mFragmentDurationMillis, mMaxSegments);
+    }
+  }
+}
@@ -0,0 +1,156 @@
+package com.xlythe.view.camera.stream;
+
+/**
+ * IMA ADPCM. Each sample is stored as a 4 bit difference from a prediction, scaled by a step size
+ * that adapts to how loud the audio is.
+ *
+ * The encoder's prediction carries on from one packet to the next, but each packet starts with a
+ * small header holding the prediction and step it began with. A packet can then be decoded without
+ * the ones before it, which keeps lost packets from throwing the decoder off.
+ *
+ * <pre>
+ * [predictor: 16 bits, little endian][step index: 8 bits][padding: 8 bits][samples: 4 bits each]
+ * </pre>
+ * Samples are packed low nibble first. If the padding byte is 1, the final nibble isn't a sample.
+ */
+final class ImaAdpcmCodec extends AudioCodec {
+  /** The size of the header at the start of each packet. */
+  static final int HEADER_SIZE = 4;
+
+  private static final int[] STEPS = {
+          7, 8, 9, 10, 11, 12, 13, 14, 16, 17,
+          19, 21, 23, 25, 28, 31, 34, 37, 41, 45,
+          50, 55, 60, 66, 73, 80, 88, 97, 107, 118,
+          130, 143, 157, 173, 190, 209, 230, 253, 279, 307,
+          337, 371, 408, 449, 494, 544, 598, 658, 724, 796,
+          876, 963, 1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066,
+          2272, 2499, 2749, 3024, 3327, 3660, 4026, 4428, 4871, 5358,
+          5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487, 12635, 13899,
+          15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767
+  };
+
+  /** How the step index moves after each nibble. Large differences grow the step, small shrink it. */
+  private static final int[] INDEX_CHANGES = {
+          -1, -1, -1, -1, 2, 4, 6, 8,
+          -1, -1, -1, -1, 2, 4, 6, 8
+  };
+
+  /** The encoder's prediction of the next sample. */
+  private int mPredictor;
+
+  /** The encoder's current position in {@link #STEPS}. */
+  private int mIndex;
+
+  @Override
+  public int getType() {
+    return Type.IMA_ADPCM;
+  }
+
+  @Override
+  public int getMaxEncodedSize(int samples) {
+    return HEADER_SIZE + (samples + 1) / 2;
+  }
+
+  @Override
+  public int encode(byte[] pcm, int len, byte[] out) {
+    int samples = len / AudioBuffer.BYTES_PER_FRAME;
+    out[0] = (byte) mPredictor;
+    out[1] = (byte) (mPredictor >> 8);
+    out[2] = (byte) mIndex;
+    out[3] = (byte) (samples % 2);
+
+    int predictor = mPredictor;
+    int index = mIndex;
+    for (int i = 0; i < samples; i++) {
+      int sample = readSample(pcm, i * AudioBuffer.BYTES_PER_FRAME);
+      int step = STEPS[index];
+
+      // Find the nibble whose difference lands closest to the sample, working out the difference
+      // the decoder will see along the way.
+      int diff = sample - predictor;
+      int nibble = 0;
+      if (diff < 0) {
+        nibble = 8;
+        diff = -diff;
+      }
+      int delta = step >> 3;
+      if (diff >= step) {
+        nibble |= 4;
+        diff -= step;
+        delta += step;
+      }
+      step >>= 1;
+      if (diff >= step) {
+        nibble |= 2;
+        diff -= step;
+        delta += step;
+      }
+      step >>= 1;
+      if (diff >= step) {
+        nibble |= 1;
+        delta += step;
+      }
+
+      predictor = clamp((nibble & 8) != 0 ? predictor - delta : predictor + delta);
+      index = clampIndex(index + INDEX_CHANGES[nibble]);
+
+      int offset = HEADER_SIZE + i / 2;
+      if (i % 2 == 0) {
+        out[offset] = (byte) nibble;
+      } else {
+        out[offset] |= (byte) (nibble << 4);
+      }
+    }
+
+    mPredictor = predictor;
+    mIndex = index;
+    return getMaxEncodedSize(samples);
+  }
+
+  @Override
+  public int getSampleCount(byte[] data, int len) {
+    if (len < HEADER_SIZE) {
+      return 0;
+    }
+    return (len - HEADER_SIZE) * 2 - (data[3] == 1 ? 1 : 0);
+  }
+
+  @Override
+  public int decode(byte[] data, int len, short[] out) {
+    int samples = getSampleCount(data, len);
+    if (samples <= 0) {
+      return 0;
+    }
+
+    int predictor = (short) ((data[0] & 0xFF) | (data[1] << 8));
+    int index = clampIndex(data[2]);
+    for (int i = 0; i < samples; i++) {
+      int nibble = (data[HEADER_SIZE + i / 2] >> ((i % 2) * 4)) & 0x0F;
+      int step = STEPS[index];
+
+      int delta = step >> 3;
+      if ((nibble & 4) != 0) {
+        delta += step;
+      }
+      if ((nibble & 2) != 0) {
+        delta += step >> 1;
+      }
+      if ((nibble & 1) != 0) {
+        delta += step >> 2;
+      }
+
+      predictor = clamp((nibble & 8) != 0 ? predictor - delta : predictor + delta);
+      index = clampIndex(index + INDEX_CHANGES[nibble]);
+      out[i] = (short) predictor;
+    }
+    return samples;
+  }
+
+  private static int clamp(int sample) {
+    return Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+  }
+
+  private static int clampIndex(int index) {
+    return Math.max(0, Math.min(STEPS.length - 1, index));
+  }
+}
@@ -0,0 +1,123 @@
+package com.xlythe.view.camera.stream;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+
+import com.google.common.primitives.Ints;
+import com.xlythe.view.camera.CameraView;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A {@link FrameSink} that saves the video channel of a stream to a file, in the same length
+ * prefixed format that {@link VideoRecorder} writes. Alongside it, an index of every key frame is
+ * built up so that {@link StreamFileReader} can later jump straight to any point in the recording.
+ */
+@RequiresApi(18)
+public class IndexedFileSink extends FrameSink {
+  private static final String TAG = CameraView.class.getSimpleName();
+
+  /** The file we're writing frames to. */
+  private final File mFile;
+
+  private final OutputStream mOutputStream;
+  private final DataOutputStream mIndexOutputStream;
+
+  /** The number of bytes written to the file so far. */
+  private long mPosition;
+
+  /** Where the most recent header and codec config were written, or -1 if they haven't been. */
+  private long mHeaderOffset = -1;
+  private long mCodecConfigOffset = -1;
+
+  /** The timestamp of the last indexed key frame. Timestamps must increase for seeking to work. */
+  private long mLastIndexedTimeUs = Long.MIN_VALUE;
+
+  private boolean mIsClosed;
+
+  /**
+   * Creates a file sink.
+   *
+   * @param file The destination. Any existing file, and its index, will be overwritten.
+   */
+  public IndexedFileSink(File file) throws IOException {
+    mFile = file;
+    mOutputStream = new BufferedOutputStream(new FileOutputStream(file));
+    try {
+      mIndexOutputStream = new DataOutputStream(new BufferedOutputStream(
+              new FileOutputStream(KeyFrameIndex.sidecarFor(file))));
+    } catch (IOException e) {
+      mOutputStream.close();
+      throw e;
+    }
+  }
+
+  /** Returns the file being written to. */
+  public File getFile() {
+    return mFile;
+  }
+
+  @Override
+  synchronized void onFrame(VideoFrame frame) throws IOException {
+    if (mIsClosed) {
+      return;
+    }
+
+    long offset = mPosition;
+    byte[] bytes = frame.asBytes();
+    mOutputStream.write(Ints.toByteArray(bytes.length));
+    mOutputStream.write(bytes);
+    mPosition += 4 + bytes.length;
+
+    if (frame.getType() == VideoFrame.Type.HEADER) {
+      mHeaderOffset = offset;
+    } else if (frame.isCodecConfig()) {
+      mCodecConfigOffset = offset;
+    } else if (frame.isKeyFrame()
+            && mHeaderOffset >= 0
+            && mCodecConfigOffset >= 0
+            && frame.getPresentationTimeUs() > mLastIndexedTimeUs) {
+      // The frame must be on disk before the index points to it, or a reader could seek past the
+      // end of the file.
+      mOutputStream.flush();
+      KeyFrameIndex.writeEntry(mIndexOutputStream, frame.getPresentationTimeUs(), offset, mHeaderOffset, mCodecConfigOffset);
+      mIndexOutputStream.flush();
+      mLastIndexedTimeUs = frame.getPresentationTimeUs();
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    if (mIsClosed) {
+      return;
+    }
+    mIsClosed = true;
+
+    try {
+      mOutputStream.close();
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to close " + mFile, e);
+    }
+    try {
+      mIndexOutputStream.close();
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to close the index of " + mFile, e);
+    }
+  }
+
+  @NonNull
+  @Override
+  public String toString() {
+    return "IndexedFileSink{" +
+            "file=" + mFile +
+            ", bytes=" + mPosition +
+            '}';
+  }
+}
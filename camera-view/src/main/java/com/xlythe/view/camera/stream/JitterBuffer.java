@@ -0,0 +1,491 @@
+package com.xlythe.view.camera.stream;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Holds back packets of audio for a short while, so that playback can continue smoothly while
+ * packets arrive late, unevenly or not at all. Packets are put in as they arrive, and samples are
+ * read out at the rate the speaker plays them.
+ *
+ * The buffer aims to hold just enough audio to ride out the jitter it has measured. It speeds up
+ * or slows down playback by a couple of percent to drift back towards that target, which is too
+ * little to hear in speech, and discards audio outright if it falls far behind. Lost packets are
+ * concealed by repeating the previous packet as it fades into comfort noise. Silence markers are
+ * filled back in with comfort noise too, or with silence if it's disabled.
+ *
+ * Samples are mono, 16 bit PCM. Reading never allocates, and once packets have been played their
+ * arrays are handed back out by {@link #obtainBuffer(int)}, so that receiving needn't either.
+ */
+final class JitterBuffer {
+  /** The least audio the buffer aims to hold, even when packets arrive perfectly evenly. */
+  static final int MIN_DELAY_MS = 20;
+
+  /** The most audio the buffer aims to hold, no matter how much packets jitter. */
+  static final int MAX_TARGET_DELAY_MS = 250;
+
+  /** Beyond this, playback is too far behind to catch up gradually, and old packets are discarded. */
+  static final int MAX_DELAY_MS = 500;
+
+  /** How much faster or slower playback runs while drifting towards the target delay. */
+  static final float MAX_RATE_CHANGE = 0.02f;
+
+  /** The number of packets that a lost packet's predecessor is repeated for, as it fades out. */
+  static final int MAX_REPEATS = 3;
+
+  /** How many played packets' arrays are kept around to be reused. */
+  private static final int MAX_FREE_BUFFERS = 8;
+
+  /** The loudest comfort noise will get. Roughly -40dBFS. */
+  private static final int MAX_COMFORT_NOISE = 300;
+
+  /** How strongly the jitter estimate reacts to each packet. 1/16, as in RFC 3550. */
+  private static final int JITTER_SMOOTHING = 16;
+
+  private final int mSampleRate;
+
+  /** Packets waiting to be played, keyed by sequence number. */
+  private final TreeMap<Integer, Packet> mPackets = new TreeMap<>();
+
+  /** The number of samples waiting to be played, including the rest of the current packet. */
+  private int mBufferedSamples;
+
+  /** True until enough audio has arrived to start playing. */
+  private boolean mIsBuffering = true;
+
+  /** The sequence number of the next packet to play, once playback has started. */
+  private int mNextSequence;
+  private boolean mHasNextSequence;
+
+  /** The audio being played. Either a received packet, or {@link #mConcealment}. */
+  private short[] mCurrent = new short[0];
+  private int mCurrentLength;
+  private int mCurrentOffset;
+  /** True if the audio being played is standing in for a packet that was never received. */
+  private boolean mIsCurrentConcealed;
+
+  /** True while concealing a packet that hasn't arrived yet, rather than one that was lost. */
+  private boolean mIsWaiting;
+
+  /** A copy of the last received packet that was played, used to conceal the packets after it. */
+  private short[] mLastPacket = new short[0];
+  private int mLastPacketLength;
+
+  /** Reused to hold concealed audio and comfort noise. */
+  private short[] mConcealment = new short[0];
+
+  /** Arrays from packets that have been played or discarded, waiting to be reused. */
+  private final ArrayDeque<short[]> mFreeBuffers = new ArrayDeque<>();
+
+  /** The number of packets concealed since a received packet was last played. */
+  private int mRepeats;
+
+  /** The samples being interpolated between, and how far between them playback is. */
+  private short mSample;
+  private short mNextSample;
+  private boolean mHasSample;
+  private boolean mHasNextSample;
+  private float mPhase;
+
+  /** The most recent transit time, and the smoothed variation in transit times. */
+  private long mLastTransitUs;
+  private boolean mHasTransit;
+  private long mJitterUs;
+
+  /** The length of the most recently received audio. Concealed packets are made this long. */
+  private int mPacketLength;
+
+  /** The level of the quietest recent audio, which comfort noise is played at. */
+  private int mNoiseLevel = MAX_COMFORT_NOISE;
+  private int mNoiseSeed = 0x2545F491;
+  private boolean mIsComfortNoiseEnabled = true;
+
+  private long mConcealedPacketCount;
+  private long mDiscardedPacketCount;
+
+  /** Optionally records concealed and discarded packets, and how much audio is buffered. */
+  @Nullable private volatile StreamMetrics mMetrics;
+
+  JitterBuffer(int sampleRate) {
+    mSampleRate = sampleRate;
+    mPacketLength = sampleRate * MIN_DELAY_MS / 1000;
+  }
+
+  void setMetrics(@Nullable StreamMetrics metrics) {
+    mMetrics = metrics;
+  }
+
+  /**
+   * Sets whether gaps are filled with a faint hiss matching the sender's background noise, or
+   * with silence. Dead silence between words can sound like the call has dropped.
+   */
+  synchronized void setComfortNoiseEnabled(boolean enabled) {
+    mIsComfortNoiseEnabled = enabled;
+  }
+
+  /**
+   * Adds a packet that has just arrived.
+   *
+   * @param sequence The packet's sequence number. Gaps are treated as lost packets.
+   * @param presentationTimeUs When the packet was recorded, on the recorder's clock.
+   * @param samples The packet's audio. Owned by the buffer from now on.
+   * @param arrivalTimeUs When the packet arrived, on the player's clock. Only differences between
+   *     arrival times are used, so the two clocks don't need to agree.
+   */
+  synchronized void put(int sequence, long presentationTimeUs, short[] samples, long arrivalTimeUs) {
+    put(sequence, presentationTimeUs, samples, samples.length, arrivalTimeUs);
+  }
+
+  /**
+   * Adds a packet that has just arrived, whose audio is the first {@code length} samples of the
+   * array. Usually the array came from {@link #obtainBuffer(int)}.
+   *
+   * @see #put(int, long, short[], long)
+   */
+  synchronized void put(int sequence, long presentationTimeUs, short[] samples, int length, long arrivalTimeUs) {
+    add(sequence, presentationTimeUs, new Packet(samples, length), arrivalTimeUs);
+    mPacketLength = length;
+  }
+
+  /**
+   * Returns an array of at least {@code length} samples to decode the next packet into. The array
+   * is reused once the packet it's put in with has been played.
+   */
+  synchronized short[] obtainBuffer(int length) {
+    short[] buffer = mFreeBuffers.poll();
+    return buffer != null && buffer.length >= length ? buffer : new short[length];
+  }
+
+  private void recycle(@Nullable short[] buffer) {
+    if (buffer != null && buffer.length > 0 && buffer != mConcealment && mFreeBuffers.size() < MAX_FREE_BUFFERS) {
+      mFreeBuffers.add(buffer);
+    }
+  }
+
+  /**
+   * Adds a silence marker that has just arrived, which stands in for a packet of silent audio.
+   *
+   * @param durationUs How long the silence lasts.
+   * @see #put(int, long, short[], long)
+   */
+  synchronized void putSilence(int sequence, long presentationTimeUs, long durationUs, long arrivalTimeUs) {
+    int length = (int) ((durationUs * mSampleRate + 500_000) / 1_000_000);
+    add(sequence, presentationTimeUs, new Packet(null, length), arrivalTimeUs);
+  }
+
+  private void add(int sequence, long presentationTimeUs, Packet packet, long arrivalTimeUs) {
+    long transitUs = arrivalTimeUs - presentationTimeUs;
+    if (mHasTransit) {
+      long deltaUs = Math.abs(transitUs - mLastTransitUs);
+      mJitterUs += (deltaUs - mJitterUs) / JITTER_SMOOTHING;
+    }
+    mLastTransitUs = transitUs;
+    mHasTransit = true;
+
+    if ((mHasNextSequence && sequence < mNextSequence) || mPackets.containsKey(sequence)) {
+      // Too late to be played, or a duplicate.
+      recycle(packet.mSamples);
+      onDiscarded();
+      return;
+    }
+
+    mPackets.put(sequence, packet);
+    mBufferedSamples += packet.mLength;
+
+    // If playback has stalled long enough for this much to pile up, slowly speeding up won't catch
+    // up in any reasonable time. Jump ahead instead.
+    if (mBufferedSamples > toSamples(MAX_DELAY_MS * 1000L)) {
+      int targetSamples = getTargetDelaySamples();
+      while (mBufferedSamples > targetSamples && mPackets.size() > 1) {
+        Map.Entry<Integer, Packet> oldest = mPackets.pollFirstEntry();
+        mBufferedSamples -= oldest.getValue().mLength;
+        recycle(oldest.getValue().mSamples);
+        mNextSequence = oldest.getKey() + 1;
+        mHasNextSequence = true;
+        onDiscarded();
+      }
+    }
+  }
+
+  /** Fills {@code out} with the next {@code count} samples to play. Never blocks. */
+  synchronized void read(short[] out, int count) {
+    if (mIsBuffering) {
+      if (mBufferedSamples < getTargetDelaySamples()) {
+        Arrays.fill(out, 0, count, (short) 0);
+        reportDelay();
+        return;
+      }
+      mIsBuffering = false;
+    }
+
+    if (!mHasSample) {
+      mSample = nextSample();
+      mHasSample = true;
+    }
+
+    float step = getPlaybackRate();
+    for (int i = 0; i < count; i++) {
+      while (mPhase >= 1) {
+        mPhase -= 1;
+        mSample = mHasNextSample ? mNextSample : nextSample();
+        mHasNextSample = false;
+      }
+
+      // The following sample is only pulled in when it's needed for interpolating, so that
+      // playing at normal speed never reaches past the audio that has arrived.
+      if (mPhase > 0) {
+        if (!mHasNextSample) {
+          mNextSample = nextSample();
+          mHasNextSample = true;
+        }
+        out[i] = (short) (mSample + (mNextSample - mSample) * mPhase);
+      } else {
+        out[i] = mSample;
+      }
+      mPhase += step;
+    }
+    reportDelay();
+  }
+
+  /**
+   * Returns how many source samples are played per output sample. Above 1 to catch up when too
+   * much audio is buffered, and below 1 to build up a cushion when too little is.
+   */
+  synchronized float getPlaybackRate() {
+    int targetSamples = getTargetDelaySamples();
+    int toleranceSamples = Math.max(mPacketLength, targetSamples / 2);
+    if (mBufferedSamples > targetSamples + toleranceSamples) {
+      return 1 + MAX_RATE_CHANGE;
+    }
+    if (mBufferedSamples < targetSamples - toleranceSamples / 2) {
+      return 1 - MAX_RATE_CHANGE;
+    }
+    return 1;
+  }
+
+  private short nextSample() {
+    // If the packet being waited on turns up, it's played straight away rather than letting the
+    // concealment run on and add to the delay.
+    if (mCurrentOffset >= mCurrentLength || (mIsWaiting && mPackets.containsKey(mNextSequence))) {
+      nextPacket();
+    }
+    if (!mIsCurrentConcealed) {
+      mBufferedSamples--;
+    }
+    return mCurrent[mCurrentOffset++];
+  }
+
+  private void nextPacket() {
+    Map.Entry<Integer, Packet> first = mPackets.firstEntry();
+    if (first != null && (!mHasNextSequence || first.getKey() == mNextSequence)) {
+      mPackets.pollFirstEntry();
+      mNextSequence = first.getKey() + 1;
+      mHasNextSequence = true;
+      play(first.getValue());
+    } else if (first != null) {
+      // A later packet is here, so the next one was lost. Skip over it.
+      mNextSequence++;
+      mIsWaiting = false;
+      conceal();
+    } else {
+      // Nothing has arrived yet. Fill the gap, and play the packet late once it does arrive.
+      mIsWaiting = true;
+      conceal();
+    }
+  }
+
+  private void play(Packet packet) {
+    mIsWaiting = false;
+    mRepeats = 0;
+    if (packet.mSamples == null) {
+      playSilence(packet.mLength);
+    } else {
+      playSamples(packet.mSamples, packet.mLength);
+    }
+
+    if (packet.mLength == 0) {
+      // Nothing to play. Move straight on to the next packet.
+      nextPacket();
+    }
+  }
+
+  private void playSamples(short[] samples, int length) {
+    setCurrent(samples, length, false);
+
+    if (mLastPacket.length < length) {
+      mLastPacket = new short[length];
+    }
+    System.arraycopy(samples, 0, mLastPacket, 0, length);
+    mLastPacketLength = length;
+    updateNoiseLevel(samples, length);
+  }
+
+  /** Starts playing the given audio, handing back the previous packet's array to be reused. */
+  private void setCurrent(short[] samples, int length, boolean isConcealed) {
+    recycle(mCurrent);
+    mCurrent = samples;
+    mCurrentLength = length;
+    mCurrentOffset = 0;
+    mIsCurrentConcealed = isConcealed;
+  }
+
+  /** Plays comfort noise in place of a silence marker. */
+  private void playSilence(int length) {
+    if (mConcealment.length < length) {
+      mConcealment = new short[length];
+    }
+    for (int i = 0; i < length; i++) {
+      mConcealment[i] = (short) nextNoise();
+    }
+
+    setCurrent(mConcealment, length, false);
+
+    // There's nothing worth repeating if the packet after this is lost.
+    mLastPacketLength = 0;
+  }
+
+  /**
+   * Replaces a missing packet. The previous packet is repeated, fading a little more each time,
+   * with comfort noise underneath so that the gap never drops to dead silence.
+   */
+  private void conceal() {
+    int length = Math.max(1, mPacketLength);
+    if (mConcealment.length < length) {
+      mConcealment = new short[length];
+    }
+
+    float fromGain = Math.max(0, 1 - (float) mRepeats / MAX_REPEATS);
+    mRepeats++;
+    float toGain = Math.max(0, 1 - (float) mRepeats / MAX_REPEATS);
+    for (int i = 0; i < length; i++) {
+      int sample = nextNoise();
+      if (fromGain > 0 && mLastPacketLength > 0) {
+        float gain = fromGain + (toGain - fromGain) * i / length;
+        sample += (int) (mLastPacket[i % mLastPacketLength] * gain);
+      }
+      mConcealment[i] = clamp(sample);
+    }
+
+    setCurrent(mConcealment, length, true);
+    mConcealedPacketCount++;
+    StreamMetrics metrics = mMetrics;
+    if (metrics != null) {
+      metrics.onAudioPacketConcealed();
+    }
+  }
+
+  /** Tracks the level of the quietest recent audio. Drops instantly, but rises slowly. */
+  private void updateNoiseLevel(short[] packet, int length) {
+    if (length == 0) {
+      return;
+    }
+    long sum = 0;
+    for (int i = 0; i < length; i++) {
+      sum += Math.abs(packet[i]);
+    }
+    int level = Math.min(MAX_COMFORT_NOISE, (int) (sum / length));
+    if (level < mNoiseLevel) {
+      mNoiseLevel = level;
+    } else {
+      mNoiseLevel += (level - mNoiseLevel + 15) / 16;
+    }
+  }
+
+  /** Returns white noise at the current noise level, or 0 if comfort noise is disabled. */
+  private int nextNoise() {
+    if (!mIsComfortNoiseEnabled) {
+      return 0;
+    }
+    // xorshift32. Cheap, and good enough to be heard as hiss.
+    mNoiseSeed ^= mNoiseSeed << 13;
+    mNoiseSeed ^= mNoiseSeed >>> 17;
+    mNoiseSeed ^= mNoiseSeed << 5;
+    return (int) ((long) mNoiseSeed * mNoiseLevel >> 31);
+  }
+
+  private void onDiscarded() {
+    mDiscardedPacketCount++;
+    StreamMetrics metrics = mMetrics;
+    if (metrics != null) {
+      metrics.onAudioPacketDiscarded();
+    }
+  }
+
+  private void reportDelay() {
+    StreamMetrics metrics = mMetrics;
+    if (metrics != null) {
+      metrics.onAudioJitterBufferDelay(getDelayUs());
+    }
+  }
+
+  /** Returns how much audio the buffer is aiming to hold, in samples. */
+  private int getTargetDelaySamples() {
+    return toSamples(getTargetDelayUs());
+  }
+
+  /**
+   * Returns how much audio the buffer is aiming to hold. Enough for a packet, plus four times the
+   * measured jitter, which covers nearly all late packets without holding back more than needed.
+   */
+  synchronized long getTargetDelayUs() {
+    long packetUs = mPacketLength * 1_000_000L / mSampleRate;
+    long targetUs = Math.max(MIN_DELAY_MS * 1000L, packetUs) + 4 * mJitterUs;
+    return Math.min(targetUs, MAX_TARGET_DELAY_MS * 1000L);
+  }
+
+  /** Returns how much audio is waiting to be played. */
+  synchronized long getDelayUs() {
+    return Math.max(0, mBufferedSamples) * 1_000_000L / mSampleRate;
+  }
+
+  /** Returns the smoothed variation in how long packets take to arrive. */
+  synchronized long getJitterUs() {
+    return mJitterUs;
+  }
+
+  /** Returns the number of packets that were lost or late, and were replaced. */
+  synchronized long getConcealedPacketCount() {
+    return mConcealedPacketCount;
+  }
+
+  /** Returns the number of packets thrown away, either for arriving too late or to catch up. */
+  synchronized long getDiscardedPacketCount() {
+    return mDiscardedPacketCount;
+  }
+
+  private int toSamples(long durationUs) {
+    return (int) (durationUs * mSampleRate / 1_000_000L);
+  }
+
+  private static short clamp(int sample) {
+    return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+  }
+
+  @NonNull
+  @Override
+  public synchronized String toString() {
+    return "JitterBuffer{" +
+            "delay=" + getDelayUs() + "us" +
+            ", targetDelay=" + getTargetDelayUs() + "us" +
+            ", jitter=" + mJitterUs + "us" +
+            ", concealed=" + mConcealedPacketCount +
+            ", discarded=" + mDiscardedPacketCount +
+            '}';
+  }
+
+  /** A received packet. Silence markers have a length, but no samples. */
+  private static final class Packet {
+    @Nullable final short[] mSamples;
+    final int mLength;
+
+    Packet(@Nullable short[] samples, int length) {
+      mSamples = samples;
+      mLength = length;
+    }
+  }
+}
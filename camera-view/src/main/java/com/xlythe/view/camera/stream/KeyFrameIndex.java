@@ -0,0 +1,202 @@
+package com.xlythe.view.camera.stream;
+
+import android.util.Log;
+
+import androidx.annotation.RestrictTo;
+
+import com.google.common.primitives.Ints;
+import com.xlythe.view.camera.CameraView;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Maps the presentation time of each key frame in a recorded stream file to its byte offset. Each
+ * entry also remembers where the header and codec config that apply to that key frame are, so that
+ * decoding can begin at any entry without reading the file from the start.
+ *
+ * Stream files hold length prefixed {@link VideoFrame}s, which is what {@link VideoRecorder} writes.
+ * The index is stored next to the stream file as a series of fixed size entries, so it can be
+ * appended to while recording.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+final class KeyFrameIndex {
+  private static final String TAG = CameraView.class.getSimpleName();
+
+  /** The suffix of the sidecar file that holds the index. */
+  static final String SUFFIX = ".idx";
+
+  /** Each entry is [presentationTimeUs][offset][headerOffset][codecConfigOffset]. */
+  static final int ENTRY_SIZE = 8 * 4;
+
+  private long[] mTimesUs = new long[64];
+  private long[] mOffsets = new long[64];
+  private long[] mHeaderOffsets = new long[64];
+  private long[] mCodecConfigOffsets = new long[64];
+  private int mSize;
+
+  /** Returns the sidecar file that holds the index of the given stream file. */
+  static File sidecarFor(File file) {
+    return new File(file.getPath() + SUFFIX);
+  }
+
+  int size() {
+    return mSize;
+  }
+
+  long getTimeUs(int index) {
+    return mTimesUs[index];
+  }
+
+  long getOffset(int index) {
+    return mOffsets[index];
+  }
+
+  long getHeaderOffset(int index) {
+    return mHeaderOffsets[index];
+  }
+
+  long getCodecConfigOffset(int index) {
+    return mCodecConfigOffsets[index];
+  }
+
+  void add(long presentationTimeUs, long offset, long headerOffset, long codecConfigOffset) {
+    if (mSize == mTimesUs.length) {
+      int capacity = mSize * 2;
+      mTimesUs = Arrays.copyOf(mTimesUs, capacity);
+      mOffsets = Arrays.copyOf(mOffsets, capacity);
+      mHeaderOffsets = Arrays.copyOf(mHeaderOffsets, capacity);
+      mCodecConfigOffsets = Arrays.copyOf(mCodecConfigOffsets, capacity);
+    }
+    mTimesUs[mSize] = presentationTimeUs;
+    mOffsets[mSize] = offset;
+    mHeaderOffsets[mSize] = headerOffset;
+    mCodecConfigOffsets[mSize] = codecConfigOffset;
+    mSize++;
+  }
+
+  /**
+   * Returns the index of the last key frame at or before the given time. If the time is before the
+   * first key frame, the first key frame is returned. Returns -1 if the index is empty.
+   */
+  int floor(long presentationTimeUs) {
+    int low = 0;
+    int high = mSize - 1;
+    int result = mSize > 0 ? 0 : -1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (mTimesUs[mid] <= presentationTimeUs) {
+        result = mid;
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return result;
+  }
+
+  /** Writes a single entry in the sidecar format. */
+  static void writeEntry(DataOutput output,
+                         long presentationTimeUs,
+                         long offset,
+                         long headerOffset,
+                         long codecConfigOffset) throws IOException {
+    output.writeLong(presentationTimeUs);
+    output.writeLong(offset);
+    output.writeLong(headerOffset);
+    output.writeLong(codecConfigOffset);
+  }
+
+  /**
+   * Reads an index from its sidecar file. A partially written trailing entry, as left behind if the
+   * app died while recording, is ignored.
+   */
+  static KeyFrameIndex read(File sidecar) throws IOException {
+    KeyFrameIndex index = new KeyFrameIndex();
+    try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar)))) {
+      long entries = sidecar.length() / ENTRY_SIZE;
+      for (long i = 0; i < entries; i++) {
+        index.add(inputStream.readLong(), inputStream.readLong(), inputStream.readLong(), inputStream.readLong());
+      }
+    }
+    return index;
+  }
+
+  /**
+   * Walks the stream file from the last indexed key frame (or from the start, if the index is empty)
+   * and adds any key frames that are missing. This is how an index is rebuilt when there's no
+   * sidecar, and how a sidecar that fell behind the stream file is caught up.
+   */
+  void scan(FileChannel channel) throws IOException {
+    long position = 0;
+    long headerOffset = -1;
+    long codecConfigOffset = -1;
+    long lastTimeUs = Long.MIN_VALUE;
+    long size = channel.size();
+
+    // Drop any entries that point past the end of the file. They can't be trusted.
+    while (mSize > 0 && mOffsets[mSize - 1] >= size) {
+      mSize--;
+    }
+
+    if (mSize > 0) {
+      position = mOffsets[mSize - 1];
+      headerOffset = mHeaderOffsets[mSize - 1];
+      codecConfigOffset = mCodecConfigOffsets[mSize - 1];
+      lastTimeUs = mTimesUs[mSize - 1];
+    }
+
+    ByteBuffer length = ByteBuffer.allocate(4);
+    while (position + 4 <= size) {
+      length.clear();
+      readFully(channel, length, position);
+      int frameLength = Ints.fromByteArray(length.array());
+      if (frameLength <= 0 || position + 4 + frameLength > size) {
+        // Either the file is corrupt, or the last frame was never finished.
+        break;
+      }
+
+      ByteBuffer frameBuffer = ByteBuffer.allocate(frameLength);
+      readFully(channel, frameBuffer, position + 4);
+      VideoFrame frame;
+      try {
+        frame = VideoFrame.fromBytes(frameBuffer.array());
+      } catch (RuntimeException e) {
+        Log.w(TAG, "Stopped indexing at a malformed frame at " + position, e);
+        break;
+      }
+
+      if (frame.getType() == VideoFrame.Type.HEADER) {
+        headerOffset = position;
+      } else if (frame.isCodecConfig()) {
+        codecConfigOffset = position;
+      } else if (frame.isKeyFrame()
+              && headerOffset >= 0
+              && codecConfigOffset >= 0
+              && frame.getPresentationTimeUs() > lastTimeUs) {
+        add(frame.getPresentationTimeUs(), position, headerOffset, codecConfigOffset);
+        lastTimeUs = frame.getPresentationTimeUs();
+      }
+      position += 4 + frameLength;
+    }
+  }
+
+  /** Fills the buffer from the channel, starting at the given position. */
+  static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position);
+      if (read < 0) {
+        throw new EOFException();
+      }
+      position += read;
+    }
+  }
+}
@@ -0,0 +1,198 @@
+package com.xlythe.view.camera.stream;
+
+import androidx.annotation.IntDef;
+import androidx.annotation.NonNull;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies, in microseconds. Values are grouped into buckets that grow
+ * exponentially, with four buckets per power of two, so percentiles are accurate to within 25%
+ * while the whole histogram stays a fixed, small size.
+ */
+public final class LatencyHistogram {
+  /** The stages a traced frame passes through, from the camera on one end to the screen on the other. */
+  @Retention(RetentionPolicy.SOURCE)
+  @IntDef({
+          Stage.ENCODE,
+          Stage.WRITE,
+          Stage.TRANSPORT,
+          Stage.QUEUE,
+          Stage.DECODE,
+          Stage.TOTAL,
+          Stage.AUDIO_INPUT,
+          Stage.AUDIO_OUTPUT,
+  })
+  public @interface Stage {
+    /** From the camera capturing the frame, until it comes out of the encoder. */
+    int ENCODE = 0;
+    /** From the encoder, until the frame is written to the stream. */
+    int WRITE = 1;
+    /**
+     * From being written, until the player reads the frame. Only meaningful when both ends share a
+     * clock, such as when recording and playing on the same device.
+     */
+    int TRANSPORT = 2;
+    /** From being read, until the frame is handed to the decoder. */
+    int QUEUE = 3;
+    /** From being handed to the decoder, until the frame is rendered. */
+    int DECODE = 4;
+    /** From capture to render. Like {@link #TRANSPORT}, this needs both ends to share a clock. */
+    int TOTAL = 5;
+    /**
+     * From the microphone capturing audio, until the recorder reads it. Measured for low latency
+     * audio, whether or not frames are traced.
+     */
+    int AUDIO_INPUT = 6;
+    /**
+     * From the player writing audio, until the speaker plays it. Measured for low latency audio,
+     * whether or not frames are traced.
+     */
+    int AUDIO_OUTPUT = 7;
+  }
+
+  static final int STAGE_COUNT = 8;
+
+  /** Returns a short name for the stage, used in logs and trace counters. */
+  public static String getStageName(@Stage int stage) {
+    switch (stage) {
+      case Stage.ENCODE:
+        return "encode";
+      case Stage.WRITE:
+        return "write";
+      case Stage.TRANSPORT:
+        return "transport";
+      case Stage.QUEUE:
+        return "queue";
+      case Stage.DECODE:
+        return "decode";
+      case Stage.TOTAL:
+        return "total";
+      case Stage.AUDIO_INPUT:
+        return "audio_input";
+      case Stage.AUDIO_OUTPUT:
+        return "audio_output";
+      default:
+        return "unknown";
+    }
+  }
+
+  /** Values below this each get their own bucket. */
+  private static final int LINEAR_BUCKETS = 4;
+  /** The number of buckets between each power of two, above the linear ones. */
+  private static final int SUB_BUCKET_BITS = 2;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  /** Enough buckets to cover over an hour, in microseconds. */
+  private static final int MAX_EXPONENT = 32;
+  private static final int BUCKET_COUNT = LINEAR_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+  private final AtomicLong mCount = new AtomicLong();
+  private final AtomicLong mTotalUs = new AtomicLong();
+  private final AtomicLong mMaxUs = new AtomicLong();
+
+  /** Records a single latency. Negative values are ignored. */
+  public void record(long valueUs) {
+    if (valueUs < 0) {
+      return;
+    }
+    mBuckets.incrementAndGet(getBucket(valueUs));
+    mCount.incrementAndGet();
+    mTotalUs.addAndGet(valueUs);
+
+    long current;
+    do {
+      current = mMaxUs.get();
+      if (valueUs <= current) {
+        break;
+      }
+    } while (!mMaxUs.compareAndSet(current, valueUs));
+  }
+
+  /** Returns the number of latencies recorded. */
+  public long getCount() {
+    return mCount.get();
+  }
+
+  public long getAverageUs() {
+    long count = mCount.get();
+    return count == 0 ? 0 : mTotalUs.get() / count;
+  }
+
+  public long getMaxUs() {
+    return mMaxUs.get();
+  }
+
+  /**
+   * Returns the latency that the given fraction of recorded values are at or below, such as 0.99
+   * for the 99th percentile. The result is the upper bound of the bucket it falls within.
+   */
+  public long getPercentileUs(double percentile) {
+    if (percentile < 0 || percentile > 1) {
+      throw new IllegalArgumentException("Percentile must be between 0 and 1");
+    }
+    long count = mCount.get();
+    if (count == 0) {
+      return 0;
+    }
+
+    long target = Math.max(1, (long) Math.ceil(percentile * count));
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      seen += mBuckets.get(i);
+      if (seen >= target) {
+        return Math.min(getUpperBound(i), mMaxUs.get());
+      }
+    }
+    return mMaxUs.get();
+  }
+
+  /** Clears all recorded values. */
+  public void reset() {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      mBuckets.set(i, 0);
+    }
+    mCount.set(0);
+    mTotalUs.set(0);
+    mMaxUs.set(0);
+  }
+
+  static int getBucket(long valueUs) {
+    if (valueUs < LINEAR_BUCKETS) {
+      return (int) valueUs;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(valueUs);
+    if (exponent > MAX_EXPONENT) {
+      return BUCKET_COUNT - 1;
+    }
+    int subBucket = (int) (valueUs >> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return LINEAR_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+  }
+
+  /** Returns the largest value that falls within the given bucket. */
+  static long getUpperBound(int bucket) {
+    if (bucket < LINEAR_BUCKETS) {
+      return bucket;
+    }
+    int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+    int subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+    long lowerBound = (1L << exponent) + ((long) subBucket << (exponent - SUB_BUCKET_BITS));
+    return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+  }
+
+  @NonNull
+  @Override
+  public String toString() {
+    return "LatencyHistogram{" +
+            "count=" + getCount() +
+            ", average=" + getAverageUs() + "us" +
+            ", p50=" + getPercentileUs(0.5) + "us" +
+            ", p90=" + getPercentileUs(0.9) + "us" +
+            ", p99=" + getPercentileUs(0.99) + "us" +
+            ", max=" + getMaxUs() + "us" +
+            '}';
+  }
+}
@@ -0,0 +1,163 @@
+package com.xlythe.view.camera.stream;
+
+import android.util.Log;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+import com.xlythe.view.camera.CameraView;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Picks one rendition out of a simulcast stream and forwards it to another {@link FrameSink}, such
+ * as a {@link FramePublisher} for a single viewer. The selector receives the frames of every
+ * rendition, and drops all but the selected one.
+ *
+ * Switching renditions mid-stream is deferred until the new rendition's next key frame, so the
+ * sink never sees a frame it can't decode. At the switch, the sink is sent the new rendition's
+ * header and codec config, followed by the key frame. Players react to the new header by
+ * restarting their decoder at the new size.
+ */
+@RequiresApi(18)
+public class LayerSelector extends FrameSink {
+  private static final String TAG = CameraView.class.getSimpleName();
+
+  /** Where the selected rendition is sent. */
+  private final FrameSink mSink;
+
+  /** The latest header and codec config of every rendition, keyed by layer. Guarded by this. */
+  private final Map<Integer, LayerConfig> mConfigs = new HashMap<>();
+
+  /** The rendition currently being forwarded. Guarded by this. */
+  private int mLayer;
+
+  /** The rendition that will be forwarded from its next key frame. Guarded by this. */
+  private int mRequestedLayer;
+
+  /** Set once closed. Guarded by this. */
+  private boolean mIsClosed;
+
+  /** Notified when switching renditions, so that a key frame can be produced sooner. */
+  @Nullable private volatile OnLayerRequestedListener mOnLayerRequestedListener;
+
+  /**
+   * @param sink Where to forward the selected rendition. It's closed along with the selector.
+   * @param layer The rendition to start with, where 0 is the full sized rendition.
+   */
+  public LayerSelector(FrameSink sink, @IntRange(from = 0) int layer) {
+    mSink = sink;
+    mLayer = layer;
+    mRequestedLayer = layer;
+  }
+
+  /**
+   * Switches to a different rendition. The switch happens at the rendition's next key frame, and
+   * until then the current rendition continues to be forwarded.
+   */
+  public void setLayer(@IntRange(from = 0) int layer) {
+    synchronized (this) {
+      if (mRequestedLayer == layer) {
+        return;
+      }
+      mRequestedLayer = layer;
+      if (mLayer == layer) {
+        return;
+      }
+    }
+
+    OnLayerRequestedListener listener = mOnLayerRequestedListener;
+    if (listener != null) {
+      listener.onLayerRequested(layer);
+    }
+  }
+
+  /** Returns the rendition currently being forwarded. */
+  public synchronized int getLayer() {
+    return mLayer;
+  }
+
+  /** Returns the rendition that was last asked for, which may still be waiting on a key frame. */
+  public synchronized int getRequestedLayer() {
+    return mRequestedLayer;
+  }
+
+  /**
+   * Sets a listener that's called whenever a switch to a new rendition is waiting on a key frame.
+   * {@link com.xlythe.view.camera.VideoStream} uses this to ask the encoder for one right away.
+   */
+  public void setOnLayerRequestedListener(@Nullable OnLayerRequestedListener listener) {
+    mOnLayerRequestedListener = listener;
+  }
+
+  @Override
+  synchronized void onFrame(VideoFrame frame) throws IOException {
+    if (mIsClosed) {
+      return;
+    }
+
+    int layer = frame.getLayer();
+    LayerConfig config = mConfigs.get(layer);
+    if (config == null) {
+      config = new LayerConfig();
+      mConfigs.put(layer, config);
+    }
+    if (frame.getType() == VideoFrame.Type.HEADER) {
+      config.mHeaderFrame = frame;
+    } else if (frame.isCodecConfig()) {
+      config.mCodecConfigFrame = frame;
+    }
+
+    if (layer != mLayer
+            && layer == mRequestedLayer
+            && frame.isKeyFrame()
+            && config.mHeaderFrame != null
+            && config.mCodecConfigFrame != null) {
+      Log.d(TAG, "Switching from layer " + mLayer + " to layer " + layer);
+      mLayer = layer;
+      mSink.onFrame(config.mHeaderFrame);
+      mSink.onFrame(config.mCodecConfigFrame);
+    }
+
+    if (layer == mLayer) {
+      mSink.onFrame(frame);
+    }
+  }
+
+  /** Closes the selector, along with its sink. Safe to call more than once. */
+  @Override
+  public void close() {
+    synchronized (this) {
+      if (mIsClosed) {
+        return;
+      }
+      mIsClosed = true;
+      mConfigs.clear();
+    }
+    mSink.close();
+  }
+
+  @NonNull
+  @Override
+  public synchronized String toString() {
+    return "LayerSelector{" +
+            "layer=" + mLayer +
+            ", requestedLayer=" + mRequestedLayer +
+            ", sink=" + mSink +
+            '}';
+  }
+
+  public interface OnLayerRequestedListener {
+    void onLayerRequested(int layer);
+  }
+
+  /** The frames a player needs before it can start decoding a rendition. */
+  private static class LayerConfig {
+    @Nullable VideoFrame mHeaderFrame;
+    @Nullable VideoFrame mCodecConfigFrame;
+  }
+}
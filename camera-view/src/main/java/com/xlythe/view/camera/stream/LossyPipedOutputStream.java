@@ -1,5 +1,7 @@
 package com.xlythe.view.camera.stream;
 
+import androidx.annotation.Nullable;
+
 import java.io.IOException;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
@@ -10,6 +12,12 @@ public class LossyPipedOutputStream extends PipedOutputStream {
   private PipedInputStream snk;
   private boolean canDropNextPacket = false;
 
+  /** Set once part of the current packet has been dropped, so that it's only counted once. */
+  private boolean hasDroppedPacket = false;
+
+  /** Optionally records how many packets are dropped. */
+  @Nullable private volatile StreamMetrics metrics;
+
   public LossyPipedOutputStream() {
     super();
   }
@@ -25,9 +33,14 @@ public class LossyPipedOutputStream extends PipedOutputStream {
     this.snk = snk;
   }
 
+  /** Reports dropped packets, and the bytes within them, to the given metrics. */
+  public void setMetrics(@Nullable StreamMetrics metrics) {
+    this.metrics = metrics;
+  }
+
   @Override
   public void write(int b) throws IOException {
-    if (shouldDropPacket()) {
+    if (shouldDropPacket(1)) {
       return;
     }
     super.write(b);
@@ -35,7 +48,7 @@ public class LossyPipedOutputStream extends PipedOutputStream {
 
   @Override
   public void write(byte[] b) throws IOException {
-    if (shouldDropPacket()) {
+    if (shouldDropPacket(b.length)) {
       return;
     }
     super.write(b);
@@ -43,7 +56,7 @@ public class LossyPipedOutputStream extends PipedOutputStream {
 
   @Override
   public void write(byte[] b, int off, int len) throws IOException {
-    if (shouldDropPacket()) {
+    if (shouldDropPacket(len)) {
       return;
     }
     super.write(b, off, len);
@@ -53,9 +66,10 @@ public class LossyPipedOutputStream extends PipedOutputStream {
   public synchronized void flush() throws IOException {
     super.flush();
     canDropNextPacket = true;
+    hasDroppedPacket = false;
   }
 
-  private boolean shouldDropPacket() throws IOException {
+  private boolean shouldDropPacket(int len) throws IOException {
     PipedInputStream pipedInputStream = snk;
     if (snk == null) {
       throw new IOException("Missing sink");
@@ -63,10 +77,15 @@ public class LossyPipedOutputStream extends PipedOutputStream {
 
     int bytesWritten = pipedInputStream.available();
     if (canDropNextPacket && bytesWritten > MAX_BUFFER_SIZE) {
+      StreamMetrics metrics = this.metrics;
+      if (metrics != null) {
+        metrics.onBytesDropped(len, !hasDroppedPacket);
+      }
+      hasDroppedPacket = true;
       return true;
     }
 
     canDropNextPacket = false;
     return false;
   }
-}
\ No newline at end of file
+}
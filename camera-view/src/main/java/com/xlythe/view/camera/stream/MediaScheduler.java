@@ -0,0 +1,465 @@
+package com.xlythe.view.camera.stream;
+
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.IntDef;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import com.xlythe.view.camera.CameraView;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static android.os.Process.THREAD_PRIORITY_AUDIO;
+import static android.os.Process.THREAD_PRIORITY_DEFAULT;
+import static android.os.Process.THREAD_PRIORITY_DISPLAY;
+import static android.os.Process.THREAD_PRIORITY_VIDEO;
+import static android.os.Process.setThreadPriority;
+
+/**
+ * Runs the background work of the stream components (recorders, players and scanners) on named,
+ * prioritized threads, instead of each component managing its own.
+ *
+ * Short tasks, such as analyzing a frame or scanning a photo, are {@link #submit submitted} to a
+ * shared, bounded pool of workers. Each task is tagged with a {@link Priority}, which decides the
+ * thread priority it runs at and the order in which it's started if the pool is full. Workers are
+ * reused between tasks and exit after sitting idle for a while.
+ *
+ * Loops that run for as long as a component is active, such as a recorder's encode loop, would hold
+ * a pooled worker for their whole lifetime and starve everything queued behind them. They're
+ * {@link #submitLoop submitted} separately, and each gets a thread of its own that doesn't count
+ * towards the cap.
+ */
+public final class MediaScheduler {
+  private static final String TAG = CameraView.class.getSimpleName();
+
+  /** Tasks that feed or drain audio hardware. They run at audio priority and start first. */
+  public static final int PRIORITY_AUDIO = 0;
+  /** Tasks that encode or decode video. */
+  public static final int PRIORITY_VIDEO = 1;
+  /** Tasks that analyze frames, such as barcode scanning. They run at normal priority. */
+  public static final int PRIORITY_ANALYSIS = 2;
+
+  @IntDef({PRIORITY_AUDIO, PRIORITY_VIDEO, PRIORITY_ANALYSIS})
+  @Retention(RetentionPolicy.SOURCE)
+  public @interface Priority {}
+
+  private static final int DEFAULT_MAX_THREADS = 12;
+  private static final long KEEP_ALIVE_SECONDS = 10;
+
+  @Nullable private static MediaScheduler sInstance;
+
+  /** Returns the scheduler shared by every component in the library. */
+  public static synchronized MediaScheduler getInstance() {
+    if (sInstance == null) {
+      sInstance = new MediaScheduler(DEFAULT_MAX_THREADS);
+    }
+    return sInstance;
+  }
+
+  private final ThreadPoolExecutor mExecutor;
+
+  /** The tasks that are currently running, for metrics. Guarded by itself. */
+  private final List<Task> mRunningTasks = new ArrayList<>();
+
+  /** Used to keep tasks of the same priority in the order they were submitted. */
+  private final AtomicLong mSequence = new AtomicLong();
+
+  private final AtomicLong mCompletedTaskCount = new AtomicLong();
+  private final AtomicLong mBusyTimeMillis = new AtomicLong();
+  private final long mCreatedAtMillis = SystemClock.elapsedRealtime();
+
+  /** The number of loops running on threads of their own. */
+  private final AtomicInteger mLoopCount = new AtomicInteger();
+
+  private final ThreadFactory mThreadFactory;
+
+  @Nullable private volatile LifecycleListener mLifecycleListener;
+
+  @VisibleForTesting
+  MediaScheduler(int maxThreads) {
+    AtomicInteger threadCount = new AtomicInteger();
+    ThreadFactory threadFactory = runnable -> new Thread(runnable, "CameraView-media-" + threadCount.incrementAndGet());
+    mThreadFactory = threadFactory;
+    mExecutor = new ThreadPoolExecutor(
+            maxThreads,
+            maxThreads,
+            KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS,
+            new PriorityBlockingQueue<>(),
+            threadFactory);
+    mExecutor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Sets the maximum number of pooled worker threads. Tasks submitted beyond this limit wait for a
+   * worker to free up. Loops run on threads of their own, and aren't limited.
+   */
+  public void setMaxThreads(int maxThreads) {
+    if (maxThreads < 1) {
+      throw new IllegalArgumentException("At least one thread is required");
+    }
+    if (maxThreads > mExecutor.getMaximumPoolSize()) {
+      mExecutor.setMaximumPoolSize(maxThreads);
+      mExecutor.setCorePoolSize(maxThreads);
+    } else {
+      mExecutor.setCorePoolSize(maxThreads);
+      mExecutor.setMaximumPoolSize(maxThreads);
+    }
+  }
+
+  /** Returns the maximum number of pooled worker threads. */
+  public int getMaxThreads() {
+    return mExecutor.getMaximumPoolSize();
+  }
+
+  /** Sets a listener that's told whenever a task starts or finishes. */
+  public void setLifecycleListener(@Nullable LifecycleListener listener) {
+    mLifecycleListener = listener;
+  }
+
+  /**
+   * Runs the given work on a pooled worker thread. Meant for work that finishes on its own, as it
+   * holds a worker until it does.
+   *
+   * @param name A short name for the work, used to name the thread while it runs.
+   * @param priority Decides the thread priority, and the order queued tasks start in.
+   * @return A handle that can cancel the task, or wait for it to finish.
+   */
+  public Task submit(String name, @Priority int priority, Runnable runnable) {
+    Task task = new Task(this, name, priority, mSequence.getAndIncrement(), false /* isLoop */, runnable);
+    if (mExecutor.getActiveCount() >= mExecutor.getMaximumPoolSize()) {
+      Log.w(TAG, "All " + mExecutor.getMaximumPoolSize() + " media threads are busy. " + name + " will wait for one to free up.");
+    }
+    mExecutor.execute(task);
+    return task;
+  }
+
+  /**
+   * Runs the given work on a thread of its own, which exits once the work returns. Meant for loops
+   * that last as long as a component is active, so that they start right away no matter how many
+   * others are running.
+   *
+   * @param name A short name for the work, used to name the thread while it runs.
+   * @param priority Decides the thread priority.
+   * @return A handle that can cancel the task, or wait for it to finish.
+   */
+  public Task submitLoop(String name, @Priority int priority, Runnable runnable) {
+    Task task = new Task(this, name, priority, mSequence.getAndIncrement(), true /* isLoop */, runnable);
+    mThreadFactory.newThread(task).start();
+    return task;
+  }
+
+  /** Returns a snapshot of how busy the scheduler is. */
+  public Stats getStats() {
+    List<String> running = new ArrayList<>();
+    long busyTimeMillis = mBusyTimeMillis.get();
+    long now = SystemClock.elapsedRealtime();
+    synchronized (mRunningTasks) {
+      for (Task task : mRunningTasks) {
+        running.add(task.getName());
+        if (!task.mIsLoop) {
+          busyTimeMillis += now - task.mStartedAtMillis;
+        }
+      }
+    }
+    return new Stats(
+            mExecutor.getPoolSize(),
+            mLoopCount.get(),
+            mExecutor.getLargestPoolSize(),
+            mExecutor.getMaximumPoolSize(),
+            running,
+            mExecutor.getQueue().size(),
+            mCompletedTaskCount.get(),
+            busyTimeMillis,
+            now - mCreatedAtMillis);
+  }
+
+  private void onTaskStarted(Task task) {
+    synchronized (mRunningTasks) {
+      mRunningTasks.add(task);
+    }
+    if (task.mIsLoop) {
+      mLoopCount.incrementAndGet();
+    }
+    LifecycleListener listener = mLifecycleListener;
+    if (listener != null) {
+      listener.onTaskStarted(task);
+    }
+  }
+
+  private void onTaskFinished(Task task, long durationMillis) {
+    synchronized (mRunningTasks) {
+      mRunningTasks.remove(task);
+    }
+    mCompletedTaskCount.incrementAndGet();
+    if (task.mIsLoop) {
+      mLoopCount.decrementAndGet();
+    } else {
+      mBusyTimeMillis.addAndGet(durationMillis);
+    }
+    LifecycleListener listener = mLifecycleListener;
+    if (listener != null) {
+      listener.onTaskFinished(task, durationMillis);
+    }
+  }
+
+  private static int toThreadPriority(@Priority int priority) {
+    switch (priority) {
+      case PRIORITY_AUDIO:
+        return THREAD_PRIORITY_AUDIO;
+      case PRIORITY_VIDEO:
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.P ? THREAD_PRIORITY_VIDEO : THREAD_PRIORITY_DISPLAY;
+      case PRIORITY_ANALYSIS:
+      default:
+        return THREAD_PRIORITY_DEFAULT;
+    }
+  }
+
+  /** A unit of work submitted to the scheduler. */
+  public static final class Task implements Runnable, Comparable<Task> {
+    private final MediaScheduler mScheduler;
+    private final String mName;
+    @Priority private final int mPriority;
+    private final long mSequence;
+    /** True if this task runs on a thread of its own, rather than a pooled worker. */
+    private final boolean mIsLoop;
+    private final Runnable mRunnable;
+    private final CountDownLatch mDone = new CountDownLatch(1);
+
+    /** The worker running this task, or null if it hasn't started or has finished. */
+    @Nullable private Thread mThread;
+    private boolean mIsCancelled;
+    private long mStartedAtMillis;
+
+    private Task(MediaScheduler scheduler, String name, @Priority int priority, long sequence, boolean isLoop, Runnable runnable) {
+      mScheduler = scheduler;
+      mName = name;
+      mPriority = priority;
+      mSequence = sequence;
+      mIsLoop = isLoop;
+      mRunnable = runnable;
+    }
+
+    public String getName() {
+      return mName;
+    }
+
+    @Priority
+    public int getPriority() {
+      return mPriority;
+    }
+
+    @Override
+    public void run() {
+      try {
+        runUnlessCancelled();
+      } finally {
+        // Also covers a task that was cancelled after a worker picked it up, but before it started.
+        mDone.countDown();
+      }
+    }
+
+    private void runUnlessCancelled() {
+      synchronized (this) {
+        if (mIsCancelled) {
+          return;
+        }
+        mThread = Thread.currentThread();
+        mStartedAtMillis = SystemClock.elapsedRealtime();
+      }
+
+      Thread thread = Thread.currentThread();
+      String workerName = thread.getName();
+      thread.setName(workerName + " (" + mName + ")");
+      setThreadPriority(toThreadPriority(mPriority));
+      mScheduler.onTaskStarted(this);
+      try {
+        mRunnable.run();
+      } catch (RuntimeException e) {
+        Log.e(TAG, "Uncaught exception in " + mName, e);
+      } finally {
+        long durationMillis = SystemClock.elapsedRealtime() - mStartedAtMillis;
+        synchronized (this) {
+          mThread = null;
+        }
+        // Clear any interrupt left over from a cancellation, so it doesn't leak into the next task.
+        Thread.interrupted();
+        setThreadPriority(THREAD_PRIORITY_DEFAULT);
+        thread.setName(workerName);
+        mScheduler.onTaskFinished(this, durationMillis);
+      }
+    }
+
+    /**
+     * Cancels the task. A task that hasn't started yet never will. A running task has its thread
+     * interrupted, and should also be told to stop through its own means (such as closing its
+     * streams), since not every blocking call responds to interrupts.
+     */
+    public void cancel() {
+      synchronized (this) {
+        if (mIsCancelled) {
+          return;
+        }
+        mIsCancelled = true;
+        if (mThread != null) {
+          mThread.interrupt();
+          return;
+        }
+      }
+      if (mScheduler.mExecutor.remove(this)) {
+        mDone.countDown();
+      }
+    }
+
+    public synchronized boolean isCancelled() {
+      return mIsCancelled;
+    }
+
+    public boolean isDone() {
+      return mDone.getCount() == 0;
+    }
+
+    /**
+     * Waits up to the given time for the task to finish.
+     *
+     * @return True if the task finished, false if it timed out.
+     */
+    public boolean await(long timeoutMillis) throws InterruptedException {
+      return mDone.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int compareTo(Task other) {
+      if (mPriority != other.mPriority) {
+        return Integer.compare(mPriority, other.mPriority);
+      }
+      return Long.compare(mSequence, other.mSequence);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+      return "Task{" +
+              "name=" + mName +
+              ", priority=" + mPriority +
+              '}';
+    }
+  }
+
+  /** A snapshot of the scheduler's utilization. */
+  public static final class Stats {
+    private final int mThreadCount;
+    private final int mLoopCount;
+    private final int mPeakThreadCount;
+    private final int mMaxThreads;
+    private final List<String> mRunningTasks;
+    private final int mQueuedTaskCount;
+    private final long mCompletedTaskCount;
+    private final long mBusyTimeMillis;
+    private final long mUptimeMillis;
+
+    Stats(int threadCount,
+          int loopCount,
+          int peakThreadCount,
+          int maxThreads,
+          List<String> runningTasks,
+          int queuedTaskCount,
+          long completedTaskCount,
+          long busyTimeMillis,
+          long uptimeMillis) {
+      mThreadCount = threadCount;
+      mLoopCount = loopCount;
+      mPeakThreadCount = peakThreadCount;
+      mMaxThreads = maxThreads;
+      mRunningTasks = runningTasks;
+      mQueuedTaskCount = queuedTaskCount;
+      mCompletedTaskCount = completedTaskCount;
+      mBusyTimeMillis = busyTimeMillis;
+      mUptimeMillis = uptimeMillis;
+    }
+
+    /** Returns the number of pooled worker threads that currently exist. */
+    public int getThreadCount() {
+      return mThreadCount;
+    }
+
+    /** Returns the number of loops running on threads of their own. */
+    public int getLoopCount() {
+      return mLoopCount;
+    }
+
+    /** Returns the most worker threads that have ever existed at once. */
+    public int getPeakThreadCount() {
+      return mPeakThreadCount;
+    }
+
+    public int getMaxThreads() {
+      return mMaxThreads;
+    }
+
+    /** Returns the names of the tasks and loops that are running right now. */
+    public List<String> getRunningTasks() {
+      return mRunningTasks;
+    }
+
+    /** Returns the number of tasks waiting for a worker. */
+    public int getQueuedTaskCount() {
+      return mQueuedTaskCount;
+    }
+
+    public long getCompletedTaskCount() {
+      return mCompletedTaskCount;
+    }
+
+    /** Returns the total time, across all pooled workers, spent running tasks. */
+    public long getBusyTimeMillis() {
+      return mBusyTimeMillis;
+    }
+
+    /**
+     * Returns the fraction of the pool's capacity that has been used since the scheduler was created,
+     * from 0 to 1. Loops aren't counted.
+     */
+    public float getUtilization() {
+      if (mUptimeMillis <= 0 || mMaxThreads <= 0) {
+        return 0;
+      }
+      return Math.min(1f, (float) mBusyTimeMillis / (mUptimeMillis * mMaxThreads));
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+      return "Stats{" +
+              "threads=" + mThreadCount +
+              ", loops=" + mLoopCount +
+              ", peakThreads=" + mPeakThreadCount +
+              ", maxThreads=" + mMaxThreads +
+              ", running=" + mRunningTasks +
+              ", queued=" + mQueuedTaskCount +
+              ", completed=" + mCompletedTaskCount +
+              ", utilization=" + getUtilization() +
+              '}';
+    }
+  }
+
+  /** Receives callbacks on the worker thread as tasks start and finish. */
+  public interface LifecycleListener {
+    void onTaskStarted(Task task);
+    void onTaskFinished(Task task, long durationMillis);
+  }
+}
@@ -0,0 +1,293 @@
+package com.xlythe.view.camera.stream;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+import com.xlythe.view.camera.CameraView;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A {@link FrameSink} that muxes the already encoded H.264 frames of a stream into an MP4 file.
+ * No re-encoding takes place, so the file is a full quality archive of what was streamed.
+ *
+ * The file is finalized when the sink is closed, either explicitly or once the stream ends.
+ *
+ * A track's format can't change once an MP4 file has started, so if the encoder restarts with a
+ * different format (eg. at a new resolution, when a {@link QualityGovernor} steps down), the current
+ * file is finalized and recording continues in a new one next to it. For {@code clip.mp4}, those are
+ * {@code clip-1.mp4}, {@code clip-2.mp4} and so on. See {@link #getFiles()}.
+ */
+@RequiresApi(18)
+public class Mp4Sink extends FrameSink {
+  private static final String TAG = CameraView.class.getSimpleName();
+
+  private static final String MIME_TYPE = "video/avc";    // H.264 Advanced Video Coding
+
+  /** The first file we wrote to. Any files we roll over to are named after it. */
+  private final File mFile;
+
+  /** Every file that holds video, including the one we're writing to now. */
+  private final List<File> mFiles = new ArrayList<>();
+
+  /** The number of times we've rolled over to a new file. */
+  private int mRollCount;
+
+  /** Writes the current file's MP4 container. */
+  private MediaMuxer mMuxer;
+
+  /** Reused to describe each sample to the muxer. */
+  private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+
+  /** The most recent header. The muxer can't start until we know the video dimensions. */
+  @Nullable private VideoFrame mHeader;
+
+  /** The header and codec config the current file was started with. */
+  @Nullable private VideoFrame mStartedHeader;
+  @Nullable private byte[] mStartedCodecConfig;
+
+  /** The video track within the muxer, or -1 if the muxer hasn't started yet. */
+  private int mTrackIndex = -1;
+
+  /** The timestamp of the first sample. Samples are written relative to this. */
+  private long mFirstPresentationTimeUs = -1;
+
+  /** The timestamp of the last sample. MediaMuxer requires them to strictly increase. */
+  private long mLastPresentationTimeUs = -1;
+
+  /** The number of samples written to the current file. */
+  private int mSampleCount;
+
+  /** The number of samples written to every file. */
+  private int mTotalSampleCount;
+
+  /** If true, the muxer has been released. */
+  private boolean mIsClosed;
+
+  /**
+   * Creates an MP4 file sink.
+   *
+   * @param file The destination. Any existing file will be overwritten.
+   */
+  public Mp4Sink(File file) throws IOException {
+    mFile = file;
+    mMuxer = new MediaMuxer(file.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+    mFiles.add(file);
+  }
+
+  /** Returns the first file written to. */
+  public File getFile() {
+    return mFile;
+  }
+
+  /**
+   * Returns every file written to, in order. There's more than one if the encoder restarted with a
+   * different format partway through. Files that ended up without any video are deleted, and left
+   * out.
+   */
+  public synchronized List<File> getFiles() {
+    return new ArrayList<>(mFiles);
+  }
+
+  @Override
+  synchronized void onFrame(VideoFrame frame) throws IOException {
+    if (mIsClosed) {
+      return;
+    }
+
+    if (frame.getType() == VideoFrame.Type.HEADER) {
+      // Only takes effect once it's followed by codec config, which the encoder always sends next.
+      mHeader = frame;
+      return;
+    }
+
+    if (frame.isCodecConfig()) {
+      if (mTrackIndex < 0) {
+        start(frame);
+      } else if (isNewFormat(frame)) {
+        roll(frame);
+      }
+      return;
+    }
+
+    if (mTrackIndex < 0 || frame.getData() == null || frame.getData().length == 0) {
+      return;
+    }
+
+    // Decoders can't start on anything but a key frame, so neither can the file.
+    if (mSampleCount == 0 && !frame.isKeyFrame()) {
+      return;
+    }
+
+    if (mFirstPresentationTimeUs < 0) {
+      mFirstPresentationTimeUs = frame.getPresentationTimeUs();
+    }
+    long presentationTimeUs = frame.getPresentationTimeUs() - mFirstPresentationTimeUs;
+    if (presentationTimeUs <= mLastPresentationTimeUs) {
+      Log.w(TAG, "Dropping out of order frame at " + frame.getPresentationTimeUs());
+      return;
+    }
+    mLastPresentationTimeUs = presentationTimeUs;
+
+    byte[] data = frame.getData();
+    mBufferInfo.set(0, data.length, presentationTimeUs, frame.getFlags() & MediaCodec.BUFFER_FLAG_KEY_FRAME);
+    mMuxer.writeSampleData(mTrackIndex, ByteBuffer.wrap(data), mBufferInfo);
+    mSampleCount++;
+    mTotalSampleCount++;
+  }
+
+  /** Returns true if the encoder restarted with a format that the current file can't hold. */
+  private boolean isNewFormat(VideoFrame codecConfig) {
+    VideoFrame header = mHeader;
+    VideoFrame startedHeader = mStartedHeader;
+    if (header == null || startedHeader == null) {
+      return false;
+    }
+    return header.getWidth() != startedHeader.getWidth()
+            || header.getHeight() != startedHeader.getHeight()
+            || header.getOrientation() != startedHeader.getOrientation()
+            || !Arrays.equals(codecConfig.getData(), mStartedCodecConfig);
+  }
+
+  /** Finalizes the current file, and starts a new one with the new format. */
+  private void roll(VideoFrame codecConfig) throws IOException {
+    // If nothing made it into the current file, it's deleted and its name can be reused.
+    File file = mSampleCount == 0 ? mFiles.get(mFiles.size() - 1) : getRolledFile(++mRollCount);
+    finish();
+
+    try {
+      mMuxer = new MediaMuxer(file.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+    } catch (IOException e) {
+      mIsClosed = true;
+      throw e;
+    }
+    mFiles.add(file);
+    mTrackIndex = -1;
+    mFirstPresentationTimeUs = -1;
+    mLastPresentationTimeUs = -1;
+    mSampleCount = 0;
+    start(codecConfig);
+  }
+
+  /** Returns the name of the nth file rolled over to. {@code clip.mp4} becomes {@code clip-n.mp4}. */
+  private File getRolledFile(int n) {
+    String name = mFile.getName();
+    int extension = name.lastIndexOf('.');
+    String rolledName = extension > 0
+            ? name.substring(0, extension) + "-" + n + name.substring(extension)
+            : name + "-" + n;
+    return new File(mFile.getParentFile(), rolledName);
+  }
+
+  private void start(VideoFrame codecConfig) {
+    VideoFrame header = mHeader;
+    if (header == null) {
+      Log.w(TAG, "Unable to start MP4 file. Received codec config before the header.");
+      return;
+    }
+
+    MediaFormat format = createFormat(header, codecConfig);
+    mTrackIndex = mMuxer.addTrack(format);
+    if (isValidOrientationHint(header.getOrientation())) {
+      mMuxer.setOrientationHint(header.getOrientation());
+    }
+    mMuxer.start();
+    mStartedHeader = header;
+    mStartedCodecConfig = codecConfig.getData();
+    Log.d(TAG, "Started writing MP4 file " + mFiles.get(mFiles.size() - 1) + " at " + header.getWidth() + "x" + header.getHeight());
+  }
+
+  @NonNull
+  static MediaFormat createFormat(VideoFrame header, VideoFrame codecConfig) {
+    MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, header.getWidth(), header.getHeight());
+    if (header.getBitRate() > 0) {
+      format.setInteger(MediaFormat.KEY_BIT_RATE, header.getBitRate());
+    }
+    if (header.getFrameRate() > 0) {
+      format.setInteger(MediaFormat.KEY_FRAME_RATE, header.getFrameRate());
+    }
+
+    // MediaCodec hands back the SPS and PPS together in a single buffer, but the muxer expects them
+    // split into csd-0 and csd-1 respectively.
+    List<byte[]> units = NalUnits.split(codecConfig.getData());
+    for (byte[] unit : units) {
+      if (unit.length == 0) {
+        continue;
+      }
+      switch (NalUnits.getType(unit[0])) {
+        case NalUnits.TYPE_SPS:
+          format.setByteBuffer("csd-0", withStartCode(unit));
+          break;
+        case NalUnits.TYPE_PPS:
+          format.setByteBuffer("csd-1", withStartCode(unit));
+          break;
+      }
+    }
+    return format;
+  }
+
+  private static ByteBuffer withStartCode(byte[] unit) {
+    ByteBuffer buffer = ByteBuffer.allocate(unit.length + 4);
+    buffer.put(new byte[] {0, 0, 0, 1});
+    buffer.put(unit);
+    buffer.flip();
+    return buffer;
+  }
+
+  private static boolean isValidOrientationHint(int degrees) {
+    return degrees == 0 || degrees == 90 || degrees == 180 || degrees == 270;
+  }
+
+  @Override
+  public synchronized void close() {
+    if (mIsClosed) {
+      return;
+    }
+    mIsClosed = true;
+    finish();
+  }
+
+  /** Finalizes the current file, or deletes it if it has no video. */
+  private void finish() {
+    File file = mFiles.get(mFiles.size() - 1);
+    try {
+      if (mTrackIndex >= 0) {
+        mMuxer.stop();
+      }
+    } catch (IllegalStateException e) {
+      // MediaMuxer throws if stopped before any samples were written.
+      Log.e(TAG, "Failed to finalize MP4 file " + file, e);
+    } finally {
+      mMuxer.release();
+    }
+
+    if (mSampleCount == 0) {
+      mFiles.remove(mFiles.size() - 1);
+      if (file.exists() && !file.delete()) {
+        Log.w(TAG, "Failed to clean up empty MP4 file " + file);
+      }
+    }
+    Log.d(TAG, "Finished writing MP4 file " + file + " with " + mSampleCount + " frames");
+  }
+
+  @NonNull
+  @Override
+  public String toString() {
+    return "Mp4Sink{" +
+            "file=" + mFile +
+            ", files=" + mFiles.size() +
+            ", samples=" + mTotalSampleCount +
+            '}';
+  }
+}
@@ -0,0 +1,78 @@
+package com.xlythe.view.camera.stream;
+
+/**
+ * G.711 mu-law. Each sample is companded into a single byte, with finer steps near silence, where
+ * the ear is most sensitive, and coarser steps for loud audio. Both directions are table lookups.
+ */
+final class MuLawCodec extends AudioCodec {
+  /** Added before companding, so that every segment has the same shape. */
+  private static final int BIAS = 0x84;
+
+  /** The loudest sample that can be encoded once the bias is added. */
+  private static final int CLIP = 32635;
+
+  /** The segment (exponent) of a biased sample, indexed by its top bits. */
+  private static final byte[] EXPONENTS = new byte[256];
+
+  /** The sample each encoded byte decodes to. */
+  private static final short[] DECODED = new short[256];
+
+  static {
+    for (int i = 1; i < EXPONENTS.length; i++) {
+      EXPONENTS[i] = (byte) (31 - Integer.numberOfLeadingZeros(i));
+    }
+    for (int i = 0; i < DECODED.length; i++) {
+      int value = ~i;
+      int exponent = (value >> 4) & 0x07;
+      int mantissa = value & 0x0F;
+      int sample = (((mantissa << 3) + BIAS) << exponent) - BIAS;
+      DECODED[i] = (short) ((value & 0x80) != 0 ? -sample : sample);
+    }
+  }
+
+  @Override
+  public int getType() {
+    return Type.MULAW;
+  }
+
+  @Override
+  public int getMaxEncodedSize(int samples) {
+    return samples;
+  }
+
+  @Override
+  public int encode(byte[] pcm, int len, byte[] out) {
+    int samples = len / AudioBuffer.BYTES_PER_FRAME;
+    for (int i = 0; i < samples; i++) {
+      out[i] = encode(readSample(pcm, i * AudioBuffer.BYTES_PER_FRAME));
+    }
+    return samples;
+  }
+
+  static byte encode(int sample) {
+    int sign = (sample >> 8) & 0x80;
+    if (sign != 0) {
+      sample = -sample;
+    }
+    if (sample > CLIP) {
+      sample = CLIP;
+    }
+    sample += BIAS;
+    int exponent = EXPONENTS[(sample >> 7) & 0xFF];
+    int mantissa = (sample >> (exponent + 3)) & 0x0F;
+    return (byte) ~(sign | (exponent << 4) | mantissa);
+  }
+
+  @Override
+  public int getSampleCount(byte[] data, int len) {
+    return len;
+  }
+
+  @Override
+  public int decode(byte[] data, int len, short[] out) {
+    for (int i = 0; i < len; i++) {
+      out[i] = DECODED[data[i] & 0xFF];
+    }
+    return len;
+  }
+}
@@ -0,0 +1,78 @@
+package com.xlythe.view.camera.stream;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RestrictTo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Helpers for walking the H.264 NAL units within an Annex B byte stream. This is the format that
+ * {@link android.media.MediaCodec} produces, where each unit is prefixed by a 00 00 01 (or
+ * 00 00 00 01) start code.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+final class NalUnits {
+  static final int TYPE_IDR = 5;
+  static final int TYPE_SPS = 7;
+  static final int TYPE_PPS = 8;
+
+  private NalUnits() {}
+
+  /** Returns the type of the NAL unit, given its first byte. */
+  static int getType(byte header) {
+    return header & 0x1F;
+  }
+
+  /**
+   * Returns the index of the first NAL unit payload at or after {@code from}, skipping over its
+   * start code. Returns {@code end} if there are no more start codes.
+   */
+  static int findPayload(byte[] data, int from, int end) {
+    for (int i = from; i + 2 < end; i++) {
+      if (data[i] == 0 && data[i + 1] == 0 && data[i + 2] == 1) {
+        return i + 3;
+      }
+    }
+    return end;
+  }
+
+  /**
+   * Returns the index just past the NAL unit payload that starts at {@code payload}. Trailing zeros
+   * belong to the next unit's 4 byte start code, so they're excluded.
+   */
+  static int findPayloadEnd(byte[] data, int payload, int end) {
+    int next = findPayload(data, payload, end);
+    int unitEnd = next == end ? end : next - 3;
+    while (unitEnd > payload && data[unitEnd - 1] == 0) {
+      unitEnd--;
+    }
+    return unitEnd;
+  }
+
+  /**
+   * Splits the buffer into its NAL units, with the start codes removed. If the buffer has no start
+   * codes, it's assumed to be a single NAL unit.
+   */
+  @NonNull
+  static List<byte[]> split(byte[] data) {
+    List<byte[]> units = new ArrayList<>();
+    int payload = findPayload(data, 0, data.length);
+    if (payload == data.length) {
+      if (data.length > 0) {
+        units.add(data.clone());
+      }
+      return units;
+    }
+
+    while (payload < data.length) {
+      int payloadEnd = findPayloadEnd(data, payload, data.length);
+      if (payloadEnd > payload) {
+        units.add(Arrays.copyOfRange(data, payload, payloadEnd));
+      }
+      payload = findPayload(data, payloadEnd, data.length);
+    }
+    return units;
+  }
+}
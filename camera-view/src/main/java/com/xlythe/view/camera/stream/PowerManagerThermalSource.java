@@ -0,0 +1,63 @@
+package com.xlythe.view.camera.stream;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.PowerManager;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Reads the thermal status from {@link PowerManager}. The status is only reported from API 29, and
+ * the headroom forecast from API 30. Older devices always report {@link Status#NONE}.
+ */
+final class PowerManagerThermalSource implements ThermalSource {
+  @Nullable private final PowerManager mPowerManager;
+
+  /** The platform listener we registered, kept so that it can be removed again. */
+  @Nullable private Object mPlatformListener;
+
+  PowerManagerThermalSource(Context context) {
+    mPowerManager = (PowerManager) context.getApplicationContext().getSystemService(Context.POWER_SERVICE);
+  }
+
+  @Override
+  public int getThermalStatus() {
+    if (mPowerManager == null || Build.VERSION.SDK_INT < 29) {
+      return Status.NONE;
+    }
+    return mPowerManager.getCurrentThermalStatus();
+  }
+
+  @Override
+  public float getThermalHeadroom(int forecastSeconds) {
+    if (mPowerManager == null || Build.VERSION.SDK_INT < 30) {
+      return Float.NaN;
+    }
+    return mPowerManager.getThermalHeadroom(forecastSeconds);
+  }
+
+  @Override
+  public void setOnThermalStatusChangedListener(@Nullable final OnThermalStatusChangedListener listener) {
+    if (mPowerManager == null || Build.VERSION.SDK_INT < 29) {
+      return;
+    }
+    if (mPlatformListener != null) {
+      mPowerManager.removeThermalStatusListener((PowerManager.OnThermalStatusChangedListener) mPlatformListener);
+      mPlatformListener = null;
+    }
+    if (listener != null) {
+      PowerManager.OnThermalStatusChangedListener platformListener = listener::onThermalStatusChanged;
+      mPowerManager.addThermalStatusListener(platformListener);
+      mPlatformListener = platformListener;
+    }
+  }
+
+  @NonNull
+  @Override
+  public String toString() {
+    return "PowerManagerThermalSource{" +
+            "status=" + getThermalStatus() +
+            '}';
+  }
+}
@@ -0,0 +1,384 @@
+package com.xlythe.view.camera.stream;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.FloatRange;
+import androidx.annotation.IntDef;
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
+import com.xlythe.view.camera.CameraView;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Scales back encoding as the device heats up, so that long sessions degrade gracefully instead of
+ * being throttled into dropped frames. The governor steps down a ladder of {@link Level}s as the
+ * thermal status worsens, or as the headroom forecast says it's about to, and steps back up one
+ * rung at a time once the device has stayed cool for a while.
+ *
+ * Stepping down happens straight away, since heat only gets worse. Stepping up waits until every
+ * reading for {@link #setStepUpDelayMillis(long)} has called for less than the current rung, so
+ * that quality doesn't flap on a device hovering around a threshold.
+ *
+ * The governor only watches the device while it has targets attached. It's safe to use from any
+ * thread, so targets must be ready to be told about changes on any thread too.
+ */
+public class QualityGovernor {
+  private static final String TAG = CameraView.class.getSimpleName();
+
+  /** How often the headroom forecast is checked. The platform rate limits calls to once a second. */
+  private static final long DEFAULT_POLL_INTERVAL_MILLIS = 10_000;
+
+  /** How long the device must stay cool before quality is stepped back up. */
+  private static final long DEFAULT_STEP_UP_DELAY_MILLIS = 60_000;
+
+  /** How far ahead the headroom forecast looks. */
+  private static final int HEADROOM_FORECAST_SECONDS = 10;
+
+  /** The headroom at which we start stepping down ahead of the platform throttling us. */
+  private static final float DEFAULT_HEADROOM_THRESHOLD = 0.8f;
+
+  /** How much more headroom is used up for each further rung. */
+  private static final float HEADROOM_PER_STEP = 0.1f;
+
+  /** Each rung of the default ladder, from full quality down to what a device in distress can manage. */
+  private static final List<Level> DEFAULT_LADDER = Collections.unmodifiableList(Arrays.asList(
+          new Level.Builder().build(),
+          new Level.Builder().setBitRateScale(0.75f).setMaxFrameRate(24).build(),
+          new Level.Builder().setBitRateScale(0.5f).setMaxFrameRate(15).setResolutionScale(0.75f).build(),
+          new Level.Builder().setBitRateScale(0.35f).setMaxFrameRate(15).setResolutionScale(0.5f).setPriority(Priority.BEST_EFFORT).build(),
+          new Level.Builder().setBitRateScale(0.25f).setMaxFrameRate(10).setResolutionScale(0.5f).setPriority(Priority.BEST_EFFORT).build()));
+
+  /** How urgently the encoder should run. Mirrors the values of {@code MediaFormat.KEY_PRIORITY}. */
+  @Retention(RetentionPolicy.SOURCE)
+  @IntDef({
+          Priority.REALTIME,
+          Priority.BEST_EFFORT,
+  })
+  public @interface Priority {
+    /** The encoder must keep up with the camera. */
+    int REALTIME = 0;
+    /** The encoder may fall behind, letting the platform run it at a lower clock. */
+    int BEST_EFFORT = 1;
+  }
+
+  private final ThermalSource mThermalSource;
+  private final List<Level> mLadder;
+  private final List<Target> mTargets = new ArrayList<>();
+  private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+  private long mPollIntervalMillis = DEFAULT_POLL_INTERVAL_MILLIS;
+  private long mStepUpDelayMillis = DEFAULT_STEP_UP_DELAY_MILLIS;
+  private float mHeadroomThreshold = DEFAULT_HEADROOM_THRESHOLD;
+
+  /** The index of the rung we're currently on. */
+  private int mCurrentLevel;
+
+  /**
+   * When the device was last too warm to step up, or when we last changed rungs, in
+   * {@link SystemClock#elapsedRealtime()} millis. Every reading since has called for a lower rung.
+   */
+  private long mCoolSinceMillis;
+
+  private final ThermalSource.OnThermalStatusChangedListener mStatusListener = new ThermalSource.OnThermalStatusChangedListener() {
+    @Override
+    public void onThermalStatusChanged(int status) {
+      update(SystemClock.elapsedRealtime());
+    }
+  };
+
+  private final Runnable mPollRunnable = new Runnable() {
+    @Override
+    public void run() {
+      update(SystemClock.elapsedRealtime());
+      mHandler.postDelayed(this, mPollIntervalMillis);
+    }
+  };
+
+  /** Creates a governor that reads the thermal status from PowerManager, using the default ladder. */
+  public QualityGovernor(Context context) {
+    this(new PowerManagerThermalSource(context), DEFAULT_LADDER);
+  }
+
+  /**
+   * @param thermalSource Where to read the thermal status from.
+   * @param ladder Each rung of quality, starting with the highest. The first rung is used while
+   *               the device is cool.
+   */
+  public QualityGovernor(ThermalSource thermalSource, List<Level> ladder) {
+    if (ladder.isEmpty()) {
+      throw new IllegalArgumentException("Cannot govern quality without any levels");
+    }
+    mThermalSource = thermalSource;
+    mLadder = Collections.unmodifiableList(new ArrayList<>(ladder));
+  }
+
+  /** Returns the default ladder, which can be used as a starting point for a custom one. */
+  public static List<Level> getDefaultLadder() {
+    return DEFAULT_LADDER;
+  }
+
+  public List<Level> getLadder() {
+    return mLadder;
+  }
+
+  /** Sets how often the headroom forecast is checked, on top of listening for status changes. */
+  public void setPollIntervalMillis(@IntRange(from = 1000) long pollIntervalMillis) {
+    mPollIntervalMillis = pollIntervalMillis;
+  }
+
+  /**
+   * Sets how long the device must stay cool before quality steps back up, measured from the later of
+   * the last change and the last reading that didn't call for a lower rung.
+   */
+  public void setStepUpDelayMillis(@IntRange(from = 0) long stepUpDelayMillis) {
+    mStepUpDelayMillis = stepUpDelayMillis;
+  }
+
+  /**
+   * Sets how much of the thermal headroom can be used before quality steps down, where 1 is the
+   * point the platform starts throttling. Each further tenth steps down another rung.
+   */
+  public void setHeadroomThreshold(@FloatRange(from = 0, to = 1) float headroomThreshold) {
+    mHeadroomThreshold = headroomThreshold;
+  }
+
+  /** Returns the index, within the ladder, of the rung currently in use. */
+  public synchronized int getCurrentLevelIndex() {
+    return mCurrentLevel;
+  }
+
+  public synchronized Level getCurrentLevel() {
+    return mLadder.get(mCurrentLevel);
+  }
+
+  /**
+   * Attaches a target, which is immediately told the current level and then told of every change.
+   * The device is watched for as long as there are targets attached.
+   */
+  public synchronized void addTarget(Target target) {
+    if (mTargets.contains(target)) {
+      return;
+    }
+    if (mTargets.isEmpty()) {
+      // Catch up on how hot the device is before telling the new target.
+      start();
+    }
+    mTargets.add(target);
+    target.onQualityChanged(getCurrentLevel());
+  }
+
+  /** Detaches a target. It keeps whatever level it was last given. */
+  public synchronized void removeTarget(Target target) {
+    if (mTargets.remove(target) && mTargets.isEmpty()) {
+      stop();
+    }
+  }
+
+  private void start() {
+    mThermalSource.setOnThermalStatusChangedListener(mStatusListener);
+    mPollRunnable.run();
+  }
+
+  private void stop() {
+    mThermalSource.setOnThermalStatusChangedListener(null);
+    mHandler.removeCallbacks(mPollRunnable);
+  }
+
+  /** Moves to a new rung if the device has heated up, or has been cool for long enough. */
+  @VisibleForTesting
+  synchronized void update(long nowMillis) {
+    int targetLevel = getTargetLevel();
+    if (targetLevel >= mCurrentLevel) {
+      // Still too warm. A single cool reading after a long hot spell isn't enough to step up.
+      mCoolSinceMillis = nowMillis;
+    }
+
+    int newLevel = mCurrentLevel;
+    if (targetLevel > mCurrentLevel) {
+      newLevel = targetLevel;
+    } else if (targetLevel < mCurrentLevel && nowMillis - mCoolSinceMillis >= mStepUpDelayMillis) {
+      newLevel = mCurrentLevel - 1;
+    }
+
+    if (newLevel == mCurrentLevel) {
+      return;
+    }
+
+    Log.d(TAG, "Thermal status is " + mThermalSource.getThermalStatus() + ". Changing quality from level " + mCurrentLevel + " to " + newLevel);
+    mCurrentLevel = newLevel;
+    mCoolSinceMillis = nowMillis;
+    Level level = getCurrentLevel();
+    for (Target target : mTargets) {
+      target.onQualityChanged(level);
+    }
+  }
+
+  /** Returns the rung the device's current temperature calls for. */
+  private int getTargetLevel() {
+    int level = Math.max(getLevelForStatus(mThermalSource.getThermalStatus()),
+            getLevelForHeadroom(mThermalSource.getThermalHeadroom(HEADROOM_FORECAST_SECONDS)));
+    return Math.min(level, mLadder.size() - 1);
+  }
+
+  private static int getLevelForStatus(@ThermalSource.Status int status) {
+    // Light throttling isn't noticeable, so it doesn't cost any quality.
+    return Math.max(0, status - ThermalSource.Status.LIGHT);
+  }
+
+  private int getLevelForHeadroom(float headroom) {
+    if (Float.isNaN(headroom) || headroom < mHeadroomThreshold) {
+      return 0;
+    }
+    return 1 + (int) ((headroom - mHeadroomThreshold) / HEADROOM_PER_STEP);
+  }
+
+  @NonNull
+  @Override
+  public String toString() {
+    return "QualityGovernor{" +
+            "level=" + mCurrentLevel +
+            ", ladder=" + mLadder +
+            ", targets=" + mTargets.size() +
+            '}';
+  }
+
+  /** Something whose quality can be scaled back, such as a {@link VideoRecorder}. */
+  public interface Target {
+    void onQualityChanged(Level level);
+  }
+
+  /**
+   * One rung of the ladder. Bit rate and resolution are relative to what the target was configured
+   * with, so that a single ladder works for every rendition of a stream.
+   */
+  public static final class Level {
+    private final float mBitRateScale;
+    private final int mMaxFrameRate;
+    private final float mResolutionScale;
+    @Priority private final int mPriority;
+
+    private Level(float bitRateScale, int maxFrameRate, float resolutionScale, @Priority int priority) {
+      this.mBitRateScale = bitRateScale;
+      this.mMaxFrameRate = maxFrameRate;
+      this.mResolutionScale = resolutionScale;
+      this.mPriority = priority;
+    }
+
+    /** Returns how much the bit rate is scaled by, where 1 is the configured bit rate. */
+    public float getBitRateScale() {
+      return mBitRateScale;
+    }
+
+    /** Returns the highest frame rate allowed, or 0 if the configured frame rate is allowed. */
+    public int getMaxFrameRate() {
+      return mMaxFrameRate;
+    }
+
+    /** Returns how much the width and height are scaled by, where 1 is the camera's own size. */
+    public float getResolutionScale() {
+      return mResolutionScale;
+    }
+
+    @Priority
+    public int getPriority() {
+      return mPriority;
+    }
+
+    /** Returns the given bit rate, scaled for this level. */
+    public int scaleBitRate(int bitRate) {
+      return (int) (bitRate * mBitRateScale);
+    }
+
+    /** Returns the given frame rate, capped for this level. */
+    public int capFrameRate(int frameRate) {
+      return mMaxFrameRate == 0 ? frameRate : Math.min(frameRate, mMaxFrameRate);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Level)) {
+        return false;
+      }
+      Level level = (Level) o;
+      return mBitRateScale == level.mBitRateScale
+              && mMaxFrameRate == level.mMaxFrameRate
+              && mResolutionScale == level.mResolutionScale
+              && mPriority == level.mPriority;
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(new Object[] {mBitRateScale, mMaxFrameRate, mResolutionScale, mPriority});
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+      return "Level{" +
+              "bitRateScale=" + mBitRateScale +
+              ", maxFrameRate=" + mMaxFrameRate +
+              ", resolutionScale=" + mResolutionScale +
+              ", priority=" + mPriority +
+              '}';
+    }
+
+    public static class Builder {
+      private float mBitRateScale = 1f;
+      private int mMaxFrameRate;
+      private float mResolutionScale = 1f;
+      @Priority private int mPriority = Priority.REALTIME;
+
+      /** Scales the bit rate. Can be changed without interrupting the stream. Defaults to 1. */
+      public Builder setBitRateScale(@FloatRange(from = 0, fromInclusive = false, to = 1) float scale) {
+        mBitRateScale = scale;
+        return this;
+      }
+
+      /** Caps the frame rate, or 0 for no cap. Changing this restarts the encoder. */
+      public Builder setMaxFrameRate(@IntRange(from = 0) int frameRate) {
+        mMaxFrameRate = frameRate;
+        return this;
+      }
+
+      /** Scales the width and height. Changing this restarts the encoder. Defaults to 1. */
+      public Builder setResolutionScale(@FloatRange(from = 0, fromInclusive = false, to = 1) float scale) {
+        mResolutionScale = scale;
+        return this;
+      }
+
+      /** Sets how urgently the encoder runs. Changing this restarts the encoder. */
+      public Builder setPriority(@Priority int priority) {
+        mPriority = priority;
+        return this;
+      }
+
+      public Level build() {
+        if (mBitRateScale <= 0 || mBitRateScale > 1) {
+          throw new IllegalStateException("Cannot scale the bit rate by " + mBitRateScale);
+        }
+        if (mMaxFrameRate < 0) {
+          throw new IllegalStateException("Cannot cap the frame rate at " + mMaxFrameRate);
+        }
+        if (mResolutionScale <= 0 || mResolutionScale > 1) {
+          throw new IllegalStateException("Cannot scale the resolution by " + mResolutionScale);
+        }
+        return new Level(mBitRateScale, mMaxFrameRate, mResolutionScale, mPriority);
+      }
+    }
+  }
+}
@@ -0,0 +1,248 @@
+package com.xlythe.view.camera.stream;
+
+import android.util.Log;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import androidx.annotation.RestrictTo;
+import androidx.annotation.VisibleForTesting;
+
+import com.xlythe.view.camera.CameraView;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lets any number of consumers, such as {@link VideoRecorder}s and {@link SurfaceSplitter}s, draw
+ * from the camera at once while the camera only ever sees a single surface. Each camera output
+ * costs sensor bandwidth and counts towards the camera's limit on concurrent streams, so asking for
+ * one per consumer fails as soon as a few of them are running.
+ *
+ * The camera is handed a surface that copies each frame into every consumer's surface on the GPU,
+ * even when there's only one consumer. The camera finishes with a surface in the background, so if
+ * it were ever handed a consumer's surface directly, that surface couldn't safely be drawn into
+ * by anyone else once a second consumer joined. Consumers come and go without the camera being
+ * asked again, and each keeps the size it was first given while the GPU scales frames to fit.
+ *
+ * The GPU can only draw into surfaces it can render to, such as those of encoders, textures and
+ * views. Consumers that read frames on the CPU, like an {@link android.media.ImageReader}, should
+ * attach to the camera directly instead.
+ */
+@RequiresApi(18)
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+public final class SharedCanvas implements VideoRecorder.Canvas {
+  private static final String TAG = CameraView.class.getSimpleName();
+
+  /** The canvas the camera draws onto. */
+  private final VideoRecorder.Canvas mCanvas;
+
+  /** Creates the renderer that copies the camera's frames into each consumer. */
+  private final SurfaceSplitter.Renderer.Factory mRendererFactory;
+
+  /** Everyone drawing from the camera, in the order they were attached. Guarded by this. */
+  private final List<Consumer> mConsumers = new ArrayList<>();
+
+  /** Set while attached to {@link #mCanvas}. Guarded by this. */
+  private boolean mIsAttached;
+
+  /**
+   * Copies frames into every consumer. Non-null once the camera has asked for a surface. Guarded by
+   * this.
+   */
+  @Nullable private SurfaceSplitter.Renderer mRenderer;
+
+  /** What the camera last asked for, which consumers attached later are given. Guarded by this. */
+  private int mWidth;
+  private int mHeight;
+  private int mOrientation;
+  private boolean mFlipped;
+
+  /** Passed to the camera, and hands out the surface the camera should draw onto. */
+  private final VideoRecorder.SurfaceProvider mSurfaceProvider = new VideoRecorder.SurfaceProvider() {
+    @Override
+    public Surface getSurface(int width, int height, int orientation, boolean flipped) {
+      return onSurfaceRequested(width, height, orientation, flipped);
+    }
+  };
+
+  /** @param canvas The canvas of the camera to share. */
+  public SharedCanvas(VideoRecorder.Canvas canvas) {
+    this(canvas, SurfaceSplitter.GlRenderer::new);
+  }
+
+  @VisibleForTesting
+  SharedCanvas(VideoRecorder.Canvas canvas, SurfaceSplitter.Renderer.Factory rendererFactory) {
+    mCanvas = canvas;
+    mRendererFactory = rendererFactory;
+  }
+
+  @Override
+  public void attachSurface(VideoRecorder.SurfaceProvider surfaceProvider) {
+    SurfaceSplitter.Renderer stale;
+    synchronized (this) {
+      if (findConsumer(surfaceProvider) != null) {
+        Log.w(TAG, "Ignoring a surface that's already attached");
+        return;
+      }
+      final Consumer consumer = new Consumer(surfaceProvider);
+      mConsumers.add(consumer);
+      if (mIsAttached && mRenderer != null) {
+        // The camera is already running for the other consumers, so this one joins them. Recorders
+        // wait for their surface to be requested on another thread, so it can't be asked here.
+        final SurfaceSplitter.Renderer renderer = mRenderer;
+        MediaScheduler.getInstance().submit("SharedCanvas", MediaScheduler.PRIORITY_VIDEO, new Runnable() {
+          @Override
+          public void run() {
+            addConsumer(renderer, consumer);
+          }
+        });
+        return;
+      }
+      if (mIsAttached) {
+        // The camera hasn't asked for a surface yet. It'll ask this consumer when it does.
+        return;
+      }
+      mIsAttached = true;
+      // The camera may have asked for a surface just before it was last detached.
+      stale = mRenderer;
+      mRenderer = null;
+    }
+    if (stale != null) {
+      stale.release();
+    }
+    mCanvas.attachSurface(mSurfaceProvider);
+  }
+
+  @Override
+  public void detachSurface(VideoRecorder.SurfaceProvider surfaceProvider) {
+    SurfaceSplitter.Renderer renderer;
+    synchronized (this) {
+      Consumer consumer = findConsumer(surfaceProvider);
+      if (consumer == null) {
+        return;
+      }
+      mConsumers.remove(consumer);
+
+      // Stop drawing into the consumer before returning, so that its surface can be released or
+      // handed to someone else straight away.
+      if (mRenderer != null && consumer.mSurface != null) {
+        mRenderer.removeOutput(consumer.mSurface);
+      }
+      consumer.mSurface = null;
+
+      if (!mConsumers.isEmpty() || !mIsAttached) {
+        return;
+      }
+      mIsAttached = false;
+      renderer = mRenderer;
+      mRenderer = null;
+    }
+    mCanvas.detachSurface(mSurfaceProvider);
+    if (renderer != null) {
+      renderer.release();
+    }
+  }
+
+  /** Returns the number of consumers drawing from the camera. */
+  public synchronized int getConsumerCount() {
+    return mConsumers.size();
+  }
+
+  @Nullable
+  private Consumer findConsumer(VideoRecorder.SurfaceProvider surfaceProvider) {
+    for (Consumer consumer : mConsumers) {
+      if (consumer.mSurfaceProvider == surfaceProvider) {
+        return consumer;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Asks every consumer for its surface, and returns a surface that copies the camera's frames into
+   * all of them.
+   */
+  private Surface onSurfaceRequested(int width, int height, int orientation, boolean flipped) {
+    SurfaceSplitter.Renderer renderer;
+    List<Consumer> consumers;
+    synchronized (this) {
+      if (mRenderer != null) {
+        // The camera was reconfigured, but the consumers are already running at their sizes.
+        mRenderer.setInputSize(width, height);
+        return mRenderer.getInputSurface();
+      }
+      renderer = mRendererFactory.create(width, height);
+      mRenderer = renderer;
+      mWidth = width;
+      mHeight = height;
+      mOrientation = orientation;
+      mFlipped = flipped;
+      consumers = new ArrayList<>(mConsumers);
+    }
+
+    for (Consumer consumer : consumers) {
+      addConsumer(renderer, consumer);
+    }
+    Log.d(TAG, "Sharing a " + width + "x" + height + " surface between " + consumers.size() + " consumers");
+    return renderer.getInputSurface();
+  }
+
+  /** Asks a consumer for its surface, and starts drawing into it. */
+  private void addConsumer(SurfaceSplitter.Renderer renderer, Consumer consumer) {
+    int width;
+    int height;
+    int orientation;
+    boolean flipped;
+    synchronized (this) {
+      width = mWidth;
+      height = mHeight;
+      orientation = mOrientation;
+      flipped = mFlipped;
+    }
+
+    Surface surface = consumer.mSurfaceProvider.getSurface(width, height, orientation, flipped);
+    synchronized (this) {
+      if (mRenderer != renderer || !mConsumers.contains(consumer)) {
+        // The consumer was detached while it was setting up, and has already let go of its surface.
+        return;
+      }
+      try {
+        renderer.addOutput(surface, width, height);
+        consumer.mSurface = surface;
+      } catch (IllegalStateException e) {
+        Log.e(TAG, "Failed to draw into " + consumer, e);
+      }
+    }
+  }
+
+  @NonNull
+  @Override
+  public synchronized String toString() {
+    return "SharedCanvas{" +
+            "consumers=" + mConsumers +
+            ", attached=" + mIsAttached +
+            '}';
+  }
+
+  /** A single consumer, and the surface it's being drawn into. */
+  private static class Consumer {
+    final VideoRecorder.SurfaceProvider mSurfaceProvider;
+
+    /** The consumer's surface, or null if it isn't being drawn into yet. Guarded by the canvas. */
+    @Nullable Surface mSurface;
+
+    Consumer(VideoRecorder.SurfaceProvider surfaceProvider) {
+      mSurfaceProvider = surfaceProvider;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+      return "Consumer{" +
+              "provider=" + mSurfaceProvider +
+              '}';
+    }
+  }
+}
@@ -0,0 +1,172 @@
+package com.xlythe.view.camera.stream;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+
+import com.google.common.primitives.Ints;
+import com.xlythe.view.camera.CameraView;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Provides random access into a recorded stream file, such as one written by {@link IndexedFileSink}.
+ * {@link #seek(long)} returns an {@link InputStream} that can be handed directly to a
+ * {@link VideoPlayer}, which will begin decoding at the requested time.
+ *
+ * If the file has no index sidecar, one is built in memory by scanning the file once.
+ */
+@RequiresApi(18)
+public class StreamFileReader implements Closeable {
+  private static final String TAG = CameraView.class.getSimpleName();
+
+  /** The file we're reading from. */
+  private final File mFile;
+
+  /** The file, opened for positional reads. Each stream returned by seek reads independently. */
+  private final FileChannel mChannel;
+
+  /** Maps key frame timestamps to byte offsets within the file. */
+  private final KeyFrameIndex mIndex;
+
+  public StreamFileReader(File file) throws IOException {
+    mFile = file;
+    mChannel = new FileInputStream(file).getChannel();
+    try {
+      mIndex = loadIndex(file, mChannel);
+    } catch (IOException e) {
+      mChannel.close();
+      throw e;
+    }
+  }
+
+  private static KeyFrameIndex loadIndex(File file, FileChannel channel) throws IOException {
+    KeyFrameIndex index = null;
+    File sidecar = KeyFrameIndex.sidecarFor(file);
+    if (sidecar.exists()) {
+      try {
+        index = KeyFrameIndex.read(sidecar);
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to read index " + sidecar + ". Rebuilding it.", e);
+      }
+    }
+    if (index == null) {
+      index = new KeyFrameIndex();
+    }
+
+    // Pick up anything written after the last indexed key frame. Without a sidecar, this indexes the
+    // whole file.
+    index.scan(channel);
+    return index;
+  }
+
+  /** Returns the file being read. */
+  public File getFile() {
+    return mFile;
+  }
+
+  /** Returns the number of key frames that can be seeked to. */
+  public int getKeyFrameCount() {
+    return mIndex.size();
+  }
+
+  /** Returns the presentation time of the given key frame, in microseconds. */
+  public long getKeyFrameTimeUs(int index) {
+    if (index < 0 || index >= mIndex.size()) {
+      throw new IndexOutOfBoundsException("No key frame at " + index);
+    }
+    return mIndex.getTimeUs(index);
+  }
+
+  /**
+   * Returns a stream that starts at the last key frame at or before the given presentation time.
+   * The stream begins with the header and codec config in effect at that point, so it can be played
+   * as though it were the start of the recording.
+   *
+   * @throws IOException If the file has no key frames to seek to.
+   */
+  public InputStream seek(long presentationTimeUs) throws IOException {
+    int index = mIndex.floor(presentationTimeUs);
+    if (index < 0) {
+      throw new IOException("Unable to seek. " + mFile + " has no key frames.");
+    }
+
+    ByteArrayOutputStream preamble = new ByteArrayOutputStream();
+    copyFrame(mIndex.getHeaderOffset(index), preamble);
+    copyFrame(mIndex.getCodecConfigOffset(index), preamble);
+    return new SequenceInputStream(
+            new ByteArrayInputStream(preamble.toByteArray()),
+            new ChannelInputStream(mChannel, mIndex.getOffset(index)));
+  }
+
+  /** Copies the length prefixed frame at the given offset. */
+  private void copyFrame(long offset, ByteArrayOutputStream outputStream) throws IOException {
+    ByteBuffer length = ByteBuffer.allocate(4);
+    KeyFrameIndex.readFully(mChannel, length, offset);
+    ByteBuffer frame = ByteBuffer.allocate(Ints.fromByteArray(length.array()));
+    KeyFrameIndex.readFully(mChannel, frame, offset + 4);
+    outputStream.write(length.array());
+    outputStream.write(frame.array());
+  }
+
+  @Override
+  public void close() throws IOException {
+    mChannel.close();
+  }
+
+  @NonNull
+  @Override
+  public String toString() {
+    return "StreamFileReader{" +
+            "file=" + mFile +
+            ", keyFrames=" + mIndex.size() +
+            '}';
+  }
+
+  /**
+   * Reads from a channel without touching its position, so that multiple streams can share it.
+   */
+  private static class ChannelInputStream extends InputStream {
+    private final FileChannel mChannel;
+    private long mPosition;
+
+    ChannelInputStream(FileChannel channel, long position) {
+      mChannel = channel;
+      mPosition = position;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] buffer = new byte[1];
+      int read = read(buffer, 0, 1);
+      return read == -1 ? -1 : buffer[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      int read = mChannel.read(ByteBuffer.wrap(b, off, len), mPosition);
+      if (read > 0) {
+        mPosition += read;
+      }
+      return read;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (int) Math.max(0, Math.min(Integer.MAX_VALUE, mChannel.size() - mPosition));
+    }
+  }
+}
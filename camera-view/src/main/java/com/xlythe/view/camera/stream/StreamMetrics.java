@@ -0,0 +1,299 @@
+package com.xlythe.view.camera.stream;
+
+import android.os.Build;
+import android.os.SystemClock;
+import android.os.Trace;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.RestrictTo;
+
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Collects counters from the components of a stream, as frames are encoded, written, dropped,
+ * decoded and rendered. Every counter is a single atomic, so recording a frame never takes a lock
+ * and is cheap enough to leave on. The counters are turned into a {@link StreamStats} on demand.
+ *
+ * Reading the stats never changes them. The periodic reporter keeps its own window, with its own
+ * maximums, so it doesn't interfere with anyone else reading {@link #getStats()}.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+public final class StreamMetrics {
+  /** Encode latencies above this are assumed to be using a different clock, and are ignored. */
+  private static final long MAX_ENCODE_LATENCY_US = 10_000_000;
+
+  private final AtomicLong mEncodedFrameCount = new AtomicLong();
+  private final AtomicLong mEncodedBytes = new AtomicLong();
+  private final AtomicLong mKeyFrameCount = new AtomicLong();
+  private final AtomicLong mMaxFrameSize = new AtomicLong();
+  private final AtomicLong mIntervalMaxFrameSize = new AtomicLong();
+
+  private final AtomicLong mEncodeLatencyCount = new AtomicLong();
+  private final AtomicLong mEncodeLatencyTotalUs = new AtomicLong();
+  private final AtomicLong mMaxEncodeLatencyUs = new AtomicLong();
+  private final AtomicLong mIntervalMaxEncodeLatencyUs = new AtomicLong();
+
+  private final AtomicLong mWriteCount = new AtomicLong();
+  private final AtomicLong mWriteLatencyTotalUs = new AtomicLong();
+  private final AtomicLong mMaxWriteLatencyUs = new AtomicLong();
+  private final AtomicLong mIntervalMaxWriteLatencyUs = new AtomicLong();
+
+  private final AtomicLong mDroppedFrameCount = new AtomicLong();
+  private final AtomicLong mDroppedBytes = new AtomicLong();
+
+  private final AtomicLong mQueuedFrameCount = new AtomicLong();
+  private final AtomicLong mDecodedFrameCount = new AtomicLong();
+  private final AtomicLong mRenderedFrameCount = new AtomicLong();
+
+  /** The most recently measured audio buffer latencies, or 0 if not measured. */
+  private final AtomicLong mAudioInputLatencyUs = new AtomicLong();
+  private final AtomicLong mAudioOutputLatencyUs = new AtomicLong();
+
+  private final AtomicLong mAudioRecordedBytes = new AtomicLong();
+  private final AtomicLong mAudioSuppressedBytes = new AtomicLong();
+
+  private final AtomicLong mAudioConcealedPacketCount = new AtomicLong();
+  private final AtomicLong mAudioDiscardedPacketCount = new AtomicLong();
+
+  /** How much audio the player's jitter buffer most recently held. */
+  private final AtomicLong mAudioJitterBufferDelayUs = new AtomicLong();
+
+  /** Latencies of each stage of traced frames, indexed by {@link LatencyHistogram.Stage}. */
+  private final LatencyHistogram[] mLatencies = new LatencyHistogram[LatencyHistogram.STAGE_COUNT];
+
+  /** The pipe that encoded frames wait in until they're read. */
+  @Nullable private volatile PipedInputStream mPipe;
+
+  /** An empty snapshot from when the stream started, which {@link #getStats()} is measured against. */
+  private final StreamStats mStartStats;
+
+  /** The previous interval's snapshot, which {@link #takeIntervalStats()} is measured against. */
+  private final AtomicReference<StreamStats> mLastIntervalStats;
+
+  public StreamMetrics() {
+    mStartStats = StreamStats.empty(SystemClock.elapsedRealtime());
+    mLastIntervalStats = new AtomicReference<>(mStartStats);
+    for (int i = 0; i < mLatencies.length; i++) {
+      mLatencies[i] = new LatencyHistogram();
+    }
+  }
+
+  /**
+   * Converts a camera timestamp into microseconds on the {@link System#nanoTime()} clock. Cameras
+   * stamp frames with either that clock or {@link SystemClock#elapsedRealtimeNanos()}, depending on
+   * the device, and the two drift apart whenever the device sleeps.
+   *
+   * @return The converted time, or 0 if the timestamp matches neither clock.
+   */
+  static long toMonotonicTimeUs(long timestampUs) {
+    long nowUs = System.nanoTime() / 1000;
+    if (Math.abs(nowUs - timestampUs) < MAX_ENCODE_LATENCY_US) {
+      return timestampUs;
+    }
+    long bootTimeUs = SystemClock.elapsedRealtimeNanos() / 1000;
+    if (Math.abs(bootTimeUs - timestampUs) < MAX_ENCODE_LATENCY_US) {
+      return timestampUs - (bootTimeUs - nowUs);
+    }
+    return 0;
+  }
+
+  /** Sets the pipe whose occupancy should be reported. */
+  public void setPipe(@Nullable PipedInputStream pipe) {
+    mPipe = pipe;
+  }
+
+  /**
+   * Called once the encoder outputs a frame.
+   *
+   * @param presentationTimeUs The frame's timestamp. For frames drawn to an encoder's input
+   *     surface, this is the time the frame was captured.
+   */
+  void onFrameEncoded(int size, long presentationTimeUs, boolean isKeyFrame) {
+    mEncodedFrameCount.incrementAndGet();
+    mEncodedBytes.addAndGet(size);
+    if (isKeyFrame) {
+      mKeyFrameCount.incrementAndGet();
+    }
+    updateMax(mMaxFrameSize, size);
+    updateMax(mIntervalMaxFrameSize, size);
+
+    long captureTimeUs = toMonotonicTimeUs(presentationTimeUs);
+    long latencyUs = System.nanoTime() / 1000 - captureTimeUs;
+    if (captureTimeUs != 0 && latencyUs >= 0 && latencyUs < MAX_ENCODE_LATENCY_US) {
+      mEncodeLatencyCount.incrementAndGet();
+      mEncodeLatencyTotalUs.addAndGet(latencyUs);
+      updateMax(mMaxEncodeLatencyUs, latencyUs);
+      updateMax(mIntervalMaxEncodeLatencyUs, latencyUs);
+    }
+  }
+
+  /** Called once a frame has been written to the stream, with how long the write blocked for. */
+  void onFrameWritten(long latencyUs) {
+    mWriteCount.incrementAndGet();
+    mWriteLatencyTotalUs.addAndGet(latencyUs);
+    updateMax(mMaxWriteLatencyUs, latencyUs);
+    updateMax(mIntervalMaxWriteLatencyUs, latencyUs);
+  }
+
+  /**
+   * Called when bytes are dropped because the reader isn't keeping up.
+   *
+   * @param isNewFrame True for the first bytes dropped from a frame.
+   */
+  void onBytesDropped(int len, boolean isNewFrame) {
+    mDroppedBytes.addAndGet(len);
+    if (isNewFrame) {
+      mDroppedFrameCount.incrementAndGet();
+    }
+  }
+
+  /** Called once a frame has been handed to the decoder. */
+  void onFrameQueued() {
+    mQueuedFrameCount.incrementAndGet();
+  }
+
+  /** Called once the decoder has output a frame, which may or may not have been drawn. */
+  void onFrameDecoded(boolean isRendered) {
+    mDecodedFrameCount.incrementAndGet();
+    if (isRendered) {
+      mRenderedFrameCount.incrementAndGet();
+    }
+  }
+
+  /**
+   * Called once audio has been read from the microphone.
+   *
+   * @param len The size of the audio, as PCM.
+   * @param isSuppressed True if the audio was silence, and was replaced by a marker.
+   */
+  void onAudioRecorded(int len, boolean isSuppressed) {
+    mAudioRecordedBytes.addAndGet(len);
+    if (isSuppressed) {
+      mAudioSuppressedBytes.addAndGet(len);
+    }
+  }
+
+  /** Called when a lost or late audio packet has been replaced. */
+  void onAudioPacketConcealed() {
+    mAudioConcealedPacketCount.incrementAndGet();
+  }
+
+  /** Called when an audio packet is thrown away, for arriving too late or to catch up. */
+  void onAudioPacketDiscarded() {
+    mAudioDiscardedPacketCount.incrementAndGet();
+  }
+
+  /** Called as audio is played, with how much is waiting in the jitter buffer. */
+  void onAudioJitterBufferDelay(long delayUs) {
+    mAudioJitterBufferDelayUs.set(delayUs);
+  }
+
+  /**
+   * Records how long a traced frame spent in one stage of the pipeline. When tracing on API 29+,
+   * the latency is also published as a counter, so it can be graphed alongside the trace sections.
+   */
+  void onLatency(@LatencyHistogram.Stage int stage, long latencyUs) {
+    if (latencyUs < 0) {
+      return;
+    }
+    mLatencies[stage].record(latencyUs);
+    if (stage == LatencyHistogram.Stage.AUDIO_INPUT) {
+      mAudioInputLatencyUs.set(latencyUs);
+    } else if (stage == LatencyHistogram.Stage.AUDIO_OUTPUT) {
+      mAudioOutputLatencyUs.set(latencyUs);
+    }
+    if (Build.VERSION.SDK_INT >= 29 && Trace.isEnabled()) {
+      Trace.setCounter("CameraView:latency:" + LatencyHistogram.getStageName(stage), latencyUs);
+    }
+  }
+
+  /** Returns the latencies of traced frames for the given stage. */
+  public LatencyHistogram getLatencyHistogram(@LatencyHistogram.Stage int stage) {
+    return mLatencies[stage];
+  }
+
+  private static void updateMax(AtomicLong max, long value) {
+    long current;
+    do {
+      current = max.get();
+      if (value <= current) {
+        return;
+      }
+    } while (!max.compareAndSet(current, value));
+  }
+
+  /**
+   * Returns a snapshot of the counters. Rates, averages and maximums cover the time since the
+   * stream started, and counts are totals. This is a pure read, so it can be called as often as
+   * needed, from any thread.
+   */
+  public StreamStats getStats() {
+    return snapshot(
+            mStartStats,
+            mMaxFrameSize.get(),
+            mMaxEncodeLatencyUs.get(),
+            mMaxWriteLatencyUs.get());
+  }
+
+  /**
+   * Returns a snapshot whose rates, averages and maximums cover the time since the previous call,
+   * and starts a new interval. Only the periodic stats reporter should call this, as every call
+   * shortens the next caller's interval.
+   */
+  public StreamStats takeIntervalStats() {
+    StreamStats stats = snapshot(
+            mLastIntervalStats.get(),
+            mIntervalMaxFrameSize.getAndSet(0),
+            mIntervalMaxEncodeLatencyUs.getAndSet(0),
+            mIntervalMaxWriteLatencyUs.getAndSet(0));
+    mLastIntervalStats.set(stats);
+    return stats;
+  }
+
+  private StreamStats snapshot(
+          StreamStats previous, long maxFrameSize, long maxEncodeLatencyUs, long maxWriteLatencyUs) {
+    long now = SystemClock.elapsedRealtime();
+    int pipeOccupancy = 0;
+    PipedInputStream pipe = mPipe;
+    if (pipe != null) {
+      try {
+        pipeOccupancy = pipe.available();
+      } catch (IOException e) {
+        // The pipe has closed. Nothing is waiting in it.
+      }
+    }
+
+    StreamStats.Counters counters = new StreamStats.Counters();
+    counters.mEncodedFrameCount = mEncodedFrameCount.get();
+    counters.mEncodedBytes = mEncodedBytes.get();
+    counters.mKeyFrameCount = mKeyFrameCount.get();
+    counters.mEncodeLatencyCount = mEncodeLatencyCount.get();
+    counters.mEncodeLatencyTotalUs = mEncodeLatencyTotalUs.get();
+    counters.mWriteCount = mWriteCount.get();
+    counters.mWriteLatencyTotalUs = mWriteLatencyTotalUs.get();
+    counters.mDroppedFrameCount = mDroppedFrameCount.get();
+    counters.mDroppedBytes = mDroppedBytes.get();
+    counters.mQueuedFrameCount = mQueuedFrameCount.get();
+    counters.mDecodedFrameCount = mDecodedFrameCount.get();
+    counters.mRenderedFrameCount = mRenderedFrameCount.get();
+    counters.mAudioRecordedBytes = mAudioRecordedBytes.get();
+    counters.mAudioSuppressedBytes = mAudioSuppressedBytes.get();
+    counters.mAudioConcealedPacketCount = mAudioConcealedPacketCount.get();
+    counters.mAudioDiscardedPacketCount = mAudioDiscardedPacketCount.get();
+
+    return new StreamStats(
+            now,
+            previous,
+            counters,
+            maxFrameSize,
+            maxEncodeLatencyUs,
+            maxWriteLatencyUs,
+            pipeOccupancy,
+            mAudioInputLatencyUs.get(),
+            mAudioOutputLatencyUs.get(),
+            mAudioJitterBufferDelayUs.get());
+  }
+}
@@ -0,0 +1,288 @@
+package com.xlythe.view.camera.stream;
+
+import androidx.annotation.NonNull;
+
+import java.util.Locale;
+
+/**
+ * A snapshot of how a stream is performing. Rates, averages and maximums cover an interval (see
+ * {@link #getIntervalMillis()}), which is the whole stream for snapshots taken on demand and the
+ * time since the previous report for periodic ones. Counts are always totals since the stream
+ * started.
+ *
+ * Encoder stats are only available on the side that records the stream, and decoder stats on the
+ * side that plays it. Stats that don't apply are left at 0.
+ */
+public final class StreamStats {
+  private final long mTimeMillis;
+  private final long mIntervalMillis;
+  private final Counters mCounters;
+
+  private final float mEncodedFps;
+  private final long mBitRate;
+  private final long mAverageFrameSize;
+  private final long mMaxFrameSize;
+  private final long mAverageEncodeLatencyUs;
+  private final long mMaxEncodeLatencyUs;
+  private final long mAverageWriteLatencyUs;
+  private final long mMaxWriteLatencyUs;
+  private final int mPipeOccupancy;
+  private final float mRenderFps;
+  private final long mAudioInputLatencyUs;
+  private final long mAudioOutputLatencyUs;
+  private final long mAudioJitterBufferDelayUs;
+
+  static StreamStats empty(long timeMillis) {
+    return new StreamStats(timeMillis, null, new Counters(), 0, 0, 0, 0, 0, 0, 0);
+  }
+
+  StreamStats(long timeMillis,
+              StreamStats previous,
+              Counters counters,
+              long maxFrameSize,
+              long maxEncodeLatencyUs,
+              long maxWriteLatencyUs,
+              int pipeOccupancy,
+              long audioInputLatencyUs,
+              long audioOutputLatencyUs,
+              long audioJitterBufferDelayUs) {
+    Counters last = previous == null ? counters : previous.mCounters;
+    mTimeMillis = timeMillis;
+    mIntervalMillis = previous == null ? 0 : timeMillis - previous.mTimeMillis;
+    mCounters = counters;
+
+    long frames = counters.mEncodedFrameCount - last.mEncodedFrameCount;
+    long bytes = counters.mEncodedBytes - last.mEncodedBytes;
+    mEncodedFps = perSecond(frames, mIntervalMillis);
+    mBitRate = (long) perSecond(bytes * 8, mIntervalMillis);
+    mAverageFrameSize = average(bytes, frames);
+    mMaxFrameSize = maxFrameSize;
+
+    mAverageEncodeLatencyUs = average(
+            counters.mEncodeLatencyTotalUs - last.mEncodeLatencyTotalUs,
+            counters.mEncodeLatencyCount - last.mEncodeLatencyCount);
+    mMaxEncodeLatencyUs = maxEncodeLatencyUs;
+
+    mAverageWriteLatencyUs = average(
+            counters.mWriteLatencyTotalUs - last.mWriteLatencyTotalUs,
+            counters.mWriteCount - last.mWriteCount);
+    mMaxWriteLatencyUs = maxWriteLatencyUs;
+
+    mPipeOccupancy = pipeOccupancy;
+    mRenderFps = perSecond(counters.mRenderedFrameCount - last.mRenderedFrameCount, mIntervalMillis);
+    mAudioInputLatencyUs = audioInputLatencyUs;
+    mAudioOutputLatencyUs = audioOutputLatencyUs;
+    mAudioJitterBufferDelayUs = audioJitterBufferDelayUs;
+  }
+
+  private static float perSecond(long count, long intervalMillis) {
+    if (intervalMillis <= 0) {
+      return 0;
+    }
+    return count * 1000f / intervalMillis;
+  }
+
+  private static long average(long total, long count) {
+    if (count <= 0) {
+      return 0;
+    }
+    return total / count;
+  }
+
+  /** Returns the length of time that rates, averages and maximums were measured over. */
+  public long getIntervalMillis() {
+    return mIntervalMillis;
+  }
+
+  /** Returns the number of frames the encoder has output, not counting codec config. */
+  public long getEncodedFrameCount() {
+    return mCounters.mEncodedFrameCount;
+  }
+
+  /** Returns the number of key frames the encoder has output. */
+  public long getKeyFrameCount() {
+    return mCounters.mKeyFrameCount;
+  }
+
+  /** Returns the number of bytes the encoder has output. */
+  public long getEncodedBytes() {
+    return mCounters.mEncodedBytes;
+  }
+
+  public float getEncodedFps() {
+    return mEncodedFps;
+  }
+
+  /** Returns the measured bit rate of the encoded video, in bits per second. */
+  public long getBitRate() {
+    return mBitRate;
+  }
+
+  public long getAverageFrameSize() {
+    return mAverageFrameSize;
+  }
+
+  public long getMaxFrameSize() {
+    return mMaxFrameSize;
+  }
+
+  /** Returns the average time from a frame being captured to it leaving the encoder. */
+  public long getAverageEncodeLatencyUs() {
+    return mAverageEncodeLatencyUs;
+  }
+
+  public long getMaxEncodeLatencyUs() {
+    return mMaxEncodeLatencyUs;
+  }
+
+  /** Returns the average time spent writing a frame to the stream, including waiting on the reader. */
+  public long getAverageWriteLatencyUs() {
+    return mAverageWriteLatencyUs;
+  }
+
+  public long getMaxWriteLatencyUs() {
+    return mMaxWriteLatencyUs;
+  }
+
+  /** Returns the number of bytes written to the stream that haven't been read yet. */
+  public int getPipeOccupancy() {
+    return mPipeOccupancy;
+  }
+
+  /** Returns the number of frames dropped because the reader fell behind. */
+  public long getDroppedFrameCount() {
+    return mCounters.mDroppedFrameCount;
+  }
+
+  /** Returns the number of bytes dropped because the reader fell behind. */
+  public long getDroppedBytes() {
+    return mCounters.mDroppedBytes;
+  }
+
+  /** Returns the number of frames handed to the decoder that it hasn't output yet. */
+  public long getDecoderQueueDepth() {
+    return Math.max(0, mCounters.mQueuedFrameCount - mCounters.mDecodedFrameCount);
+  }
+
+  /** Returns the number of frames the decoder has drawn. */
+  public long getRenderedFrameCount() {
+    return mCounters.mRenderedFrameCount;
+  }
+
+  public float getRenderFps() {
+    return mRenderFps;
+  }
+
+  /**
+   * Returns how long audio most recently waited between the microphone and the recorder. Only
+   * measured when recording low latency audio on API 24+.
+   */
+  public long getAudioInputLatencyUs() {
+    return mAudioInputLatencyUs;
+  }
+
+  /**
+   * Returns how long audio most recently waited between the player and the speaker. Only measured
+   * when playing low latency audio.
+   */
+  public long getAudioOutputLatencyUs() {
+    return mAudioOutputLatencyUs;
+  }
+
+  /**
+   * Returns the time audio spends buffered on this device, from the microphone to the recorder plus
+   * from the player to the speaker. For a two-way call, where the local stream records and the
+   * remote stream plays, add the input latency of one to the output latency of the other instead.
+   */
+  public long getAudioRoundTripLatencyUs() {
+    return mAudioInputLatencyUs + mAudioOutputLatencyUs;
+  }
+
+  /** Returns the number of bytes of PCM audio read from the microphone. */
+  public long getAudioRecordedBytes() {
+    return mCounters.mAudioRecordedBytes;
+  }
+
+  /**
+   * Returns the number of bytes of PCM audio that were silence, and were replaced by a small marker
+   * rather than being sent.
+   */
+  public long getAudioSuppressedBytes() {
+    return mCounters.mAudioSuppressedBytes;
+  }
+
+  /** Returns the fraction of recorded audio that was suppressed as silence, from 0 to 1. */
+  public float getAudioSuppressionRatio() {
+    if (mCounters.mAudioRecordedBytes == 0) {
+      return 0;
+    }
+    return (float) mCounters.mAudioSuppressedBytes / mCounters.mAudioRecordedBytes;
+  }
+
+  /**
+   * Returns the number of audio packets that were lost or arrived too late to play, and were
+   * replaced with concealment. Only counted for packetized audio.
+   */
+  public long getAudioConcealedPacketCount() {
+    return mCounters.mAudioConcealedPacketCount;
+  }
+
+  /**
+   * Returns the number of audio packets the player threw away, either because they arrived after
+   * being concealed or because playback fell too far behind. Only counted for packetized audio.
+   */
+  public long getAudioDiscardedPacketCount() {
+    return mCounters.mAudioDiscardedPacketCount;
+  }
+
+  /** Returns how much audio was most recently waiting in the player's jitter buffer. */
+  public long getAudioJitterBufferDelayUs() {
+    return mAudioJitterBufferDelayUs;
+  }
+
+  @NonNull
+  @Override
+  public String toString() {
+    return "StreamStats{" +
+            "interval=" + mIntervalMillis + "ms" +
+            ", encodedFps=" + String.format(Locale.US, "%.1f", mEncodedFps) +
+            ", bitRate=" + mBitRate +
+            ", averageFrameSize=" + mAverageFrameSize +
+            ", maxFrameSize=" + mMaxFrameSize +
+            ", keyFrames=" + mCounters.mKeyFrameCount +
+            ", encodeLatency=" + mAverageEncodeLatencyUs + "us" +
+            ", writeLatency=" + mAverageWriteLatencyUs + "us" +
+            ", pipeOccupancy=" + mPipeOccupancy +
+            ", droppedFrames=" + mCounters.mDroppedFrameCount +
+            ", droppedBytes=" + mCounters.mDroppedBytes +
+            ", decoderQueueDepth=" + getDecoderQueueDepth() +
+            ", renderFps=" + String.format(Locale.US, "%.1f", mRenderFps) +
+            ", audioInputLatency=" + mAudioInputLatencyUs + "us" +
+            ", audioOutputLatency=" + mAudioOutputLatencyUs + "us" +
+            ", audioSuppression=" + String.format(Locale.US, "%.2f", getAudioSuppressionRatio()) +
+            ", audioConcealedPackets=" + mCounters.mAudioConcealedPacketCount +
+            ", audioDiscardedPackets=" + mCounters.mAudioDiscardedPacketCount +
+            ", audioJitterBufferDelay=" + mAudioJitterBufferDelayUs + "us" +
+            '}';
+  }
+
+  /** The raw totals a snapshot was taken from. */
+  static class Counters {
+    long mEncodedFrameCount;
+    long mEncodedBytes;
+    long mKeyFrameCount;
+    long mEncodeLatencyCount;
+    long mEncodeLatencyTotalUs;
+    long mWriteCount;
+    long mWriteLatencyTotalUs;
+    long mDroppedFrameCount;
+    long mDroppedBytes;
+    long mQueuedFrameCount;
+    long mDecodedFrameCount;
+    long mRenderedFrameCount;
+    long mAudioRecordedBytes;
+    long mAudioSuppressedBytes;
+    long mAudioConcealedPacketCount;
+    long mAudioDiscardedPacketCount;
+  }
+}
@@ -0,0 +1,749 @@
+package com.xlythe.view.camera.stream;
+
+import android.graphics.SurfaceTexture;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import androidx.annotation.RestrictTo;
+import androidx.annotation.VisibleForTesting;
+
+import com.google.common.util.concurrent.SettableFuture;
+import com.xlythe.view.camera.CameraView;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Shares a single camera surface between several {@link VideoRecorder}s, each at its own scale.
+ * Camera modules can only feed one custom surface at a time, so the splitter attaches one surface
+ * to the camera and copies every frame it receives into each recorder's surface on the GPU. The
+ * copy is downscaled by the GPU as it draws, so smaller renditions cost almost nothing extra.
+ *
+ * The camera is attached once every output has been attached, and detached once all of them have
+ * been detached. An output that's detached and attached again while the others keep running, such
+ * as when a recorder restarts its encoder, is rebuilt on its own without disturbing the camera or
+ * the other outputs.
+ */
+@RequiresApi(18)
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+public final class SurfaceSplitter {
+  private static final String TAG = CameraView.class.getSimpleName();
+
+  private static final String VERTEX_SHADER =
+          "uniform mat4 uTexMatrix;\n" +
+          "attribute vec4 aPosition;\n" +
+          "attribute vec4 aTextureCoord;\n" +
+          "varying vec2 vTextureCoord;\n" +
+          "void main() {\n" +
+          "  gl_Position = aPosition;\n" +
+          "  vTextureCoord = (uTexMatrix * aTextureCoord).xy;\n" +
+          "}\n";
+
+  private static final String FRAGMENT_SHADER =
+          "#extension GL_OES_EGL_image_external : require\n" +
+          "precision mediump float;\n" +
+          "varying vec2 vTextureCoord;\n" +
+          "uniform samplerExternalOES sTexture;\n" +
+          "void main() {\n" +
+          "  gl_FragColor = texture2D(sTexture, vTextureCoord);\n" +
+          "}\n";
+
+  /** A rectangle covering the whole surface, drawn as a triangle strip. */
+  private static final float[] POSITIONS = {
+          -1f, -1f,
+          1f, -1f,
+          -1f, 1f,
+          1f, 1f,
+  };
+
+  /** The texture coordinates of each corner of {@link #POSITIONS}. */
+  private static final float[] TEXTURE_COORDINATES = {
+          0f, 0f,
+          1f, 0f,
+          0f, 1f,
+          1f, 1f,
+  };
+
+  /** Tells EGL that the surface will be fed to a video encoder. */
+  private static final int EGL_RECORDABLE_ANDROID = 0x3142;
+
+  /** The canvas the camera draws onto. */
+  private final VideoRecorder.Canvas mCanvas;
+
+  /** Creates the renderer that copies the camera's frames into each output. */
+  private final Renderer.Factory mRendererFactory;
+
+  /** How much each output is scaled down by, relative to the camera. Guarded by this. */
+  private final float[] mScales;
+
+  /** The recorders' surface providers, indexed by output. Guarded by this. */
+  private final VideoRecorder.SurfaceProvider[] mProviders;
+
+  /** The surface each output is drawn into, or null if it isn't being drawn. Guarded by this. */
+  private final Surface[] mSurfaces;
+
+  /** Set while attached to {@link #mCanvas}. Guarded by this. */
+  private boolean mIsAttached;
+
+  /** Draws every output. Non-null once the camera has asked for a surface. Guarded by this. */
+  @Nullable private Renderer mRenderer;
+
+  /** What the camera last asked for, which outputs attached later are sized from. Guarded by this. */
+  private int mWidth;
+  private int mHeight;
+  private int mOrientation;
+  private boolean mFlipped;
+
+  /** Passed to the camera, and hands out the surface the camera should draw onto. */
+  private final VideoRecorder.SurfaceProvider mSurfaceProvider = new VideoRecorder.SurfaceProvider() {
+    @Override
+    public Surface getSurface(int width, int height, int orientation, boolean flipped) {
+      return onSurfaceRequested(width, height, orientation, flipped);
+    }
+  };
+
+  /**
+   * @param canvas The canvas of the camera to split.
+   * @param scales The scale of each output, where 1 is the camera's own size.
+   */
+  public SurfaceSplitter(VideoRecorder.Canvas canvas, float... scales) {
+    this(canvas, GlRenderer::new, scales);
+  }
+
+  @VisibleForTesting
+  SurfaceSplitter(VideoRecorder.Canvas canvas, Renderer.Factory rendererFactory, float... scales) {
+    if (scales.length == 0) {
+      throw new IllegalArgumentException("Cannot split a surface into no outputs");
+    }
+    for (float scale : scales) {
+      checkScale(scale);
+    }
+    mCanvas = canvas;
+    mRendererFactory = rendererFactory;
+    mScales = scales.clone();
+    mProviders = new VideoRecorder.SurfaceProvider[scales.length];
+    mSurfaces = new Surface[scales.length];
+  }
+
+  private static void checkScale(float scale) {
+    if (scale <= 0 || scale > 1) {
+      throw new IllegalArgumentException("Cannot scale an output by " + scale);
+    }
+  }
+
+  /** Returns the number of outputs. */
+  public int getOutputCount() {
+    return mScales.length;
+  }
+
+  /**
+   * Changes the scale of an output. Takes effect the next time the output is attached, as the
+   * surface it's already drawing into can't change size.
+   */
+  public synchronized void setScale(int output, float scale) {
+    checkOutput(output);
+    checkScale(scale);
+    mScales[output] = scale;
+  }
+
+  /** Returns a canvas that a {@link VideoRecorder} can record the given output from. */
+  public VideoRecorder.Canvas getCanvas(final int output) {
+    checkOutput(output);
+    return new VideoRecorder.Canvas() {
+      @Override
+      public void attachSurface(VideoRecorder.SurfaceProvider surfaceProvider) {
+        onOutputAttached(output, surfaceProvider);
+      }
+
+      @Override
+      public void detachSurface(VideoRecorder.SurfaceProvider surfaceProvider) {
+        onOutputDetached(output, surfaceProvider);
+      }
+    };
+  }
+
+  private void checkOutput(int output) {
+    if (output < 0 || output >= mScales.length) {
+      throw new IllegalArgumentException("Cannot find output " + output);
+    }
+  }
+
+  /**
+   * Scales a dimension of the camera for an output. Encoders expect even dimensions, so the result
+   * is rounded down to the nearest even number.
+   */
+  static int scale(int size, float scale) {
+    int scaled = (int) (size * scale);
+    return Math.max(2, scaled - scaled % 2);
+  }
+
+  private void onOutputAttached(final int output, final VideoRecorder.SurfaceProvider surfaceProvider) {
+    Renderer stale;
+    synchronized (this) {
+      mProviders[output] = surfaceProvider;
+      if (mIsAttached && mRenderer != null) {
+        // The camera is already running for the other outputs, so this one joins them. Recorders
+        // wait for their surface to be requested on another thread, so it can't be asked here.
+        final Renderer renderer = mRenderer;
+        MediaScheduler.getInstance().submit("SurfaceSplitter", MediaScheduler.PRIORITY_VIDEO, new Runnable() {
+          @Override
+          public void run() {
+            addOutput(renderer, output, surfaceProvider);
+          }
+        });
+        return;
+      }
+      if (mIsAttached) {
+        // The camera hasn't asked for a surface yet. It'll ask this output when it does.
+        return;
+      }
+      for (VideoRecorder.SurfaceProvider provider : mProviders) {
+        if (provider == null) {
+          return;
+        }
+      }
+      mIsAttached = true;
+      // The camera may have asked for a surface just before it was last detached.
+      stale = mRenderer;
+      mRenderer = null;
+    }
+    if (stale != null) {
+      stale.release();
+    }
+    mCanvas.attachSurface(mSurfaceProvider);
+  }
+
+  private void onOutputDetached(int output, VideoRecorder.SurfaceProvider surfaceProvider) {
+    Renderer renderer;
+    synchronized (this) {
+      if (mProviders[output] != surfaceProvider) {
+        return;
+      }
+      mProviders[output] = null;
+
+      // Stop drawing into the output before returning, so that its surface can be released or handed
+      // to someone else straight away.
+      Surface surface = mSurfaces[output];
+      mSurfaces[output] = null;
+      if (mRenderer != null && surface != null) {
+        mRenderer.removeOutput(surface);
+      }
+
+      if (!mIsAttached) {
+        return;
+      }
+      for (VideoRecorder.SurfaceProvider provider : mProviders) {
+        if (provider != null) {
+          // The other outputs keep drawing from the camera.
+          return;
+        }
+      }
+      mIsAttached = false;
+      renderer = mRenderer;
+      mRenderer = null;
+    }
+    mCanvas.detachSurface(mSurfaceProvider);
+    if (renderer != null) {
+      renderer.release();
+    }
+  }
+
+  /**
+   * Asks every attached output for a surface at its scaled size, and returns a surface that copies
+   * the camera's frames into all of them.
+   */
+  private Surface onSurfaceRequested(int width, int height, int orientation, boolean flipped) {
+    Renderer renderer;
+    VideoRecorder.SurfaceProvider[] providers;
+    synchronized (this) {
+      if (mRenderer != null) {
+        // The camera was reconfigured, but the encoders are already running at their sizes.
+        Log.w(TAG, "Surface requested again. Reusing the existing surface.");
+        mRenderer.setInputSize(width, height);
+        return mRenderer.getInputSurface();
+      }
+      renderer = mRendererFactory.create(width, height);
+      mRenderer = renderer;
+      mWidth = width;
+      mHeight = height;
+      mOrientation = orientation;
+      mFlipped = flipped;
+      providers = mProviders.clone();
+    }
+
+    for (int i = 0; i < providers.length; i++) {
+      if (providers[i] != null) {
+        addOutput(renderer, i, providers[i]);
+      }
+    }
+    Log.d(TAG, "Splitting a " + width + "x" + height + " surface into " + providers.length + " outputs");
+    return renderer.getInputSurface();
+  }
+
+  /** Asks an output for its surface, and starts drawing into it. */
+  private void addOutput(Renderer renderer, int output, VideoRecorder.SurfaceProvider surfaceProvider) {
+    int width;
+    int height;
+    int orientation;
+    boolean flipped;
+    synchronized (this) {
+      width = scale(mWidth, mScales[output]);
+      height = scale(mHeight, mScales[output]);
+      orientation = mOrientation;
+      flipped = mFlipped;
+    }
+
+    Surface surface = surfaceProvider.getSurface(width, height, orientation, flipped);
+    synchronized (this) {
+      if (mRenderer != renderer || mProviders[output] != surfaceProvider) {
+        // The output was detached while it was setting up, and has already let go of its surface.
+        return;
+      }
+      try {
+        renderer.addOutput(surface, width, height);
+        mSurfaces[output] = surface;
+      } catch (IllegalStateException e) {
+        Log.e(TAG, "Failed to draw into output " + output, e);
+      }
+    }
+  }
+
+  @NonNull
+  @Override
+  public synchronized String toString() {
+    StringBuilder scales = new StringBuilder();
+    for (int i = 0; i < mScales.length; i++) {
+      if (i > 0) {
+        scales.append(", ");
+      }
+      scales.append(mScales[i]);
+    }
+    return "SurfaceSplitter{" +
+            "scales=[" + scales + "]" +
+            '}';
+  }
+
+  /**
+   * Copies each camera frame into any number of surfaces. Outputs can come and go while the camera
+   * keeps drawing into the input surface.
+   */
+  interface Renderer {
+    /** Returns the surface the camera should draw onto. */
+    Surface getInputSurface();
+
+    /** Changes the size of the frames the input surface expects. */
+    void setInputSize(int width, int height);
+
+    /**
+     * Starts drawing each frame into the surface, scaled to the given size. Throws an
+     * {@link IllegalStateException} if the surface can't be drawn into.
+     */
+    void addOutput(Surface surface, int width, int height);
+
+    /**
+     * Stops drawing into the surface. Once this returns, the renderer has let go of the surface and
+     * it can be released or drawn into by someone else.
+     */
+    void removeOutput(Surface surface);
+
+    /** Stops drawing and lets go of every surface, waiting until it has done so. */
+    void release();
+
+    interface Factory {
+      Renderer create(int width, int height);
+    }
+  }
+
+  /**
+   * Owns the GL context that copies each camera frame into the outputs. All GL calls are made on
+   * the renderer's own thread, as that's the thread the context is current on.
+   */
+  static final class GlRenderer implements Renderer, SurfaceTexture.OnFrameAvailableListener {
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final float[] mTransform = new float[16];
+    private final FloatBuffer mPositions = toFloatBuffer(POSITIONS);
+    private final FloatBuffer mTextureCoordinates = toFloatBuffer(TEXTURE_COORDINATES);
+
+    /** Every surface being drawn into. Only touched on the renderer's thread. */
+    private final List<Output> mOutputs = new ArrayList<>();
+
+    private EGLDisplay mDisplay = EGL14.EGL_NO_DISPLAY;
+    private EGLContext mContext = EGL14.EGL_NO_CONTEXT;
+    private EGLConfig mConfig;
+
+    /** A tiny offscreen surface, current whenever there's no output to draw into. */
+    private EGLSurface mPbuffer = EGL14.EGL_NO_SURFACE;
+
+    private int mProgram;
+    private int mTexture;
+    private int mPositionLocation;
+    private int mTextureCoordinateLocation;
+    private int mTransformLocation;
+
+    private SurfaceTexture mSurfaceTexture;
+    private Surface mInputSurface;
+
+    /** Set once released, after which frames are ignored. Only touched on the renderer's thread. */
+    private boolean mIsReleased;
+
+    GlRenderer(final int width, final int height) {
+      mThread = new HandlerThread("CameraView-splitter", Process.THREAD_PRIORITY_DISPLAY);
+      mThread.start();
+      mHandler = new Handler(mThread.getLooper());
+
+      try {
+        runAndWait(new Runnable() {
+          @Override
+          public void run() {
+            setUp(width, height);
+          }
+        });
+      } catch (IllegalStateException e) {
+        release();
+        throw new IllegalStateException("Cannot set up the GL context to split the camera's surface", e);
+      }
+    }
+
+    @Override
+    public Surface getInputSurface() {
+      return mInputSurface;
+    }
+
+    @Override
+    public void setInputSize(final int width, final int height) {
+      runAndWait(new Runnable() {
+        @Override
+        public void run() {
+          mSurfaceTexture.setDefaultBufferSize(width, height);
+        }
+      });
+    }
+
+    @Override
+    public void addOutput(final Surface surface, final int width, final int height) {
+      runAndWait(new Runnable() {
+        @Override
+        public void run() {
+          Output output = new Output(surface, width, height);
+          int[] surfaceAttributes = { EGL14.EGL_NONE };
+          output.mEglSurface = EGL14.eglCreateWindowSurface(mDisplay, mConfig, surface, surfaceAttributes, 0);
+          if (output.mEglSurface == null || output.mEglSurface == EGL14.EGL_NO_SURFACE) {
+            throw new IllegalStateException("Cannot create an EGL surface for " + output);
+          }
+          mOutputs.add(output);
+        }
+      });
+    }
+
+    @Override
+    public void removeOutput(final Surface surface) {
+      runAndWait(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < mOutputs.size(); i++) {
+            Output output = mOutputs.get(i);
+            if (output.mSurface == surface) {
+              // A surface that's current can't be destroyed until it's no longer current.
+              makeCurrent(mPbuffer);
+              EGL14.eglDestroySurface(mDisplay, output.mEglSurface);
+              mOutputs.remove(i);
+              return;
+            }
+          }
+        }
+      });
+    }
+
+    /**
+     * Runs on the renderer's thread and waits for it to finish. Any exception it throws is rethrown
+     * as an {@link IllegalStateException}.
+     */
+    private void runAndWait(final Runnable runnable) {
+      final SettableFuture<Void> result = SettableFuture.create();
+      boolean posted = mHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            if (mIsReleased) {
+              throw new IllegalStateException("The renderer has been released");
+            }
+            runnable.run();
+            result.set(null);
+          } catch (RuntimeException e) {
+            result.setException(e);
+          }
+        }
+      });
+      if (!posted) {
+        throw new IllegalStateException("The renderer has been released");
+      }
+      try {
+        result.get();
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IllegalStateException) {
+          throw (IllegalStateException) e.getCause();
+        }
+        throw new IllegalStateException(e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while waiting for the renderer", e);
+      }
+    }
+
+    private void setUp(int width, int height) {
+      mDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+      int[] version = new int[2];
+      if (mDisplay == EGL14.EGL_NO_DISPLAY || !EGL14.eglInitialize(mDisplay, version, 0, version, 1)) {
+        throw new IllegalStateException("Cannot initialize EGL");
+      }
+
+      int[] configAttributes = {
+              EGL14.EGL_RED_SIZE, 8,
+              EGL14.EGL_GREEN_SIZE, 8,
+              EGL14.EGL_BLUE_SIZE, 8,
+              EGL14.EGL_ALPHA_SIZE, 8,
+              EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+              EGL14.EGL_SURFACE_TYPE, EGL14.EGL_WINDOW_BIT | EGL14.EGL_PBUFFER_BIT,
+              EGL_RECORDABLE_ANDROID, 1,
+              EGL14.EGL_NONE
+      };
+      EGLConfig[] configs = new EGLConfig[1];
+      int[] configCount = new int[1];
+      if (!EGL14.eglChooseConfig(mDisplay, configAttributes, 0, configs, 0, configs.length, configCount, 0) || configCount[0] == 0) {
+        throw new IllegalStateException("Cannot find a recordable EGL config");
+      }
+      mConfig = configs[0];
+
+      int[] contextAttributes = {
+              EGL14.EGL_CONTEXT_CLIENT_VERSION, 2,
+              EGL14.EGL_NONE
+      };
+      mContext = EGL14.eglCreateContext(mDisplay, mConfig, EGL14.EGL_NO_CONTEXT, contextAttributes, 0);
+      if (mContext == null || mContext == EGL14.EGL_NO_CONTEXT) {
+        throw new IllegalStateException("Cannot create an EGL context");
+      }
+
+      int[] pbufferAttributes = {
+              EGL14.EGL_WIDTH, 1,
+              EGL14.EGL_HEIGHT, 1,
+              EGL14.EGL_NONE
+      };
+      mPbuffer = EGL14.eglCreatePbufferSurface(mDisplay, mConfig, pbufferAttributes, 0);
+      if (mPbuffer == null || mPbuffer == EGL14.EGL_NO_SURFACE) {
+        throw new IllegalStateException("Cannot create an offscreen EGL surface");
+      }
+      makeCurrent(mPbuffer);
+
+      mProgram = createProgram();
+      mPositionLocation = GLES20.glGetAttribLocation(mProgram, "aPosition");
+      mTextureCoordinateLocation = GLES20.glGetAttribLocation(mProgram, "aTextureCoord");
+      mTransformLocation = GLES20.glGetUniformLocation(mProgram, "uTexMatrix");
+
+      int[] textures = new int[1];
+      GLES20.glGenTextures(1, textures, 0);
+      mTexture = textures[0];
+      GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mTexture);
+      GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+      GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+      GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+      GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+
+      mSurfaceTexture = new SurfaceTexture(mTexture);
+      mSurfaceTexture.setDefaultBufferSize(width, height);
+      mSurfaceTexture.setOnFrameAvailableListener(this, mHandler);
+      mInputSurface = new Surface(mSurfaceTexture);
+    }
+
+    private void makeCurrent(EGLSurface surface) {
+      if (!EGL14.eglMakeCurrent(mDisplay, surface, surface, mContext)) {
+        throw new IllegalStateException("Cannot make " + surface + " current");
+      }
+    }
+
+    @Override
+    public void onFrameAvailable(SurfaceTexture surfaceTexture) {
+      if (mIsReleased) {
+        return;
+      }
+
+      long timestampNs;
+      try {
+        // The texture belongs to the context, so any surface can be current while it's updated.
+        makeCurrent(mPbuffer);
+        surfaceTexture.updateTexImage();
+        surfaceTexture.getTransformMatrix(mTransform);
+        timestampNs = surfaceTexture.getTimestamp();
+      } catch (IllegalStateException e) {
+        Log.w(TAG, "Failed to split frame", e);
+        return;
+      }
+
+      for (Output output : mOutputs) {
+        try {
+          makeCurrent(output.mEglSurface);
+          draw(output);
+          EGLExt.eglPresentationTimeANDROID(mDisplay, output.mEglSurface, timestampNs);
+          EGL14.eglSwapBuffers(mDisplay, output.mEglSurface);
+        } catch (IllegalStateException e) {
+          // The output's encoder has stopped, and it's about to be removed. The others carry on.
+          Log.w(TAG, "Failed to draw frame into " + output, e);
+        }
+      }
+    }
+
+    private void draw(Output output) {
+      GLES20.glViewport(0, 0, output.mWidth, output.mHeight);
+      GLES20.glUseProgram(mProgram);
+
+      GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+      GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mTexture);
+      GLES20.glUniformMatrix4fv(mTransformLocation, 1, false, mTransform, 0);
+
+      GLES20.glEnableVertexAttribArray(mPositionLocation);
+      GLES20.glVertexAttribPointer(mPositionLocation, 2, GLES20.GL_FLOAT, false, 0, mPositions);
+      GLES20.glEnableVertexAttribArray(mTextureCoordinateLocation);
+      GLES20.glVertexAttribPointer(mTextureCoordinateLocation, 2, GLES20.GL_FLOAT, false, 0, mTextureCoordinates);
+
+      GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+
+      GLES20.glDisableVertexAttribArray(mPositionLocation);
+      GLES20.glDisableVertexAttribArray(mTextureCoordinateLocation);
+    }
+
+    /**
+     * Tears down the GL context and stops the renderer's thread. Safe to call from any thread other
+     * than the renderer's. A surface can only be drawn on by one producer at a time, so this waits
+     * until the renderer has let go of its outputs.
+     */
+    @Override
+    public void release() {
+      mHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          releaseInternal();
+        }
+      });
+      mThread.quitSafely();
+      try {
+        mThread.join(300);
+      } catch (InterruptedException e) {
+        Log.e(TAG, "Interrupted while waiting for the renderer to stop", e);
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    private void releaseInternal() {
+      mIsReleased = true;
+      if (mSurfaceTexture != null) {
+        mSurfaceTexture.setOnFrameAvailableListener(null);
+        mSurfaceTexture.release();
+      }
+      if (mInputSurface != null) {
+        mInputSurface.release();
+      }
+      if (mDisplay != EGL14.EGL_NO_DISPLAY) {
+        EGL14.eglMakeCurrent(mDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+        for (Output output : mOutputs) {
+          EGL14.eglDestroySurface(mDisplay, output.mEglSurface);
+        }
+        if (mPbuffer != null && mPbuffer != EGL14.EGL_NO_SURFACE) {
+          EGL14.eglDestroySurface(mDisplay, mPbuffer);
+        }
+        if (mContext != EGL14.EGL_NO_CONTEXT) {
+          EGL14.eglDestroyContext(mDisplay, mContext);
+        }
+        EGL14.eglReleaseThread();
+        EGL14.eglTerminate(mDisplay);
+      }
+      mOutputs.clear();
+      mDisplay = EGL14.EGL_NO_DISPLAY;
+      mContext = EGL14.EGL_NO_CONTEXT;
+      mPbuffer = EGL14.EGL_NO_SURFACE;
+    }
+    private static int createProgram() {
+      int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, VERTEX_SHADER);
+      int fragmentShader = loadShader(GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER);
+      int program = GLES20.glCreateProgram();
+      GLES20.glAttachShader(program, vertexShader);
+      GLES20.glAttachShader(program, fragmentShader);
+      GLES20.glLinkProgram(program);
+
+      // The program keeps the shaders alive for as long as it needs them.
+      GLES20.glDeleteShader(vertexShader);
+      GLES20.glDeleteShader(fragmentShader);
+
+      int[] status = new int[1];
+      GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0);
+      if (status[0] != GLES20.GL_TRUE) {
+        String log = GLES20.glGetProgramInfoLog(program);
+        GLES20.glDeleteProgram(program);
+        throw new IllegalStateException("Cannot link program: " + log);
+      }
+      return program;
+    }
+
+    private static int loadShader(int type, String source) {
+      int shader = GLES20.glCreateShader(type);
+      GLES20.glShaderSource(shader, source);
+      GLES20.glCompileShader(shader);
+      int[] status = new int[1];
+      GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, status, 0);
+      if (status[0] != GLES20.GL_TRUE) {
+        String log = GLES20.glGetShaderInfoLog(shader);
+        GLES20.glDeleteShader(shader);
+        throw new IllegalStateException("Cannot compile shader: " + log);
+      }
+      return shader;
+    }
+
+    private static FloatBuffer toFloatBuffer(float[] values) {
+      FloatBuffer buffer = ByteBuffer.allocateDirect(values.length * 4)
+              .order(ByteOrder.nativeOrder())
+              .asFloatBuffer();
+      buffer.put(values).position(0);
+      return buffer;
+    }
+
+    /** A recorder's surface, and the size it expects frames to be drawn at. */
+    private static class Output {
+      final Surface mSurface;
+      final int mWidth;
+      final int mHeight;
+      EGLSurface mEglSurface;
+
+      Output(Surface surface, int width, int height) {
+        mSurface = surface;
+        mWidth = width;
+        mHeight = height;
+      }
+
+      @NonNull
+      @Override
+      public String toString() {
+        return "Output{" +
+                "width=" + mWidth +
+                ", height=" + mHeight +
+                '}';
+      }
+    }
+  }
+}
@@ -0,0 +1,58 @@
+package com.xlythe.view.camera.stream;
+
+import androidx.annotation.IntDef;
+import androidx.annotation.Nullable;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Reports how hot the device is running. {@link QualityGovernor} reads this to decide how much to
+ * scale back encoding, and it can be swapped out for a fake one in tests.
+ */
+public interface ThermalSource {
+  /** How throttled the device is. Mirrors the statuses reported by PowerManager. */
+  @Retention(RetentionPolicy.SOURCE)
+  @IntDef({
+          Status.NONE,
+          Status.LIGHT,
+          Status.MODERATE,
+          Status.SEVERE,
+          Status.CRITICAL,
+          Status.EMERGENCY,
+          Status.SHUTDOWN,
+  })
+  @interface Status {
+    /** Not throttled. */
+    int NONE = 0;
+    /** Lightly throttled, without noticeably affecting the user. */
+    int LIGHT = 1;
+    /** Throttled enough that the user may notice. */
+    int MODERATE = 2;
+    /** Heavily throttled. */
+    int SEVERE = 3;
+    /** The platform is doing everything it can to reduce power. */
+    int CRITICAL = 4;
+    /** Key components are shutting down due to the heat. */
+    int EMERGENCY = 5;
+    /** The device is about to shut down. */
+    int SHUTDOWN = 6;
+  }
+
+  /** Returns how throttled the device is right now. */
+  @Status
+  int getThermalStatus();
+
+  /**
+   * Returns how close the device is expected to be to severe throttling in the given number of
+   * seconds, where 1 is the point throttling starts, or NaN if it can't be forecast.
+   */
+  float getThermalHeadroom(int forecastSeconds);
+
+  /** Registers a listener to be told on the main thread whenever the thermal status changes. */
+  void setOnThermalStatusChangedListener(@Nullable OnThermalStatusChangedListener listener);
+
+  interface OnThermalStatusChangedListener {
+    void onThermalStatusChanged(@Status int status);
+  }
+}
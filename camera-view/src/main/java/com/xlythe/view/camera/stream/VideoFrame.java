@@ -1,5 +1,7 @@
 package com.xlythe.view.camera.stream;
 
+import android.media.MediaCodec;
+
 import androidx.annotation.IntDef;
 import androidx.annotation.RestrictTo;
 
@@ -30,9 +32,15 @@ class VideoFrame {
   private static final byte FIELD_PRESENTATION_TIME_US = 9;
   private static final byte FIELD_FLAGS = 10;
   private static final byte FIELD_FLIPPED = 11;
+  private static final byte FIELD_CAPTURE_TIME_US = 12;
+  private static final byte FIELD_ENCODE_TIME_US = 13;
+  private static final byte FIELD_WRITE_TIME_US = 14;
+  private static final byte FIELD_LAYER = 15;
 
   // The frame's type.
   @Type private final int type;
+  // Which rendition of a simulcast stream the frame belongs to. 0 for the full sized rendition.
+  private final int layer;
 
   // ------------ HEADER ------------
 
@@ -60,8 +68,20 @@ class VideoFrame {
   // Optional flags (such as end of stream).
   private final int flags;
 
+  // ------------ TRACE ------------
+  // Only set when latency tracing is enabled. All times are in microseconds on the recording
+  // device's monotonic clock (System.nanoTime), or 0 if unknown.
+
+  // When the frame was captured by the camera.
+  private final long captureTimeUs;
+  // When the frame came out of the encoder.
+  private final long encodeTimeUs;
+  // When the frame was written to the stream.
+  private final long writeTimeUs;
+
   private VideoFrame(
           @Type int type,
+          int layer,
           int width,
           int height,
           int orientation,
@@ -71,8 +91,12 @@ class VideoFrame {
           int iframeInterval,
           byte[] data,
           long presentationTimeUs,
-          int flags) {
+          int flags,
+          long captureTimeUs,
+          long encodeTimeUs,
+          long writeTimeUs) {
     this.type = type;
+    this.layer = layer;
     this.width = width;
     this.height = height;
     this.orientation = orientation;
@@ -83,6 +107,9 @@ class VideoFrame {
     this.data = data;
     this.presentationTimeUs = presentationTimeUs;
     this.flags = flags;
+    this.captureTimeUs = captureTimeUs;
+    this.encodeTimeUs = encodeTimeUs;
+    this.writeTimeUs = writeTimeUs;
   }
 
   /** Parses a VideoFrame from a byte[]. */
@@ -133,6 +160,18 @@ class VideoFrame {
           case FIELD_FLAGS:
             builder.flags(Ints.fromByteArray(data));
             break;
+          case FIELD_CAPTURE_TIME_US:
+            builder.captureTimeUs(Longs.fromByteArray(data));
+            break;
+          case FIELD_ENCODE_TIME_US:
+            builder.encodeTimeUs(Longs.fromByteArray(data));
+            break;
+          case FIELD_WRITE_TIME_US:
+            builder.writeTimeUs(Longs.fromByteArray(data));
+            break;
+          case FIELD_LAYER:
+            builder.layer(Ints.fromByteArray(data));
+            break;
         }
       } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
         // skip
@@ -154,12 +193,23 @@ class VideoFrame {
           write(os, FIELD_BIT_RATE, Ints.toByteArray(bitRate));
           write(os, FIELD_FRAME_RATE, Ints.toByteArray(frameRate));
           write(os, FIELD_I_FRAME_INTERVAL, Ints.toByteArray(iframeInterval));
+          if (layer != 0) {
+            write(os, FIELD_LAYER, Ints.toByteArray(layer));
+          }
           break;
         case Type.DATA:
           write(os, FIELD_TYPE, Ints.toByteArray(type));
           write(os, FIELD_DATA, data);
           write(os, FIELD_PRESENTATION_TIME_US, Longs.toByteArray(presentationTimeUs));
           write(os, FIELD_FLAGS, Ints.toByteArray(flags));
+          if (hasTrace()) {
+            write(os, FIELD_CAPTURE_TIME_US, Longs.toByteArray(captureTimeUs));
+            write(os, FIELD_ENCODE_TIME_US, Longs.toByteArray(encodeTimeUs));
+            write(os, FIELD_WRITE_TIME_US, Longs.toByteArray(writeTimeUs));
+          }
+          if (layer != 0) {
+            write(os, FIELD_LAYER, Ints.toByteArray(layer));
+          }
           break;
       }
     } catch (IOException e) {
@@ -182,6 +232,11 @@ class VideoFrame {
     return type;
   }
 
+  /** Returns which rendition of a simulcast stream this frame belongs to, or 0 if there's only one. */
+  public int getLayer() {
+    return layer;
+  }
+
   public int getWidth() {
     return width;
   }
@@ -222,6 +277,41 @@ class VideoFrame {
     return flags;
   }
 
+  /** Returns when the frame was captured, in microseconds, or 0 if it wasn't traced. */
+  public long getCaptureTimeUs() {
+    return captureTimeUs;
+  }
+
+  /** Returns when the frame left the encoder, in microseconds, or 0 if it wasn't traced. */
+  public long getEncodeTimeUs() {
+    return encodeTimeUs;
+  }
+
+  /** Returns when the frame was written to the stream, in microseconds, or 0 if it wasn't traced. */
+  public long getWriteTimeUs() {
+    return writeTimeUs;
+  }
+
+  /** Returns true if this frame carries latency tracing timestamps. */
+  public boolean hasTrace() {
+    return captureTimeUs != 0 || encodeTimeUs != 0 || writeTimeUs != 0;
+  }
+
+  /** Returns true if this frame can be decoded without any of the frames that came before it. */
+  public boolean isKeyFrame() {
+    return (flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+  }
+
+  /** Returns true if this frame holds codec specific data (eg. SPS/PPS) instead of media data. */
+  public boolean isCodecConfig() {
+    return (flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+  }
+
+  /** Returns true if this is the final frame of the stream. */
+  public boolean isEndOfStream() {
+    return (flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+  }
+
   /** The type of data within this frame. */
   @Retention(RetentionPolicy.SOURCE)
   @IntDef({
@@ -235,6 +325,7 @@ class VideoFrame {
 
   static class Builder {
     @Type private int type;
+    private int layer;
     private int width;
     private int height;
     private int orientation;
@@ -245,6 +336,9 @@ class VideoFrame {
     private byte[] data;
     private long presentationTimeUs;
     private int flags;
+    private long captureTimeUs;
+    private long encodeTimeUs;
+    private long writeTimeUs;
 
     Builder() {}
 
@@ -257,6 +351,11 @@ class VideoFrame {
       return this;
     }
 
+    Builder layer(int layer) {
+      this.layer = layer;
+      return this;
+    }
+
     Builder width(int width) {
       this.width = width;
       return this;
@@ -307,8 +406,23 @@ class VideoFrame {
       return this;
     }
 
+    Builder captureTimeUs(long captureTimeUs) {
+      this.captureTimeUs = captureTimeUs;
+      return this;
+    }
+
+    Builder encodeTimeUs(long encodeTimeUs) {
+      this.encodeTimeUs = encodeTimeUs;
+      return this;
+    }
+
+    Builder writeTimeUs(long writeTimeUs) {
+      this.writeTimeUs = writeTimeUs;
+      return this;
+    }
+
     VideoFrame build() {
-      return new VideoFrame(type, width, height, orientation, flipped, bitRate, frameRate, iframeInterval, data, presentationTimeUs, flags);
+      return new VideoFrame(type, layer, width, height, orientation, flipped, bitRate, frameRate, iframeInterval, data, presentationTimeUs, flags, captureTimeUs, encodeTimeUs, writeTimeUs);
     }
   }
 }
\ No newline at end of file
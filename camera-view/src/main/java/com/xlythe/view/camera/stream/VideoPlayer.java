@@ -4,6 +4,7 @@ import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.os.Build;
+import android.os.Trace;
 import android.util.Log;
 import android.view.Surface;
 
@@ -16,13 +17,12 @@ import com.xlythe.view.camera.CameraView;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import static android.media.MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED;
 import static android.media.MediaCodec.INFO_OUTPUT_FORMAT_CHANGED;
 import static android.media.MediaCodec.INFO_TRY_AGAIN_LATER;
-import static android.os.Process.THREAD_PRIORITY_DISPLAY;
-import static android.os.Process.THREAD_PRIORITY_VIDEO;
-import static android.os.Process.setThreadPriority;
 
 /**
  * A fire-once class. When created, you must pass a {@link InputStream}. Once {@link #start()} is
@@ -39,6 +39,9 @@ public class VideoPlayer {
   private static final int TIMEOUT_USEC = 10000;
   private static final int NO_TIMEOUT = -1;
 
+  /** The most traced frames that can be inside the decoder at once, before the oldest are forgotten. */
+  private static final int MAX_PENDING_TRACES = 32;
+
   /** The surface we're drawing to. */
   private final Surface mSurface;
 
@@ -54,14 +57,28 @@ public class VideoPlayer {
   /** An optional listener that fires when the InputStream has ended. */
   @Nullable private volatile VideoPlayer.StreamEndListener mStreamEndListener;
 
+  /** Optionally records how quickly frames are decoded and rendered. */
+  @Nullable private volatile StreamMetrics mMetrics;
+
+  /**
+   * Traced frames that have been handed to the decoder, keyed by presentation time, waiting to be
+   * rendered. Only touched by the playback thread.
+   */
+  private final Map<Long, FrameTrace> mPendingTraces = new LinkedHashMap<Long, FrameTrace>() {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Long, FrameTrace> eldest) {
+      return size() > MAX_PENDING_TRACES;
+    }
+  };
+
   /**
    * If true, the background thread will continue to loop and play video. Once false, the thread
    * will shut down.
    */
   private volatile boolean mIsAlive;
 
-  /** The background thread playing video for us. */
-  private Thread mThread;
+  /** The background task playing video for us. */
+  private MediaScheduler.Task mTask;
 
   /**
    * A simple audio player.
@@ -81,6 +98,11 @@ public class VideoPlayer {
     mOnMetadataAvailableListener = l;
   }
 
+  /** Reports decoder performance to the given metrics. */
+  public void setMetrics(@Nullable StreamMetrics metrics) {
+    mMetrics = metrics;
+  }
+
   /** @return True if currently playing. */
   public boolean isPlaying() {
     return mIsAlive;
@@ -88,55 +110,24 @@ public class VideoPlayer {
 
   /** Starts playing the stream. */
   public void start() {
-    if (mThread != null) {
+    if (mTask != null) {
       Log.w(TAG, "VideoPlayer cannot be started more than once");
       return;
     }
 
     mIsAlive = true;
-    mThread =
-            new Thread() {
+    mTask = MediaScheduler.getInstance().submitLoop("VideoPlayer", MediaScheduler.PRIORITY_VIDEO,
+            new Runnable() {
               @Override
               public void run() {
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
-                  setThreadPriority(THREAD_PRIORITY_VIDEO);
-                } else {
-                  setThreadPriority(THREAD_PRIORITY_DISPLAY);
-                }
-
                 try {
                   VideoFrame header = readHeader();
 
-                  MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, header.getWidth(), header.getHeight());
-
-                  // Failing to specify some of these can cause the MediaCodec configure() call to
-                  // throw an unhelpful exception.
-                  format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-                  format.setInteger(MediaFormat.KEY_BIT_RATE, header.getBitRate());
-                  format.setInteger(MediaFormat.KEY_FRAME_RATE, header.getFrameRate());
-                  format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, header.getIFrameInterval());
-                  if (Build.VERSION.SDK_INT >= 30) {
-                    format.setInteger(MediaFormat.KEY_LOW_LATENCY, /*true=*/1);
-                  }
-                  if (Build.VERSION.SDK_INT >= 31) {
-                    format.setInteger(MediaFormat.KEY_ALLOW_FRAME_DROP, /*true=*/1);
-                  }
-                  boolean orientationFixed = false;
-                  if (Build.VERSION.SDK_INT >= 23) {
-                    orientationFixed = true;
-                    format.setInteger(MediaFormat.KEY_ROTATION, header.getOrientation());
-                  }
-
-                  OnMetadataAvailableListener listener = mOnMetadataAvailableListener;
-                  if (listener != null) {
-                    listener.onMetadataAvailable(header.getWidth(), header.getHeight(), orientationFixed ? 0 : header.getOrientation(), header.isFlipped());
-                  }
-
                   // Create a MediaCodec for the decoder, just based on the MIME type.
                   // The various format details will be passed through the csd-0 meta-data later on.
                   MediaCodec decoder = MediaCodec.createDecoderByType(MIME_TYPE);
                   mDecoder = decoder;
-                  decoder.configure(format, mSurface, null, 0);
+                  configure(decoder, header);
                   decoder.start();
                   Log.d(TAG, "Started playing video");
 
@@ -149,7 +140,12 @@ public class VideoPlayer {
                     // Before we start writing more data into the input buffer,
                     // we must first make sure the output buffer is drained
                     // so that we have space to write.
-                    drainOutputBuffer(decoder);
+                    Trace.beginSection("VideoPlayer:drain");
+                    try {
+                      drainOutputBuffer(decoder);
+                    } finally {
+                      Trace.endSection();
+                    }
 
                     // Now that we have space, we can write the next few bytes.
                     int index = decoder.dequeueInputBuffer(NO_TIMEOUT);
@@ -159,10 +155,36 @@ public class VideoPlayer {
                     ByteBuffer inputBuffer = decoder.getInputBuffers()[index];
                     inputBuffer.clear();
 
-                    dataFrame = readFrame();
+                    Trace.beginSection("VideoPlayer:read");
+                    try {
+                      dataFrame = readFrame();
+                    } finally {
+                      Trace.endSection();
+                    }
+                    long readTimeUs = System.nanoTime() / 1000;
+
+                    if (dataFrame.getType() == VideoFrame.Type.HEADER) {
+                      // The stream switched renditions, such as between the layers of a simulcast
+                      // stream. The new rendition may be a different size, so the decoder starts over.
+                      // Stopping the decoder also returns the input buffer we dequeued.
+                      Log.d(TAG, "Video stream changed to " + dataFrame.getWidth() + "x" + dataFrame.getHeight() + ". Restarting decoder.");
+                      decoder.stop();
+                      mPendingTraces.clear();
+                      configure(decoder, dataFrame);
+                      decoder.start();
+                      continue;
+                    }
 
                     inputBuffer.put(dataFrame.getData());
                     decoder.queueInputBuffer(index, 0, dataFrame.getData().length, dataFrame.getPresentationTimeUs(), dataFrame.getFlags());
+
+                    StreamMetrics metrics = mMetrics;
+                    if (metrics != null && !dataFrame.isCodecConfig()) {
+                      metrics.onFrameQueued();
+                      if (dataFrame.hasTrace()) {
+                        onFrameQueued(metrics, dataFrame, readTimeUs);
+                      }
+                    }
                   }
                 } catch (IOException | IllegalArgumentException | IllegalStateException e) {
                   Log.e(TAG, "Exception with playing video stream", e);
@@ -175,8 +197,37 @@ public class VideoPlayer {
                   }
                 }
               }
-            };
-    mThread.start();
+            });
+  }
+
+  /** Configures the decoder to play video described by the given header, and reports its size. */
+  private void configure(MediaCodec decoder, VideoFrame header) {
+    MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, header.getWidth(), header.getHeight());
+
+    // Failing to specify some of these can cause the MediaCodec configure() call to
+    // throw an unhelpful exception.
+    format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+    format.setInteger(MediaFormat.KEY_BIT_RATE, header.getBitRate());
+    format.setInteger(MediaFormat.KEY_FRAME_RATE, header.getFrameRate());
+    format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, header.getIFrameInterval());
+    if (Build.VERSION.SDK_INT >= 30) {
+      format.setInteger(MediaFormat.KEY_LOW_LATENCY, /*true=*/1);
+    }
+    if (Build.VERSION.SDK_INT >= 31) {
+      format.setInteger(MediaFormat.KEY_ALLOW_FRAME_DROP, /*true=*/1);
+    }
+    boolean orientationFixed = false;
+    if (Build.VERSION.SDK_INT >= 23) {
+      orientationFixed = true;
+      format.setInteger(MediaFormat.KEY_ROTATION, header.getOrientation());
+    }
+
+    OnMetadataAvailableListener listener = mOnMetadataAvailableListener;
+    if (listener != null) {
+      listener.onMetadataAvailable(header.getWidth(), header.getHeight(), orientationFixed ? 0 : header.getOrientation(), header.isFlipped());
+    }
+
+    decoder.configure(format, mSurface, null, 0);
   }
 
   private void closeDecoder() {
@@ -205,6 +256,15 @@ public class VideoPlayer {
         case INFO_SUCCESS:
           boolean doRender = info.size != 0;
           decoder.releaseOutputBuffer(index, doRender);
+
+          StreamMetrics metrics = mMetrics;
+          if (metrics != null) {
+            metrics.onFrameDecoded(doRender);
+            FrameTrace trace = mPendingTraces.remove(info.presentationTimeUs);
+            if (trace != null && doRender) {
+              onFrameRendered(metrics, trace);
+            }
+          }
           break;
         case INFO_TRY_AGAIN_LATER:
           // Fully drained. We're done here.
@@ -221,6 +281,29 @@ public class VideoPlayer {
     }
   }
 
+  /** Records how long a traced frame took to reach the player, and remembers it until it's rendered. */
+  private void onFrameQueued(StreamMetrics metrics, VideoFrame frame, long readTimeUs) {
+    long queueTimeUs = System.nanoTime() / 1000;
+    if (frame.getWriteTimeUs() != 0) {
+      metrics.onLatency(LatencyHistogram.Stage.TRANSPORT, readTimeUs - frame.getWriteTimeUs());
+    }
+    metrics.onLatency(LatencyHistogram.Stage.QUEUE, queueTimeUs - readTimeUs);
+    mPendingTraces.put(frame.getPresentationTimeUs(), new FrameTrace(frame.getCaptureTimeUs(), queueTimeUs));
+  }
+
+  /**
+   * Records how long a traced frame spent in the decoder, and in the pipeline as a whole. The frame
+   * is counted as rendered once it's released to the surface, which is up to a frame before it
+   * reaches the screen.
+   */
+  private void onFrameRendered(StreamMetrics metrics, FrameTrace trace) {
+    long renderTimeUs = System.nanoTime() / 1000;
+    metrics.onLatency(LatencyHistogram.Stage.DECODE, renderTimeUs - trace.mQueueTimeUs);
+    if (trace.mCaptureTimeUs != 0) {
+      metrics.onLatency(LatencyHistogram.Stage.TOTAL, renderTimeUs - trace.mCaptureTimeUs);
+    }
+  }
+
   private int getStatus(int statusOrIndex) {
     return Math.min(statusOrIndex, 0);
   }
@@ -281,16 +364,16 @@ public class VideoPlayer {
 
   /** Stops playing the stream. */
   public void stop() {
-    if (mThread == null) {
+    if (mTask == null) {
       Log.w(TAG, "VideoPlayer not started");
       return;
     }
 
     stopInternal();
     try {
-      mThread.join(300);
+      mTask.await(300);
     } catch (InterruptedException e) {
-      Log.e(TAG, "Interrupted while joining VideoPlayer thread", e);
+      Log.e(TAG, "Interrupted while waiting for VideoPlayer to stop", e);
       Thread.currentThread().interrupt();
     }
   }
@@ -299,6 +382,17 @@ public class VideoPlayer {
     return (flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
   }
 
+  /** The timestamps of a traced frame that are still needed once it's rendered. */
+  private static class FrameTrace {
+    final long mCaptureTimeUs;
+    final long mQueueTimeUs;
+
+    FrameTrace(long captureTimeUs, long queueTimeUs) {
+      mCaptureTimeUs = captureTimeUs;
+      mQueueTimeUs = queueTimeUs;
+    }
+  }
+
   public interface OnMetadataAvailableListener {
     void onMetadataAvailable(int width, int height, int orientation, boolean isFlipped);
   }
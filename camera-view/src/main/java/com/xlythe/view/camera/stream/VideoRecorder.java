@@ -6,7 +6,9 @@ import android.media.MediaCodecInfo;
 import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.os.Build;
+import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
+import android.os.Trace;
 import android.util.Log;
 import android.view.Surface;
 
@@ -23,22 +25,21 @@ import com.xlythe.view.camera.CameraView;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.ExecutionException;
 
 import static android.media.MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED;
 import static android.media.MediaCodec.INFO_OUTPUT_FORMAT_CHANGED;
 import static android.media.MediaCodec.INFO_TRY_AGAIN_LATER;
-import static android.os.Process.THREAD_PRIORITY_DISPLAY;
-import static android.os.Process.THREAD_PRIORITY_VIDEO;
-import static android.os.Process.setThreadPriority;
 
 /**
  * When created, you must pass a {@link ParcelFileDescriptor}. Once {@link #start()} is called, the
  * file descriptor will be written to until {@link #stop()} is called.
  */
 @RequiresApi(18)
-public class VideoRecorder {
+public class VideoRecorder implements QualityGovernor.Target {
   private static final String TAG = CameraView.class.getSimpleName();
 
   private static final String MIME_TYPE = "video/avc";    // H.264 Advanced Video Coding
@@ -46,6 +47,9 @@ public class VideoRecorder {
   private static final int DEFAULT_FRAME_RATE = 15;       // 15fps
   private static final int DEFAULT_IFRAME_INTERVAL = 10;  // 10 seconds between I-frames
 
+  /** The quality used until a {@link QualityGovernor} says otherwise. */
+  private static final QualityGovernor.Level FULL_QUALITY = new QualityGovernor.Level.Builder().build();
+
   private static final int INFO_SUCCESS = 0;
   private static final int NO_TIMEOUT = -1;
 
@@ -73,8 +77,38 @@ public class VideoRecorder {
    */
   private volatile boolean mIsAlive;
 
-  /** The background thread recording video for us. */
-  private Thread mThread;
+  /** The background task recording video for us. */
+  private MediaScheduler.Task mTask;
+
+  /** Sinks that receive a copy of every frame written to the stream. Guarded by itself. */
+  private final List<FrameSink> mSinks = new ArrayList<>();
+
+  /** The most recent header frame, replayed to sinks that attach late. */
+  @Nullable private VideoFrame mHeaderFrame;
+
+  /** The most recent codec config frame, replayed to sinks that attach late. */
+  @Nullable private VideoFrame mCodecConfigFrame;
+
+  /** Optionally records how quickly frames are encoded and written. */
+  @Nullable private volatile StreamMetrics mMetrics;
+
+  /** If true, frames carry timestamps for each stage they pass through. */
+  private volatile boolean mIsLatencyTracingEnabled;
+
+  /** Which rendition of a simulcast stream this recorder encodes. */
+  private volatile int mLayer;
+
+  /** How far the bit rate, frame rate and resolution have been scaled back. */
+  private volatile QualityGovernor.Level mQuality = FULL_QUALITY;
+
+  /** If true, the encoder will be restarted at {@link #mQuality} after its next frame. */
+  private volatile boolean mIsRestartRequested;
+
+  /**
+   * Scales the camera down when {@link #mQuality} asks for a smaller resolution. Kept across
+   * restarts, and only touched on the recording thread.
+   */
+  @Nullable private SurfaceSplitter mScaler;
 
   /**
    * A simple video recorder.
@@ -126,11 +160,128 @@ public class VideoRecorder {
     return mIFrameInterval;
   }
 
+  /** Reports encoder and write performance to the given metrics. */
+  public void setMetrics(@Nullable StreamMetrics metrics) {
+    mMetrics = metrics;
+  }
+
+  /**
+   * Stamps every frame with when it was captured, encoded and written, so that the player can
+   * work out where the stream's latency comes from. Adds 39 bytes to each frame.
+   */
+  public void setLatencyTracingEnabled(boolean enabled) {
+    mIsLatencyTracingEnabled = enabled;
+  }
+
+  public boolean isLatencyTracingEnabled() {
+    return mIsLatencyTracingEnabled;
+  }
+
+  /**
+   * Marks every frame as belonging to the given rendition of a simulcast stream, so that renditions
+   * can be told apart once they're mixed together. Defaults to 0, the full sized rendition.
+   */
+  public void setLayer(@IntRange(from = 0) int layer) {
+    mLayer = layer;
+  }
+
+  public int getLayer() {
+    return mLayer;
+  }
+
+  /**
+   * Asks the encoder to output a key frame as soon as possible, rather than waiting for the next
+   * iframe interval. Useful when a viewer joins or switches renditions. Ignored if not recording.
+   */
+  public void requestKeyFrame() {
+    MediaCodec encoder = mEncoder;
+    if (encoder == null || Build.VERSION.SDK_INT < 19) {
+      return;
+    }
+    Bundle params = new Bundle();
+    params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+    try {
+      encoder.setParameters(params);
+    } catch (IllegalStateException e) {
+      Log.w(TAG, "Failed to request a key frame", e);
+    }
+  }
+
+  /**
+   * Scales back the bit rate, frame rate and resolution, such as when the device is too hot to keep
+   * up. Bit rate changes are applied to the running encoder, but anything else restarts it, which
+   * costs a key frame and a moment of video.
+   */
+  public void setQuality(QualityGovernor.Level quality) {
+    QualityGovernor.Level previous = mQuality;
+    mQuality = quality;
+    if (quality.getMaxFrameRate() != previous.getMaxFrameRate()
+            || quality.getResolutionScale() != previous.getResolutionScale()
+            || quality.getPriority() != previous.getPriority()) {
+      mIsRestartRequested = true;
+    } else if (quality.getBitRateScale() != previous.getBitRateScale()) {
+      setEncoderBitRate(quality.scaleBitRate(getBitRate()));
+    }
+  }
+
+  public QualityGovernor.Level getQuality() {
+    return mQuality;
+  }
+
+  @Override
+  public void onQualityChanged(QualityGovernor.Level level) {
+    setQuality(level);
+  }
+
+  /** Changes the bit rate of the running encoder. Ignored if not recording. */
+  private void setEncoderBitRate(int bitRate) {
+    MediaCodec encoder = mEncoder;
+    if (encoder == null || Build.VERSION.SDK_INT < 19) {
+      return;
+    }
+    Bundle params = new Bundle();
+    params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
+    try {
+      encoder.setParameters(params);
+    } catch (IllegalStateException e) {
+      Log.w(TAG, "Failed to change the bit rate", e);
+    }
+  }
+
   /** @return True if actively recording. False otherwise. */
   public boolean isRecording() {
     return mIsAlive;
   }
 
+  /**
+   * Attaches a sink that will receive a copy of every encoded frame. If the recorder has already
+   * started, the sink will first receive the current header and codec config frames.
+   */
+  public void addSink(FrameSink sink) {
+    synchronized (mSinks) {
+      try {
+        if (mHeaderFrame != null) {
+          sink.onFrame(mHeaderFrame);
+        }
+        if (mCodecConfigFrame != null) {
+          sink.onFrame(mCodecConfigFrame);
+        }
+      } catch (IOException | RuntimeException e) {
+        Log.e(TAG, "Failed to attach sink " + sink, e);
+        sink.close();
+        return;
+      }
+      mSinks.add(sink);
+    }
+  }
+
+  /** Detaches a sink. The sink is not closed. */
+  public void removeSink(FrameSink sink) {
+    synchronized (mSinks) {
+      mSinks.remove(sink);
+    }
+  }
+
   /** Starts recording video. */
   @RequiresPermission(Manifest.permission.CAMERA)
   public void start() {
@@ -140,115 +291,172 @@ public class VideoRecorder {
     }
 
     mIsAlive = true;
-    mThread =
-            new Thread() {
+    mTask = MediaScheduler.getInstance().submitLoop("VideoRecorder", MediaScheduler.PRIORITY_VIDEO,
+            new Runnable() {
               @RequiresPermission(Manifest.permission.CAMERA)
               @Override
               public void run() {
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
-                  setThreadPriority(THREAD_PRIORITY_VIDEO);
-                } else {
-                  setThreadPriority(THREAD_PRIORITY_DISPLAY);
-                }
-
                 MediaCodecInfo codecInfo = selectCodec(MIME_TYPE);
                 if (codecInfo == null) {
                   Log.e(TAG, "Unable to find an appropriate codec for " + MIME_TYPE);
                   return;
                 }
 
-                SettableFuture<CameraMetadata> requestedSizeFuture = SettableFuture.create();
-                SettableFuture<Surface> providedSurface = SettableFuture.create();
-                SurfaceProvider surfaceProvider = (width, height, orientation, flipped) -> {
-                  requestedSizeFuture.set(new CameraMetadata(width, height, orientation, flipped));
-                  try {
-                    return providedSurface.get();
-                  } catch (ExecutionException | InterruptedException e) {
-                    throw new RuntimeException(e);
-                  }
-                };
-                mCanvas.attachSurface(surfaceProvider);
-
-                Surface surface = null;
                 try {
-                  CameraMetadata metadata = Objects.requireNonNull(requestedSizeFuture.get());
-                  MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, metadata.getWidth(), metadata.getHeight());
-
-                  // Failing to specify some of these can cause the MediaCodec configure() call to
-                  // throw an unhelpful exception.
-                  format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-                  format.setInteger(MediaFormat.KEY_BIT_RATE, getBitRate());
-                  format.setInteger(MediaFormat.KEY_FRAME_RATE, getFrameRate());
-                  format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, getIFrameInterval());
-                  if (Build.VERSION.SDK_INT >= 31) {
-                    format.setInteger(MediaFormat.KEY_ALLOW_FRAME_DROP, /*true=*/1);
-                  }
-
-                  // Pass this info to the remote device.
-                  write(metadata.getWidth(),
-                          metadata.getHeight(),
-                          metadata.getOrientation(),
-                          metadata.isFlipped(),
-                          getBitRate(),
-                          getFrameRate(),
-                          getIFrameInterval());
-
-                  MediaCodec encoder = MediaCodec.createByCodecName(codecInfo.getName());
-                  mEncoder = encoder;
-                  encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-                  surface = encoder.createInputSurface();
-                  providedSurface.set(surface);
-                  encoder.start();
-                  Log.d(TAG, "Started recording video with dimensions " + metadata);
-
-                  MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+                  // Each pass records until we're stopped, or until the quality changes in a way
+                  // that the running encoder can't adapt to.
                   while (isRecording()) {
-                    int statusOrIndex = encoder.dequeueOutputBuffer(info, NO_TIMEOUT);
-                    int status = getStatus(statusOrIndex);
-                    int index = getIndex(statusOrIndex);
-
-                    switch (status) {
-                      case INFO_SUCCESS:
-                        ByteBuffer encodedData = encoder.getOutputBuffers()[index];
-                        if (encodedData == null) {
-                          throw new IOException("ByteBuffer for " + index + " was null");
-                        }
-
-                        // It's usually necessary to adjust the ByteBuffer values to match BufferInfo.
-                        encodedData.position(info.offset);
-                        encodedData.limit(info.offset + info.size);
-                        byte[] data = new byte[info.size];
-                        encodedData.get(data);
-                        encodedData.position(info.offset);
-                        write(data, info.presentationTimeUs, info.flags);
-                        encoder.releaseOutputBuffer(index, false);
-                        break;
-                      case INFO_TRY_AGAIN_LATER:
-                        Log.d(TAG, "Video not ready yet. Trying again later.");
-                        Thread.sleep(100);
-                        continue;
-                      case INFO_OUTPUT_FORMAT_CHANGED:
-                        Log.d(TAG, "Video encoder output format changed: " + encoder.getOutputFormat());
-                        break;
-                      case INFO_OUTPUT_BUFFERS_CHANGED:
-                        Log.d(TAG, "Video encoder output buffers changed");
-                        break;
-                    }
+                    record(codecInfo);
                   }
-
-                  encoder.signalEndOfInputStream();
                 } catch (IOException | IllegalArgumentException | IllegalStateException | InterruptedException | ExecutionException e) {
                   Log.e(TAG, "Exception with recording video stream", e);
                 } finally {
                   stopInternal();
-                  if (surface != null) {
-                    mCanvas.detachSurface(surfaceProvider);
-                    surface.release();
-                  }
                 }
               }
-            };
-    mThread.start();
+            });
+  }
+
+  /**
+   * Configures an encoder for the current quality and records into it, until either recording stops
+   * or the encoder needs to be restarted. A new header is written each time, which tells the player
+   * to restart its decoder too.
+   */
+  @RequiresPermission(Manifest.permission.CAMERA)
+  private void record(MediaCodecInfo codecInfo) throws IOException, InterruptedException, ExecutionException {
+    mIsRestartRequested = false;
+    QualityGovernor.Level quality = mQuality;
+    int bitRate = quality.scaleBitRate(getBitRate());
+    int frameRate = quality.capFrameRate(getFrameRate());
+
+    // Smaller resolutions are scaled down on the GPU, since the camera only outputs certain sizes.
+    VideoRecorder.Canvas canvas = mCanvas;
+    if (quality.getResolutionScale() < 1) {
+      if (mScaler == null) {
+        mScaler = new SurfaceSplitter(mCanvas, quality.getResolutionScale());
+      }
+      mScaler.setScale(0, quality.getResolutionScale());
+      canvas = mScaler.getCanvas(0);
+    }
+
+    SettableFuture<CameraMetadata> requestedSizeFuture = SettableFuture.create();
+    SettableFuture<Surface> providedSurface = SettableFuture.create();
+    SurfaceProvider surfaceProvider = (width, height, orientation, flipped) -> {
+      requestedSizeFuture.set(new CameraMetadata(width, height, orientation, flipped));
+      try {
+        return providedSurface.get();
+      } catch (ExecutionException | InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+    };
+    canvas.attachSurface(surfaceProvider);
+
+    Surface surface = null;
+    try {
+      CameraMetadata metadata = Objects.requireNonNull(requestedSizeFuture.get());
+      MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, metadata.getWidth(), metadata.getHeight());
+
+      // Failing to specify some of these can cause the MediaCodec configure() call to
+      // throw an unhelpful exception.
+      format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+      format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+      format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+      format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, getIFrameInterval());
+      if (Build.VERSION.SDK_INT >= 23) {
+        format.setInteger(MediaFormat.KEY_PRIORITY, quality.getPriority());
+      }
+      if (Build.VERSION.SDK_INT >= 29 && frameRate < getFrameRate()) {
+        // The camera decides how often frames arrive, so the encoder has to drop the extras itself.
+        format.setFloat(MediaFormat.KEY_MAX_FPS_TO_ENCODER, frameRate);
+      }
+      if (Build.VERSION.SDK_INT >= 31) {
+        format.setInteger(MediaFormat.KEY_ALLOW_FRAME_DROP, /*true=*/1);
+      }
+
+      // Pass this info to the remote device.
+      write(metadata.getWidth(),
+              metadata.getHeight(),
+              metadata.getOrientation(),
+              metadata.isFlipped(),
+              bitRate,
+              frameRate,
+              getIFrameInterval());
+
+      MediaCodec encoder = MediaCodec.createByCodecName(codecInfo.getName());
+      mEncoder = encoder;
+      encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+      surface = encoder.createInputSurface();
+      providedSurface.set(surface);
+      encoder.start();
+      Log.d(TAG, "Started recording video with dimensions " + metadata + " at " + quality);
+
+      // The quality may have changed while we were configuring.
+      if (mQuality.getBitRateScale() != quality.getBitRateScale()) {
+        setEncoderBitRate(mQuality.scaleBitRate(getBitRate()));
+      }
+
+      MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+      while (isRecording() && !mIsRestartRequested) {
+        int statusOrIndex = encoder.dequeueOutputBuffer(info, NO_TIMEOUT);
+        int status = getStatus(statusOrIndex);
+        int index = getIndex(statusOrIndex);
+
+        switch (status) {
+          case INFO_SUCCESS:
+            long encodeTimeUs = System.nanoTime() / 1000;
+            Trace.beginSection("VideoRecorder:output");
+            try {
+              ByteBuffer encodedData = encoder.getOutputBuffers()[index];
+              if (encodedData == null) {
+                throw new IOException("ByteBuffer for " + index + " was null");
+              }
+
+              // It's usually necessary to adjust the ByteBuffer values to match BufferInfo.
+              encodedData.position(info.offset);
+              encodedData.limit(info.offset + info.size);
+              byte[] data = new byte[info.size];
+              encodedData.get(data);
+              encodedData.position(info.offset);
+
+              StreamMetrics metrics = mMetrics;
+              if (metrics != null && (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                metrics.onFrameEncoded(info.size, info.presentationTimeUs, (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+              }
+              write(data, info.presentationTimeUs, info.flags, encodeTimeUs);
+              encoder.releaseOutputBuffer(index, false);
+            } finally {
+              Trace.endSection();
+            }
+            break;
+          case INFO_TRY_AGAIN_LATER:
+            Log.d(TAG, "Video not ready yet. Trying again later.");
+            Thread.sleep(100);
+            continue;
+          case INFO_OUTPUT_FORMAT_CHANGED:
+            Log.d(TAG, "Video encoder output format changed: " + encoder.getOutputFormat());
+            break;
+          case INFO_OUTPUT_BUFFERS_CHANGED:
+            Log.d(TAG, "Video encoder output buffers changed");
+            break;
+        }
+      }
+
+      if (!isRecording()) {
+        encoder.signalEndOfInputStream();
+      }
+    } finally {
+      if (surface != null) {
+        canvas.detachSurface(surfaceProvider);
+        surface.release();
+      }
+    }
+
+    // Only stopped once nothing is drawing into its surface any more.
+    if (isRecording()) {
+      Log.d(TAG, "Restarting the video encoder to change quality to " + mQuality);
+      closeEncoder();
+      mEncoder = null;
+    }
   }
 
   private void closeEncoder() {
@@ -278,7 +486,8 @@ public class VideoRecorder {
                      int bitRate,
                      int frameRate,
                      int iframeInterval) throws IOException {
-    byte[] frame = new VideoFrame.Builder(VideoFrame.Type.HEADER)
+    VideoFrame frame = new VideoFrame.Builder(VideoFrame.Type.HEADER)
+            .layer(mLayer)
             .width(width)
             .height(height)
             .orientation(orientation)
@@ -286,25 +495,79 @@ public class VideoRecorder {
             .bitRate(bitRate)
             .frameRate(frameRate)
             .iframeInterval(iframeInterval)
-            .build()
-            .asBytes();
-
-    mOutputStream.write(Ints.toByteArray(frame.length));
-    mOutputStream.write(frame);
-    mOutputStream.flush();
+            .build();
+    write(frame);
   }
 
-  private void write(byte[] data, long presentationTimeUs, int flags) throws IOException {
-    byte[] frame = new VideoFrame.Builder(VideoFrame.Type.DATA)
+  private void write(byte[] data, long presentationTimeUs, int flags, long encodeTimeUs) throws IOException {
+    VideoFrame.Builder builder = new VideoFrame.Builder(VideoFrame.Type.DATA)
+            .layer(mLayer)
             .data(data)
             .presentationTimeUs(presentationTimeUs)
-            .flags(flags)
-            .build()
-            .asBytes();
+            .flags(flags);
+
+    if (mIsLatencyTracingEnabled && (flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+      long captureTimeUs = StreamMetrics.toMonotonicTimeUs(presentationTimeUs);
+      long writeTimeUs = System.nanoTime() / 1000;
+      builder.captureTimeUs(captureTimeUs)
+              .encodeTimeUs(encodeTimeUs)
+              .writeTimeUs(writeTimeUs);
+
+      StreamMetrics metrics = mMetrics;
+      if (metrics != null) {
+        if (captureTimeUs != 0) {
+          metrics.onLatency(LatencyHistogram.Stage.ENCODE, encodeTimeUs - captureTimeUs);
+        }
+        metrics.onLatency(LatencyHistogram.Stage.WRITE, writeTimeUs - encodeTimeUs);
+      }
+    }
+    write(builder.build());
+  }
+
+  private void write(VideoFrame frame) throws IOException {
+    byte[] bytes = frame.asBytes();
+    long startTimeNs = System.nanoTime();
+    Trace.beginSection("VideoRecorder:write");
+    try {
+      mOutputStream.write(Ints.toByteArray(bytes.length));
+      mOutputStream.write(bytes);
+      mOutputStream.flush();
+    } finally {
+      Trace.endSection();
+    }
+
+    StreamMetrics metrics = mMetrics;
+    if (metrics != null) {
+      metrics.onFrameWritten((System.nanoTime() - startTimeNs) / 1000);
+    }
+
+    synchronized (mSinks) {
+      if (frame.getType() == VideoFrame.Type.HEADER) {
+        mHeaderFrame = frame;
+      } else if (frame.isCodecConfig()) {
+        mCodecConfigFrame = frame;
+      }
 
-    mOutputStream.write(Ints.toByteArray(frame.length));
-    mOutputStream.write(frame);
-    mOutputStream.flush();
+      for (int i = mSinks.size() - 1; i >= 0; i--) {
+        FrameSink sink = mSinks.get(i);
+        try {
+          sink.onFrame(frame);
+        } catch (IOException | RuntimeException e) {
+          Log.e(TAG, "Detaching sink " + sink + " after it failed to write", e);
+          mSinks.remove(i);
+          sink.close();
+        }
+      }
+    }
+  }
+
+  private void closeSinks() {
+    synchronized (mSinks) {
+      for (FrameSink sink : mSinks) {
+        sink.close();
+      }
+      mSinks.clear();
+    }
   }
 
   private void stopInternal() {
@@ -315,15 +578,16 @@ public class VideoRecorder {
       Log.e(TAG, "Failed to close video output stream", e);
     }
     closeEncoder();
+    closeSinks();
   }
 
   /** Stops recording video. */
   public void stop() {
     stopInternal();
     try {
-      mThread.join(300);
+      mTask.await(300);
     } catch (InterruptedException e) {
-      Log.e(TAG, "Interrupted while joining VideoRecorder thread", e);
+      Log.e(TAG, "Interrupted while waiting for VideoRecorder to stop", e);
       Thread.currentThread().interrupt();
     }
   }
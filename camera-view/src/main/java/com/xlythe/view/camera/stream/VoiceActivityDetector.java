@@ -0,0 +1,74 @@
+package com.xlythe.view.camera.stream;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Decides whether audio is worth sending, based on how loud it is. Audio louder than the threshold
+ * is speech, and so is everything for a short hangover time afterwards, so that quiet word endings
+ * and the pauses between words aren't chopped off.
+ *
+ * This runs on every read in the recording loop, so it works directly on 16 bit little endian
+ * PCM, compares against a precomputed energy rather than taking a log, and never allocates.
+ */
+final class VoiceActivityDetector {
+  private final int mSampleRate;
+
+  /** The mean squared sample value that audio must exceed to count as speech. */
+  private final long mThresholdEnergy;
+
+  /** How many frames audio counts as speech for after it was last loud enough. */
+  private final long mHangoverFrames;
+
+  /** How many frames of the current hangover are left. */
+  private long mHangoverRemaining;
+
+  /**
+   * @param sampleRate The sample rate of the audio, used to measure the hangover.
+   * @param thresholdDb How loud audio must be to count as speech, in dB relative to full scale.
+   * @param hangoverMillis How long audio still counts as speech after it was last loud enough.
+   */
+  VoiceActivityDetector(int sampleRate, float thresholdDb, int hangoverMillis) {
+    double amplitude = -Short.MIN_VALUE * Math.pow(10, thresholdDb / 20);
+    mSampleRate = sampleRate;
+    mThresholdEnergy = (long) (amplitude * amplitude);
+    mHangoverFrames = (long) hangoverMillis * sampleRate / 1000;
+  }
+
+  /** Returns true if the given audio should be sent, or false if it can be replaced by silence. */
+  boolean isSpeech(byte[] data, int len) {
+    int frames = len / AudioBuffer.BYTES_PER_FRAME;
+    if (frames == 0) {
+      return mHangoverRemaining > 0;
+    }
+
+    long energy = 0;
+    for (int i = 0; i < frames * AudioBuffer.BYTES_PER_FRAME; i += AudioBuffer.BYTES_PER_FRAME) {
+      int sample = (short) ((data[i] & 0xFF) | (data[i + 1] << 8));
+      energy += sample * sample;
+    }
+
+    if (energy > mThresholdEnergy * frames) {
+      mHangoverRemaining = mHangoverFrames;
+      return true;
+    }
+    if (mHangoverRemaining > 0) {
+      mHangoverRemaining -= frames;
+      return true;
+    }
+    return false;
+  }
+
+  /** Forgets any hangover, so that the next quiet audio counts as silence straight away. */
+  void reset() {
+    mHangoverRemaining = 0;
+  }
+
+  @NonNull
+  @Override
+  public String toString() {
+    return "VoiceActivityDetector{" +
+            "thresholdEnergy=" + mThresholdEnergy +
+            ", hangover=" + (mHangoverFrames * 1000 / mSampleRate) + "ms" +
+            '}';
+  }
+}
@@ -22,9 +22,12 @@ import android.view.Surface;
 
 import com.xlythe.view.camera.CameraView;
 import com.xlythe.view.camera.ICameraModule;
+import com.xlythe.view.camera.RollingMediaRecorder;
+import com.xlythe.view.camera.RollingRecording;
 import com.xlythe.view.camera.stream.VideoRecorder;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 
@@ -96,6 +99,12 @@ public class Camera2Module extends ICameraModule {
     @Nullable
     private Session mActiveSession;
 
+    /**
+     * Custom surfaces drawing from the camera, in the order they were attached. They're all fed by
+     * a single {@link StreamSession}.
+     */
+    private final List<VideoRecorder.SurfaceProvider> mSurfaceProviders = new ArrayList<>();
+
     /**
      * The current zoom level, from 0 to {@link #getMaxZoomLevel()}.
      */
@@ -116,6 +125,9 @@ public class Camera2Module extends ICameraModule {
      */
     private boolean mIsRecording = false;
 
+    /** Set while a rolling recording is in progress. Shared by each VideoSession it spans. */
+    @Nullable private RollingMediaRecorder mRollingMediaRecorder;
+
     /**
      *
      */
@@ -658,13 +670,39 @@ public class Camera2Module extends ICameraModule {
         }
 
         mIsRecording = true;
+        mRollingMediaRecorder = null;
         setSession(new VideoSession(this, file));
     }
 
+    @RequiresPermission(Manifest.permission.RECORD_AUDIO)
+    @Override
+    public void startRecording(RollingRecording recording) {
+        // Quick fail if the CameraDevice was never created.
+        if (mCameraDevice == null) {
+            onVideoFailed();
+            return;
+        }
+
+        mIsRecording = true;
+        mRollingMediaRecorder = new RollingMediaRecorder(recording, () -> {
+            // The segment filled up before MediaRecorder could switch files, so it stopped itself.
+            if (isRollingRecording() && mRollingMediaRecorder.getRecording() == recording) {
+                setSession(new VideoSession(this, mRollingMediaRecorder));
+            }
+        });
+        setSession(new VideoSession(this, mRollingMediaRecorder));
+    }
+
     @Override
     public void stopRecording() {
         mIsRecording = false;
         setSession(new PictureSession(this));
+        mRollingMediaRecorder = null;
+    }
+
+    @Override
+    public boolean isRollingRecording() {
+        return mIsRecording && mRollingMediaRecorder != null;
     }
 
     @Override
@@ -686,12 +724,23 @@ public class Camera2Module extends ICameraModule {
 
     @Override
     protected void attachSurface(VideoRecorder.SurfaceProvider surfaceProvider) {
-        setSession(new StreamSession(this, surfaceProvider));
+        if (mSurfaceProviders.contains(surfaceProvider)) {
+            return;
+        }
+        mSurfaceProviders.add(surfaceProvider);
+        setSession(new StreamSession(this, mSurfaceProviders));
     }
 
     @Override
     protected void detachSurface(VideoRecorder.SurfaceProvider surfaceProvider) {
-        setSession(new PictureSession(this));
+        if (!mSurfaceProviders.remove(surfaceProvider)) {
+            return;
+        }
+        if (mSurfaceProviders.isEmpty()) {
+            setSession(new PictureSession(this));
+        } else {
+            setSession(new StreamSession(this, mSurfaceProviders));
+        }
     }
 
     void transformPreview(int previewWidth, int previewHeight) throws CameraAccessException {
@@ -39,6 +39,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -48,21 +49,30 @@ import static com.xlythe.view.camera.ICameraModule.TAG;
 @TargetApi(21)
 class StreamSession extends PreviewSession {
 
-    private final StreamSurface mStreamSurface;
+    /** One surface per custom output, all of them added to the same capture session. */
+    private final List<StreamSurface> mStreamSurfaces = new ArrayList<>();
 
-    StreamSession(Camera2Module camera2Module, VideoRecorder.SurfaceProvider surfaceProvider) {
+    StreamSession(Camera2Module camera2Module, List<VideoRecorder.SurfaceProvider> surfaceProviders) {
         super(camera2Module);
-        mStreamSurface = new StreamSurface(camera2Module, surfaceProvider, getPreviewSurface());
+        for (VideoRecorder.SurfaceProvider surfaceProvider : surfaceProviders) {
+            mStreamSurfaces.add(new StreamSurface(camera2Module, surfaceProvider, getPreviewSurface()));
+        }
     }
 
-    public VideoRecorder.SurfaceProvider getSurfaceProvider() {
-        return mStreamSurface.mSurfaceProvider;
+    public List<VideoRecorder.SurfaceProvider> getSurfaceProviders() {
+        List<VideoRecorder.SurfaceProvider> surfaceProviders = new ArrayList<>(mStreamSurfaces.size());
+        for (StreamSurface streamSurface : mStreamSurfaces) {
+            surfaceProviders.add(streamSurface.mSurfaceProvider);
+        }
+        return surfaceProviders;
     }
 
     @Override
     public void initialize(@NonNull StreamConfigurationMap map) throws CameraAccessException {
         super.initialize(map);
-        mStreamSurface.initialize(map);
+        for (StreamSurface streamSurface : mStreamSurfaces) {
+            streamSurface.initialize(map);
+        }
     }
 
     private CaptureRequest createCaptureRequest(@NonNull CameraDevice device) throws CameraAccessException {
@@ -76,7 +86,9 @@ class StreamSession extends PreviewSession {
             builder.set(CaptureRequest.SCALER_CROP_REGION, mCropRegion);
         }
         builder.addTarget(getPreviewSurface().getSurface());
-        builder.addTarget(mStreamSurface.getSurface());
+        for (StreamSurface streamSurface : mStreamSurfaces) {
+            builder.addTarget(streamSurface.getSurface());
+        }
         return builder.build();
     }
 
@@ -94,14 +106,18 @@ class StreamSession extends PreviewSession {
     @Override
     public List<Surface> getSurfaces() {
         List<Surface> surfaces = super.getSurfaces();
-        surfaces.add(mStreamSurface.getSurface());
+        for (StreamSurface streamSurface : mStreamSurfaces) {
+            surfaces.add(streamSurface.getSurface());
+        }
         return surfaces;
     }
 
     @Override
     public void close() {
         super.close();
-        mStreamSurface.close();
+        for (StreamSurface streamSurface : mStreamSurfaces) {
+            streamSurface.close();
+        }
     }
 
     private static final class StreamSurface extends CameraSurface {
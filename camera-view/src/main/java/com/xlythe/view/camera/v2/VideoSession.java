@@ -16,12 +16,15 @@ import android.util.Log;
 import android.util.Size;
 import android.view.Surface;
 
+import com.xlythe.view.camera.RollingMediaRecorder;
+
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import static com.xlythe.view.camera.ICameraModule.DEBUG;
 import static com.xlythe.view.camera.ICameraModule.TAG;
@@ -39,7 +42,12 @@ class VideoSession extends PreviewSession {
 
     VideoSession(Camera2Module camera2Module, File file) {
         super(camera2Module);
-        mVideoSurface = new VideoSurface(camera2Module, file, getPreviewSurface());
+        mVideoSurface = new VideoSurface(camera2Module, file, null, getPreviewSurface());
+    }
+
+    VideoSession(Camera2Module camera2Module, RollingMediaRecorder rollingMediaRecorder) {
+        super(camera2Module);
+        mVideoSurface = new VideoSurface(camera2Module, null, rollingMediaRecorder, getPreviewSurface());
     }
 
     @Override
@@ -116,6 +124,7 @@ class VideoSession extends PreviewSession {
         return surfaces;
     }
 
+    @Nullable
     public File getFile() {
         return mVideoSurface.mFile;
     }
@@ -175,13 +184,23 @@ class VideoSession extends PreviewSession {
 
         private MediaRecorder mMediaRecorder;
 
-        @NonNull
+        /** The file we're recording to, unless this is a rolling recording. */
+        @Nullable
         private final File mFile;
+
+        /** Moves the recording on to new files as segments fill up, if this is a rolling recording. */
+        @Nullable
+        private final RollingMediaRecorder mRollingMediaRecorder;
+
         private final CameraSurface mPreviewSurface;
 
-        VideoSurface(Camera2Module cameraView, @NonNull File file, CameraSurface previewSurface) {
+        VideoSurface(Camera2Module cameraView,
+                     @Nullable File file,
+                     @Nullable RollingMediaRecorder rollingMediaRecorder,
+                     CameraSurface previewSurface) {
             super(cameraView);
             mFile = file;
+            mRollingMediaRecorder = rollingMediaRecorder;
             mPreviewSurface = previewSurface;
         }
 
@@ -194,49 +213,25 @@ class VideoSession extends PreviewSession {
                 mMediaRecorder = new MediaRecorder();
                 mMediaRecorder.setAudioSource(MediaRecorder.AudioSource.MIC);
                 mMediaRecorder.setVideoSource(MediaRecorder.VideoSource.SURFACE);
-                int intCameraId = getIntCameraId();
-                switch (getQuality()) {
-                    case MAX:
-                        if (CamcorderProfile.hasProfile(intCameraId, CamcorderProfile.QUALITY_2160P)) {
-                            mMediaRecorder.setProfile(CamcorderProfile.get(intCameraId, CamcorderProfile.QUALITY_2160P));
-                            break;
-                        }
-                        // Fall-through
-                    case HIGH:
-                        if (CamcorderProfile.hasProfile(intCameraId, CamcorderProfile.QUALITY_1080P)) {
-                            mMediaRecorder.setProfile(CamcorderProfile.get(intCameraId, CamcorderProfile.QUALITY_1080P));
-                            break;
-                        }
-                        // Fall-through
-                    case MEDIUM:
-                        if (CamcorderProfile.hasProfile(intCameraId, CamcorderProfile.QUALITY_720P)) {
-                            mMediaRecorder.setProfile(CamcorderProfile.get(intCameraId, CamcorderProfile.QUALITY_720P));
-                            break;
+                CamcorderProfile profile = getProfile();
+                mMediaRecorder.setProfile(profile);
+                if (mRollingMediaRecorder != null) {
+                    mRollingMediaRecorder.configure(mMediaRecorder, profile);
+                } else {
+                    mMediaRecorder.setOutputFile(mFile.getAbsolutePath());
+                    mMediaRecorder.setMaxDuration((int) mCameraView.getMaxVideoDuration());
+                    mMediaRecorder.setMaxFileSize(mCameraView.getMaxVideoSize());
+                    mMediaRecorder.setOnInfoListener((mr, what, extra) -> {
+                        switch (what) {
+                            case MediaRecorder.MEDIA_RECORDER_INFO_MAX_DURATION_REACHED:
+                                Log.w(TAG, "Max duration for recording reached");
+                                break;
+                            case MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED:
+                                Log.w(TAG, "Max filesize for recording reached");
+                                break;
                         }
-                        // Fall-through
-                    case LOW:
-                        if (CamcorderProfile.hasProfile(intCameraId, CamcorderProfile.QUALITY_480P)) {
-                            mMediaRecorder.setProfile(CamcorderProfile.get(intCameraId, CamcorderProfile.QUALITY_480P));
-                            break;
-                        }
-                        // Fall-through
-                    default:
-                        mMediaRecorder.setProfile(CamcorderProfile.get(intCameraId, CamcorderProfile.QUALITY_LOW));
-                        break;
+                    });
                 }
-                mMediaRecorder.setOutputFile(mFile.getAbsolutePath());
-                mMediaRecorder.setMaxDuration((int) mCameraView.getMaxVideoDuration());
-                mMediaRecorder.setMaxFileSize(mCameraView.getMaxVideoSize());
-                mMediaRecorder.setOnInfoListener((mr, what, extra) -> {
-                    switch (what) {
-                        case MediaRecorder.MEDIA_RECORDER_INFO_MAX_DURATION_REACHED:
-                            Log.w(TAG, "Max duration for recording reached");
-                            break;
-                        case MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED:
-                            Log.w(TAG, "Max filesize for recording reached");
-                            break;
-                    }
-                });
                 mMediaRecorder.setVideoSize(getWidth(), getHeight());
                 mMediaRecorder.setOrientationHint(mCameraView.getRelativeCameraOrientation());
 
@@ -252,6 +247,34 @@ class VideoSession extends PreviewSession {
             }
         }
 
+        private CamcorderProfile getProfile() {
+            int intCameraId = getIntCameraId();
+            switch (getQuality()) {
+                case MAX:
+                    if (CamcorderProfile.hasProfile(intCameraId, CamcorderProfile.QUALITY_2160P)) {
+                        return CamcorderProfile.get(intCameraId, CamcorderProfile.QUALITY_2160P);
+                    }
+                    // Fall-through
+                case HIGH:
+                    if (CamcorderProfile.hasProfile(intCameraId, CamcorderProfile.QUALITY_1080P)) {
+                        return CamcorderProfile.get(intCameraId, CamcorderProfile.QUALITY_1080P);
+                    }
+                    // Fall-through
+                case MEDIUM:
+                    if (CamcorderProfile.hasProfile(intCameraId, CamcorderProfile.QUALITY_720P)) {
+                        return CamcorderProfile.get(intCameraId, CamcorderProfile.QUALITY_720P);
+                    }
+                    // Fall-through
+                case LOW:
+                    if (CamcorderProfile.hasProfile(intCameraId, CamcorderProfile.QUALITY_480P)) {
+                        return CamcorderProfile.get(intCameraId, CamcorderProfile.QUALITY_480P);
+                    }
+                    // Fall-through
+                default:
+                    return CamcorderProfile.get(intCameraId, CamcorderProfile.QUALITY_LOW);
+            }
+        }
+
         @Override
         Surface getSurface() {
             return mMediaRecorder.getSurface();
@@ -281,6 +304,10 @@ class VideoSession extends PreviewSession {
         }
 
         void stopRecording() {
+            if (mRollingMediaRecorder != null) {
+                stopRollingRecording();
+                return;
+            }
             if (mAwaitingRecording) {
                 mAwaitingRecording = false;
                 if (DEBUG) Log.d(TAG, "Cancelled recording before it started");
@@ -303,6 +330,22 @@ class VideoSession extends PreviewSession {
             }
         }
 
+        private void stopRollingRecording() {
+            mAwaitingRecording = false;
+            if (mIsRecordingVideo) {
+                mIsRecordingVideo = false;
+                try {
+                    mMediaRecorder.stop();
+                    mMediaRecorder.reset();
+                } catch (RuntimeException e) {
+                    // A segment that filled up has already been closed by MediaRecorder, so stop can
+                    // fail without losing anything.
+                    Log.e(TAG, "Let me guess. 'stop failed.'?", e);
+                }
+            }
+            mRollingMediaRecorder.onStopped();
+        }
+
         @Override
         void close() {
             if (mMediaRecorder != null) {
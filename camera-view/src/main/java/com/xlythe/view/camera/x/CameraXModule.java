@@ -59,6 +59,7 @@ import com.xlythe.view.camera.Exif;
 import com.xlythe.view.camera.ICameraModule;
 import com.xlythe.view.camera.LocationProvider;
 import com.xlythe.view.camera.PermissionChecker;
+import com.xlythe.view.camera.RollingRecording;
 import com.xlythe.view.camera.stream.VideoRecorder;
 
 import java.io.File;
@@ -133,10 +134,17 @@ public class CameraXModule extends ICameraModule implements LifecycleOwner {
     /** A helper class for mVideoCapture that allows us to stop the recording. */
     @Nullable private Recording mVideoRecording;
 
+    /** Set while a rolling recording is in progress. Each of its segments is a new Recording. */
+    @Nullable private RollingRecording mRollingRecording;
+
     private int mLastWidth = 0;
     private int mLastHeight = 0;
 
-    /** Custom use cases, beyond the typical Preview/Image/Video ones. */
+    /**
+     * Custom use cases, beyond the typical Preview/Image/Video ones. Recorders and custom surfaces
+     * all share one through {@link #getCanvas()}, and frame analyzers share another, so there are at
+     * most two of these no matter how many consumers are running.
+     */
     private final Map<VideoRecorder.SurfaceProvider, UseCase> mCustomUseCases = new ArrayMap<>();
 
     /** True if using the front facing camera. False otherwise. */
@@ -604,10 +612,45 @@ public class CameraXModule extends ICameraModule implements LifecycleOwner {
     @RequiresPermission(Manifest.permission.RECORD_AUDIO)
     @Override
     public void startRecording(File file) {
+        VideoCapture<Recorder> videoCapture = bindVideoCapture();
+        if (videoCapture == null) {
+            return;
+        }
+
+        mRollingRecording = null;
+        mVideoCapture = videoCapture;
+        mVideoRecording = startVideoRecording(videoCapture, file, null);
+    }
+
+    /**
+     * Starts a rolling recording. CameraX's Recorder can't switch files mid-recording, so each
+     * segment is its own recording with a duration or size limit. As soon as one finalizes, the next
+     * is started on the same (still bound) VideoCapture, which keeps the gap between them small.
+     */
+    @RequiresPermission(Manifest.permission.RECORD_AUDIO)
+    @Override
+    public void startRecording(RollingRecording recording) {
+        VideoCapture<Recorder> videoCapture = bindVideoCapture();
+        if (videoCapture == null) {
+            return;
+        }
+
+        mRollingRecording = recording;
+        mVideoCapture = videoCapture;
+        mVideoRecording = startVideoRecording(videoCapture, recording.nextFile(), recording);
+    }
+
+    @Override
+    public boolean isRollingRecording() {
+        return isRecording() && mRollingRecording != null;
+    }
+
+    @Nullable
+    private VideoCapture<Recorder> bindVideoCapture() {
         if (mCameraProvider == null) {
             Log.w(TAG, "Failed to take a video. CameraProvider is not available yet.");
             onVideoFailed();
-            return;
+            return null;
         }
 
         VideoCapture<Recorder> videoCapture = VideoCapture.withOutput(new Recorder.Builder()
@@ -620,16 +663,27 @@ public class CameraXModule extends ICameraModule implements LifecycleOwner {
             onVideoFailed();
             mVideoCapture = null;
             rebindUseCases();
-            return;
+            return null;
         }
+        return videoCapture;
+    }
 
+    @RequiresPermission(Manifest.permission.RECORD_AUDIO)
+    private Recording startVideoRecording(VideoCapture<Recorder> videoCapture, File file, @Nullable RollingRecording rollingRecording) {
         Recorder recorder = videoCapture.getOutput();
         FileOutputOptions.Builder options = new FileOutputOptions.Builder(file);
-        if (getMaxVideoSize() != CameraView.INDEFINITE_VIDEO_SIZE) {
+        if (rollingRecording != null) {
+            if (rollingRecording.getSegmentDuration() != CameraView.INDEFINITE_VIDEO_DURATION) {
+                options.setDurationLimitMillis(rollingRecording.getSegmentDuration());
+            }
+            if (rollingRecording.getSegmentSize() != CameraView.INDEFINITE_VIDEO_SIZE) {
+                options.setFileSizeLimit(rollingRecording.getSegmentSize());
+            }
+        } else if (getMaxVideoSize() != CameraView.INDEFINITE_VIDEO_SIZE) {
             options.setFileSizeLimit(getMaxVideoSize());
         }
         PendingRecording pendingRecording = recorder.prepareRecording(getContext(), options.build());
-        Recording recording = pendingRecording.withAudioEnabled().start(ContextCompat.getMainExecutor(getContext()), videoRecordEvent -> {
+        return pendingRecording.withAudioEnabled().start(ContextCompat.getMainExecutor(getContext()), videoRecordEvent -> {
             if (videoRecordEvent instanceof VideoRecordEvent.Start) {
                 Log.d(TAG, "Started video recording");
             } else if (videoRecordEvent instanceof VideoRecordEvent.Pause) {
@@ -645,12 +699,21 @@ public class CameraXModule extends ICameraModule implements LifecycleOwner {
                     case VideoRecordEvent.Finalize.ERROR_FILE_SIZE_LIMIT_REACHED:
                     case VideoRecordEvent.Finalize.ERROR_DURATION_LIMIT_REACHED:
                         // The good cases.
+                        if (rollingRecording != null) {
+                            onSegmentFinalized(videoCapture, file, rollingRecording, finalizeEvent);
+                            break;
+                        }
                         showVideoConfirmation(file);
                         stopRecording();
                         break;
                     case VideoRecordEvent.Finalize.ERROR_INSUFFICIENT_STORAGE:
                         // The possibly good cases.
                         if (file.exists()) {
+                            if (rollingRecording != null) {
+                                rollingRecording.onSegmentFinalized(file);
+                                stopRecording();
+                                break;
+                            }
                             showVideoConfirmation(file);
                             stopRecording();
                             break;
@@ -675,9 +738,19 @@ public class CameraXModule extends ICameraModule implements LifecycleOwner {
                 Log.w(TAG, "Received unknown video recording event " + videoRecordEvent);
             }
         });
+    }
 
-        mVideoCapture = videoCapture;
-        mVideoRecording = recording;
+    @SuppressLint("MissingPermission")
+    private void onSegmentFinalized(VideoCapture<Recorder> videoCapture, File file, RollingRecording rollingRecording, VideoRecordEvent.Finalize event) {
+        rollingRecording.onSegmentFinalized(file);
+
+        // If the segment hit its limit, rather than being stopped, move on to the next one. The
+        // VideoCapture is still bound, so this doesn't need to wait on the camera.
+        if (event.getError() != VideoRecordEvent.Finalize.ERROR_NONE
+                && mVideoCapture == videoCapture
+                && mRollingRecording == rollingRecording) {
+            mVideoRecording = startVideoRecording(videoCapture, rollingRecording.nextFile(), rollingRecording);
+        }
     }
 
     private List<Quality> getVideoQualityPriority() {
@@ -732,6 +805,7 @@ public class CameraXModule extends ICameraModule implements LifecycleOwner {
         unbind(mVideoCapture);
         mVideoCapture = null;
         mVideoRecording = null;
+        mRollingRecording = null;
         rebindUseCases();
     }
 
@@ -0,0 +1,302 @@
+package com.xlythe.view.camera;
+
+import androidx.annotation.Nullable;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Runs a {@link BarcodeCorpus} through a {@link BarcodeDecoder} and reports how fast and how
+ * accurately it decoded. Only plain Java is used, so the same harness works on a JVM or on a
+ * device.
+ *
+ * A frame counts as correct if the expected barcode was found and nothing else was, or if nothing
+ * was found in a frame with no barcode in it.
+ *
+ * A {@link BarcodeCandidateFilter} can be benchmarked on its own, for how many barcodes it lets
+ * through, or in front of a decoder, for what it does to the decoder's speed and accuracy.
+ *
+ * It can also measure how much is allocated per detection to wrap ML Kit's barcodes and read them,
+ * which every frame with a barcode in it pays for. Allocations are only counted on a JVM that can
+ * report them per thread, such as HotSpot.
+ */
+final class BarcodeBenchmark {
+    /** How many frames are decoded, untimed, before measuring starts, to let the JIT settle. */
+    private static final int WARMUP_FRAMES = 20;
+
+    /** How many times every detection is read, unmeasured, before measuring allocations. */
+    private static final int WARMUP_ROUNDS = 3;
+
+    /** Reads a barcode the way an app would, so that what it allocates can be measured. */
+    interface BarcodeReader {
+        void read(Barcode barcode);
+    }
+
+    static final class Report {
+        final String mDecoder;
+        final int mFrames;
+        final int mCorrect;
+        /** Frames where the expected barcode wasn't found. */
+        final int mMissed;
+        /** Frames where a barcode was found with the wrong value or format. */
+        final int mMisread;
+        /** Frames with no barcode in them, where one was found anyway. */
+        final int mFalsePositives;
+        final long mTotalNanos;
+        final long[] mLatenciesNanos;
+
+        Report(String decoder, int frames, int correct, int missed, int misread, int falsePositives, long totalNanos, long[] latenciesNanos) {
+            mDecoder = decoder;
+            mFrames = frames;
+            mCorrect = correct;
+            mMissed = missed;
+            mMisread = misread;
+            mFalsePositives = falsePositives;
+            mTotalNanos = totalNanos;
+            mLatenciesNanos = latenciesNanos.clone();
+            Arrays.sort(mLatenciesNanos);
+        }
+
+        /** Returns the fraction of frames decoded correctly, from 0 to 1. */
+        double getAccuracy() {
+            return mFrames == 0 ? 0 : (double) mCorrect / mFrames;
+        }
+
+        /** Returns how many frames were decoded per second, back to back on one thread. */
+        double getFramesPerSecond() {
+            return mTotalNanos == 0 ? 0 : mFrames * 1e9 / mTotalNanos;
+        }
+
+        /** Returns the latency that the given fraction of frames, from 0 to 1, decoded within. */
+        double getLatencyMillis(double percentile) {
+            if (mLatenciesNanos.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile * mLatenciesNanos.length) - 1;
+            return mLatenciesNanos[Math.max(0, Math.min(mLatenciesNanos.length - 1, index))] / 1e6;
+        }
+
+        static String getHeader() {
+            return String.format(Locale.US, "%7s %9s %7s %8s %7s %9s %8s %8s %8s  %s",
+                    "frames", "accuracy", "missed", "misread", "false+", "frames/s", "p50 ms", "p90 ms", "p99 ms", "decoder");
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%7d %8.1f%% %7d %8d %7d %9.1f %8.2f %8.2f %8.2f  %s",
+                    mFrames, getAccuracy() * 100, mMissed, mMisread, mFalsePositives,
+                    getFramesPerSecond(), getLatencyMillis(0.5), getLatencyMillis(0.9), getLatencyMillis(0.99), mDecoder);
+        }
+    }
+
+    static final class FilterReport {
+        final String mFilter;
+        /** Frames with a barcode in them. */
+        final int mBarcodeFrames;
+        /** Frames with a barcode in them that the filter let through. */
+        final int mPassedBarcodeFrames;
+        /** Frames with no barcode in them. */
+        final int mEmptyFrames;
+        /** Frames with no barcode in them that the filter skipped. */
+        final int mSkippedEmptyFrames;
+        final long mTotalNanos;
+
+        FilterReport(String filter, int barcodeFrames, int passedBarcodeFrames, int emptyFrames, int skippedEmptyFrames, long totalNanos) {
+            mFilter = filter;
+            mBarcodeFrames = barcodeFrames;
+            mPassedBarcodeFrames = passedBarcodeFrames;
+            mEmptyFrames = emptyFrames;
+            mSkippedEmptyFrames = skippedEmptyFrames;
+            mTotalNanos = totalNanos;
+        }
+
+        /** Returns the fraction of frames with a barcode that were let through, from 0 to 1. */
+        double getRecall() {
+            return mBarcodeFrames == 0 ? 1 : (double) mPassedBarcodeFrames / mBarcodeFrames;
+        }
+
+        /** Returns the fraction of frames without a barcode that were skipped, from 0 to 1. */
+        double getSkipRate() {
+            return mEmptyFrames == 0 ? 0 : (double) mSkippedEmptyFrames / mEmptyFrames;
+        }
+
+        double getAverageMillis() {
+            int frames = mBarcodeFrames + mEmptyFrames;
+            return frames == 0 ? 0 : mTotalNanos / 1e6 / frames;
+        }
+
+        static String getHeader() {
+            return String.format(Locale.US, "%7s %7s %9s %7s %7s  %s",
+                    "frames", "recall", "skipped", "empty", "avg ms", "filter");
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%7d %6.1f%% %8.1f%% %7d %7.3f  %s",
+                    mBarcodeFrames + mEmptyFrames, getRecall() * 100, getSkipRate() * 100, mEmptyFrames, getAverageMillis(), mFilter);
+        }
+    }
+
+    static final class AllocationReport {
+        final String mReader;
+        final int mDetections;
+        /** Bytes allocated while wrapping and reading every detection, or -1 if the VM can't tell. */
+        final long mAllocatedBytes;
+
+        AllocationReport(String reader, int detections, long allocatedBytes) {
+            mReader = reader;
+            mDetections = detections;
+            mAllocatedBytes = allocatedBytes;
+        }
+
+        /** Returns the bytes allocated per detection, or -1 if the VM can't tell. */
+        double getBytesPerDetection() {
+            return mAllocatedBytes < 0 || mDetections == 0 ? -1 : (double) mAllocatedBytes / mDetections;
+        }
+
+        static String getHeader() {
+            return String.format(Locale.US, "%10s %12s  %s", "detections", "bytes/det", "reader");
+        }
+
+        @Override
+        public String toString() {
+            String bytes = mAllocatedBytes < 0 ? "n/a" : String.format(Locale.US, "%.0f", getBytesPerDetection());
+            return String.format(Locale.US, "%10d %12s  %s", mDetections, bytes, mReader);
+        }
+    }
+
+    private BarcodeBenchmark() {}
+
+    static Report run(BarcodeDecoder decoder, List<BarcodeCorpus.Frame> corpus) {
+        return run(decoder, null, corpus);
+    }
+
+    /**
+     * Runs the corpus through the decoder. If a filter is given, frames it skips count as frames
+     * where nothing was found, and only the filter's time is counted for them.
+     */
+    static Report run(BarcodeDecoder decoder, @Nullable BarcodeCandidateFilter filter, List<BarcodeCorpus.Frame> corpus) {
+        for (int i = 0; i < Math.min(WARMUP_FRAMES, corpus.size()); i++) {
+            decode(decoder, filter, corpus.get(i));
+        }
+
+        int correct = 0;
+        int missed = 0;
+        int misread = 0;
+        int falsePositives = 0;
+        long totalNanos = 0;
+        long[] latencies = new long[corpus.size()];
+        for (int i = 0; i < corpus.size(); i++) {
+            BarcodeCorpus.Frame frame = corpus.get(i);
+            long start = System.nanoTime();
+            List<Barcode> barcodes = decode(decoder, filter, frame);
+            latencies[i] = System.nanoTime() - start;
+            totalNanos += latencies[i];
+
+            if (frame.mExpectedValue == null) {
+                if (barcodes.isEmpty()) {
+                    correct++;
+                } else {
+                    falsePositives++;
+                }
+                continue;
+            }
+
+            boolean found = false;
+            boolean wrong = false;
+            for (Barcode barcode : barcodes) {
+                if (barcode.getFormat() == frame.mExpectedFormat && frame.mExpectedValue.equals(barcode.getRawValue())) {
+                    found = true;
+                } else {
+                    wrong = true;
+                }
+            }
+            if (wrong) {
+                misread++;
+            } else if (found) {
+                correct++;
+            } else {
+                missed++;
+            }
+        }
+        String name = filter == null ? decoder.toString() : decoder + " after " + filter;
+        return new Report(name, corpus.size(), correct, missed, misread, falsePositives, totalNanos, latencies);
+    }
+
+    /** Runs the corpus through the filter alone. */
+    static FilterReport runFilter(BarcodeCandidateFilter filter, List<BarcodeCorpus.Frame> corpus) {
+        for (int i = 0; i < Math.min(WARMUP_FRAMES, corpus.size()); i++) {
+            hasCandidate(filter, corpus.get(i));
+        }
+
+        int barcodeFrames = 0;
+        int passedBarcodeFrames = 0;
+        int emptyFrames = 0;
+        int skippedEmptyFrames = 0;
+        long totalNanos = 0;
+        for (BarcodeCorpus.Frame frame : corpus) {
+            long start = System.nanoTime();
+            boolean candidate = hasCandidate(filter, frame);
+            totalNanos += System.nanoTime() - start;
+
+            if (frame.mExpectedValue == null) {
+                emptyFrames++;
+                if (!candidate) {
+                    skippedEmptyFrames++;
+                }
+            } else {
+                barcodeFrames++;
+                if (candidate) {
+                    passedBarcodeFrames++;
+                }
+            }
+        }
+        return new FilterReport(filter.toString(), barcodeFrames, passedBarcodeFrames, emptyFrames, skippedEmptyFrames, totalNanos);
+    }
+
+    /**
+     * Wraps every ML Kit detection in a {@link Barcode}, as {@link MlKitBarcodeDecoder} does for each
+     * frame, and reads it with the reader. Reports how many bytes that allocated per detection.
+     */
+    static AllocationReport measureAllocations(String name, List<com.google.mlkit.vision.barcode.common.Barcode> detections, BarcodeReader reader) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            for (com.google.mlkit.vision.barcode.common.Barcode detection : detections) {
+                reader.read(new Barcode(detection));
+            }
+        }
+
+        long start = getAllocatedBytes();
+        for (com.google.mlkit.vision.barcode.common.Barcode detection : detections) {
+            reader.read(new Barcode(detection));
+        }
+        long end = getAllocatedBytes();
+        return new AllocationReport(name, detections.size(), start < 0 || end < 0 ? -1 : end - start);
+    }
+
+    /** Returns how many bytes this thread has allocated so far, or -1 if the VM can't tell. */
+    static long getAllocatedBytes() {
+        try {
+            java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        } catch (LinkageError | UnsupportedOperationException e) {
+            // Not a JVM that counts allocations, eg. on a device.
+        }
+        return -1;
+    }
+
+    private static List<Barcode> decode(BarcodeDecoder decoder, @Nullable BarcodeCandidateFilter filter, BarcodeCorpus.Frame frame) {
+        if (filter != null && !hasCandidate(filter, frame)) {
+            return Collections.emptyList();
+        }
+        return decoder.decode(frame.getLuma(), frame.mWidth, frame.mHeight, frame.mRowStride, frame.mRotation);
+    }
+
+    private static boolean hasCandidate(BarcodeCandidateFilter filter, BarcodeCorpus.Frame frame) {
+        return filter.hasCandidate(frame.getLuma(), frame.mWidth, frame.mHeight, frame.mRowStride);
+    }
+}
@@ -0,0 +1,225 @@
+package com.xlythe.view.camera;
+
+import android.graphics.Rect;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+/**
+ * Benchmarks barcode decoders on the JVM. A small corpus is run with every test pass, as a check
+ * that decoding still works. For real numbers, run a larger one:
+ *
+ * ./gradlew :camera-view:testDebugUnitTest --tests '*BarcodeBenchmarkTest' -Dbenchmark.frames=2000
+ *
+ * Add -Dbenchmark.corpus=/path/to/folder to run real frames as well. See {@link BarcodeCorpus}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = 21)
+public class BarcodeBenchmarkTest {
+    private static final long SEED = 42;
+
+    private static List<BarcodeDecoder> getDecoders() {
+        return Arrays.<BarcodeDecoder>asList(
+                new ZxingBarcodeDecoder(Barcode.Format.ALL_FORMATS),
+                new ZxingBarcodeDecoder(Barcode.Format.ALL_FORMATS).setTryHarder(true));
+    }
+
+    private static void print(List<BarcodeBenchmark.Report> reports) {
+        System.out.println(BarcodeBenchmark.Report.getHeader());
+        for (BarcodeBenchmark.Report report : reports) {
+            System.out.println(report);
+        }
+    }
+
+    @Test
+    public void testGeneratedCorpus() {
+        List<BarcodeCorpus.Frame> corpus = BarcodeCorpus.generate(Integer.getInteger("benchmark.frames", 100), SEED);
+        List<BarcodeBenchmark.Report> reports = new ArrayList<>();
+        for (BarcodeDecoder decoder : getDecoders()) {
+            reports.add(BarcodeBenchmark.run(decoder, corpus));
+        }
+        print(reports);
+
+        // The corpus is meant to be hard, so that changes show up in the numbers. These floors only
+        // catch a decoder that has stopped working, not one that got a little worse.
+        for (BarcodeBenchmark.Report report : reports) {
+            assertTrue(report.toString(), report.getAccuracy() > 0.6);
+            assertEquals(report.toString(), 0, report.mFalsePositives);
+        }
+    }
+
+    @Test
+    public void testCandidateFilter() {
+        List<BarcodeCorpus.Frame> corpus = BarcodeCorpus.generate(Integer.getInteger("benchmark.frames", 100), SEED);
+        BarcodeCandidateFilter filter = new BarcodeCandidateFilter();
+        BarcodeBenchmark.FilterReport filterReport = BarcodeBenchmark.runFilter(filter, corpus);
+        System.out.println(BarcodeBenchmark.FilterReport.getHeader());
+        System.out.println(filterReport);
+
+        BarcodeDecoder decoder = new ZxingBarcodeDecoder(Barcode.Format.ALL_FORMATS);
+        List<BarcodeBenchmark.Report> reports = Arrays.asList(
+                BarcodeBenchmark.run(decoder, corpus),
+                BarcodeBenchmark.run(decoder, filter, corpus));
+        print(reports);
+
+        // Skipping a frame with a barcode in it costs far more than decoding an empty one, so the
+        // filter must let almost every barcode through, and must not cost the decoder any reads.
+        assertTrue(filterReport.toString(), filterReport.getRecall() > 0.98);
+        assertTrue(filterReport.toString(), filterReport.getSkipRate() >= 0.8);
+        assertTrue(reports.get(1).toString(), reports.get(1).getAccuracy() >= reports.get(0).getAccuracy() - 0.01);
+    }
+
+    @Test
+    public void testBarcodeAllocations() {
+        List<com.google.mlkit.vision.barcode.common.Barcode> detections = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            detections.add(mockContactDetection(i));
+        }
+
+        List<BarcodeBenchmark.AllocationReport> reports = Arrays.asList(
+                BarcodeBenchmark.measureAllocations("raw value", detections, barcode -> {
+                    barcode.getFormat();
+                    barcode.getRawValue();
+                }),
+                BarcodeBenchmark.measureAllocations("every payload", detections, BarcodeBenchmarkTest::readEveryPayload));
+        System.out.println(BarcodeBenchmark.AllocationReport.getHeader());
+        for (BarcodeBenchmark.AllocationReport report : reports) {
+            System.out.println(report);
+        }
+
+        // Reading every payload costs what building them all for every detection used to. The mocks
+        // allocate on every call too, so only the difference between the two is meaningful.
+        if (reports.get(0).mAllocatedBytes >= 0) {
+            assertTrue(reports.toString(), reports.get(0).getBytesPerDetection() < reports.get(1).getBytesPerDetection());
+        }
+    }
+
+    @Test
+    public void testFolderCorpus() throws IOException {
+        String folder = System.getProperty("benchmark.corpus");
+        if (folder == null) {
+            return;
+        }
+
+        List<BarcodeCorpus.Frame> corpus = BarcodeCorpus.load(new File(folder));
+        List<BarcodeBenchmark.Report> reports = new ArrayList<>();
+        for (BarcodeDecoder decoder : getDecoders()) {
+            reports.add(BarcodeBenchmark.run(decoder, corpus));
+        }
+        print(reports);
+    }
+
+    /** A detected contact card, as ML Kit would report it. Stub only, so the mocks allocate little. */
+    private static com.google.mlkit.vision.barcode.common.Barcode mockContactDetection(int i) {
+        com.google.mlkit.vision.barcode.common.Barcode.PersonName name = mock(com.google.mlkit.vision.barcode.common.Barcode.PersonName.class);
+        when(name.getFormattedName()).thenReturn("Contact " + i);
+
+        List<com.google.mlkit.vision.barcode.common.Barcode.Address> addresses = new ArrayList<>();
+        List<com.google.mlkit.vision.barcode.common.Barcode.Email> emails = new ArrayList<>();
+        List<com.google.mlkit.vision.barcode.common.Barcode.Phone> phones = new ArrayList<>();
+        for (int j = 0; j < 2; j++) {
+            com.google.mlkit.vision.barcode.common.Barcode.Address address = mock(com.google.mlkit.vision.barcode.common.Barcode.Address.class);
+            when(address.getAddressLines()).thenReturn(new String[] {j + " Main St", "Springfield"});
+            addresses.add(address);
+
+            com.google.mlkit.vision.barcode.common.Barcode.Email email = mock(com.google.mlkit.vision.barcode.common.Barcode.Email.class);
+            when(email.getAddress()).thenReturn("contact" + i + "@example.com");
+            emails.add(email);
+
+            com.google.mlkit.vision.barcode.common.Barcode.Phone phone = mock(com.google.mlkit.vision.barcode.common.Barcode.Phone.class);
+            when(phone.getNumber()).thenReturn("555-010" + j);
+            phones.add(phone);
+        }
+
+        com.google.mlkit.vision.barcode.common.Barcode.ContactInfo contact = mock(com.google.mlkit.vision.barcode.common.Barcode.ContactInfo.class);
+        when(contact.getName()).thenReturn(name);
+        when(contact.getAddresses()).thenReturn(addresses);
+        when(contact.getEmails()).thenReturn(emails);
+        when(contact.getPhones()).thenReturn(phones);
+        when(contact.getUrls()).thenReturn(Collections.singletonList("https://example.com"));
+
+        com.google.mlkit.vision.barcode.common.Barcode detection = mock(com.google.mlkit.vision.barcode.common.Barcode.class);
+        when(detection.getFormat()).thenReturn(Barcode.Format.QR_CODE);
+        when(detection.getValueType()).thenReturn(Barcode.Type.CONTACT_INFO);
+        when(detection.getRawValue()).thenReturn("BEGIN:VCARD " + i);
+        when(detection.getContactInfo()).thenReturn(contact);
+        return detection;
+    }
+
+    private static <T> T mock(Class<T> classToMock) {
+        return Mockito.mock(classToMock, Mockito.withSettings().stubOnly());
+    }
+
+    /** Reads every typed payload, which is what the barcode used to build as soon as it was created. */
+    private static void readEveryPayload(Barcode barcode) {
+        barcode.getFormat();
+        barcode.getRawValue();
+        barcode.getCalendarEvent();
+        barcode.getDriverLicense();
+        barcode.getEmail();
+        barcode.getGeoPoint();
+        barcode.getPhone();
+        barcode.getSms();
+        barcode.getUrl();
+        barcode.getWifi();
+        Barcode.ContactInfo contact = barcode.getContactInfo();
+        if (contact != null) {
+            contact.getName();
+            contact.getAddresses();
+            contact.getEmails();
+            contact.getPhones();
+        }
+    }
+
+    @Test
+    public void testReport() {
+        List<BarcodeCorpus.Frame> corpus = Arrays.asList(
+                new BarcodeCorpus.Frame("hit", new byte[4], 2, 2, 2, 0, Barcode.Format.QR_CODE, "hit"),
+                new BarcodeCorpus.Frame("miss", new byte[4], 2, 2, 2, 0, Barcode.Format.QR_CODE, "miss"),
+                new BarcodeCorpus.Frame("misread", new byte[4], 2, 2, 2, 0, Barcode.Format.QR_CODE, "misread"),
+                new BarcodeCorpus.Frame("empty", new byte[4], 2, 2, 2, 0, Barcode.Format.UNKNOWN, null),
+                new BarcodeCorpus.Frame("ghost", new byte[4], 2, 2, 2, 0, Barcode.Format.UNKNOWN, null));
+
+        // Answers each frame by its position in the corpus, after the warmup pass.
+        BarcodeDecoder decoder = new BarcodeDecoder() {
+            private int mCalls;
+
+            @Override
+            public List<Barcode> decode(ByteBuffer luma, int width, int height, int rowStride, int rotation) {
+                switch (mCalls++ % 5) {
+                    case 0:
+                        return Collections.singletonList(new Barcode(Barcode.Format.QR_CODE, "hit", new Rect()));
+                    case 2:
+                        return Collections.singletonList(new Barcode(Barcode.Format.QR_CODE, "wrong", new Rect()));
+                    case 4:
+                        return Collections.singletonList(new Barcode(Barcode.Format.QR_CODE, "ghost", new Rect()));
+                    default:
+                        return Collections.emptyList();
+                }
+            }
+        };
+
+        BarcodeBenchmark.Report report = BarcodeBenchmark.run(decoder, corpus);
+        assertEquals(5, report.mFrames);
+        assertEquals(2, report.mCorrect);
+        assertEquals(1, report.mMissed);
+        assertEquals(1, report.mMisread);
+        assertEquals(1, report.mFalsePositives);
+        assertEquals(0.4, report.getAccuracy(), 0.001);
+    }
+}
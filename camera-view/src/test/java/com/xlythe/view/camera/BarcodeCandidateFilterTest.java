@@ -0,0 +1,114 @@
+package com.xlythe.view.camera;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = 21)
+public class BarcodeCandidateFilterTest {
+    private static boolean hasCandidate(BarcodeCandidateFilter filter, BarcodeCorpus.Frame frame) {
+        return filter.hasCandidate(frame.getLuma(), frame.mWidth, frame.mHeight, frame.mRowStride);
+    }
+
+    /** A frame with a soft gradient and some sensor noise, but nothing sharp in it. */
+    private static byte[] noisyGradient(int width, int height, int noise) {
+        Random random = new Random(7);
+        byte[] luma = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int value = 100 + x * 60 / width + random.nextInt(noise + 1) - noise / 2;
+                luma[y * width + x] = (byte) value;
+            }
+        }
+        return luma;
+    }
+
+    @Test
+    public void testFindsBarcodes() {
+        BarcodeCandidateFilter filter = new BarcodeCandidateFilter();
+        for (int rotation : new int[] {0, 90}) {
+            assertTrue(hasCandidate(filter, BarcodeCorpus.single(Barcode.Format.QR_CODE, "candidate", 3, 0, 0, rotation, BarcodeCorpus.FRAME_WIDTH)));
+            assertTrue(hasCandidate(filter, BarcodeCorpus.single(Barcode.Format.CODE_128, "candidate", 2, 0, 0, rotation, BarcodeCorpus.FRAME_WIDTH)));
+        }
+    }
+
+    @Test
+    public void testSkipsEmptyFrames() {
+        int width = BarcodeCorpus.FRAME_WIDTH;
+        int height = BarcodeCorpus.FRAME_HEIGHT;
+        BarcodeCandidateFilter filter = new BarcodeCandidateFilter();
+        assertFalse(filter.hasCandidate(ByteBuffer.wrap(new byte[width * height]), width, height, width));
+        assertFalse(filter.hasCandidate(ByteBuffer.wrap(noisyGradient(width, height, 16)), width, height, width));
+    }
+
+    @Test
+    public void testEdgeThreshold() {
+        int width = BarcodeCorpus.FRAME_WIDTH;
+        int height = BarcodeCorpus.FRAME_HEIGHT;
+        ByteBuffer luma = ByteBuffer.wrap(noisyGradient(width, height, 40));
+        assertFalse(new BarcodeCandidateFilter().hasCandidate(luma, width, height, width));
+        assertTrue(new BarcodeCandidateFilter.Builder().setEdgeThreshold(10).build().hasCandidate(luma, width, height, width));
+    }
+
+    @Test
+    public void testPaddedRowsAndBufferPosition() {
+        BarcodeCorpus.Frame frame = BarcodeCorpus.single(Barcode.Format.QR_CODE, "offset", 3, 0, 0, 0, BarcodeCorpus.FRAME_WIDTH + 64);
+        ByteBuffer luma = ByteBuffer.allocate(frame.mLuma.length + 16);
+        luma.position(16);
+        luma.put(frame.mLuma);
+        luma.position(16);
+
+        assertTrue(new BarcodeCandidateFilter().hasCandidate(luma, frame.mWidth, frame.mHeight, frame.mRowStride));
+        assertEquals(16, luma.position());
+    }
+
+    @Test
+    public void testStats() {
+        int width = BarcodeCorpus.FRAME_WIDTH;
+        int height = BarcodeCorpus.FRAME_HEIGHT;
+        BarcodeCandidateFilter filter = new BarcodeCandidateFilter();
+        hasCandidate(filter, BarcodeCorpus.single(Barcode.Format.QR_CODE, "stats", 3, 0, 0, 0, width));
+        filter.hasCandidate(ByteBuffer.wrap(new byte[width * height]), width, height, width);
+        filter.hasCandidate(ByteBuffer.wrap(new byte[width * height]), width, height, width);
+
+        BarcodeCandidateFilter.Stats stats = filter.getStats();
+        assertEquals(3, stats.getCheckedFrames());
+        assertEquals(1, stats.getCandidateFrames());
+        assertEquals(2, stats.getSkippedFrames());
+        assertEquals(2 / 3f, stats.getSkipRate(), 0.001);
+
+        filter.resetStats();
+        assertEquals(0, filter.getStats().getCheckedFrames());
+        assertEquals(0, filter.getStats().getSkipRate(), 0);
+    }
+
+    @Test
+    public void testInvalidSettings() {
+        BarcodeCandidateFilter.Builder[] builders = {
+                new BarcodeCandidateFilter.Builder().setSampleStep(0),
+                new BarcodeCandidateFilter.Builder().setSampleStep(8).setCellSize(4),
+                new BarcodeCandidateFilter.Builder().setEdgeThreshold(0),
+                new BarcodeCandidateFilter.Builder().setEdgeThreshold(256),
+                new BarcodeCandidateFilter.Builder().setMinEdgeDensity(1.5f),
+                new BarcodeCandidateFilter.Builder().setMinCandidateCells(0),
+        };
+        for (BarcodeCandidateFilter.Builder builder : builders) {
+            try {
+                builder.build();
+                fail();
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        }
+    }
+}
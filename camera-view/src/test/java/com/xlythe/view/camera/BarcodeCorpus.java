@@ -0,0 +1,368 @@
+package com.xlythe.view.camera;
+
+import androidx.annotation.Nullable;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.EncodeHintType;
+import com.google.zxing.MultiFormatWriter;
+import com.google.zxing.WriterException;
+import com.google.zxing.common.BitMatrix;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Camera frames for benchmarking {@link BarcodeDecoder}s off device.
+ *
+ * {@link #generate(int, long)} draws barcodes the way a camera sees them: at different sizes and
+ * positions, with washed out contrast, sensor noise and some blur, in frames that are rotated and
+ * padded like the luma plane of a real camera. Some frames have no barcode at all, to catch false
+ * positives. The same seed always gives the same frames.
+ *
+ * {@link #load(File)} reads real frames instead, from a folder of images listed in an
+ * {@code expected.txt} file. Each line holds a file name, a format and the expected value,
+ * separated by tabs, eg. {@code shelf.png}, {@code EAN_13} and {@code 4006381333931}. Use
+ * {@code NONE} for the format of images with no barcode.
+ */
+final class BarcodeCorpus {
+    /** The size of generated frames, as a typical analysis stream delivers them. */
+    static final int FRAME_WIDTH = 640;
+    static final int FRAME_HEIGHT = 480;
+
+    /** One in this many generated frames has no barcode in it. */
+    private static final int EMPTY_FRAME_INTERVAL = 10;
+
+    private static final int[] FORMATS = {
+            Barcode.Format.QR_CODE,
+            Barcode.Format.DATA_MATRIX,
+            Barcode.Format.AZTEC,
+            Barcode.Format.PDF417,
+            Barcode.Format.CODE_128,
+            Barcode.Format.CODE_39,
+            Barcode.Format.EAN_13,
+            Barcode.Format.EAN_8,
+            Barcode.Format.ITF,
+    };
+
+    private static final String ALPHANUMERIC = "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+
+    /** A camera frame, and what should be found in it. */
+    static final class Frame {
+        final String mName;
+        final byte[] mLuma;
+        final int mWidth;
+        final int mHeight;
+        final int mRowStride;
+        final int mRotation;
+        @Barcode.Format final int mExpectedFormat;
+        @Nullable final String mExpectedValue;
+
+        Frame(String name, byte[] luma, int width, int height, int rowStride, int rotation, @Barcode.Format int expectedFormat, @Nullable String expectedValue) {
+            mName = name;
+            mLuma = luma;
+            mWidth = width;
+            mHeight = height;
+            mRowStride = rowStride;
+            mRotation = rotation;
+            mExpectedFormat = expectedFormat;
+            mExpectedValue = expectedValue;
+        }
+
+        /** Returns a fresh view of the frame's luma plane, positioned at its start. */
+        ByteBuffer getLuma() {
+            return ByteBuffer.wrap(mLuma).asReadOnlyBuffer();
+        }
+
+        @Override
+        public String toString() {
+            return mName;
+        }
+    }
+
+    private BarcodeCorpus() {}
+
+    /** Generates frames with a mix of barcode formats and conditions. */
+    static List<Frame> generate(int count, long seed) {
+        Random random = new Random(seed);
+        List<Frame> frames = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int rotation = 90 * random.nextInt(4);
+            boolean sideways = rotation == 90 || rotation == 270;
+            int uprightWidth = sideways ? FRAME_HEIGHT : FRAME_WIDTH;
+            int uprightHeight = sideways ? FRAME_WIDTH : FRAME_HEIGHT;
+
+            // A dim, uneven background, as the camera would see a table or a shelf.
+            int[] upright = new int[uprightWidth * uprightHeight];
+            int background = 120 + random.nextInt(80);
+            for (int y = 0; y < uprightHeight; y++) {
+                for (int x = 0; x < uprightWidth; x++) {
+                    upright[y * uprightWidth + x] = background + (x + y) * 30 / (uprightWidth + uprightHeight);
+                }
+            }
+
+            int format = Barcode.Format.UNKNOWN;
+            String value = null;
+            String name = "frame " + i + " empty";
+            if (i % EMPTY_FRAME_INTERVAL != EMPTY_FRAME_INTERVAL - 1) {
+                format = FORMATS[random.nextInt(FORMATS.length)];
+                value = randomValue(format, random);
+                int dark = 20 + random.nextInt(70);
+                int light = 170 + random.nextInt(70);
+                int moduleSize = draw(upright, uprightWidth, uprightHeight, encode(format, value), dark, light, random);
+                name = "frame " + i + " " + ZxingBarcodeDecoder.toZxingFormat(format) + " module=" + moduleSize + "px contrast=" + (light - dark);
+            }
+
+            if (random.nextInt(3) == 0) {
+                blur(upright, uprightWidth, uprightHeight);
+                name += " blurred";
+            }
+            int noise = random.nextInt(16);
+            int rowStride = random.nextBoolean() ? FRAME_WIDTH : FRAME_WIDTH + 64;
+            frames.add(new Frame(name + " noise=" + noise + " rotation=" + rotation,
+                    toFrame(upright, uprightWidth, uprightHeight, rotation, rowStride, noise, random),
+                    FRAME_WIDTH, FRAME_HEIGHT, rowStride, rotation, format, value));
+        }
+        return frames;
+    }
+
+    /**
+     * Returns a frame with a single, clean barcode in it, drawn at a known place.
+     *
+     * @param offsetX How far right of the middle of the upright image to draw the barcode's center.
+     * @param offsetY How far below the middle of the upright image to draw the barcode's center.
+     */
+    static Frame single(@Barcode.Format int format, String value, int moduleSize, int offsetX, int offsetY, int rotation, int rowStride) {
+        boolean sideways = rotation == 90 || rotation == 270;
+        int uprightWidth = sideways ? FRAME_HEIGHT : FRAME_WIDTH;
+        int uprightHeight = sideways ? FRAME_WIDTH : FRAME_HEIGHT;
+        int[] upright = new int[uprightWidth * uprightHeight];
+        Arrays.fill(upright, 200);
+        BitMatrix matrix = encode(format, value);
+        int barHeight = 60;
+        int drawnWidth = matrix.getWidth() * moduleSize;
+        int drawnHeight = matrix.getHeight() == 1 ? barHeight : matrix.getHeight() * moduleSize;
+        draw(upright, uprightWidth, uprightHeight, matrix,
+                (uprightWidth - drawnWidth) / 2 + offsetX, (uprightHeight - drawnHeight) / 2 + offsetY,
+                moduleSize, barHeight, 30, 230);
+        return new Frame(value, toFrame(upright, uprightWidth, uprightHeight, rotation, rowStride, 0, null),
+                FRAME_WIDTH, FRAME_HEIGHT, rowStride, rotation, format, value);
+    }
+
+    /** Loads real frames from a folder, as described in {@link BarcodeCorpus}. */
+    static List<Frame> load(File folder) throws IOException {
+        List<Frame> frames = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(new File(folder, "expected.txt")))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] columns = line.split("\t", 3);
+                if (columns.length < 2) {
+                    throw new IOException("Cannot parse line '" + line + "' in expected.txt");
+                }
+                BufferedImage image = ImageIO.read(new File(folder, columns[0]));
+                if (image == null) {
+                    throw new IOException("Cannot read image " + columns[0]);
+                }
+
+                int width = image.getWidth();
+                int height = image.getHeight();
+                byte[] luma = new byte[width * height];
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++) {
+                        int rgb = image.getRGB(x, y);
+                        luma[y * width + x] = (byte) ((77 * ((rgb >> 16) & 0xFF) + 150 * ((rgb >> 8) & 0xFF) + 29 * (rgb & 0xFF)) >> 8);
+                    }
+                }
+                boolean isEmpty = "NONE".equals(columns[1]);
+                int format = isEmpty ? Barcode.Format.UNKNOWN : ZxingBarcodeDecoder.fromZxingFormat(BarcodeFormat.valueOf(columns[1]));
+                frames.add(new Frame(columns[0], luma, width, height, width, 0, format, isEmpty ? null : columns[2]));
+            }
+        }
+        return frames;
+    }
+
+    /** Returns a value that the format can hold, short enough to fit in a frame. */
+    private static String randomValue(@Barcode.Format int format, Random random) {
+        switch (format) {
+            case Barcode.Format.EAN_13:
+                // A leading zero would read back as UPC-A.
+                return withCheckDigit((1 + random.nextInt(9)) + randomDigits(11, random));
+            case Barcode.Format.EAN_8:
+                return withCheckDigit(randomDigits(7, random));
+            case Barcode.Format.ITF:
+                return randomDigits(2 * (5 + random.nextInt(3)), random);
+            case Barcode.Format.CODE_39:
+                return randomString(ALPHANUMERIC, 4 + random.nextInt(6), random);
+            case Barcode.Format.CODE_128:
+                return randomString(ALPHANUMERIC + "abcdefghijklmnopqrstuvwxyz", 4 + random.nextInt(10), random);
+            default:
+                return randomString(ALPHANUMERIC + "abcdefghijklmnopqrstuvwxyz-./:", 8 + random.nextInt(40), random);
+        }
+    }
+
+    private static String randomDigits(int length, Random random) {
+        return randomString("0123456789", length, random);
+    }
+
+    private static String randomString(String alphabet, int length, Random random) {
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return builder.toString();
+    }
+
+    /** Appends the UPC/EAN check digit. */
+    private static String withCheckDigit(String digits) {
+        int sum = 0;
+        for (int i = 0; i < digits.length(); i++) {
+            int digit = digits.charAt(digits.length() - 1 - i) - '0';
+            sum += i % 2 == 0 ? digit * 3 : digit;
+        }
+        return digits + (10 - sum % 10) % 10;
+    }
+
+    /** Encodes a value with a one pixel module and a quiet zone around it. */
+    private static BitMatrix encode(@Barcode.Format int format, String value) {
+        Map<EncodeHintType, Object> hints = new EnumMap<>(EncodeHintType.class);
+        hints.put(EncodeHintType.MARGIN, 0);
+        try {
+            return withQuietZone(new MultiFormatWriter().encode(value, ZxingBarcodeDecoder.toZxingFormat(format), 0, 0, hints));
+        } catch (WriterException e) {
+            throw new IllegalArgumentException("Cannot encode '" + value + "' as " + format, e);
+        }
+    }
+
+    /**
+     * Returns the barcode with the quiet zone its spec asks for around it: 10 modules to either side
+     * of a 1D barcode, and 4 modules all around a 2D one. ZXing's writers don't agree on what
+     * {@link EncodeHintType#MARGIN} means, and some ignore it, so it's added here instead.
+     */
+    private static BitMatrix withQuietZone(BitMatrix matrix) {
+        int[] rect = matrix.getEnclosingRectangle();
+        if (rect == null) {
+            return matrix;
+        }
+        boolean is1D = matrix.getHeight() == 1;
+        int marginX = is1D ? 10 : 4;
+        int marginY = is1D ? 0 : 4;
+        BitMatrix padded = new BitMatrix(rect[2] + 2 * marginX, rect[3] + 2 * marginY);
+        for (int y = 0; y < rect[3]; y++) {
+            for (int x = 0; x < rect[2]; x++) {
+                if (matrix.get(rect[0] + x, rect[1] + y)) {
+                    padded.set(marginX + x, marginY + y);
+                }
+            }
+        }
+        return padded;
+    }
+
+    /**
+     * Draws a barcode at a random size, somewhere around the middle of the image, where the user
+     * would aim it. 1D barcodes are drawn as tall bars.
+     *
+     * @return The size of each module, in pixels.
+     */
+    private static int draw(int[] image, int width, int height, BitMatrix matrix, int dark, int light, Random random) {
+        // 1D writers give a single row of modules.
+        boolean is1D = matrix.getHeight() == 1;
+        int largestModule = Math.min(width * 9 / 10 / matrix.getWidth(), height * 9 / 10 / (is1D ? 1 : matrix.getHeight()));
+        int moduleSize = Math.max(1, Math.min(largestModule, 3 + random.nextInt(4)));
+        int drawnWidth = matrix.getWidth() * moduleSize;
+        int drawnHeight = is1D ? Math.min(height * 9 / 10, 40 + random.nextInt(80)) : matrix.getHeight() * moduleSize;
+        int left = (width - drawnWidth) / 2 + randomOffset(width / 8, random);
+        int top = (height - drawnHeight) / 2 + randomOffset(height / 8, random);
+        draw(image, width, height, matrix, left, top, moduleSize, drawnHeight, dark, light);
+        return moduleSize;
+    }
+
+    /** Returns an offset from -range to range, more often small than large. */
+    private static int randomOffset(int range, Random random) {
+        return (int) Math.max(-range, Math.min(range, random.nextGaussian() * range / 2));
+    }
+
+    /**
+     * Draws a barcode with its top left corner, including its quiet zone, at the given point. Parts
+     * that fall outside of the image are cut off.
+     */
+    private static void draw(int[] image, int width, int height, BitMatrix matrix, int left, int top, int moduleSize, int barHeight, int dark, int light) {
+        boolean is1D = matrix.getHeight() == 1;
+        int drawnWidth = matrix.getWidth() * moduleSize;
+        int drawnHeight = is1D ? barHeight : matrix.getHeight() * moduleSize;
+        for (int y = Math.max(0, -top); y < drawnHeight && top + y < height; y++) {
+            int row = is1D ? 0 : y / moduleSize;
+            for (int x = Math.max(0, -left); x < drawnWidth && left + x < width; x++) {
+                image[(top + y) * width + left + x] = matrix.get(x / moduleSize, row) ? dark : light;
+            }
+        }
+    }
+
+    /** Softens the image with a 3x3 box blur, like a camera that's slightly out of focus. */
+    private static void blur(int[] image, int width, int height) {
+        int[] copy = image.clone();
+        for (int y = 1; y < height - 1; y++) {
+            for (int x = 1; x < width - 1; x++) {
+                int sum = 0;
+                for (int dy = -1; dy <= 1; dy++) {
+                    for (int dx = -1; dx <= 1; dx++) {
+                        sum += copy[(y + dy) * width + x + dx];
+                    }
+                }
+                image[y * width + x] = sum / 9;
+            }
+        }
+    }
+
+    /**
+     * Turns an upright image into a frame as the camera delivers it, so that it must be rotated
+     * clockwise by the given degrees to be upright again. Adds sensor noise on the way.
+     */
+    private static byte[] toFrame(int[] upright, int uprightWidth, int uprightHeight, int rotation, int rowStride, int noise, @Nullable Random random) {
+        boolean sideways = rotation == 90 || rotation == 270;
+        int width = sideways ? uprightHeight : uprightWidth;
+        int height = sideways ? uprightWidth : uprightHeight;
+        // Like a real luma plane, the last row has no padding after it.
+        byte[] frame = new byte[rowStride * (height - 1) + width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int u;
+                int v;
+                switch (rotation) {
+                    case 90:
+                        u = height - 1 - y;
+                        v = x;
+                        break;
+                    case 180:
+                        u = width - 1 - x;
+                        v = height - 1 - y;
+                        break;
+                    case 270:
+                        u = y;
+                        v = width - 1 - x;
+                        break;
+                    default:
+                        u = x;
+                        v = y;
+                        break;
+                }
+                int value = upright[v * uprightWidth + u] + (noise == 0 ? 0 : (int) (random.nextGaussian() * noise));
+                frame[y * rowStride + x] = (byte) Math.max(0, Math.min(255, value));
+            }
+        }
+        return frame;
+    }
+}
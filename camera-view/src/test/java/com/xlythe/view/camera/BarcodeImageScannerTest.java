@@ -0,0 +1,332 @@
+package com.xlythe.view.camera;
+
+import android.content.Context;
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = 21)
+public class BarcodeImageScannerTest {
+    private final ExecutorService mWorkers = Executors.newCachedThreadPool();
+    private final ExecutorService mMainThread = Executors.newSingleThreadExecutor();
+    private final TestImageLoader mImageLoader = new TestImageLoader();
+    private final AtomicInteger mDecodersClosed = new AtomicInteger();
+
+    @After
+    public void tearDown() {
+        mWorkers.shutdownNow();
+        mMainThread.shutdownNow();
+    }
+
+    private BarcodeImageScanner.Builder newBuilder() {
+        return new BarcodeImageScanner.Builder(getContext())
+                .setDecoderFactory(new BarcodeImageScanner.DecoderFactory() {
+                    @Override
+                    public BarcodeDecoder create() {
+                        return new TestDecoder();
+                    }
+                })
+                .setImageLoader(mImageLoader)
+                .setExecutor(mWorkers)
+                .setCallbackExecutor(mMainThread);
+    }
+
+    private static Context getContext() {
+        return RuntimeEnvironment.application;
+    }
+
+    private static List<Uri> uris(int count) {
+        List<Uri> uris = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            uris.add(Uri.parse("content://photos/" + i));
+        }
+        return uris;
+    }
+
+    @Test
+    public void testResultsArriveInOrder() throws InterruptedException {
+        // The first photo is held back until the second has been scanned.
+        mImageLoader.mHold = new CountDownLatch(1);
+        mImageLoader.mHeldIndex = 0;
+        TestListener listener = new TestListener() {
+            @Override
+            public void onProgress(int scanned, int total) {
+                super.onProgress(scanned, total);
+                mImageLoader.mHold.countDown();
+            }
+        };
+
+        newBuilder().setMaxParallelism(2).build().scan(uris(5), listener);
+        listener.await();
+        awaitWorkers();
+
+        assertEquals(Collections.singletonList(false), listener.mFinished);
+        assertEquals(5, listener.mResults.size());
+        for (int i = 0; i < 5; i++) {
+            BarcodeImageScanner.Result result = listener.mResults.get(i);
+            assertEquals(i, result.getIndex());
+            assertTrue(result.isSuccessful());
+            assertEquals(1, result.getBarcodes().size());
+        }
+        assertEquals(5, listener.mLastProgress);
+        assertEquals(2, mDecodersClosed.get());
+    }
+
+    @Test
+    public void testParallelismIsBounded() throws InterruptedException {
+        mImageLoader.mDelayMillis = 10;
+        TestListener listener = new TestListener();
+        newBuilder().setMaxParallelism(3).build().scan(uris(20), listener);
+        listener.await();
+        awaitWorkers();
+
+        assertEquals(20, listener.mResults.size());
+        assertTrue(mImageLoader.mMaxConcurrentLoads.get() <= 3);
+        assertEquals(3, mDecodersClosed.get());
+    }
+
+    @Test
+    public void testCancel() throws InterruptedException {
+        mImageLoader.mDelayMillis = 10;
+        final BarcodeImageScanner.Batch[] batch = new BarcodeImageScanner.Batch[1];
+        final CountDownLatch started = new CountDownLatch(1);
+        TestListener listener = new TestListener() {
+            @Override
+            public void onImageScanned(BarcodeImageScanner.Result result) {
+                super.onImageScanned(result);
+                awaitQuietly(started);
+                batch[0].cancel();
+            }
+        };
+
+        batch[0] = newBuilder().setMaxParallelism(1).build().scan(uris(50), listener);
+        started.countDown();
+        listener.await();
+
+        assertTrue(batch[0].isCancelled());
+        assertEquals(Collections.singletonList(true), listener.mFinished);
+        assertEquals(1, listener.mResults.size());
+        awaitWorkers();
+        assertTrue(mImageLoader.mLoads.get() < 50);
+        assertEquals(1, listener.mFinished.size());
+    }
+
+    @Test
+    public void testFailedImage() throws InterruptedException {
+        mImageLoader.mFailingIndex = 1;
+        TestListener listener = new TestListener();
+        newBuilder().setMaxParallelism(2).build().scan(uris(3), listener);
+        listener.await();
+
+        assertEquals(3, listener.mResults.size());
+        assertTrue(listener.mResults.get(0).isSuccessful());
+        assertFalse(listener.mResults.get(1).isSuccessful());
+        assertNotNull(listener.mResults.get(1).getError());
+        assertTrue(listener.mResults.get(1).getBarcodes().isEmpty());
+        assertNull(listener.mResults.get(2).getError());
+        assertEquals(Collections.singletonList(false), listener.mFinished);
+    }
+
+    @Test
+    public void testCrashedImage() throws InterruptedException {
+        mImageLoader.mCrashingIndex = 1;
+        TestListener listener = new TestListener();
+        newBuilder().setMaxParallelism(1).build().scan(uris(3), listener);
+        listener.await();
+
+        // The worker carries on with the rest of the batch.
+        assertEquals(3, listener.mResults.size());
+        assertTrue(listener.mResults.get(0).isSuccessful());
+        assertFalse(listener.mResults.get(1).isSuccessful());
+        assertTrue(listener.mResults.get(1).getError().getCause() instanceof SecurityException);
+        assertTrue(listener.mResults.get(2).isSuccessful());
+        assertEquals(Collections.singletonList(false), listener.mFinished);
+    }
+
+    @Test
+    public void testDecoderCannotBeCreated() throws InterruptedException {
+        TestListener listener = new TestListener();
+        newBuilder()
+                .setDecoderFactory(new BarcodeImageScanner.DecoderFactory() {
+                    @Override
+                    public BarcodeDecoder create() {
+                        throw new IllegalStateException("No decoder");
+                    }
+                })
+                .build()
+                .scan(uris(3), listener);
+        listener.await();
+
+        assertEquals(3, listener.mResults.size());
+        for (BarcodeImageScanner.Result result : listener.mResults) {
+            assertFalse(result.isSuccessful());
+        }
+        assertEquals(Collections.singletonList(false), listener.mFinished);
+    }
+
+    @Test
+    public void testEmptyBatch() throws InterruptedException {
+        TestListener listener = new TestListener();
+        BarcodeImageScanner.Batch batch = newBuilder().build().scan(Collections.<Uri>emptyList(), listener);
+        listener.await();
+
+        assertEquals(0, batch.getTotal());
+        assertTrue(listener.mResults.isEmpty());
+        assertEquals(Collections.singletonList(false), listener.mFinished);
+        assertEquals(0, mDecodersClosed.get());
+    }
+
+    @Test
+    public void testSampleSize() {
+        assertEquals(1, BarcodeImageScanner.getSampleSize(1920, 1080, 2048));
+        assertEquals(2, BarcodeImageScanner.getSampleSize(4032, 3024, 2048));
+        assertEquals(4, BarcodeImageScanner.getSampleSize(3024, 8000, 2048));
+        assertEquals(1, BarcodeImageScanner.getSampleSize(8000, 6000, 0));
+    }
+
+    @Test
+    public void testLuma() {
+        int[] pixels = {0xFF000000, 0xFFFFFFFF, 0xFFFF0000, 0xFF00FF00, 0xFF0000FF};
+        byte[] luma = new byte[pixels.length + 1];
+        BarcodeImageScanner.Luma.toLuma(pixels, pixels.length, luma, 1);
+        assertArrayEquals(new byte[] {0, 0, (byte) 255, 77, (byte) 149, 29}, luma);
+    }
+
+    @Test
+    public void testInvalidSettings() {
+        BarcodeImageScanner.Builder[] builders = {
+                newBuilder().setMaxParallelism(0),
+                newBuilder().setMaxImageSize(-1),
+        };
+        for (BarcodeImageScanner.Builder builder : builders) {
+            try {
+                builder.build();
+                fail();
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        }
+    }
+
+    /** Waits for every worker to give up its decoder. */
+    private void awaitWorkers() throws InterruptedException {
+        mWorkers.shutdown();
+        assertTrue(mWorkers.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class TestDecoder implements BarcodeDecoder, Closeable {
+        @Override
+        public List<Barcode> decode(ByteBuffer luma, int width, int height, int rowStride, int rotation) {
+            return Collections.singletonList(new Barcode(Barcode.Format.QR_CODE, String.valueOf(luma.get(0)), null));
+        }
+
+        @Override
+        public void close() {
+            mDecodersClosed.incrementAndGet();
+        }
+    }
+
+    private static class TestImageLoader implements BarcodeImageScanner.ImageLoader {
+        private final AtomicInteger mLoads = new AtomicInteger();
+        private final AtomicInteger mConcurrentLoads = new AtomicInteger();
+        private final AtomicInteger mMaxConcurrentLoads = new AtomicInteger();
+        private volatile CountDownLatch mHold;
+        private volatile int mHeldIndex = -1;
+        private volatile int mFailingIndex = -1;
+        private volatile int mCrashingIndex = -1;
+        private volatile long mDelayMillis;
+
+        @Override
+        public BarcodeImageScanner.Luma load(Uri uri, int maxSize, BarcodeImageScanner.Luma reuse) throws IOException {
+            mLoads.incrementAndGet();
+            int concurrent = mConcurrentLoads.incrementAndGet();
+            mMaxConcurrentLoads.accumulateAndGet(concurrent, Math::max);
+            try {
+                String path = uri.toString();
+                int index = Integer.parseInt(path.substring(path.lastIndexOf('/') + 1));
+                if (index == mHeldIndex) {
+                    awaitQuietly(mHold);
+                }
+                if (mDelayMillis > 0) {
+                    Thread.sleep(mDelayMillis);
+                }
+                if (index == mFailingIndex) {
+                    throw new FileNotFoundException("Cannot open " + uri);
+                }
+                if (index == mCrashingIndex) {
+                    throw new SecurityException("No longer allowed to read " + uri);
+                }
+                BarcodeImageScanner.Luma luma = reuse == null ? new BarcodeImageScanner.Luma(4, 4, 0) : reuse.reset(4, 4, 0);
+                luma.mData[0] = (byte) index;
+                return luma;
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } finally {
+                mConcurrentLoads.decrementAndGet();
+            }
+        }
+    }
+
+    private static class TestListener implements BarcodeImageScanner.Listener {
+        final List<BarcodeImageScanner.Result> mResults = Collections.synchronizedList(new ArrayList<BarcodeImageScanner.Result>());
+        final List<Boolean> mFinished = Collections.synchronizedList(new ArrayList<Boolean>());
+        final CountDownLatch mDone = new CountDownLatch(1);
+        volatile int mLastProgress;
+
+        @Override
+        public void onImageScanned(BarcodeImageScanner.Result result) {
+            mResults.add(result);
+        }
+
+        @Override
+        public void onProgress(int scanned, int total) {
+            mLastProgress = scanned;
+        }
+
+        @Override
+        public void onFinished(boolean cancelled) {
+            mFinished.add(cancelled);
+            mDone.countDown();
+        }
+
+        /** Waits for the batch to finish. */
+        void await() throws InterruptedException {
+            assertTrue(mDone.await(5, TimeUnit.SECONDS));
+        }
+    }
+}
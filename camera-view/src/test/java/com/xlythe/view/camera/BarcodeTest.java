@@ -16,6 +16,10 @@ import java.util.Collections;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @RunWith(RobolectricTestRunner.class)
@@ -245,4 +249,70 @@ public class BarcodeTest {
         assertEquals("secret123", wifi.getPassword());
         assertEquals(Barcode.WiFi.EncryptionType.WPA, wifi.getEncryptionType());
     }
+
+    @Test
+    public void testPayloadsAreBuiltOnce() {
+        com.google.mlkit.vision.barcode.common.Barcode.ContactInfo mockContact =
+                Mockito.mock(com.google.mlkit.vision.barcode.common.Barcode.ContactInfo.class);
+        com.google.mlkit.vision.barcode.common.Barcode.Email mockEmail =
+                Mockito.mock(com.google.mlkit.vision.barcode.common.Barcode.Email.class);
+        when(mockEmail.getAddress()).thenReturn("john@example.com");
+        when(mockContact.getEmails()).thenReturn(Collections.singletonList(mockEmail));
+        when(mockMlKitBarcode.getContactInfo()).thenReturn(mockContact);
+
+        Barcode.ContactInfo contact = barcode.getContactInfo();
+        assertSame(contact, barcode.getContactInfo());
+        assertSame(contact.getEmails(), contact.getEmails());
+        assertEquals("john@example.com", contact.getEmails().get(0).getAddress());
+        verify(mockMlKitBarcode, times(1)).getContactInfo();
+        verify(mockContact, times(1)).getEmails();
+    }
+
+    @Test
+    public void testPayloadListsCannotBeModified() {
+        com.google.mlkit.vision.barcode.common.Barcode.ContactInfo mockContact =
+                Mockito.mock(com.google.mlkit.vision.barcode.common.Barcode.ContactInfo.class);
+        when(mockContact.getPhones()).thenReturn(Collections.emptyList());
+        when(mockMlKitBarcode.getContactInfo()).thenReturn(mockContact);
+
+        try {
+            barcode.getContactInfo().getPhones().add(null);
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testMissingNestedPayloads() {
+        com.google.mlkit.vision.barcode.common.Barcode.ContactInfo mockContact =
+                Mockito.mock(com.google.mlkit.vision.barcode.common.Barcode.ContactInfo.class);
+        com.google.mlkit.vision.barcode.common.Barcode.CalendarEvent mockEvent =
+                Mockito.mock(com.google.mlkit.vision.barcode.common.Barcode.CalendarEvent.class);
+        when(mockMlKitBarcode.getContactInfo()).thenReturn(mockContact);
+        when(mockMlKitBarcode.getCalendarEvent()).thenReturn(mockEvent);
+
+        assertNull(barcode.getContactInfo().getName());
+        assertNull(barcode.getCalendarEvent().getStart());
+        assertNull(barcode.getCalendarEvent().getEnd());
+    }
+
+    @Test
+    public void testUpdateReplacesPayloads() {
+        com.google.mlkit.vision.barcode.common.Barcode.Sms mockSms =
+                Mockito.mock(com.google.mlkit.vision.barcode.common.Barcode.Sms.class);
+        when(mockSms.getMessage()).thenReturn("Hello");
+        when(mockMlKitBarcode.getSms()).thenReturn(mockSms);
+        assertEquals("Hello", barcode.getSms().getMessage());
+
+        com.google.mlkit.vision.barcode.common.Barcode newMlKitBarcode =
+                Mockito.mock(com.google.mlkit.vision.barcode.common.Barcode.class);
+        com.google.mlkit.vision.barcode.common.Barcode.Sms newSms =
+                Mockito.mock(com.google.mlkit.vision.barcode.common.Barcode.Sms.class);
+        when(newSms.getMessage()).thenReturn("Goodbye");
+        when(newMlKitBarcode.getSms()).thenReturn(newSms);
+        barcode.update(new Barcode(newMlKitBarcode));
+
+        assertEquals("Goodbye", barcode.getSms().getMessage());
+    }
 }
@@ -0,0 +1,156 @@
+package com.xlythe.view.camera;
+
+import android.graphics.Rect;
+
+import androidx.annotation.Nullable;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = 21)
+public class BarcodeTrackerTest {
+    private static class RecordingListener implements BarcodeTracker.Listener {
+        final List<String> mEvents = new ArrayList<>();
+        final List<Barcode> mBarcodes = new ArrayList<>();
+
+        @Override
+        public void onBarcodeAppeared(Barcode barcode) {
+            mEvents.add("appeared " + barcode.getRawValue());
+            mBarcodes.add(barcode);
+        }
+
+        @Override
+        public void onBarcodeUpdated(Barcode barcode) {
+            mEvents.add("updated " + barcode.getRawValue());
+            mBarcodes.add(barcode);
+        }
+
+        @Override
+        public void onBarcodeLost(Barcode barcode) {
+            mEvents.add("lost " + barcode.getRawValue());
+            mBarcodes.add(barcode);
+        }
+    }
+
+    private final RecordingListener mListener = new RecordingListener();
+    private final BarcodeTracker mTracker = new BarcodeTracker(mListener);
+
+    private static Barcode barcode(@Nullable String rawValue, int left, int top) {
+        com.google.mlkit.vision.barcode.common.Barcode mlKitBarcode =
+                Mockito.mock(com.google.mlkit.vision.barcode.common.Barcode.class);
+        when(mlKitBarcode.getFormat()).thenReturn(Barcode.Format.QR_CODE);
+        when(mlKitBarcode.getRawValue()).thenReturn(rawValue);
+        when(mlKitBarcode.getBoundingBox()).thenReturn(new Rect(left, top, left + 100, top + 100));
+        return new Barcode(mlKitBarcode);
+    }
+
+    @Test
+    public void testUnchangedScansReportNothing() {
+        mTracker.onBarcodeFound(Collections.singletonList(barcode("a", 0, 0)), 0);
+        mTracker.onBarcodeFound(Collections.singletonList(barcode("a", 0, 0)), 100);
+        mTracker.onBarcodeFound(Collections.singletonList(barcode("a", 2, 1)), 200);
+
+        assertEquals(Collections.singletonList("appeared a"), mListener.mEvents);
+    }
+
+    @Test
+    public void testStableIdAndObject() {
+        mTracker.onBarcodeFound(Arrays.asList(barcode("a", 0, 0), barcode("b", 500, 0)), 0);
+        Barcode a = mTracker.getBarcodes().get(0);
+        Barcode b = mTracker.getBarcodes().get(1);
+        assertNotEquals(a.getTrackingId(), b.getTrackingId());
+
+        // Moving far enough to be reported still reuses the same object and id.
+        Barcode moved = barcode("a", 50, 0);
+        mTracker.onBarcodeFound(Arrays.asList(barcode("b", 500, 0), moved), 100);
+        assertEquals(Arrays.asList("appeared a", "appeared b", "updated a"), mListener.mEvents);
+        assertSame(a, mListener.mBarcodes.get(2));
+        assertEquals(50, a.getBoundingBox().left);
+        assertEquals(Barcode.NO_TRACKING_ID, moved.getTrackingId());
+    }
+
+    @Test
+    public void testMatchesByOverlapWithoutRawValue() {
+        mTracker.onBarcodeFound(Collections.singletonList(barcode(null, 0, 0)), 0);
+        mTracker.onBarcodeFound(Collections.singletonList(barcode(null, 10, 0)), 100);
+        assertEquals(1, mTracker.getBarcodes().size());
+
+        // Too far away to be the same barcode.
+        mTracker.onBarcodeFound(Arrays.asList(barcode(null, 10, 0), barcode(null, 300, 0)), 200);
+        assertEquals(2, mTracker.getBarcodes().size());
+    }
+
+    @Test
+    public void testDifferentValuesNeverMatch() {
+        mTracker.onBarcodeFound(Collections.singletonList(barcode("a", 0, 0)), 0);
+        mTracker.onBarcodeFound(Collections.singletonList(barcode("b", 0, 0)), 100);
+
+        assertEquals(Arrays.asList("appeared a", "appeared b"), mListener.mEvents);
+    }
+
+    @Test
+    public void testLostDebounce() {
+        mTracker.setLostDebounceMillis(300);
+        mTracker.onBarcodeFound(Collections.singletonList(barcode("a", 0, 0)), 0);
+
+        // A missed scan or two doesn't lose the barcode.
+        mTracker.onBarcodeFound(Collections.<Barcode>emptyList(), 100);
+        mTracker.onBarcodeFound(Collections.<Barcode>emptyList(), 200);
+        mTracker.onBarcodeFound(Collections.singletonList(barcode("a", 0, 0)), 250);
+        mTracker.onBarcodeFound(Collections.<Barcode>emptyList(), 500);
+        assertEquals(Collections.singletonList("appeared a"), mListener.mEvents);
+
+        mTracker.onBarcodeFound(Collections.<Barcode>emptyList(), 550);
+        assertEquals(Arrays.asList("appeared a", "lost a"), mListener.mEvents);
+        assertTrue(mTracker.getBarcodes().isEmpty());
+    }
+
+    @Test
+    public void testAppearDebounce() {
+        mTracker.setAppearDebounceMillis(200).setLostDebounceMillis(0);
+
+        // Seen once, then gone. Never appears.
+        mTracker.onBarcodeFound(Collections.singletonList(barcode("a", 0, 0)), 0);
+        mTracker.onBarcodeFound(Collections.<Barcode>emptyList(), 100);
+        assertTrue(mListener.mEvents.isEmpty());
+
+        mTracker.onBarcodeFound(Collections.singletonList(barcode("b", 0, 0)), 200);
+        mTracker.onBarcodeFound(Collections.singletonList(barcode("b", 0, 0)), 300);
+        assertTrue(mListener.mEvents.isEmpty());
+        mTracker.onBarcodeFound(Collections.singletonList(barcode("b", 0, 0)), 400);
+        assertEquals(Collections.singletonList("appeared b"), mListener.mEvents);
+    }
+
+    @Test
+    public void testReset() {
+        mTracker.onBarcodeFound(Collections.singletonList(barcode("a", 0, 0)), 0);
+        mTracker.reset();
+
+        assertEquals(Arrays.asList("appeared a", "lost a"), mListener.mEvents);
+        assertTrue(mTracker.getBarcodes().isEmpty());
+    }
+
+    @Test
+    public void testOverlap() {
+        Rect a = new Rect(0, 0, 100, 100);
+        assertEquals(1f, BarcodeTracker.getOverlap(a, new Rect(0, 0, 100, 100)), 0.001f);
+        assertEquals(1f / 3, BarcodeTracker.getOverlap(a, new Rect(50, 0, 150, 100)), 0.001f);
+        assertEquals(0f, BarcodeTracker.getOverlap(a, new Rect(100, 0, 200, 100)), 0.001f);
+        assertEquals(0f, BarcodeTracker.getOverlap(a, null), 0.001f);
+    }
+}
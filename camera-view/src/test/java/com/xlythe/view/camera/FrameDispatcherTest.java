@@ -0,0 +1,291 @@
+package com.xlythe.view.camera;
+
+import android.media.Image;
+
+import com.xlythe.view.camera.stream.VideoRecorder;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = 21)
+public class FrameDispatcherTest {
+    /** Holds on to analyzer runs until the test lets them go, as if the analyzer were busy. */
+    private static class QueueExecutor implements Executor {
+        final ArrayDeque<Runnable> mQueue = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable runnable) {
+            mQueue.add(runnable);
+        }
+
+        void runAll() {
+            while (!mQueue.isEmpty()) {
+                mQueue.poll().run();
+            }
+        }
+    }
+
+    /** Remembers the width of every frame it's handed, which tells the test images apart. */
+    private static class RecordingAnalyzer implements FrameAnalyzer {
+        final List<Integer> mWidths = new ArrayList<>();
+        final List<Frame> mFrames = new ArrayList<>();
+
+        @Override
+        public void analyze(Frame frame) {
+            mWidths.add(frame.getWidth());
+            mFrames.add(frame);
+        }
+    }
+
+    private final VideoRecorder.Canvas mCanvas = Mockito.mock(VideoRecorder.Canvas.class);
+    private final QueueExecutor mExecutor = new QueueExecutor();
+    private final FrameDispatcher mDispatcher = new FrameDispatcher(mCanvas, mExecutor);
+
+    @After
+    public void tearDown() {
+        mDispatcher.close();
+    }
+
+    private static Image image(int width) {
+        Image.Plane plane = Mockito.mock(Image.Plane.class);
+        when(plane.getBuffer()).thenReturn(ByteBuffer.allocate(width * 4));
+        when(plane.getRowStride()).thenReturn(width);
+        when(plane.getPixelStride()).thenReturn(1);
+
+        Image image = Mockito.mock(Image.class);
+        when(image.getWidth()).thenReturn(width);
+        when(image.getHeight()).thenReturn(4);
+        when(image.getPlanes()).thenReturn(new Image.Plane[] {plane, plane, plane});
+        return image;
+    }
+
+    private static void assertClosed(Image image, boolean closed) {
+        verify(image, closed ? times(1) : never()).close();
+    }
+
+    @Test
+    public void testEveryAnalyzerSeesTheFrame() {
+        RecordingAnalyzer first = new RecordingAnalyzer();
+        RecordingAnalyzer second = new RecordingAnalyzer();
+        mDispatcher.add(first, FrameAnalyzer.Options.DEFAULT);
+        mDispatcher.add(second, FrameAnalyzer.Options.DEFAULT);
+
+        Image image = image(10);
+        mDispatcher.dispatch(image, 0);
+        assertClosed(image, false);
+
+        mExecutor.runAll();
+        assertEquals(1, first.mWidths.size());
+        assertEquals(1, second.mWidths.size());
+        assertSame(first.mFrames.get(0), second.mFrames.get(0));
+        assertClosed(image, true);
+    }
+
+    @Test
+    public void testBusyAnalyzerGetsLatestFrame() {
+        RecordingAnalyzer analyzer = new RecordingAnalyzer();
+        mDispatcher.add(analyzer, FrameAnalyzer.Options.DEFAULT);
+
+        Image first = image(10);
+        Image second = image(20);
+        Image third = image(30);
+        mDispatcher.dispatch(first, 0);
+        mDispatcher.dispatch(second, 10);
+        mDispatcher.dispatch(third, 20);
+
+        // Frames the analyzer never got to go straight back to the camera.
+        assertClosed(first, true);
+        assertClosed(second, true);
+        assertClosed(third, false);
+
+        mExecutor.runAll();
+        assertEquals(1, analyzer.mWidths.size());
+        assertEquals(30, (int) analyzer.mWidths.get(0));
+        assertClosed(third, true);
+    }
+
+    @Test
+    public void testSlowAnalyzerDoesNotHoldUpOthers() {
+        RecordingAnalyzer slow = new RecordingAnalyzer();
+        RecordingAnalyzer fast = new RecordingAnalyzer();
+        QueueExecutor slowExecutor = new QueueExecutor();
+        FrameDispatcher dispatcher = new FrameDispatcher(mCanvas, new Executor() {
+            private int mCalls;
+
+            @Override
+            public void execute(Runnable runnable) {
+                // The slow analyzer was added first, so it's started first.
+                if (mCalls++ == 0) {
+                    slowExecutor.execute(runnable);
+                } else {
+                    runnable.run();
+                }
+            }
+        });
+        dispatcher.add(slow, FrameAnalyzer.Options.DEFAULT);
+        dispatcher.add(fast, FrameAnalyzer.Options.DEFAULT);
+
+        for (int i = 1; i <= 5; i++) {
+            dispatcher.dispatch(image(i), i * 10);
+        }
+        assertEquals(5, fast.mWidths.size());
+        assertTrue(slow.mWidths.isEmpty());
+
+        slowExecutor.runAll();
+        assertEquals(1, slow.mWidths.size());
+        assertEquals(5, (int) slow.mWidths.get(0));
+        dispatcher.close();
+    }
+
+    @Test
+    public void testRateLimit() {
+        RecordingAnalyzer limited = new RecordingAnalyzer();
+        RecordingAnalyzer unlimited = new RecordingAnalyzer();
+        mDispatcher.add(limited, new FrameAnalyzer.Options.Builder().setMaxFramesPerSecond(10).build());
+        mDispatcher.add(unlimited, FrameAnalyzer.Options.DEFAULT);
+
+        for (int millis = 0; millis < 300; millis += 50) {
+            Image image = image(millis + 1);
+            mDispatcher.dispatch(image, millis);
+            mExecutor.runAll();
+            assertClosed(image, true);
+        }
+        assertEquals(3, limited.mWidths.size());
+        assertEquals(6, unlimited.mWidths.size());
+    }
+
+    @Test
+    public void testAcquireKeepsFrame() {
+        final List<Frame> kept = new ArrayList<>();
+        mDispatcher.add(new FrameAnalyzer() {
+            @Override
+            public void analyze(Frame frame) {
+                kept.add(frame.acquire());
+            }
+        }, FrameAnalyzer.Options.DEFAULT);
+
+        Image image = image(10);
+        mDispatcher.dispatch(image, 0);
+        mExecutor.runAll();
+        assertClosed(image, false);
+        assertEquals(10, kept.get(0).getWidth());
+
+        kept.get(0).release();
+        assertClosed(image, true);
+        try {
+            kept.get(0).getWidth();
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testFramesAreReused() {
+        RecordingAnalyzer analyzer = new RecordingAnalyzer();
+        mDispatcher.add(analyzer, FrameAnalyzer.Options.DEFAULT);
+
+        mDispatcher.dispatch(image(10), 0);
+        mExecutor.runAll();
+        mDispatcher.dispatch(image(20), 10);
+        mExecutor.runAll();
+
+        assertSame(analyzer.mFrames.get(0), analyzer.mFrames.get(1));
+        assertEquals(1, mDispatcher.getPool().size());
+    }
+
+    @Test
+    public void testBuffersHaveTheirOwnPosition() {
+        final List<ByteBuffer> buffers = new ArrayList<>();
+        FrameAnalyzer analyzer = new FrameAnalyzer() {
+            @Override
+            public void analyze(Frame frame) {
+                ByteBuffer buffer = frame.getBuffer(Frame.PLANE_Y);
+                buffer.position(buffer.limit());
+                buffers.add(frame.getBuffer(Frame.PLANE_Y));
+            }
+        };
+        mDispatcher.add(analyzer, FrameAnalyzer.Options.DEFAULT);
+
+        mDispatcher.dispatch(image(10), 0);
+        mExecutor.runAll();
+        assertEquals(0, buffers.get(0).position());
+        assertTrue(buffers.get(0).isReadOnly());
+    }
+
+    @Test
+    public void testRemoveReleasesPendingFrame() {
+        RecordingAnalyzer analyzer = new RecordingAnalyzer();
+        mDispatcher.add(analyzer, FrameAnalyzer.Options.DEFAULT);
+
+        Image image = image(10);
+        mDispatcher.dispatch(image, 0);
+        assertTrue(mDispatcher.remove(analyzer));
+        assertClosed(image, true);
+
+        mExecutor.runAll();
+        assertTrue(analyzer.mWidths.isEmpty());
+        assertTrue(!mDispatcher.isActive());
+        assertTrue(!mDispatcher.remove(analyzer));
+    }
+
+    @Test
+    public void testFailingAnalyzer() {
+        RecordingAnalyzer analyzer = new RecordingAnalyzer();
+        mDispatcher.add(new FrameAnalyzer() {
+            @Override
+            public void analyze(Frame frame) {
+                throw new RuntimeException("Analyzer failed");
+            }
+        }, FrameAnalyzer.Options.DEFAULT);
+        mDispatcher.add(analyzer, FrameAnalyzer.Options.DEFAULT);
+
+        Image image = image(10);
+        mDispatcher.dispatch(image, 0);
+        mExecutor.runAll();
+        assertEquals(1, analyzer.mWidths.size());
+        assertClosed(image, true);
+    }
+
+    @Test
+    public void testAddTwice() {
+        RecordingAnalyzer analyzer = new RecordingAnalyzer();
+        mDispatcher.add(analyzer, FrameAnalyzer.Options.DEFAULT);
+        try {
+            mDispatcher.add(analyzer, FrameAnalyzer.Options.DEFAULT);
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testNegativeFrameRate() {
+        try {
+            new FrameAnalyzer.Options.Builder().setMaxFramesPerSecond(-1).build();
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+}
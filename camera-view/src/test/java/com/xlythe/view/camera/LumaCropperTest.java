@@ -0,0 +1,132 @@
+package com.xlythe.view.camera;
+
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = 21)
+public class LumaCropperTest {
+    /** Returns a luma plane where every pixel holds (x + y * 16), so that pixels can be told apart. */
+    private static ByteBuffer plane(int width, int height, int rowStride, int pixelStride) {
+        byte[] data = new byte[rowStride * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                data[y * rowStride + x * pixelStride] = (byte) (x + y * 16);
+            }
+        }
+        return ByteBuffer.wrap(data);
+    }
+
+    private static void assertRect(int left, int top, int right, int bottom, Rect rect) {
+        assertEquals(left, rect.left);
+        assertEquals(top, rect.top);
+        assertEquals(right, rect.right);
+        assertEquals(bottom, rect.bottom);
+    }
+
+    @Test
+    public void testIsNeeded() {
+        assertFalse(new LumaCropper(null, 0).isNeeded(1920, 1080));
+        assertFalse(new LumaCropper(null, 1920).isNeeded(1920, 1080));
+        assertTrue(new LumaCropper(null, 640).isNeeded(1920, 1080));
+        assertTrue(new LumaCropper(new RectF(0, 0, 1, 1), 0).isNeeded(1920, 1080));
+    }
+
+    @Test
+    public void testCrop() {
+        LumaCropper cropper = new LumaCropper(new RectF(0.25f, 0.25f, 0.75f, 0.75f), 0);
+        cropper.crop(plane(16, 8, 16, 1), 16, 1, 16, 8, 0, false);
+
+        assertRect(4, 2, 12, 6, cropper.getCrop());
+        assertEquals(8, cropper.getWidth());
+        assertEquals(4, cropper.getHeight());
+        byte[] buffer = cropper.getBuffer();
+        assertEquals(8 * 4, buffer.length);
+        assertEquals(4 + 2 * 16, buffer[0]);
+        assertEquals(11 + 5 * 16, buffer[8 * 4 - 1]);
+    }
+
+    @Test
+    public void testDownscale() {
+        LumaCropper cropper = new LumaCropper(null, 8);
+        cropper.crop(plane(16, 8, 16, 1), 16, 1, 16, 8, 0, false);
+
+        assertEquals(2, cropper.getStep());
+        assertEquals(8, cropper.getWidth());
+        assertEquals(4, cropper.getHeight());
+        byte[] buffer = cropper.getBuffer();
+        assertEquals(0, buffer[0]);
+        assertEquals(2, buffer[1]);
+        assertEquals(2 * 16, buffer[8]);
+        assertEquals(14 + 6 * 16, buffer[8 * 4 - 1]);
+    }
+
+    @Test
+    public void testStrides() {
+        // Padded rows and interleaved pixels, as some camera HALs produce.
+        LumaCropper cropper = new LumaCropper(null, 8);
+        cropper.crop(plane(16, 8, 40, 2), 40, 2, 16, 8, 0, false);
+
+        byte[] buffer = cropper.getBuffer();
+        assertEquals(0, buffer[0]);
+        assertEquals(2, buffer[1]);
+        assertEquals(2 * 16, buffer[8]);
+        assertEquals(14 + 6 * 16, buffer[8 * 4 - 1]);
+    }
+
+    @Test
+    public void testBufferIsReused() {
+        LumaCropper cropper = new LumaCropper(null, 8);
+        cropper.crop(plane(16, 8, 16, 1), 16, 1, 16, 8, 0, false);
+        byte[] buffer = cropper.getBuffer();
+        cropper.crop(plane(16, 8, 16, 1), 16, 1, 16, 8, 0, false);
+        assertSame(buffer, cropper.getBuffer());
+    }
+
+    @Test
+    public void testRotatedRegion() {
+        // The top left quarter of the upright preview.
+        RectF region = new RectF(0, 0, 0.5f, 0.5f);
+        Rect rect = new Rect();
+
+        LumaCropper.toFrameRect(region, 100, 200, 0, false, rect);
+        assertRect(0, 0, 50, 100, rect);
+
+        // A frame rotated 90 degrees clockwise to be upright has the preview's top left in its
+        // bottom left.
+        LumaCropper.toFrameRect(region, 100, 200, 90, false, rect);
+        assertRect(0, 100, 50, 200, rect);
+
+        LumaCropper.toFrameRect(region, 100, 200, 180, false, rect);
+        assertRect(50, 100, 100, 200, rect);
+
+        LumaCropper.toFrameRect(region, 100, 200, 270, false, rect);
+        assertRect(50, 0, 100, 100, rect);
+    }
+
+    @Test
+    public void testFlippedRegion() {
+        Rect rect = new Rect();
+        LumaCropper.toFrameRect(new RectF(0, 0, 0.25f, 1), 100, 100, 0, true, rect);
+        assertRect(75, 0, 100, 100, rect);
+    }
+
+    @Test
+    public void testTinyRegionFallsBackToFullFrame() {
+        Rect rect = new Rect();
+        LumaCropper.toFrameRect(new RectF(0.5f, 0.5f, 0.5f, 0.5f), 100, 100, 0, false, rect);
+        assertRect(0, 0, 100, 100, rect);
+    }
+}
@@ -0,0 +1,189 @@
+package com.xlythe.view.camera;
+
+import android.graphics.Rect;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = 21)
+public class MotionDetectorTest {
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+
+    /** Frames are 100ms apart. */
+    private static final long FRAME_NANOS = 100_000_000L;
+
+    private final TestListener mListener = new TestListener();
+    private long mTimestamp;
+
+    /** A textured scene, with a bright square at the given position, or none if it's negative. */
+    private static byte[] scene(int squareLeft, int squareTop, int brightness) {
+        Random random = new Random(3);
+        byte[] luma = new byte[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int value = 60 + x * 40 / WIDTH + random.nextInt(9) - 4 + brightness;
+                if (squareLeft >= 0 && x >= squareLeft && x < squareLeft + 80 && y >= squareTop && y < squareTop + 80) {
+                    value = 220;
+                }
+                luma[y * WIDTH + x] = (byte) Math.max(0, Math.min(255, value));
+            }
+        }
+        return luma;
+    }
+
+    private void analyze(MotionDetector detector, byte[] luma) {
+        detector.analyze(ByteBuffer.wrap(luma), WIDTH, HEIGHT, WIDTH, 90, mTimestamp);
+        mTimestamp += FRAME_NANOS;
+    }
+
+    @Test
+    public void testStillSceneHasNoMotion() {
+        MotionDetector detector = new MotionDetector(mListener);
+        byte[] still = scene(-1, 0, 0);
+        for (int i = 0; i < 20; i++) {
+            analyze(detector, still);
+        }
+        assertFalse(detector.isMoving());
+        assertTrue(mListener.mStarted.isEmpty());
+    }
+
+    @Test
+    public void testMotionStartsAndStops() {
+        MotionDetector detector = new MotionDetector(mListener);
+        analyze(detector, scene(-1, 0, 0));
+
+        // A single frame of motion is ignored, in case it's a flicker.
+        analyze(detector, scene(40, 40, 0));
+        assertTrue(mListener.mStarted.isEmpty());
+
+        analyze(detector, scene(120, 40, 0));
+        assertTrue(detector.isMoving());
+        assertEquals(1, mListener.mStarted.size());
+
+        MotionDetector.Motion motion = mListener.mStarted.get(0);
+        assertEquals(MotionDetector.DEFAULT_COLUMNS, motion.getColumns());
+        assertEquals(MotionDetector.DEFAULT_ROWS, motion.getRows());
+        assertEquals(90, motion.getRotation());
+        assertTrue(motion.isMoving(3, 1));
+        assertFalse(motion.isMoving(15, 11));
+        Rect bounds = motion.getBounds();
+        assertNotNull(bounds);
+        assertTrue(bounds.left <= 40 && bounds.right >= 200);
+        assertTrue(bounds.bottom <= HEIGHT / 2);
+
+        // Nothing moves for a second.
+        byte[] still = scene(120, 40, 0);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(mListener.mStopped.isEmpty());
+            analyze(detector, still);
+        }
+        assertFalse(detector.isMoving());
+        assertEquals(1, mListener.mStopped.size());
+        assertEquals(1, mListener.mStarted.size());
+    }
+
+    @Test
+    public void testStoppedMotionCoversWholeMovement() {
+        MotionDetector detector = new MotionDetector.Builder(mListener).setStopDelayMillis(0).build();
+        analyze(detector, scene(-1, 0, 0));
+        analyze(detector, scene(0, 0, 0));
+        analyze(detector, scene(80, 0, 0));
+        analyze(detector, scene(400, 300, 0));
+        analyze(detector, scene(400, 300, 0));
+
+        assertEquals(1, mListener.mStopped.size());
+        MotionDetector.Motion motion = mListener.mStopped.get(0);
+        assertTrue(motion.isMoving(0, 0));
+        assertTrue(motion.isMoving(10, 7));
+        assertTrue(motion.getMovingBlockCount() > mListener.mStarted.get(0).getMovingBlockCount());
+    }
+
+    @Test
+    public void testExposureChangeIsNotMotion() {
+        MotionDetector detector = new MotionDetector(mListener);
+        for (int brightness = 0; brightness <= 100; brightness += 25) {
+            analyze(detector, scene(-1, 0, brightness));
+        }
+        assertTrue(mListener.mStarted.isEmpty());
+    }
+
+    @Test
+    public void testNewFrameSizeStartsOver() {
+        MotionDetector detector = new MotionDetector.Builder(mListener).setStartFrames(1).build();
+        analyze(detector, scene(-1, 0, 0));
+        detector.analyze(ByteBuffer.wrap(new byte[320 * 240]), 320, 240, 320, 0, 0);
+        assertTrue(mListener.mStarted.isEmpty());
+    }
+
+    @Test
+    public void testBufferPositionIsUnchanged() {
+        MotionDetector detector = new MotionDetector(mListener);
+        ByteBuffer luma = ByteBuffer.wrap(scene(-1, 0, 0));
+        detector.analyze(luma, WIDTH, HEIGHT, WIDTH, 0, 0);
+        assertEquals(0, luma.position());
+    }
+
+    @Test
+    public void testReset() {
+        MotionDetector detector = new MotionDetector.Builder(mListener).setStartFrames(1).build();
+        analyze(detector, scene(-1, 0, 0));
+        analyze(detector, scene(0, 0, 0));
+        assertTrue(detector.isMoving());
+
+        detector.reset();
+        assertFalse(detector.isMoving());
+        analyze(detector, scene(-1, 0, 0));
+        assertEquals(1, mListener.mStarted.size());
+    }
+
+    @Test
+    public void testInvalidSettings() {
+        MotionDetector.Builder[] builders = {
+                new MotionDetector.Builder(mListener).setGridSize(0, 12),
+                new MotionDetector.Builder(mListener).setSampleStep(0),
+                new MotionDetector.Builder(mListener).setBlockThreshold(0),
+                new MotionDetector.Builder(mListener).setBlockThreshold(256),
+                new MotionDetector.Builder(mListener).setGridSize(2, 2).setMinMovingBlocks(5),
+                new MotionDetector.Builder(mListener).setStartFrames(0),
+                new MotionDetector.Builder(mListener).setStopDelayMillis(-1),
+        };
+        for (MotionDetector.Builder builder : builders) {
+            try {
+                builder.build();
+                fail();
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        }
+    }
+
+    private static class TestListener implements MotionDetector.Listener {
+        final List<MotionDetector.Motion> mStarted = new ArrayList<>();
+        final List<MotionDetector.Motion> mStopped = new ArrayList<>();
+
+        @Override
+        public void onMotionStarted(MotionDetector.Motion motion) {
+            mStarted.add(motion);
+        }
+
+        @Override
+        public void onMotionStopped(MotionDetector.Motion motion) {
+            mStopped.add(motion);
+        }
+    }
+}
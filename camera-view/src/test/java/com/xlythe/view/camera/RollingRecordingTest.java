@@ -0,0 +1,123 @@
+package com.xlythe.view.camera;
+
+import android.os.Looper;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = 21)
+public class RollingRecordingTest {
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSegmentLimitIsRequired() throws IOException {
+        new RollingRecording.Builder(mTemporaryFolder.newFolder()).build();
+    }
+
+    @Test
+    public void testSegmentsSortChronologically() throws IOException {
+        RollingRecording recording = new RollingRecording.Builder(mTemporaryFolder.newFolder())
+                .setSegmentDuration(60_000)
+                .build();
+
+        File first = recording.nextFile();
+        File second = recording.nextFile();
+
+        assertTrue(first.getName().compareTo(second.getName()) < 0);
+        assertTrue(first.getName().startsWith(RollingRecording.PREFIX));
+        assertTrue(first.getName().endsWith(RollingRecording.EXTENSION));
+    }
+
+    @Test
+    public void testRetentionByCount() throws IOException {
+        RollingRecording recording = new RollingRecording.Builder(mTemporaryFolder.newFolder())
+                .setSegmentDuration(60_000)
+                .setMaxSegments(2)
+                .build();
+
+        List<File> segments = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            File segment = write(recording.nextFile(), 10);
+            segments.add(segment);
+            recording.onSegmentFinalized(segment);
+        }
+
+        assertFalse(segments.get(0).exists());
+        assertFalse(segments.get(1).exists());
+        assertTrue(segments.get(2).exists());
+        assertTrue(segments.get(3).exists());
+    }
+
+    @Test
+    public void testRetentionBySize() throws IOException {
+        RollingRecording recording = new RollingRecording.Builder(mTemporaryFolder.newFolder())
+                .setSegmentSize(100)
+                .setMaxTotalSize(250)
+                .build();
+
+        List<File> segments = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            File segment = write(recording.nextFile(), 100);
+            segments.add(segment);
+            recording.onSegmentFinalized(segment);
+        }
+
+        assertEquals(2, recording.getSegments().size());
+        assertTrue(segments.get(2).exists());
+        assertTrue(segments.get(3).exists());
+    }
+
+    @Test
+    public void testNewestSegmentIsAlwaysKept() throws IOException {
+        RollingRecording recording = new RollingRecording.Builder(mTemporaryFolder.newFolder())
+                .setSegmentSize(100)
+                .setMaxTotalSize(50)
+                .build();
+
+        File segment = write(recording.nextFile(), 100);
+        recording.onSegmentFinalized(segment);
+
+        assertTrue(segment.exists());
+    }
+
+    @Test
+    public void testListenerIsNotified() throws IOException {
+        List<File> finalized = new ArrayList<>();
+        RollingRecording recording = new RollingRecording.Builder(mTemporaryFolder.newFolder())
+                .setSegmentDuration(60_000)
+                .setOnSegmentFinalizedListener(finalized::add)
+                .build();
+
+        File segment = write(recording.nextFile(), 10);
+        recording.onSegmentFinalized(segment);
+        shadowOf(Looper.getMainLooper()).idle();
+
+        assertEquals(1, finalized.size());
+        assertEquals(segment, finalized.get(0));
+    }
+
+    private static File write(File file, int length) throws IOException {
+        try (FileOutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write(new byte[length]);
+        }
+        return file;
+    }
+}
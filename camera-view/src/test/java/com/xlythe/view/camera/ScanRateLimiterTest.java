@@ -0,0 +1,84 @@
+package com.xlythe.view.camera;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = 21)
+public class ScanRateLimiterTest {
+    @Test
+    public void testCapsScanRate() {
+        ScanRateLimiter limiter = new ScanRateLimiter(10);
+
+        assertTrue(limiter.tryStartScan(1000));
+        limiter.onScanFinished(true);
+
+        // Frames arriving within 100ms of the last scan are skipped.
+        assertFalse(limiter.tryStartScan(1033));
+        assertFalse(limiter.tryStartScan(1099));
+        assertTrue(limiter.tryStartScan(1100));
+    }
+
+    @Test
+    public void testBacksOffWhileEmpty() {
+        ScanRateLimiter limiter = new ScanRateLimiter(10);
+
+        for (int i = 0; i < ScanRateLimiter.EMPTY_SCANS_BEFORE_BACKOFF - 1; i++) {
+            limiter.onScanFinished(false);
+        }
+        assertEquals(100, limiter.getIntervalMillis());
+
+        limiter.onScanFinished(false);
+        assertEquals(200, limiter.getIntervalMillis());
+        limiter.onScanFinished(false);
+        assertEquals(400, limiter.getIntervalMillis());
+        limiter.onScanFinished(false);
+        assertEquals(ScanRateLimiter.MAX_BACKOFF_INTERVAL_MILLIS, limiter.getIntervalMillis());
+        for (int i = 0; i < 100; i++) {
+            limiter.onScanFinished(false);
+        }
+        assertEquals(ScanRateLimiter.MAX_BACKOFF_INTERVAL_MILLIS, limiter.getIntervalMillis());
+
+        assertTrue(limiter.tryStartScan(1000));
+        assertFalse(limiter.tryStartScan(1100));
+        assertTrue(limiter.tryStartScan(1000 + ScanRateLimiter.MAX_BACKOFF_INTERVAL_MILLIS));
+    }
+
+    @Test
+    public void testFindingResetsBackoff() {
+        ScanRateLimiter limiter = new ScanRateLimiter(10);
+        for (int i = 0; i < 10; i++) {
+            limiter.onScanFinished(false);
+        }
+        assertEquals(ScanRateLimiter.MAX_BACKOFF_INTERVAL_MILLIS, limiter.getIntervalMillis());
+
+        limiter.onScanFinished(true);
+        assertEquals(100, limiter.getIntervalMillis());
+    }
+
+    @Test
+    public void testSlowRateIsNeverSpedUp() {
+        ScanRateLimiter limiter = new ScanRateLimiter(1);
+        for (int i = 0; i < 10; i++) {
+            limiter.onScanFinished(false);
+        }
+        assertEquals(1000, limiter.getIntervalMillis());
+    }
+
+    @Test
+    public void testInvalidRate() {
+        try {
+            new ScanRateLimiter(0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
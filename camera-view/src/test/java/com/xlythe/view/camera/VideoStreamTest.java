@@ -35,6 +35,9 @@ public class VideoStreamTest {
         assertEquals(30, params.getFrameRate());
         assertEquals(5, params.getIFrameInterval());
         assertFalse(params.isLossy());
+
+        // Packets change the wire format of the audio stream, so they must be asked for.
+        assertFalse(params.isAudioPacketized());
     }
 
     @Test
@@ -0,0 +1,128 @@
+package com.xlythe.view.camera;
+
+import android.graphics.Rect;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = 21)
+public class ZxingBarcodeDecoderTest {
+    private static List<Barcode> decode(BarcodeDecoder decoder, BarcodeCorpus.Frame frame) {
+        return decoder.decode(frame.getLuma(), frame.mWidth, frame.mHeight, frame.mRowStride, frame.mRotation);
+    }
+
+    @Test
+    public void testDecodesEveryRotation() {
+        ZxingBarcodeDecoder decoder = new ZxingBarcodeDecoder(Barcode.Format.QR_CODE);
+        for (int rotation : new int[] {0, 90, 180, 270}) {
+            // Drawn up and to the left of the middle of the upright image, so a box in the wrong
+            // orientation lands somewhere else entirely.
+            BarcodeCorpus.Frame frame = BarcodeCorpus.single(Barcode.Format.QR_CODE, "rotation " + rotation, 4, -100, -120, rotation, BarcodeCorpus.FRAME_WIDTH);
+            List<Barcode> barcodes = decode(decoder, frame);
+
+            assertEquals("rotation " + rotation, 1, barcodes.size());
+            Barcode barcode = barcodes.get(0);
+            assertEquals(Barcode.Format.QR_CODE, barcode.getFormat());
+            assertEquals("rotation " + rotation, barcode.getRawValue());
+            assertEquals(Barcode.Type.UNKNOWN, barcode.getType());
+
+            boolean sideways = rotation == 90 || rotation == 270;
+            int uprightWidth = sideways ? BarcodeCorpus.FRAME_HEIGHT : BarcodeCorpus.FRAME_WIDTH;
+            int uprightHeight = sideways ? BarcodeCorpus.FRAME_WIDTH : BarcodeCorpus.FRAME_HEIGHT;
+            Rect box = barcode.getBoundingBox();
+            assertNotNull(box);
+            assertEquals(uprightWidth / 2 - 100, (box.left + box.right) / 2, 20);
+            assertEquals(uprightHeight / 2 - 120, (box.top + box.bottom) / 2, 20);
+        }
+    }
+
+    @Test
+    public void testDecodes1D() {
+        ZxingBarcodeDecoder decoder = new ZxingBarcodeDecoder(Barcode.Format.CODE_128, Barcode.Format.EAN_13);
+        for (int rotation : new int[] {0, 90}) {
+            // Bars that run upright in the preview run sideways in a rotated frame.
+            List<Barcode> barcodes = decode(decoder, BarcodeCorpus.single(Barcode.Format.CODE_128, "CameraView", 2, 0, 20, rotation, BarcodeCorpus.FRAME_WIDTH));
+            assertEquals(1, barcodes.size());
+            assertEquals(Barcode.Format.CODE_128, barcodes.get(0).getFormat());
+            assertEquals("CameraView", barcodes.get(0).getRawValue());
+        }
+    }
+
+    @Test
+    public void testPaddedRows() {
+        ZxingBarcodeDecoder decoder = new ZxingBarcodeDecoder(Barcode.Format.DATA_MATRIX);
+        BarcodeCorpus.Frame frame = BarcodeCorpus.single(Barcode.Format.DATA_MATRIX, "padded", 4, 0, 0, 90, BarcodeCorpus.FRAME_WIDTH + 64);
+        assertEquals("padded", decode(decoder, frame).get(0).getRawValue());
+    }
+
+    @Test
+    public void testStartsAtBufferPosition() {
+        BarcodeCorpus.Frame frame = BarcodeCorpus.single(Barcode.Format.QR_CODE, "offset", 4, 0, 0, 0, BarcodeCorpus.FRAME_WIDTH);
+        ByteBuffer luma = ByteBuffer.allocate(frame.mLuma.length + 16);
+        luma.position(16);
+        luma.put(frame.mLuma);
+        luma.position(16);
+
+        List<Barcode> barcodes = new ZxingBarcodeDecoder(Barcode.Format.QR_CODE).decode(luma, frame.mWidth, frame.mHeight, frame.mRowStride, 0);
+        assertEquals("offset", barcodes.get(0).getRawValue());
+        assertEquals(16, luma.position());
+    }
+
+    @Test
+    public void testOnlyRequestedFormats() {
+        BarcodeCorpus.Frame frame = BarcodeCorpus.single(Barcode.Format.QR_CODE, "hidden", 4, 0, 0, 0, BarcodeCorpus.FRAME_WIDTH);
+        assertTrue(decode(new ZxingBarcodeDecoder(Barcode.Format.CODE_128), frame).isEmpty());
+        assertEquals(1, decode(new ZxingBarcodeDecoder(Barcode.Format.ALL_FORMATS), frame).size());
+    }
+
+    @Test
+    public void testEmptyFrame() {
+        byte[] grey = new byte[BarcodeCorpus.FRAME_WIDTH * BarcodeCorpus.FRAME_HEIGHT];
+        Arrays.fill(grey, (byte) 128);
+        List<Barcode> barcodes = new ZxingBarcodeDecoder(Barcode.Format.ALL_FORMATS)
+                .decode(ByteBuffer.wrap(grey), BarcodeCorpus.FRAME_WIDTH, BarcodeCorpus.FRAME_HEIGHT, BarcodeCorpus.FRAME_WIDTH, 0);
+        assertTrue(barcodes.isEmpty());
+    }
+
+    @Test
+    public void testFormatMapping() {
+        for (int format : new int[] {
+                Barcode.Format.CODE_128,
+                Barcode.Format.CODE_39,
+                Barcode.Format.CODE_93,
+                Barcode.Format.CODABAR,
+                Barcode.Format.DATA_MATRIX,
+                Barcode.Format.EAN_13,
+                Barcode.Format.EAN_8,
+                Barcode.Format.ITF,
+                Barcode.Format.QR_CODE,
+                Barcode.Format.UPC_A,
+                Barcode.Format.UPC_E,
+                Barcode.Format.PDF417,
+                Barcode.Format.AZTEC}) {
+            assertEquals(format, ZxingBarcodeDecoder.fromZxingFormat(ZxingBarcodeDecoder.toZxingFormat(format)));
+        }
+    }
+
+    @Test
+    public void testNoFormats() {
+        try {
+            new ZxingBarcodeDecoder(Barcode.Format.UNKNOWN);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
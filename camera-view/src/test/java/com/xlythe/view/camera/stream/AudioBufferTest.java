@@ -5,8 +5,12 @@ import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
+import java.nio.ByteBuffer;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 @RunWith(RobolectricTestRunner.class)
@@ -14,6 +18,12 @@ import static org.junit.Assert.assertTrue;
 public class AudioBufferTest {
 
     private static class TestAudioBuffer extends AudioBuffer {
+        TestAudioBuffer() {}
+
+        TestAudioBuffer(int sampleRate, int framesPerBurst) {
+            super(sampleRate, framesPerBurst);
+        }
+
         @Override
         protected boolean validSize(int size) {
             return size > 0;
@@ -21,7 +31,13 @@ public class AudioBufferTest {
 
         @Override
         protected int getMinBufferSize(int sampleRate) {
-            return sampleRate == 16000 ? 2048 : -1;
+            if (sampleRate == 16000) {
+                return 2048;
+            }
+            if (sampleRate == 48000) {
+                return 1000;
+            }
+            return -1;
         }
     }
 
@@ -33,4 +49,62 @@ public class AudioBufferTest {
         assertNotNull(buffer.data());
         assertEquals(2048, buffer.data().length);
     }
+
+    @Test
+    public void testLowLatencyBufferIsWholeBursts() {
+        TestAudioBuffer buffer = new TestAudioBuffer(48000, 192);
+        assertEquals(48000, buffer.getSampleRate());
+        assertEquals(192, buffer.getFramesPerBurst());
+        assertEquals(384, buffer.getBurstSize());
+        // The 1000 byte minimum is rounded up to three bursts.
+        assertEquals(1152, buffer.getSize());
+
+        ByteBuffer directData = buffer.directData();
+        assertTrue(directData.isDirect());
+        assertEquals(1152, directData.capacity());
+    }
+
+    @Test
+    public void testLowLatencyBufferWithoutMinimum() {
+        TestAudioBuffer buffer = new TestAudioBuffer(44100, 240);
+        assertEquals(480 * AudioBuffer.BURSTS_PER_BUFFER, buffer.getSize());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testDefaultBufferHasNoDirectData() {
+        new TestAudioBuffer().directData();
+    }
+
+    @Test
+    public void testHeaderRoundTrip() {
+        byte[] bytes = new AudioHeader(48000, 192, AudioHeader.FLAG_LOW_LATENCY).toByteArray();
+        AudioHeader header = AudioHeader.parse(bytes, bytes.length);
+        assertNotNull(header);
+        assertEquals(48000, header.getSampleRate());
+        assertEquals(192, header.getFramesPerBurst());
+        assertTrue(header.isLowLatency());
+    }
+
+    @Test
+    public void testPacketizedHeader() {
+        byte[] bytes = new AudioHeader(16000, 320, AudioHeader.FLAG_PACKETIZED, AudioCodec.Type.IMA_ADPCM).toByteArray();
+        AudioHeader header = AudioHeader.parse(bytes, bytes.length);
+        assertNotNull(header);
+        assertTrue(header.isPacketized());
+        assertFalse(header.isLowLatency());
+        assertEquals(AudioCodec.Type.IMA_ADPCM, header.getCodec());
+
+        header = AudioHeader.parse(new AudioHeader(16000, 320, AudioHeader.FLAG_LOW_LATENCY).toByteArray(), AudioHeader.SIZE);
+        assertNotNull(header);
+        assertFalse(header.isPacketized());
+        assertEquals(AudioCodec.Type.PCM, header.getCodec());
+    }
+
+    @Test
+    public void testAudioIsNotMistakenForHeader() {
+        assertNull(AudioHeader.parse(new byte[AudioHeader.SIZE], AudioHeader.SIZE));
+
+        byte[] bytes = new AudioHeader(48000, 192, 0).toByteArray();
+        assertNull(AudioHeader.parse(bytes, AudioHeader.SIZE - 1));
+    }
 }
@@ -0,0 +1,119 @@
+package com.xlythe.view.camera.stream;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
+/**
+ * Measures how much CPU an {@link AudioCodec} costs a stream. Audio is encoded and decoded a packet
+ * at a time, the way {@link AudioRecorder} and {@link AudioPlayer} do, and the cost is reported as
+ * the share of one core that a stream would keep busy. Only plain Java is used, so the same harness
+ * works on a JVM or on a device.
+ *
+ * Time is counted as this thread's CPU time, so that other work on the machine doesn't count
+ * against the codec. On a VM that can't report CPU time, wall clock time is used instead.
+ */
+final class AudioCodecBenchmark {
+    /** How many seconds of audio are encoded and decoded, unmeasured, to let the JIT settle. */
+    private static final int WARMUP_SECONDS = 50;
+
+    static final class Report {
+        final String mCodec;
+        final int mSampleRate;
+        final int mPacketFrames;
+        final int mSeconds;
+        /** Time spent encoding every packet. */
+        final long mEncodeNanos;
+        /** Time spent decoding every packet. */
+        final long mDecodeNanos;
+        /** True if the times are CPU time, false if they're wall clock time. */
+        final boolean mIsCpuTime;
+
+        Report(String codec, int sampleRate, int packetFrames, int seconds, long encodeNanos, long decodeNanos, boolean isCpuTime) {
+            mCodec = codec;
+            mSampleRate = sampleRate;
+            mPacketFrames = packetFrames;
+            mSeconds = seconds;
+            mEncodeNanos = encodeNanos;
+            mDecodeNanos = decodeNanos;
+            mIsCpuTime = isCpuTime;
+        }
+
+        /** Returns the share of a core spent encoding a stream, from 0 to 1. */
+        double getEncodeLoad() {
+            return mSeconds == 0 ? 0 : mEncodeNanos / (mSeconds * 1e9);
+        }
+
+        /** Returns the share of a core spent decoding a stream, from 0 to 1. */
+        double getDecodeLoad() {
+            return mSeconds == 0 ? 0 : mDecodeNanos / (mSeconds * 1e9);
+        }
+
+        /** Returns the share of a core spent on a stream, counting both the sender and the player. */
+        double getStreamLoad() {
+            return getEncodeLoad() + getDecodeLoad();
+        }
+
+        static String getHeader() {
+            return String.format(Locale.US, "%6s %7s %8s %9s %9s %9s %5s  %s",
+                    "rate", "packet", "seconds", "encode %", "decode %", "stream %", "time", "codec");
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%6d %7d %8d %9.3f %9.3f %9.3f %5s  %s",
+                    mSampleRate, mPacketFrames, mSeconds, getEncodeLoad() * 100, getDecodeLoad() * 100,
+                    getStreamLoad() * 100, mIsCpuTime ? "cpu" : "wall", mCodec);
+        }
+    }
+
+    private AudioCodecBenchmark() {}
+
+    /**
+     * Encodes and decodes the given seconds of audio with the codec.
+     *
+     * @param packet A packet of 16 bit little endian PCM, sent over and over.
+     */
+    static Report run(AudioCodec codec, int sampleRate, byte[] packet, int seconds) {
+        int packetFrames = packet.length / 2;
+        int packetsPerSecond = sampleRate / packetFrames;
+        byte[] encoded = new byte[codec.getMaxEncodedSize(packetFrames)];
+        short[] decoded = new short[packetFrames];
+
+        for (int i = 0; i < packetsPerSecond * WARMUP_SECONDS; i++) {
+            int size = codec.encode(packet, packet.length, encoded);
+            codec.decode(encoded, size, decoded);
+        }
+
+        boolean isCpuTime = getCpuTimeNanos() >= 0;
+        long encodeNanos = 0;
+        long decodeNanos = 0;
+        for (int i = 0; i < packetsPerSecond * seconds; i++) {
+            long start = now(isCpuTime);
+            int size = codec.encode(packet, packet.length, encoded);
+            long encodeEnd = now(isCpuTime);
+            codec.decode(encoded, size, decoded);
+            long decodeEnd = now(isCpuTime);
+            encodeNanos += encodeEnd - start;
+            decodeNanos += decodeEnd - encodeEnd;
+        }
+        return new Report(codec.getClass().getSimpleName(), sampleRate, packetFrames, seconds, encodeNanos, decodeNanos, isCpuTime);
+    }
+
+    private static long now(boolean isCpuTime) {
+        return isCpuTime ? getCpuTimeNanos() : System.nanoTime();
+    }
+
+    /** Returns how much CPU time this thread has used so far, or -1 if the VM can't tell. */
+    static long getCpuTimeNanos() {
+        try {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean.isCurrentThreadCpuTimeSupported() && bean.isThreadCpuTimeEnabled()) {
+                return bean.getCurrentThreadCpuTime();
+            }
+        } catch (LinkageError | UnsupportedOperationException e) {
+            // Not a JVM that counts CPU time, eg. on a device.
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,64 @@
+package com.xlythe.view.camera.stream;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Benchmarks the audio codecs on the JVM. A few seconds of audio are run with every test pass, as a
+ * check that each codec still costs a stream well under 1% of a core. For steadier numbers, run
+ * longer:
+ *
+ * ./gradlew :camera-view:testDebugUnitTest --tests '*AudioCodecBenchmarkTest' -Dbenchmark.seconds=300
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = 21)
+public class AudioCodecBenchmarkTest {
+    private static final int SAMPLE_RATE = 48000;
+
+    /** 10ms of audio, the packet size AudioRecorder sends. */
+    private static final int PACKET_FRAMES = 480;
+
+    /** The most of a core that one stream's codec may keep busy, encoding and decoding. */
+    private static final double MAX_STREAM_LOAD = 0.01;
+
+    /** Returns 16 bit little endian PCM of a 440Hz tone. */
+    private static byte[] tone(int frames, int amplitude) {
+        byte[] pcm = new byte[frames * 2];
+        for (int i = 0; i < frames; i++) {
+            int sample = (int) (amplitude * Math.sin(2 * Math.PI * 440 * i / SAMPLE_RATE));
+            pcm[i * 2] = (byte) sample;
+            pcm[i * 2 + 1] = (byte) (sample >> 8);
+        }
+        return pcm;
+    }
+
+    @Test
+    public void testCodecCost() {
+        byte[] packet = tone(PACKET_FRAMES, 10000);
+        int seconds = Integer.getInteger("benchmark.seconds", 20);
+        List<AudioCodecBenchmark.Report> reports = new ArrayList<>();
+        for (int type : new int[] {AudioCodec.Type.MULAW, AudioCodec.Type.IMA_ADPCM}) {
+            reports.add(AudioCodecBenchmark.run(AudioCodec.create(type), SAMPLE_RATE, packet, seconds));
+        }
+
+        System.out.println(AudioCodecBenchmark.Report.getHeader());
+        for (AudioCodecBenchmark.Report report : reports) {
+            System.out.println(report);
+        }
+
+        // Wall clock time also counts whatever else the machine is doing, so it's only held to the
+        // goal when the VM can report CPU time.
+        for (AudioCodecBenchmark.Report report : reports) {
+            if (report.mIsCpuTime) {
+                assertTrue(report.toString(), report.getStreamLoad() < MAX_STREAM_LOAD);
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.xlythe.view.camera.stream;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = 21)
+public class AudioCodecTest {
+    private static final int SAMPLE_RATE = 48000;
+
+    /** Returns 16 bit little endian PCM of a 440Hz tone, starting from the given frame. */
+    private static byte[] tone(int frames, int offset, int amplitude) {
+        byte[] pcm = new byte[frames * 2];
+        for (int i = 0; i < frames; i++) {
+            int sample = (int) (amplitude * Math.sin(2 * Math.PI * 440 * (i + offset) / SAMPLE_RATE));
+            pcm[i * 2] = (byte) sample;
+            pcm[i * 2 + 1] = (byte) (sample >> 8);
+        }
+        return pcm;
+    }
+
+    private static short[] roundTrip(AudioCodec codec, byte[] pcm) {
+        byte[] encoded = new byte[codec.getMaxEncodedSize(pcm.length / 2)];
+        int size = codec.encode(pcm, pcm.length, encoded);
+        short[] decoded = new short[codec.getSampleCount(encoded, size)];
+        assertEquals(decoded.length, codec.decode(encoded, size, decoded));
+        return decoded;
+    }
+
+    /** Returns the signal to noise ratio of the decoded audio, in dB. */
+    private static double snr(byte[] pcm, short[] decoded) {
+        double signal = 0;
+        double noise = 0;
+        for (int i = 0; i < decoded.length; i++) {
+            int sample = AudioCodec.readSample(pcm, i * 2);
+            signal += (double) sample * sample;
+            noise += (double) (sample - decoded[i]) * (sample - decoded[i]);
+        }
+        return 10 * Math.log10(signal / Math.max(1, noise));
+    }
+
+    @Test
+    public void testCreate() {
+        assertNull(AudioCodec.create(AudioCodec.Type.PCM));
+        assertEquals(AudioCodec.Type.MULAW, AudioCodec.create(AudioCodec.Type.MULAW).getType());
+        assertEquals(AudioCodec.Type.IMA_ADPCM, AudioCodec.create(AudioCodec.Type.IMA_ADPCM).getType());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownCodec() {
+        AudioCodec.create(99);
+    }
+
+    @Test
+    public void testMuLawKnownValues() {
+        assertEquals((byte) 0xFF, MuLawCodec.encode(0));
+        assertEquals((byte) 0x80, MuLawCodec.encode(Short.MAX_VALUE));
+        assertEquals((byte) 0x00, MuLawCodec.encode(Short.MIN_VALUE));
+
+        AudioCodec codec = new MuLawCodec();
+        short[] decoded = new short[3];
+        codec.decode(new byte[] {(byte) 0xFF, (byte) 0x80, 0x00}, 3, decoded);
+        assertArrayEquals(new short[] {0, 32124, -32124}, decoded);
+    }
+
+    @Test
+    public void testMuLawRoundTrip() {
+        AudioCodec codec = new MuLawCodec();
+        byte[] pcm = tone(960, 0, 10000);
+
+        assertEquals(960, codec.getMaxEncodedSize(960));
+        short[] decoded = roundTrip(codec, pcm);
+        assertEquals(960, decoded.length);
+        assertTrue(snr(pcm, decoded) > 30);
+    }
+
+    @Test
+    public void testImaAdpcmRoundTrip() {
+        AudioCodec codec = new ImaAdpcmCodec();
+        byte[] pcm = tone(960, 0, 10000);
+
+        // A quarter of the size, plus the header.
+        assertEquals(ImaAdpcmCodec.HEADER_SIZE + 480, codec.getMaxEncodedSize(960));
+
+        // The step size takes a few samples to adapt, after which it tracks the tone closely.
+        roundTrip(codec, pcm);
+        short[] decoded = roundTrip(codec, tone(960, 960, 10000));
+        assertEquals(960, decoded.length);
+        assertTrue(snr(tone(960, 960, 10000), decoded) > 20);
+    }
+
+    @Test
+    public void testImaAdpcmOddSampleCount() {
+        AudioCodec codec = new ImaAdpcmCodec();
+        assertEquals(7, roundTrip(codec, tone(7, 0, 1000)).length);
+    }
+
+    @Test
+    public void testImaAdpcmPacketsDecodeIndependently() {
+        AudioCodec encoder = new ImaAdpcmCodec();
+        byte[] first = new byte[encoder.getMaxEncodedSize(480)];
+        byte[] second = new byte[encoder.getMaxEncodedSize(480)];
+        encoder.encode(tone(480, 0, 10000), 960, first);
+        int size = encoder.encode(tone(480, 480, 10000), 960, second);
+
+        // Decoding the second packet gives the same audio, whether or not the first was seen.
+        AudioCodec decoder = new ImaAdpcmCodec();
+        short[] afterFirst = new short[480];
+        decoder.decode(first, first.length, new short[480]);
+        decoder.decode(second, size, afterFirst);
+
+        short[] alone = new short[480];
+        new ImaAdpcmCodec().decode(second, size, alone);
+        assertArrayEquals(afterFirst, alone);
+    }
+}
@@ -0,0 +1,96 @@
+package com.xlythe.view.camera.stream;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = 21)
+public class AudioFrameTest {
+
+    @Test
+    public void testSerialization() {
+        AudioFrame frame = new AudioFrame.Builder(AudioFrame.Type.DATA)
+                .sequence(42)
+                .presentationTimeUs(840_000)
+                .data(new byte[] {1, 2, 3, 4})
+                .build();
+
+        AudioFrame deserialized = AudioFrame.fromBytes(frame.asBytes());
+
+        assertEquals(AudioFrame.Type.DATA, deserialized.getType());
+        assertEquals(42, deserialized.getSequence());
+        assertEquals(840_000, deserialized.getPresentationTimeUs());
+        assertArrayEquals(new byte[] {1, 2, 3, 4}, deserialized.getData());
+    }
+
+    @Test
+    public void testSilenceSerialization() {
+        AudioFrame frame = new AudioFrame.Builder(AudioFrame.Type.SILENCE)
+                .sequence(7)
+                .presentationTimeUs(140_000)
+                .durationUs(10_000)
+                .build();
+
+        byte[] serialized = frame.asBytes();
+        AudioFrame deserialized = AudioFrame.fromBytes(serialized);
+
+        assertEquals(AudioFrame.Type.SILENCE, deserialized.getType());
+        assertEquals(7, deserialized.getSequence());
+        assertEquals(140_000, deserialized.getPresentationTimeUs());
+        assertEquals(10_000, deserialized.getDurationUs());
+        assertEquals(0, deserialized.getData().length);
+
+        // A marker is far smaller than the 10ms of audio it replaces, even at 8kHz.
+        assertTrue(serialized.length + 4 < 160);
+    }
+
+    @Test
+    public void testSamples() {
+        // Little endian, as AudioRecord writes it.
+        AudioFrame frame = new AudioFrame.Builder(AudioFrame.Type.DATA)
+                .data(new byte[] {0x01, 0x00, (byte) 0xFF, (byte) 0xFF, 0x00, (byte) 0x80})
+                .build();
+
+        assertArrayEquals(new short[] {1, -1, Short.MIN_VALUE}, frame.getSamples());
+    }
+
+    @Test
+    public void testWriteToReusedBuffer() {
+        // Only the first two samples of the array are audio.
+        byte[] data = {0x01, 0x00, 0x02, 0x00, 0x63, 0x63};
+        AudioFrame frame = new AudioFrame.Builder(AudioFrame.Type.DATA)
+                .sequence(3)
+                .data(data, 4)
+                .build();
+
+        ByteBuffer buffer = ByteBuffer.allocate(frame.getSize() + 10);
+        frame.writeTo(buffer);
+        assertEquals(frame.getSize(), buffer.position());
+        assertArrayEquals(frame.asBytes(), Arrays.copyOf(buffer.array(), buffer.position()));
+
+        AudioFrame deserialized = AudioFrame.fromBytes(frame.asBytes());
+        assertEquals(3, deserialized.getSequence());
+        assertArrayEquals(new byte[] {0x01, 0x00, 0x02, 0x00}, deserialized.getData());
+
+        short[] samples = new short[] {-1, -1, -1};
+        assertEquals(2, deserialized.getSamples(samples));
+        assertArrayEquals(new short[] {1, 2, -1}, samples);
+    }
+
+    @Test
+    public void testEmptyFrame() {
+        AudioFrame frame = AudioFrame.fromBytes(new byte[0]);
+
+        assertEquals(0, frame.getData().length);
+        assertEquals(0, frame.getSamples().length);
+    }
+}
@@ -0,0 +1,120 @@
+package com.xlythe.view.camera.stream;
+
+import android.media.MediaCodec;
+
+import com.google.common.primitives.Ints;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = 21)
+public class DvrBufferTest {
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testExportStartsOnKeyFrame() throws IOException {
+        DvrBuffer dvr = new DvrBuffer.Builder(mTemporaryFolder.newFile("dvr")).build();
+        writeStream(dvr, 0, 90 /* frames */, 30 /* iframe interval */);
+
+        // 1.5 seconds back from the last frame lands between the key frames at 1s and 2s.
+        List<VideoFrame> frames = export(dvr, 1500);
+
+        assertEquals(VideoFrame.Type.HEADER, frames.get(0).getType());
+        assertTrue(frames.get(1).isCodecConfig());
+        assertTrue(frames.get(2).isKeyFrame());
+        assertEquals(timeOf(30), frames.get(2).getPresentationTimeUs());
+        assertEquals(timeOf(89), frames.get(frames.size() - 1).getPresentationTimeUs());
+        assertEquals(2 + 60, frames.size());
+        dvr.close();
+    }
+
+    @Test
+    public void testOverwrittenFramesAreNotExported() throws IOException {
+        // Each record is 16 bytes of bookkeeping plus 100 bytes of data, so only ~35 frames fit.
+        DvrBuffer dvr = new DvrBuffer.Builder(mTemporaryFolder.newFile("dvr"))
+                .setCapacity(4096)
+                .build();
+        writeStream(dvr, 0, 90 /* frames */, 10 /* iframe interval */);
+
+        List<VideoFrame> frames = export(dvr, 60_000);
+
+        // The oldest key frame that survived is returned, even though more was asked for.
+        assertTrue(frames.get(2).isKeyFrame());
+        assertEquals(timeOf(60), frames.get(2).getPresentationTimeUs());
+        assertEquals(timeOf(89), frames.get(frames.size() - 1).getPresentationTimeUs());
+        assertEquals(timeOf(89) - timeOf(60), dvr.getBufferedDurationUs());
+        dvr.close();
+    }
+
+    @Test
+    public void testCodecConfigChangeClearsBuffer() throws IOException {
+        DvrBuffer dvr = new DvrBuffer.Builder(mTemporaryFolder.newFile("dvr")).build();
+        writeStream(dvr, 0, 30 /* frames */, 30 /* iframe interval */);
+        dvr.onFrame(codecConfig());
+
+        assertEquals(0, dvr.getBufferedDurationUs());
+        assertFalse(dvr.exportStream(new ByteArrayOutputStream(), 1000));
+        dvr.close();
+    }
+
+    private static void writeStream(DvrBuffer dvr, int start, int frames, int iframeInterval) {
+        dvr.onFrame(new VideoFrame.Builder(VideoFrame.Type.HEADER)
+                .width(640)
+                .height(480)
+                .frameRate(30)
+                .build());
+        dvr.onFrame(codecConfig());
+        for (int i = start; i < start + frames; i++) {
+            dvr.onFrame(new VideoFrame.Builder(VideoFrame.Type.DATA)
+                    .data(new byte[100])
+                    .presentationTimeUs(timeOf(i))
+                    .flags(i % iframeInterval == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0)
+                    .build());
+        }
+    }
+
+    private static VideoFrame codecConfig() {
+        return new VideoFrame.Builder(VideoFrame.Type.DATA)
+                .data(new byte[]{0, 0, 0, 1, 0x67, 0x42, 0x00, 0x1F, 0, 0, 0, 1, 0x68, (byte) 0xCE})
+                .flags(MediaCodec.BUFFER_FLAG_CODEC_CONFIG)
+                .build();
+    }
+
+    private static long timeOf(int frame) {
+        return frame * 1_000_000L / 30;
+    }
+
+    private static List<VideoFrame> export(DvrBuffer dvr, long durationMillis) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        assertTrue(dvr.exportStream(outputStream, durationMillis));
+
+        List<VideoFrame> frames = new ArrayList<>();
+        DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(outputStream.toByteArray()));
+        while (inputStream.available() > 0) {
+            byte[] length = new byte[4];
+            inputStream.readFully(length);
+            byte[] frame = new byte[Ints.fromByteArray(length)];
+            inputStream.readFully(frame);
+            frames.add(VideoFrame.fromBytes(frame));
+        }
+        return frames;
+    }
+}
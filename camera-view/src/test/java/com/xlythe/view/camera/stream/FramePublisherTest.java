@@ -0,0 +1,238 @@
+package com.xlythe.view.camera.stream;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Flow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = 30)
+public class FramePublisherTest {
+
+    @Test
+    public void testFramesRespectDemand() {
+        FramePublisher publisher = new FramePublisher();
+        TestSubscriber subscriber = new TestSubscriber(0);
+        publisher.subscribe(subscriber);
+
+        publisher.onFrame(header());
+        publisher.onFrame(config());
+        publisher.onFrame(frame(0, true));
+        publisher.onFrame(frame(1, false));
+        assertEquals(0, subscriber.mFrames.size());
+
+        subscriber.request(3);
+        assertEquals("[header, config, 0K]", subscriber.describe());
+
+        subscriber.request(10);
+        assertEquals("[header, config, 0K, 1]", subscriber.describe());
+    }
+
+    @Test
+    public void testLateSubscriberStartsAtKeyFrame() {
+        FramePublisher publisher = new FramePublisher();
+        publisher.onFrame(header());
+        publisher.onFrame(config());
+        publisher.onFrame(frame(0, true));
+        publisher.onFrame(frame(1, false));
+
+        TestSubscriber subscriber = new TestSubscriber(Long.MAX_VALUE);
+        publisher.subscribe(subscriber);
+        publisher.onFrame(frame(2, false));
+        publisher.onFrame(frame(3, true));
+        publisher.onFrame(frame(4, false));
+
+        assertEquals("[header, config, 3K, 4]", subscriber.describe());
+    }
+
+    @Test
+    public void testBufferOverflowFailsSubscriber() {
+        FramePublisher publisher = new FramePublisher();
+        TestSubscriber subscriber = new TestSubscriber(0);
+        publisher.subscribe(subscriber, FramePublisher.Overflow.BUFFER, 2);
+
+        publisher.onFrame(frame(0, true));
+        publisher.onFrame(frame(1, false));
+        assertNull(subscriber.mError);
+        publisher.onFrame(frame(2, false));
+
+        assertTrue(subscriber.mError instanceof IllegalStateException);
+        assertEquals(0, publisher.getSubscriberCount());
+    }
+
+    @Test
+    public void testDropOldestResumesAtKeyFrame() {
+        FramePublisher publisher = new FramePublisher();
+        TestSubscriber subscriber = new TestSubscriber(0);
+        publisher.subscribe(subscriber, FramePublisher.Overflow.DROP_OLDEST, 4);
+
+        publisher.onFrame(config());
+        publisher.onFrame(frame(0, true));
+        publisher.onFrame(frame(1, false));
+        publisher.onFrame(frame(2, true));
+        publisher.onFrame(frame(3, false));
+        publisher.onFrame(frame(4, false));
+
+        subscriber.request(Long.MAX_VALUE);
+        assertEquals("[config, 2K, 3, 4]", subscriber.describe());
+    }
+
+    @Test
+    public void testDropOldestWaitsForNextKeyFrame() {
+        FramePublisher publisher = new FramePublisher();
+        TestSubscriber subscriber = new TestSubscriber(0);
+        publisher.subscribe(subscriber, FramePublisher.Overflow.DROP_OLDEST, 2);
+
+        publisher.onFrame(frame(0, true));
+        publisher.onFrame(frame(1, false));
+        publisher.onFrame(frame(2, false));
+        publisher.onFrame(frame(3, false));
+        publisher.onFrame(frame(4, true));
+        publisher.onFrame(frame(5, false));
+
+        subscriber.request(Long.MAX_VALUE);
+        assertEquals("[4K, 5]", subscriber.describe());
+    }
+
+    @Test
+    public void testLatestSkipsToNewestKeyFrame() {
+        FramePublisher publisher = new FramePublisher();
+        TestSubscriber subscriber = new TestSubscriber(0);
+        publisher.subscribe(subscriber, FramePublisher.Overflow.LATEST, 10);
+
+        publisher.onFrame(header());
+        publisher.onFrame(frame(0, true));
+        publisher.onFrame(frame(1, false));
+        publisher.onFrame(frame(2, true));
+        publisher.onFrame(frame(3, false));
+
+        subscriber.request(Long.MAX_VALUE);
+        assertEquals("[header, 2K, 3]", subscriber.describe());
+    }
+
+    @Test
+    public void testCloseCompletesAfterQueuedFrames() {
+        FramePublisher publisher = new FramePublisher();
+        TestSubscriber subscriber = new TestSubscriber(0);
+        publisher.subscribe(subscriber);
+
+        publisher.onFrame(frame(0, true));
+        publisher.close();
+        assertFalse(subscriber.mIsComplete);
+
+        subscriber.request(1);
+        assertEquals("[0K]", subscriber.describe());
+        assertTrue(subscriber.mIsComplete);
+
+        TestSubscriber lateSubscriber = new TestSubscriber(1);
+        publisher.subscribe(lateSubscriber);
+        assertTrue(lateSubscriber.mIsComplete);
+    }
+
+    @Test
+    public void testCancelStopsDelivery() {
+        FramePublisher publisher = new FramePublisher();
+        TestSubscriber subscriber = new TestSubscriber(Long.MAX_VALUE);
+        publisher.subscribe(subscriber);
+        publisher.onFrame(frame(0, true));
+
+        subscriber.mSubscription.cancel();
+        publisher.onFrame(frame(1, false));
+
+        assertEquals("[0K]", subscriber.describe());
+        assertEquals(0, publisher.getSubscriberCount());
+    }
+
+    @Test
+    public void testInvalidRequestFailsSubscriber() {
+        FramePublisher publisher = new FramePublisher();
+        TestSubscriber subscriber = new TestSubscriber(0);
+        publisher.subscribe(subscriber);
+
+        subscriber.request(0);
+        assertTrue(subscriber.mError instanceof IllegalArgumentException);
+    }
+
+    private static VideoFrame header() {
+        return new VideoFrame.Builder(VideoFrame.Type.HEADER).width(640).height(480).build();
+    }
+
+    private static VideoFrame config() {
+        return new VideoFrame.Builder(VideoFrame.Type.DATA)
+                .data(new byte[] {0, 0, 0, 1, 0x67})
+                .flags(MediaCodec.BUFFER_FLAG_CODEC_CONFIG)
+                .build();
+    }
+
+    private static VideoFrame frame(long index, boolean keyFrame) {
+        return new VideoFrame.Builder(VideoFrame.Type.DATA)
+                .data(new byte[] {0, 0, 0, 1, 0x65})
+                .presentationTimeUs(index)
+                .flags(keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0)
+                .build();
+    }
+
+    private static class TestSubscriber implements Flow.Subscriber<EncodedFrame> {
+        private final long mInitialRequest;
+        private final List<EncodedFrame> mFrames = new ArrayList<>();
+        private Flow.Subscription mSubscription;
+        private Throwable mError;
+        private boolean mIsComplete;
+
+        TestSubscriber(long initialRequest) {
+            mInitialRequest = initialRequest;
+        }
+
+        void request(long n) {
+            mSubscription.request(n);
+        }
+
+        String describe() {
+            List<String> descriptions = new ArrayList<>();
+            for (EncodedFrame frame : mFrames) {
+                if (frame.isHeader()) {
+                    descriptions.add("header");
+                } else if (frame.isCodecConfig()) {
+                    descriptions.add("config");
+                } else {
+                    descriptions.add(frame.getPresentationTimeUs() + (frame.isKeyFrame() ? "K" : ""));
+                }
+            }
+            return descriptions.toString();
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            mSubscription = subscription;
+            if (mInitialRequest > 0) {
+                subscription.request(mInitialRequest);
+            }
+        }
+
+        @Override
+        public void onNext(EncodedFrame item) {
+            mFrames.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            mError = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            mIsComplete = true;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.xlythe.view.camera.stream;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = 21)
+public class FrameQueueTest {
+
+    @Test
+    public void testStartsAtKeyFrame() {
+        FrameQueue queue = new FrameQueue(FramePublisher.Overflow.BUFFER, 10);
+        queue.offer(header());
+        queue.offer(frame(0, false));
+        queue.offer(frame(1, true));
+        queue.offer(frame(2, false));
+        assertEquals("[header, 1K, 2]", drain(queue));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testBufferOverflow() {
+        FrameQueue queue = new FrameQueue(FramePublisher.Overflow.BUFFER, 2);
+        assertTrue(queue.offer(header()));
+        assertTrue(queue.offer(frame(0, true)));
+        assertTrue(queue.offer(frame(1, false)));
+        assertFalse(queue.offer(frame(2, false)));
+    }
+
+    @Test
+    public void testDropOldestGroup() {
+        FrameQueue queue = new FrameQueue(FramePublisher.Overflow.DROP_OLDEST, 3);
+        queue.offer(header());
+        queue.offer(frame(0, true));
+        queue.offer(frame(1, false));
+        queue.offer(frame(2, true));
+        assertTrue(queue.offer(frame(3, false)));
+        assertEquals("[header, 2K, 3]", drain(queue));
+    }
+
+    @Test
+    public void testLatest() {
+        FrameQueue queue = new FrameQueue(FramePublisher.Overflow.LATEST, 10);
+        queue.offer(frame(0, true));
+        queue.offer(frame(1, false));
+        queue.offer(frame(2, true));
+        assertEquals("[2K]", drain(queue));
+    }
+
+    @Test
+    public void testInvalidCapacity() {
+        try {
+            new FrameQueue(FramePublisher.Overflow.BUFFER, 0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static String drain(FrameQueue queue) {
+        List<String> frames = new ArrayList<>();
+        EncodedFrame frame;
+        while ((frame = queue.poll()) != null) {
+            frames.add(frame.isHeader() ? "header" : frame.getPresentationTimeUs() + (frame.isKeyFrame() ? "K" : ""));
+        }
+        return frames.toString();
+    }
+
+    private static EncodedFrame header() {
+        return EncodedFrame.from(new VideoFrame.Builder(VideoFrame.Type.HEADER).width(640).height(480).build());
+    }
+
+    private static EncodedFrame frame(long index, boolean keyFrame) {
+        return EncodedFrame.from(new VideoFrame.Builder(VideoFrame.Type.DATA)
+                .data(new byte[] {0, 0, 0, 1, 0x65})
+                .presentationTimeUs(index)
+                .flags(keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0)
+                .build());
+    }
+}
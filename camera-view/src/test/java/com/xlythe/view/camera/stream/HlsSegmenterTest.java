@@ -0,0 +1,161 @@
+package com.xlythe.view.camera.stream;
+
+import android.media.MediaCodec;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = 21)
+public class HlsSegmenterTest {
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private static final byte[] CODEC_CONFIG = new byte[]{
+            0, 0, 0, 1, 0x67, 0x42, 0x00, 0x1F,
+            0, 0, 0, 1, 0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+
+    @Test
+    public void testSegmentsAreCutOnKeyFrames() throws IOException {
+        File directory = mTemporaryFolder.newFolder();
+        HlsSegmenter segmenter = new HlsSegmenter.Builder(directory)
+                .setSegmentDuration(1000)
+                .setFragmentDuration(250)
+                .setMaxSegments(10)
+                .build();
+
+        writeStream(segmenter, 90 /* frames */, 30 /* iframe interval */);
+        segmenter.close();
+
+        String playlist = read(segmenter.getPlaylist());
+        assertTrue(playlist.startsWith("#EXTM3U\n"));
+        assertTrue(playlist.contains("#EXT-X-MAP:URI=\"init_0.mp4\"\n"));
+        assertTrue(playlist.contains("#EXTINF:1.000,\nsegment_0.m4s\n"));
+        assertTrue(playlist.contains("#EXTINF:1.000,\nsegment_1.m4s\n"));
+        assertTrue(playlist.contains("#EXTINF:1.000,\nsegment_2.m4s\n"));
+        assertTrue(playlist.endsWith("#EXT-X-ENDLIST\n"));
+
+        byte[] init = Files.readAllBytes(new File(directory, "init_0.mp4").toPath());
+        assertEquals("ftyp", new String(init, 4, 4, StandardCharsets.US_ASCII));
+
+        byte[] segment = Files.readAllBytes(new File(directory, "segment_0.m4s").toPath());
+        assertEquals("moof", new String(segment, 4, 4, StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testOldSegmentsAreDeleted() throws IOException {
+        File directory = mTemporaryFolder.newFolder();
+        HlsSegmenter segmenter = new HlsSegmenter.Builder(directory)
+                .setSegmentDuration(1000)
+                .setMaxSegments(2)
+                .build();
+
+        writeStream(segmenter, 150 /* frames */, 30 /* iframe interval */);
+        segmenter.close();
+
+        assertFalse(new File(directory, "segment_0.m4s").exists());
+        assertFalse(new File(directory, "segment_2.m4s").exists());
+        assertTrue(new File(directory, "segment_3.m4s").exists());
+        assertTrue(new File(directory, "segment_4.m4s").exists());
+
+        String playlist = read(segmenter.getPlaylist());
+        assertTrue(playlist.contains("#EXT-X-MEDIA-SEQUENCE:3\n"));
+        assertFalse(playlist.contains("segment_2.m4s"));
+    }
+
+    @Test
+    public void testNoSegmentBeforeKeyFrame() throws IOException {
+        File directory = mTemporaryFolder.newFolder();
+        HlsSegmenter segmenter = new HlsSegmenter.Builder(directory).build();
+
+        segmenter.onFrame(header());
+        segmenter.onFrame(codecConfig());
+        segmenter.onFrame(frame(0, false));
+        segmenter.onFrame(frame(33_333, false));
+
+        assertEquals(0, segmenter.getSegmentCount());
+        assertFalse(new File(directory, "segment_0.m4s").exists());
+        segmenter.close();
+    }
+
+    @Test
+    public void testDecodeTimePastSixHours() throws IOException {
+        File directory = mTemporaryFolder.newFolder();
+        HlsSegmenter segmenter = new HlsSegmenter.Builder(directory)
+                .setSegmentDuration(1000)
+                .build();
+
+        // At 90kHz, 7 hours is past the range of an int.
+        long sevenHoursUs = 7 * 60 * 60 * 1_000_000L;
+        segmenter.onFrame(header());
+        segmenter.onFrame(codecConfig());
+        segmenter.onFrame(frame(0, true));
+        segmenter.onFrame(frame(sevenHoursUs, true));
+        segmenter.onFrame(frame(sevenHoursUs + 33_333, false));
+        segmenter.close();
+
+        byte[] segment = Files.readAllBytes(new File(directory, "segment_1.m4s").toPath());
+        assertEquals(sevenHoursUs * 90_000 / 1_000_000, readDecodeTime(segment));
+    }
+
+    /** Returns the base decode time of the first fragment in the segment. */
+    private static long readDecodeTime(byte[] segment) {
+        String boxes = new String(segment, StandardCharsets.US_ASCII);
+        int tfdt = boxes.indexOf("tfdt");
+        assertTrue(tfdt > 0);
+        ByteBuffer buffer = ByteBuffer.wrap(segment);
+        assertEquals(1, segment[tfdt + 4]); // version 1, for a 64 bit time
+        return buffer.getLong(tfdt + 8);
+    }
+
+    private static void writeStream(HlsSegmenter segmenter, int frames, int iframeInterval) throws IOException {
+        segmenter.onFrame(header());
+        segmenter.onFrame(codecConfig());
+        for (int i = 0; i < frames; i++) {
+            segmenter.onFrame(frame(i * 1_000_000L / 30, i % iframeInterval == 0));
+        }
+    }
+
+    private static VideoFrame header() {
+        return new VideoFrame.Builder(VideoFrame.Type.HEADER)
+                .width(640)
+                .height(480)
+                .orientation(90)
+                .frameRate(30)
+                .build();
+    }
+
+    private static VideoFrame codecConfig() {
+        return new VideoFrame.Builder(VideoFrame.Type.DATA)
+                .data(CODEC_CONFIG)
+                .flags(MediaCodec.BUFFER_FLAG_CODEC_CONFIG)
+                .build();
+    }
+
+    private static VideoFrame frame(long presentationTimeUs, boolean keyFrame) {
+        return new VideoFrame.Builder(VideoFrame.Type.DATA)
+                .data(new byte[]{0, 0, 0, 1, (byte) (keyFrame ? 0x65 : 0x41), 1, 2, 3})
+                .presentationTimeUs(presentationTimeUs)
+                .flags(keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0)
+                .build();
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+}
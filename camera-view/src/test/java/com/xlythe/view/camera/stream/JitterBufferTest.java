@@ -0,0 +1,241 @@
+package com.xlythe.view.camera.stream;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = 21)
+public class JitterBufferTest {
+    private static final int SAMPLE_RATE = 8000;
+    /** 20ms of audio. */
+    private static final int PACKET_LENGTH = 160;
+    private static final long PACKET_DURATION_US = 20_000;
+
+    private static short[] packet(int value) {
+        short[] samples = new short[PACKET_LENGTH];
+        Arrays.fill(samples, (short) value);
+        return samples;
+    }
+
+    /** Puts a packet that arrives exactly on time. */
+    private static void put(JitterBuffer buffer, int sequence, int value) {
+        long presentationTimeUs = sequence * PACKET_DURATION_US;
+        buffer.put(sequence, presentationTimeUs, packet(value), presentationTimeUs + 5_000);
+    }
+
+    private static short[] read(JitterBuffer buffer) {
+        short[] out = new short[PACKET_LENGTH];
+        buffer.read(out, PACKET_LENGTH);
+        return out;
+    }
+
+    private static void assertAll(int expected, short[] samples) {
+        for (short sample : samples) {
+            assertEquals(expected, sample);
+        }
+    }
+
+    @Test
+    public void testBuffersBeforePlaying() {
+        JitterBuffer buffer = new JitterBuffer(SAMPLE_RATE);
+        assertAll(0, read(buffer));
+        assertEquals(0, buffer.getConcealedPacketCount());
+    }
+
+    @Test
+    public void testPlaysInOrder() {
+        JitterBuffer buffer = new JitterBuffer(SAMPLE_RATE);
+        put(buffer, 1, 2000);
+        put(buffer, 0, 1000);
+
+        assertAll(1000, read(buffer));
+        assertAll(2000, read(buffer));
+        assertEquals(0, buffer.getConcealedPacketCount());
+    }
+
+    @Test
+    public void testReusesPlayedBuffers() {
+        JitterBuffer buffer = new JitterBuffer(SAMPLE_RATE);
+
+        // Only the first half of the array is audio.
+        short[] first = buffer.obtainBuffer(PACKET_LENGTH * 2);
+        Arrays.fill(first, 0, PACKET_LENGTH, (short) 1000);
+        Arrays.fill(first, PACKET_LENGTH, first.length, (short) 9999);
+        buffer.put(0, 0, first, PACKET_LENGTH, 5_000);
+        put(buffer, 1, 2000);
+
+        assertAll(1000, read(buffer));
+        assertAll(2000, read(buffer));
+
+        // The first packet has been played, so its array can be decoded into again.
+        assertSame(first, buffer.obtainBuffer(PACKET_LENGTH));
+        assertEquals(PACKET_LENGTH * 3, buffer.obtainBuffer(PACKET_LENGTH * 3).length);
+    }
+
+    @Test
+    public void testConcealsLostPacket() {
+        JitterBuffer buffer = new JitterBuffer(SAMPLE_RATE);
+        put(buffer, 0, 1000);
+        put(buffer, 2, 3000);
+
+        assertAll(1000, read(buffer));
+
+        // The previous packet is repeated, fading out, over a little comfort noise.
+        short[] concealed = read(buffer);
+        for (short sample : concealed) {
+            assertTrue("Unexpected sample " + sample, sample > 300 && sample < 1400);
+        }
+        assertEquals(1, buffer.getConcealedPacketCount());
+
+        assertAll(3000, read(buffer));
+    }
+
+    @Test
+    public void testFadesToComfortNoise() {
+        JitterBuffer buffer = new JitterBuffer(SAMPLE_RATE);
+        put(buffer, 0, 10000);
+        read(buffer);
+
+        short[] samples = null;
+        for (int i = 0; i < JitterBuffer.MAX_REPEATS + 1; i++) {
+            samples = read(buffer);
+        }
+        for (short sample : samples) {
+            assertTrue("Unexpected sample " + sample, Math.abs(sample) <= 300);
+        }
+        assertEquals(JitterBuffer.MAX_REPEATS + 1, buffer.getConcealedPacketCount());
+
+        // A packet that's late, rather than lost, is still played as soon as it arrives.
+        put(buffer, 1, 2000);
+        short[] out = new short[PACKET_LENGTH / 2];
+        buffer.read(out, out.length);
+        for (int i = 1; i < out.length; i++) {
+            assertEquals(2000, out[i]);
+        }
+        assertEquals(0, buffer.getDiscardedPacketCount());
+    }
+
+    @Test
+    public void testDiscardsLatePacket() {
+        JitterBuffer buffer = new JitterBuffer(SAMPLE_RATE);
+        put(buffer, 0, 1000);
+        put(buffer, 2, 3000);
+        read(buffer);
+        read(buffer);
+
+        // Packet 1 was already concealed.
+        put(buffer, 1, 2000);
+        assertEquals(1, buffer.getDiscardedPacketCount());
+        assertAll(3000, read(buffer));
+    }
+
+    @Test
+    public void testSilenceMarkers() {
+        JitterBuffer buffer = new JitterBuffer(SAMPLE_RATE);
+        put(buffer, 0, 200);
+        buffer.putSilence(1, PACKET_DURATION_US, PACKET_DURATION_US, PACKET_DURATION_US + 5_000);
+
+        assertAll(200, read(buffer));
+        put(buffer, 2, 3000);
+
+        // Filled in with comfort noise at the level of the quietest recent audio.
+        short[] silence = read(buffer);
+        boolean hasNoise = false;
+        for (short sample : silence) {
+            assertTrue("Unexpected sample " + sample, Math.abs(sample) <= 200);
+            hasNoise |= sample != 0;
+        }
+        assertTrue(hasNoise);
+
+        assertAll(3000, read(buffer));
+        assertEquals(0, buffer.getConcealedPacketCount());
+    }
+
+    @Test
+    public void testSilenceWithoutComfortNoise() {
+        JitterBuffer buffer = new JitterBuffer(SAMPLE_RATE);
+        buffer.setComfortNoiseEnabled(false);
+        put(buffer, 0, 200);
+        buffer.putSilence(1, PACKET_DURATION_US, PACKET_DURATION_US, PACKET_DURATION_US + 5_000);
+
+        assertAll(200, read(buffer));
+        assertAll(0, read(buffer));
+    }
+
+    @Test
+    public void testTargetDelayFollowsJitter() {
+        JitterBuffer buffer = new JitterBuffer(SAMPLE_RATE);
+        for (int i = 0; i < 10; i++) {
+            put(buffer, i, 1000);
+        }
+        assertEquals(0, buffer.getJitterUs());
+        assertEquals(JitterBuffer.MIN_DELAY_MS * 1000L, buffer.getTargetDelayUs());
+
+        // Every other packet arrives 30ms late.
+        buffer = new JitterBuffer(SAMPLE_RATE);
+        for (int i = 0; i < 50; i++) {
+            long presentationTimeUs = i * PACKET_DURATION_US;
+            buffer.put(i, presentationTimeUs, packet(1000), presentationTimeUs + (i % 2) * 30_000);
+        }
+        assertTrue(buffer.getJitterUs() > 0);
+        assertTrue(buffer.getTargetDelayUs() > JitterBuffer.MIN_DELAY_MS * 1000L);
+        assertTrue(buffer.getTargetDelayUs() <= JitterBuffer.MAX_TARGET_DELAY_MS * 1000L);
+    }
+
+    @Test
+    public void testPlaybackRate() {
+        JitterBuffer buffer = new JitterBuffer(SAMPLE_RATE);
+        for (int i = 0; i < 10; i++) {
+            put(buffer, i, 1000);
+        }
+
+        // Far more buffered than needed, so playback speeds up until it catches up.
+        assertEquals(1 + JitterBuffer.MAX_RATE_CHANGE, buffer.getPlaybackRate(), 0.0001f);
+        long delayUs = buffer.getDelayUs();
+        short[] out = new short[PACKET_LENGTH * 5];
+        buffer.read(out, out.length);
+        assertTrue(buffer.getDelayUs() < delayUs - 5 * PACKET_DURATION_US);
+
+        // Almost nothing buffered, so playback slows down to build up a cushion.
+        buffer = new JitterBuffer(SAMPLE_RATE);
+        put(buffer, 0, 1000);
+        buffer.read(out, 100);
+        assertEquals(1 - JitterBuffer.MAX_RATE_CHANGE, buffer.getPlaybackRate(), 0.0001f);
+    }
+
+    @Test
+    public void testDiscardsWhenFarBehind() {
+        JitterBuffer buffer = new JitterBuffer(SAMPLE_RATE);
+        for (int i = 0; i < 40; i++) {
+            put(buffer, i, 1000);
+        }
+
+        assertTrue(buffer.getDiscardedPacketCount() > 0);
+        assertTrue(buffer.getDelayUs() <= JitterBuffer.MAX_DELAY_MS * 1000L);
+    }
+
+    @Test
+    public void testMetrics() {
+        StreamMetrics metrics = new StreamMetrics();
+        JitterBuffer buffer = new JitterBuffer(SAMPLE_RATE);
+        buffer.setMetrics(metrics);
+        put(buffer, 0, 1000);
+        put(buffer, 2, 3000);
+        read(buffer);
+        read(buffer);
+        put(buffer, 1, 2000);
+
+        StreamStats stats = metrics.getStats();
+        assertEquals(1, stats.getAudioConcealedPacketCount());
+        assertEquals(1, stats.getAudioDiscardedPacketCount());
+        assertEquals(buffer.getDelayUs(), stats.getAudioJitterBufferDelayUs());
+    }
+}
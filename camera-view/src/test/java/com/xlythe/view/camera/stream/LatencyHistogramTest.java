@@ -0,0 +1,73 @@
+package com.xlythe.view.camera.stream;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = 21)
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBucketsCoverEveryValue() {
+        long previousUpperBound = -1;
+        for (int bucket = 0; bucket < 100; bucket++) {
+            long upperBound = LatencyHistogram.getUpperBound(bucket);
+            assertEquals(bucket, LatencyHistogram.getBucket(previousUpperBound + 1));
+            assertEquals(bucket, LatencyHistogram.getBucket(upperBound));
+            previousUpperBound = upperBound;
+        }
+    }
+
+    @Test
+    public void testBucketsAreWithinAQuarter() {
+        for (long value = 4; value < 10_000_000; value = value * 3 / 2 + 1) {
+            long upperBound = LatencyHistogram.getUpperBound(LatencyHistogram.getBucket(value));
+            assertTrue(upperBound >= value);
+            assertTrue(upperBound <= value * 1.25);
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 1000);
+        }
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(50_500, histogram.getAverageUs());
+        assertEquals(100_000, histogram.getMaxUs());
+        assertWithin(50_000, histogram.getPercentileUs(0.5));
+        assertWithin(90_000, histogram.getPercentileUs(0.9));
+        assertWithin(99_000, histogram.getPercentileUs(0.99));
+        assertEquals(100_000, histogram.getPercentileUs(1));
+    }
+
+    @Test
+    public void testNegativeValuesAreIgnored() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentileUs(0.5));
+    }
+
+    @Test
+    public void testReset() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1000);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMaxUs());
+        assertEquals(0, histogram.getPercentileUs(0.99));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("Expected about " + expected + " but was " + actual,
+                actual >= expected && actual <= expected * 1.25);
+    }
+}
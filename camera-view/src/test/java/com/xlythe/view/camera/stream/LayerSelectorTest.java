@@ -0,0 +1,135 @@
+package com.xlythe.view.camera.stream;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = 21)
+public class LayerSelectorTest {
+
+    @Test
+    public void testOnlySelectedLayerIsForwarded() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        LayerSelector selector = new LayerSelector(sink, 1);
+
+        sendConfig(selector, 0);
+        sendConfig(selector, 1);
+        selector.onFrame(frame(0, 0, true));
+        selector.onFrame(frame(1, 0, true));
+        selector.onFrame(frame(0, 1, false));
+        selector.onFrame(frame(1, 1, false));
+
+        assertEquals("[header1, config1, 1:0K, 1:1]", sink.describe());
+    }
+
+    @Test
+    public void testSwitchWaitsForKeyFrame() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        LayerSelector selector = new LayerSelector(sink, 0);
+        sendConfig(selector, 0);
+        sendConfig(selector, 1);
+        selector.onFrame(frame(0, 0, true));
+        selector.onFrame(frame(1, 0, true));
+
+        selector.setLayer(1);
+        assertEquals(0, selector.getLayer());
+        assertEquals(1, selector.getRequestedLayer());
+
+        selector.onFrame(frame(0, 1, false));
+        selector.onFrame(frame(1, 1, false));
+        selector.onFrame(frame(0, 2, false));
+        assertEquals(0, selector.getLayer());
+
+        selector.onFrame(frame(1, 3, true));
+        selector.onFrame(frame(0, 3, true));
+        selector.onFrame(frame(1, 4, false));
+        assertEquals(1, selector.getLayer());
+
+        assertEquals("[header0, config0, 0:0K, 0:1, 0:2, header1, config1, 1:3K, 1:4]", sink.describe());
+    }
+
+    @Test
+    public void testSwitchRequestsKeyFrame() {
+        LayerSelector selector = new LayerSelector(new RecordingSink(), 0);
+        List<Integer> requests = new ArrayList<>();
+        selector.setOnLayerRequestedListener(requests::add);
+
+        selector.setLayer(0);
+        selector.setLayer(1);
+        selector.setLayer(1);
+        selector.setLayer(0);
+
+        // Switching back to the current layer before the switch happened doesn't need a key frame.
+        assertEquals("[1]", requests.toString());
+    }
+
+    @Test
+    public void testCloseIsIdempotent() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        LayerSelector selector = new LayerSelector(sink, 0);
+
+        selector.close();
+        selector.close();
+        selector.onFrame(frame(0, 0, true));
+
+        assertEquals(1, sink.mCloseCount);
+        assertTrue(sink.mFrames.isEmpty());
+    }
+
+    private static void sendConfig(LayerSelector selector, int layer) throws Exception {
+        selector.onFrame(new VideoFrame.Builder(VideoFrame.Type.HEADER).layer(layer).width(640 >> layer).height(480 >> layer).build());
+        selector.onFrame(new VideoFrame.Builder(VideoFrame.Type.DATA)
+                .layer(layer)
+                .data(new byte[] {0, 0, 0, 1, 0x67})
+                .flags(MediaCodec.BUFFER_FLAG_CODEC_CONFIG)
+                .build());
+    }
+
+    private static VideoFrame frame(int layer, long index, boolean keyFrame) {
+        return new VideoFrame.Builder(VideoFrame.Type.DATA)
+                .layer(layer)
+                .data(new byte[] {0, 0, 0, 1, 0x65})
+                .presentationTimeUs(index)
+                .flags(keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0)
+                .build();
+    }
+
+    private static class RecordingSink extends FrameSink {
+        private final List<VideoFrame> mFrames = new ArrayList<>();
+        private int mCloseCount;
+
+        @Override
+        void onFrame(VideoFrame frame) {
+            mFrames.add(frame);
+        }
+
+        @Override
+        public void close() {
+            mCloseCount++;
+        }
+
+        String describe() {
+            List<String> descriptions = new ArrayList<>();
+            for (VideoFrame frame : mFrames) {
+                if (frame.getType() == VideoFrame.Type.HEADER) {
+                    descriptions.add("header" + frame.getLayer());
+                } else if (frame.isCodecConfig()) {
+                    descriptions.add("config" + frame.getLayer());
+                } else {
+                    descriptions.add(frame.getLayer() + ":" + frame.getPresentationTimeUs() + (frame.isKeyFrame() ? "K" : ""));
+                }
+            }
+            return descriptions.toString();
+        }
+    }
+}
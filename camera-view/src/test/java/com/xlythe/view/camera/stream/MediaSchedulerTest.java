@@ -0,0 +1,206 @@
+package com.xlythe.view.camera.stream;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = 21)
+public class MediaSchedulerTest {
+
+    @Test
+    public void testTaskRunsAndFinishes() throws Exception {
+        MediaScheduler scheduler = new MediaScheduler(2);
+        CountDownLatch ran = new CountDownLatch(1);
+        MediaScheduler.Task task = scheduler.submit("test", MediaScheduler.PRIORITY_VIDEO, ran::countDown);
+
+        assertTrue(task.await(1000));
+        assertTrue(task.isDone());
+        assertEquals(0, ran.getCount());
+        assertEquals(1, scheduler.getStats().getCompletedTaskCount());
+    }
+
+    @Test
+    public void testThreadCap() throws Exception {
+        MediaScheduler scheduler = new MediaScheduler(2);
+        CountDownLatch release = new CountDownLatch(1);
+        List<MediaScheduler.Task> tasks = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            tasks.add(scheduler.submit("task" + i, MediaScheduler.PRIORITY_VIDEO, () -> awaitQuietly(release)));
+        }
+
+        waitForRunning(scheduler, 2);
+        MediaScheduler.Stats stats = scheduler.getStats();
+        assertEquals(2, stats.getThreadCount());
+        assertEquals(2, stats.getQueuedTaskCount());
+
+        release.countDown();
+        for (MediaScheduler.Task task : tasks) {
+            assertTrue(task.await(1000));
+        }
+        assertEquals(2, scheduler.getStats().getPeakThreadCount());
+        assertEquals(4, scheduler.getStats().getCompletedTaskCount());
+    }
+
+    @Test
+    public void testLoopsAreNotCapped() throws Exception {
+        MediaScheduler scheduler = new MediaScheduler(2);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch running = new CountDownLatch(5);
+        List<MediaScheduler.Task> loops = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            loops.add(scheduler.submitLoop("loop" + i, MediaScheduler.PRIORITY_VIDEO, () -> {
+                running.countDown();
+                awaitQuietly(release);
+            }));
+        }
+
+        // Every loop runs at once, and the pool is still free for short tasks.
+        assertTrue(running.await(1000, TimeUnit.MILLISECONDS));
+        MediaScheduler.Task task = scheduler.submit("task", MediaScheduler.PRIORITY_ANALYSIS, () -> {});
+        assertTrue(task.await(1000));
+        assertEquals(5, scheduler.getStats().getLoopCount());
+
+        release.countDown();
+        for (MediaScheduler.Task loop : loops) {
+            assertTrue(loop.await(1000));
+        }
+        assertEquals(0, scheduler.getStats().getLoopCount());
+    }
+
+    @Test
+    public void testCancelledBeforeStartIsDone() throws Exception {
+        MediaScheduler scheduler = new MediaScheduler(1);
+        for (int i = 0; i < 100; i++) {
+            CountDownLatch ran = new CountDownLatch(1);
+            MediaScheduler.Task task = scheduler.submitLoop("loop", MediaScheduler.PRIORITY_VIDEO, ran::countDown);
+            task.cancel();
+            assertTrue(task.await(1000));
+        }
+    }
+
+    @Test
+    public void testQueuedTasksStartByPriority() throws Exception {
+        MediaScheduler scheduler = new MediaScheduler(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        MediaScheduler.Task blocker = scheduler.submit("blocker", MediaScheduler.PRIORITY_VIDEO, () -> awaitQuietly(release));
+        waitForRunning(scheduler, 1);
+
+        MediaScheduler.Task analysis = scheduler.submit("analysis", MediaScheduler.PRIORITY_ANALYSIS, () -> order.add("analysis"));
+        MediaScheduler.Task video = scheduler.submit("video", MediaScheduler.PRIORITY_VIDEO, () -> order.add("video"));
+        MediaScheduler.Task audio = scheduler.submit("audio", MediaScheduler.PRIORITY_AUDIO, () -> order.add("audio"));
+        release.countDown();
+
+        assertTrue(blocker.await(1000));
+        assertTrue(analysis.await(1000));
+        assertTrue(video.await(1000));
+        assertTrue(audio.await(1000));
+        assertEquals("[audio, video, analysis]", order.toString());
+    }
+
+    @Test
+    public void testCancelQueuedTask() throws Exception {
+        MediaScheduler scheduler = new MediaScheduler(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch ran = new CountDownLatch(1);
+        MediaScheduler.Task blocker = scheduler.submit("blocker", MediaScheduler.PRIORITY_VIDEO, () -> awaitQuietly(release));
+        MediaScheduler.Task queued = scheduler.submit("queued", MediaScheduler.PRIORITY_VIDEO, ran::countDown);
+
+        queued.cancel();
+        assertTrue(queued.isCancelled());
+        assertTrue(queued.isDone());
+
+        release.countDown();
+        assertTrue(blocker.await(1000));
+        assertFalse(ran.await(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testCancelRunningTaskInterrupts() throws Exception {
+        MediaScheduler scheduler = new MediaScheduler(1);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        MediaScheduler.Task task = scheduler.submit("sleeper", MediaScheduler.PRIORITY_ANALYSIS, () -> {
+            try {
+                Thread.sleep(10000);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+            }
+        });
+        waitForRunning(scheduler, 1);
+
+        task.cancel();
+        assertTrue(task.await(1000));
+        assertEquals(0, interrupted.getCount());
+    }
+
+    @Test
+    public void testAwaitTimesOut() throws Exception {
+        MediaScheduler scheduler = new MediaScheduler(1);
+        CountDownLatch release = new CountDownLatch(1);
+        MediaScheduler.Task task = scheduler.submit("blocker", MediaScheduler.PRIORITY_VIDEO, () -> awaitQuietly(release));
+
+        assertFalse(task.await(50));
+        release.countDown();
+        assertTrue(task.await(1000));
+    }
+
+    @Test
+    public void testLifecycleListener() throws Exception {
+        MediaScheduler scheduler = new MediaScheduler(1);
+        List<String> events = Collections.synchronizedList(new ArrayList<>());
+        scheduler.setLifecycleListener(new MediaScheduler.LifecycleListener() {
+            @Override
+            public void onTaskStarted(MediaScheduler.Task task) {
+                events.add("started " + task.getName());
+            }
+
+            @Override
+            public void onTaskFinished(MediaScheduler.Task task, long durationMillis) {
+                events.add("finished " + task.getName());
+            }
+        });
+
+        MediaScheduler.Task task = scheduler.submit("test", MediaScheduler.PRIORITY_AUDIO, () -> {});
+        assertTrue(task.await(1000));
+        assertEquals("[started test, finished test]", events.toString());
+    }
+
+    @Test
+    public void testThreadNameDuringTask() throws Exception {
+        MediaScheduler scheduler = new MediaScheduler(1);
+        List<String> names = new ArrayList<>();
+        MediaScheduler.Task task = scheduler.submit("VideoRecorder", MediaScheduler.PRIORITY_VIDEO,
+                () -> names.add(Thread.currentThread().getName()));
+        assertTrue(task.await(1000));
+        assertTrue(names.get(0).contains("VideoRecorder"));
+        assertTrue(names.get(0).startsWith("CameraView-media-"));
+    }
+
+    private static void waitForRunning(MediaScheduler scheduler, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 1000;
+        while (scheduler.getStats().getRunningTasks().size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, scheduler.getStats().getRunningTasks().size());
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.xlythe.view.camera.stream;
+
+import android.media.MediaCodec;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = 21)
+public class Mp4SinkTest {
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    /** An SPS and PPS for 640x480. */
+    private static final byte[] CODEC_CONFIG = new byte[]{
+            0, 0, 0, 1, 0x67, 0x42, 0x00, 0x1F,
+            0, 0, 0, 1, 0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+
+    /** An SPS and PPS for 320x240, at a lower level. */
+    private static final byte[] SMALL_CODEC_CONFIG = new byte[]{
+            0, 0, 0, 1, 0x67, 0x42, 0x00, 0x0D,
+            0, 0, 0, 1, 0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+
+    @Test
+    public void testRestartAtNewSizeRollsToNewFile() throws IOException {
+        File directory = mTemporaryFolder.newFolder();
+        File file = new File(directory, "clip.mp4");
+        Mp4Sink sink = new Mp4Sink(file);
+
+        sink.onFrame(header(640, 480));
+        sink.onFrame(codecConfig(CODEC_CONFIG));
+        sink.onFrame(frame(0, true));
+        sink.onFrame(frame(33_333, false));
+
+        // The encoder restarts at a smaller size, as it would when a QualityGovernor steps down.
+        sink.onFrame(header(320, 240));
+        sink.onFrame(codecConfig(SMALL_CODEC_CONFIG));
+        sink.onFrame(frame(66_666, true));
+        sink.onFrame(frame(100_000, false));
+
+        // Restarting with the same format, eg. for a new priority, carries on in the same file.
+        sink.onFrame(header(320, 240));
+        sink.onFrame(codecConfig(SMALL_CODEC_CONFIG));
+        sink.onFrame(frame(133_333, true));
+        sink.close();
+
+        assertEquals(Arrays.asList(file, new File(directory, "clip-1.mp4")), sink.getFiles());
+    }
+
+    @Test
+    public void testRestartBeforeAnyFramesKeepsFileName() throws IOException {
+        File file = new File(mTemporaryFolder.newFolder(), "clip.mp4");
+        Mp4Sink sink = new Mp4Sink(file);
+
+        sink.onFrame(header(640, 480));
+        sink.onFrame(codecConfig(CODEC_CONFIG));
+        sink.onFrame(header(320, 240));
+        sink.onFrame(codecConfig(SMALL_CODEC_CONFIG));
+        sink.onFrame(frame(0, true));
+        sink.close();
+
+        assertEquals(Collections.singletonList(file), sink.getFiles());
+    }
+
+    @Test
+    public void testEmptyFileIsDeleted() throws IOException {
+        File file = new File(mTemporaryFolder.newFolder(), "clip.mp4");
+        Mp4Sink sink = new Mp4Sink(file);
+
+        sink.onFrame(header(640, 480));
+        sink.onFrame(codecConfig(CODEC_CONFIG));
+        sink.close();
+
+        assertEquals(Collections.emptyList(), sink.getFiles());
+    }
+
+    private static VideoFrame header(int width, int height) {
+        return new VideoFrame.Builder(VideoFrame.Type.HEADER)
+                .width(width)
+                .height(height)
+                .orientation(90)
+                .frameRate(30)
+                .build();
+    }
+
+    private static VideoFrame codecConfig(byte[] data) {
+        return new VideoFrame.Builder(VideoFrame.Type.DATA)
+                .data(data)
+                .flags(MediaCodec.BUFFER_FLAG_CODEC_CONFIG)
+                .build();
+    }
+
+    private static VideoFrame frame(long presentationTimeUs, boolean keyFrame) {
+        return new VideoFrame.Builder(VideoFrame.Type.DATA)
+                .data(new byte[]{0, 0, 0, 1, (byte) (keyFrame ? 0x65 : 0x41), 1, 2, 3})
+                .presentationTimeUs(presentationTimeUs)
+                .flags(keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0)
+                .build();
+    }
+}
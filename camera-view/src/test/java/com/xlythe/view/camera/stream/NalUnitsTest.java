@@ -0,0 +1,52 @@
+package com.xlythe.view.camera.stream;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = 21)
+public class NalUnitsTest {
+
+    @Test
+    public void testSplitCodecConfig() {
+        byte[] codecConfig = new byte[]{
+                0, 0, 0, 1, 0x67, 0x42, 0x00, 0x1F,
+                0, 0, 0, 1, 0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+
+        List<byte[]> units = NalUnits.split(codecConfig);
+
+        assertEquals(2, units.size());
+        assertEquals(NalUnits.TYPE_SPS, NalUnits.getType(units.get(0)[0]));
+        assertArrayEquals(new byte[]{0x67, 0x42, 0x00, 0x1F}, units.get(0));
+        assertEquals(NalUnits.TYPE_PPS, NalUnits.getType(units.get(1)[0]));
+        assertArrayEquals(new byte[]{0x68, (byte) 0xCE, 0x3C, (byte) 0x80}, units.get(1));
+    }
+
+    @Test
+    public void testSplitThreeByteStartCodes() {
+        byte[] data = new byte[]{0, 0, 1, 0x65, 1, 2, 0, 0, 1, 0x41, 3};
+
+        List<byte[]> units = NalUnits.split(data);
+
+        assertEquals(2, units.size());
+        assertArrayEquals(new byte[]{0x65, 1, 2}, units.get(0));
+        assertArrayEquals(new byte[]{0x41, 3}, units.get(1));
+    }
+
+    @Test
+    public void testSplitWithoutStartCode() {
+        byte[] data = new byte[]{0x65, 1, 2, 3};
+
+        List<byte[]> units = NalUnits.split(data);
+
+        assertEquals(1, units.size());
+        assertArrayEquals(data, units.get(0));
+    }
+}
@@ -0,0 +1,259 @@
+package com.xlythe.view.camera.stream;
+
+import androidx.annotation.Nullable;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = 21)
+public class QualityGovernorTest {
+    private static final long STEP_UP_DELAY_MILLIS = 60_000;
+
+    private static class FakeThermalSource implements ThermalSource {
+        int mStatus = Status.NONE;
+        float mHeadroom = Float.NaN;
+        @Nullable OnThermalStatusChangedListener mListener;
+
+        @Override
+        public int getThermalStatus() {
+            return mStatus;
+        }
+
+        @Override
+        public float getThermalHeadroom(int forecastSeconds) {
+            return mHeadroom;
+        }
+
+        @Override
+        public void setOnThermalStatusChangedListener(@Nullable OnThermalStatusChangedListener listener) {
+            mListener = listener;
+        }
+    }
+
+    private static class RecordingTarget implements QualityGovernor.Target {
+        final List<QualityGovernor.Level> mLevels = new ArrayList<>();
+
+        @Override
+        public void onQualityChanged(QualityGovernor.Level level) {
+            mLevels.add(level);
+        }
+    }
+
+    private final FakeThermalSource mSource = new FakeThermalSource();
+    private final RecordingTarget mTarget = new RecordingTarget();
+
+    private QualityGovernor createGovernor() {
+        QualityGovernor governor = new QualityGovernor(mSource, QualityGovernor.getDefaultLadder());
+        governor.setStepUpDelayMillis(STEP_UP_DELAY_MILLIS);
+        governor.addTarget(mTarget);
+        return governor;
+    }
+
+    @Test
+    public void testStartsAtFullQuality() {
+        QualityGovernor governor = createGovernor();
+
+        assertEquals(0, governor.getCurrentLevelIndex());
+        assertEquals(Collections.singletonList(governor.getLadder().get(0)), mTarget.mLevels);
+        assertNotNull(mSource.mListener);
+    }
+
+    @Test
+    public void testStepsDownWithThermalStatus() {
+        QualityGovernor governor = createGovernor();
+
+        // Light throttling isn't worth losing quality over.
+        mSource.mStatus = ThermalSource.Status.LIGHT;
+        governor.update(1000);
+        assertEquals(0, governor.getCurrentLevelIndex());
+
+        mSource.mStatus = ThermalSource.Status.MODERATE;
+        governor.update(2000);
+        assertEquals(1, governor.getCurrentLevelIndex());
+
+        // Stepping down skips straight to the level the heat calls for.
+        mSource.mStatus = ThermalSource.Status.CRITICAL;
+        governor.update(3000);
+        assertEquals(3, governor.getCurrentLevelIndex());
+
+        // And never goes past the bottom of the ladder.
+        mSource.mStatus = ThermalSource.Status.SHUTDOWN;
+        governor.update(4000);
+        assertEquals(governor.getLadder().size() - 1, governor.getCurrentLevelIndex());
+
+        assertEquals(Arrays.asList(
+                governor.getLadder().get(0),
+                governor.getLadder().get(1),
+                governor.getLadder().get(3),
+                governor.getLadder().get(4)), mTarget.mLevels);
+    }
+
+    @Test
+    public void testStepsDownWithHeadroom() {
+        QualityGovernor governor = createGovernor();
+
+        mSource.mHeadroom = 0.5f;
+        governor.update(1000);
+        assertEquals(0, governor.getCurrentLevelIndex());
+
+        mSource.mHeadroom = 0.85f;
+        governor.update(2000);
+        assertEquals(1, governor.getCurrentLevelIndex());
+
+        mSource.mHeadroom = 1.05f;
+        governor.update(3000);
+        assertEquals(3, governor.getCurrentLevelIndex());
+    }
+
+    @Test
+    public void testStepsUpSlowly() {
+        QualityGovernor governor = createGovernor();
+
+        mSource.mStatus = ThermalSource.Status.SEVERE;
+        governor.update(1000);
+        assertEquals(2, governor.getCurrentLevelIndex());
+
+        // Cooling down doesn't restore quality until the device has stayed cool for a while.
+        mSource.mStatus = ThermalSource.Status.NONE;
+        governor.update(2000);
+        assertEquals(2, governor.getCurrentLevelIndex());
+        governor.update(1000 + STEP_UP_DELAY_MILLIS - 1);
+        assertEquals(2, governor.getCurrentLevelIndex());
+
+        // And then only one rung at a time.
+        governor.update(1000 + STEP_UP_DELAY_MILLIS);
+        assertEquals(1, governor.getCurrentLevelIndex());
+        governor.update(1000 + STEP_UP_DELAY_MILLIS * 2 - 1);
+        assertEquals(1, governor.getCurrentLevelIndex());
+        governor.update(1000 + STEP_UP_DELAY_MILLIS * 2);
+        assertEquals(0, governor.getCurrentLevelIndex());
+    }
+
+    @Test
+    public void testHeatingUpResetsStepUpDelay() {
+        QualityGovernor governor = createGovernor();
+
+        mSource.mStatus = ThermalSource.Status.SEVERE;
+        governor.update(1000);
+        mSource.mStatus = ThermalSource.Status.MODERATE;
+        governor.update(1000 + STEP_UP_DELAY_MILLIS);
+        assertEquals(1, governor.getCurrentLevelIndex());
+
+        mSource.mStatus = ThermalSource.Status.SEVERE;
+        governor.update(1000 + STEP_UP_DELAY_MILLIS + 1);
+        assertEquals(2, governor.getCurrentLevelIndex());
+
+        mSource.mStatus = ThermalSource.Status.NONE;
+        governor.update(1000 + STEP_UP_DELAY_MILLIS * 2);
+        assertEquals(2, governor.getCurrentLevelIndex());
+    }
+
+    @Test
+    public void testStepUpWaitsForCoolSpell() {
+        QualityGovernor governor = createGovernor();
+
+        // Hot for far longer than the step up delay, without any change in level.
+        mSource.mStatus = ThermalSource.Status.MODERATE;
+        for (long now = 1000; now <= 1000 + STEP_UP_DELAY_MILLIS * 5; now += 1000) {
+            governor.update(now);
+        }
+        assertEquals(1, governor.getCurrentLevelIndex());
+
+        // A single cool reading isn't a cool spell.
+        long cooledMillis = 2000 + STEP_UP_DELAY_MILLIS * 5;
+        mSource.mStatus = ThermalSource.Status.NONE;
+        governor.update(cooledMillis);
+        assertEquals(1, governor.getCurrentLevelIndex());
+        governor.update(cooledMillis + STEP_UP_DELAY_MILLIS - 1001);
+        assertEquals(1, governor.getCurrentLevelIndex());
+
+        // Quality returns once it has been cool since the last hot reading for the full delay.
+        governor.update(cooledMillis + STEP_UP_DELAY_MILLIS - 1000);
+        assertEquals(0, governor.getCurrentLevelIndex());
+    }
+
+    @Test
+    public void testListenerTriggersUpdate() {
+        QualityGovernor governor = createGovernor();
+
+        mSource.mStatus = ThermalSource.Status.SEVERE;
+        assertNotNull(mSource.mListener);
+        mSource.mListener.onThermalStatusChanged(mSource.mStatus);
+        assertEquals(2, governor.getCurrentLevelIndex());
+    }
+
+    @Test
+    public void testStopsListeningWithoutTargets() {
+        QualityGovernor governor = createGovernor();
+        governor.removeTarget(mTarget);
+        assertNull(mSource.mListener);
+
+        // New targets are told the current level straight away.
+        mSource.mStatus = ThermalSource.Status.MODERATE;
+        RecordingTarget target = new RecordingTarget();
+        governor.addTarget(target);
+        assertEquals(Collections.singletonList(governor.getLadder().get(1)), target.mLevels);
+    }
+
+    @Test
+    public void testCustomLadder() {
+        List<QualityGovernor.Level> ladder = Arrays.asList(
+                new QualityGovernor.Level.Builder().build(),
+                new QualityGovernor.Level.Builder().setBitRateScale(0.5f).build());
+        QualityGovernor governor = new QualityGovernor(mSource, ladder);
+        governor.addTarget(mTarget);
+
+        mSource.mStatus = ThermalSource.Status.EMERGENCY;
+        governor.update(1000);
+        assertEquals(1, governor.getCurrentLevelIndex());
+        assertEquals(ladder.get(1), governor.getCurrentLevel());
+    }
+
+    @Test
+    public void testLevel() {
+        QualityGovernor.Level level = new QualityGovernor.Level.Builder()
+                .setBitRateScale(0.5f)
+                .setMaxFrameRate(15)
+                .build();
+
+        assertEquals(1_000_000, level.scaleBitRate(2_000_000));
+        assertEquals(15, level.capFrameRate(30));
+        assertEquals(10, level.capFrameRate(10));
+        assertEquals(30, new QualityGovernor.Level.Builder().build().capFrameRate(30));
+    }
+
+    @Test
+    public void testInvalidLevels() {
+        try {
+            new QualityGovernor.Level.Builder().setBitRateScale(0).build();
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            new QualityGovernor.Level.Builder().setResolutionScale(1.5f).build();
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            new QualityGovernor(mSource, Collections.<QualityGovernor.Level>emptyList());
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
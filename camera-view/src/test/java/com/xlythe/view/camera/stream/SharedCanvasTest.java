@@ -0,0 +1,205 @@
+package com.xlythe.view.camera.stream;
+
+import android.graphics.SurfaceTexture;
+import android.view.Surface;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = 21)
+public class SharedCanvasTest {
+    private final TestCanvas mCamera = new TestCanvas();
+    private final List<TestRenderer> mRenderers = new ArrayList<>();
+    private final SharedCanvas mCanvas = new SharedCanvas(mCamera, (width, height) -> {
+        TestRenderer renderer = new TestRenderer();
+        mRenderers.add(renderer);
+        return renderer;
+    });
+
+    @Test
+    public void testLoneConsumerDrawsThroughRenderer() {
+        TestProvider consumer = new TestProvider();
+        mCanvas.attachSurface(consumer);
+        assertEquals(1, mCamera.mAttached.size());
+
+        // The camera is handed the renderer's surface, never the consumer's.
+        Surface surface = mCamera.mAttached.get(0).getSurface(1920, 1080, 90, false);
+        assertNotSame(consumer.mSurface, surface);
+        assertEquals(1, consumer.mRequests.size());
+        assertEquals(1920, consumer.mRequests.get(0)[0]);
+        assertEquals(1080, consumer.mRequests.get(0)[1]);
+        assertTrue(mRenderers.get(0).hasOutput(consumer.mSurface));
+
+        mCanvas.detachSurface(consumer);
+        assertTrue(mCamera.mAttached.isEmpty());
+        assertEquals(1, mCamera.mAttachCount);
+        assertTrue(mRenderers.get(0).mIsReleased);
+    }
+
+    @Test
+    public void testSecondConsumerJoinsWithoutAskingTheFirstAgain() throws InterruptedException {
+        TestProvider first = new TestProvider();
+        mCanvas.attachSurface(first);
+        Surface input = mCamera.mAttached.get(0).getSurface(1280, 720, 90, false);
+        TestRenderer renderer = mRenderers.get(0);
+
+        TestProvider second = new TestProvider();
+        mCanvas.attachSurface(second);
+        renderer.awaitOutputCount(2);
+        assertTrue(renderer.hasOutput(second.mSurface));
+        assertEquals(1280, second.mRequests.get(0)[0]);
+        assertEquals(720, second.mRequests.get(0)[1]);
+
+        // The first consumer's surface stays with the same renderer, and the camera isn't disturbed.
+        assertEquals(1, first.mRequests.size());
+        assertTrue(renderer.hasOutput(first.mSurface));
+        assertEquals(1, mCamera.mAttachCount);
+        assertEquals(1, mRenderers.size());
+
+        // Reconfiguring the camera keeps handing it the same surface.
+        assertEquals(input, mCamera.mAttached.get(0).getSurface(1920, 1080, 90, false));
+        assertEquals(1, first.mRequests.size());
+    }
+
+    @Test
+    public void testRestartingConsumerIsRebuiltOnItsOwn() throws InterruptedException {
+        TestProvider stream = new TestProvider();
+        TestProvider recorder = new TestProvider();
+        mCanvas.attachSurface(stream);
+        mCanvas.attachSurface(recorder);
+        mCamera.mAttached.get(0).getSurface(640, 480, 0, true);
+        TestRenderer renderer = mRenderers.get(0);
+        assertEquals(2, renderer.getOutputCount());
+
+        // The recorder's encoder restarts. Its old surface is let go of before detach returns.
+        mCanvas.detachSurface(recorder);
+        assertFalse(renderer.hasOutput(recorder.mSurface));
+        assertTrue(renderer.hasOutput(stream.mSurface));
+
+        TestProvider restarted = new TestProvider();
+        mCanvas.attachSurface(restarted);
+        renderer.awaitOutputCount(2);
+        assertEquals(1, stream.mRequests.size());
+        assertEquals(1, mCamera.mAttachCount);
+        assertEquals(2, mCanvas.getConsumerCount());
+    }
+
+    @Test
+    public void testConsumersAttachedBeforeCameraAsks() {
+        TestProvider stream = new TestProvider();
+        TestProvider recorder = new TestProvider();
+        TestProvider custom = new TestProvider();
+        mCanvas.attachSurface(stream);
+        mCanvas.attachSurface(recorder);
+        mCanvas.attachSurface(custom);
+        assertEquals(1, mCamera.mAttached.size());
+        assertEquals(3, mCanvas.getConsumerCount());
+
+        mCamera.mAttached.get(0).getSurface(640, 480, 0, true);
+        assertEquals(3, mRenderers.get(0).getOutputCount());
+
+        mCanvas.detachSurface(stream);
+        mCanvas.detachSurface(custom);
+        assertEquals(1, mCamera.mAttached.size());
+        assertEquals(1, mRenderers.get(0).getOutputCount());
+        assertTrue(mRenderers.get(0).hasOutput(recorder.mSurface));
+    }
+
+    @Test
+    public void testAttachTwiceAndUnknownDetach() {
+        TestProvider consumer = new TestProvider();
+        mCanvas.attachSurface(consumer);
+        mCanvas.attachSurface(consumer);
+        assertEquals(1, mCanvas.getConsumerCount());
+        assertEquals(1, mCamera.mAttachCount);
+
+        mCanvas.detachSurface(new TestProvider());
+        assertEquals(1, mCamera.mAttached.size());
+    }
+
+    private static class TestProvider implements VideoRecorder.SurfaceProvider {
+        private final Surface mSurface = new Surface(new SurfaceTexture(0));
+        private final List<int[]> mRequests = new ArrayList<>();
+
+        @Override
+        public Surface getSurface(int width, int height, int orientation, boolean flipped) {
+            mRequests.add(new int[] {width, height});
+            return mSurface;
+        }
+    }
+
+    private static class TestRenderer implements SurfaceSplitter.Renderer {
+        private final Surface mInputSurface = new Surface(new SurfaceTexture(0));
+        private final List<Surface> mOutputs = new ArrayList<>();
+        private boolean mIsReleased;
+
+        @Override
+        public Surface getInputSurface() {
+            return mInputSurface;
+        }
+
+        @Override
+        public void setInputSize(int width, int height) {}
+
+        @Override
+        public synchronized void addOutput(Surface surface, int width, int height) {
+            mOutputs.add(surface);
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void removeOutput(Surface surface) {
+            mOutputs.remove(surface);
+        }
+
+        @Override
+        public synchronized void release() {
+            mOutputs.clear();
+            mIsReleased = true;
+        }
+
+        synchronized int getOutputCount() {
+            return mOutputs.size();
+        }
+
+        synchronized boolean hasOutput(Surface surface) {
+            return mOutputs.contains(surface);
+        }
+
+        /** Consumers attached while the camera is running are added in the background. */
+        synchronized void awaitOutputCount(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 1000;
+            while (mOutputs.size() < count && System.currentTimeMillis() < deadline) {
+                wait(100);
+            }
+            assertEquals(count, mOutputs.size());
+        }
+    }
+
+    private static class TestCanvas implements VideoRecorder.Canvas {
+        private final List<VideoRecorder.SurfaceProvider> mAttached = new ArrayList<>();
+        private int mAttachCount;
+
+        @Override
+        public void attachSurface(VideoRecorder.SurfaceProvider surfaceProvider) {
+            mAttached.add(surfaceProvider);
+            mAttachCount++;
+        }
+
+        @Override
+        public void detachSurface(VideoRecorder.SurfaceProvider surfaceProvider) {
+            mAttached.remove(surfaceProvider);
+        }
+    }
+}
@@ -35,6 +35,18 @@ public class StreamComponentsTest {
         assertFalse(recorder.isRecording());
     }
 
+    @Test
+    public void testAudioLatency() {
+        // 480 frames were read, but the timestamp says frame 0 was captured 20ms ago at 48kHz. The
+        // last frame read was captured 10ms after frame 0, so it's been waiting for 10ms.
+        long nowNs = 1_000_000_000L;
+        assertEquals(10_000, AudioRecorder.getLatencyUs(nowNs, nowNs - 20_000_000L, 0, 480, 48000));
+
+        // 4800 frames were written, and frame 2400 was played just now. The last frame written
+        // plays in 2400 frames, or 50ms at 48kHz.
+        assertEquals(50_000, AudioPlayer.getLatencyUs(nowNs, nowNs, 2400, 4800, 48000));
+    }
+
     @Test
     public void testVideoPlayerBasic() {
         Surface mockSurface = Mockito.mock(Surface.class);
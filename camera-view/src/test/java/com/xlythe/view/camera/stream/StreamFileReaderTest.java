@@ -0,0 +1,122 @@
+package com.xlythe.view.camera.stream;
+
+import android.media.MediaCodec;
+
+import com.google.common.primitives.Ints;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = 21)
+public class StreamFileReaderTest {
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testSeekToKeyFrame() throws IOException {
+        File file = mTemporaryFolder.newFile("stream");
+        writeStream(file, 90 /* frames */, 30 /* iframe interval */);
+
+        try (StreamFileReader reader = new StreamFileReader(file)) {
+            assertEquals(3, reader.getKeyFrameCount());
+            assertEquals(timeOf(30), reader.getKeyFrameTimeUs(1));
+
+            DataInputStream inputStream = new DataInputStream(reader.seek(timeOf(45)));
+            assertEquals(VideoFrame.Type.HEADER, readFrame(inputStream).getType());
+            assertTrue(readFrame(inputStream).isCodecConfig());
+            VideoFrame frame = readFrame(inputStream);
+            assertTrue(frame.isKeyFrame());
+            assertEquals(timeOf(30), frame.getPresentationTimeUs());
+            assertEquals(timeOf(31), readFrame(inputStream).getPresentationTimeUs());
+        }
+    }
+
+    @Test
+    public void testSeekBeforeFirstKeyFrame() throws IOException {
+        File file = mTemporaryFolder.newFile("stream");
+        writeStream(file, 90 /* frames */, 30 /* iframe interval */);
+
+        try (StreamFileReader reader = new StreamFileReader(file)) {
+            DataInputStream inputStream = new DataInputStream(reader.seek(-1));
+            readFrame(inputStream);
+            readFrame(inputStream);
+            assertEquals(timeOf(0), readFrame(inputStream).getPresentationTimeUs());
+        }
+    }
+
+    @Test
+    public void testIndexIsRebuiltWithoutSidecar() throws IOException {
+        File file = mTemporaryFolder.newFile("stream");
+        writeStream(file, 90 /* frames */, 30 /* iframe interval */);
+        assertTrue(KeyFrameIndex.sidecarFor(file).delete());
+
+        try (StreamFileReader reader = new StreamFileReader(file)) {
+            assertEquals(3, reader.getKeyFrameCount());
+            assertEquals(timeOf(60), reader.getKeyFrameTimeUs(2));
+        }
+        assertFalse(KeyFrameIndex.sidecarFor(file).exists());
+    }
+
+    @Test
+    public void testTruncatedSidecarIsCaughtUp() throws IOException {
+        File file = mTemporaryFolder.newFile("stream");
+        writeStream(file, 90 /* frames */, 30 /* iframe interval */);
+        try (RandomAccessFile sidecar = new RandomAccessFile(KeyFrameIndex.sidecarFor(file), "rw")) {
+            // Keep one full entry, and half of the next.
+            sidecar.setLength(KeyFrameIndex.ENTRY_SIZE + KeyFrameIndex.ENTRY_SIZE / 2);
+        }
+
+        try (StreamFileReader reader = new StreamFileReader(file)) {
+            assertEquals(3, reader.getKeyFrameCount());
+            assertEquals(timeOf(60), reader.getKeyFrameTimeUs(2));
+        }
+    }
+
+    private static void writeStream(File file, int frames, int iframeInterval) throws IOException {
+        IndexedFileSink sink = new IndexedFileSink(file);
+        sink.onFrame(new VideoFrame.Builder(VideoFrame.Type.HEADER)
+                .width(640)
+                .height(480)
+                .build());
+        sink.onFrame(new VideoFrame.Builder(VideoFrame.Type.DATA)
+                .data(new byte[]{0, 0, 0, 1, 0x67, 0x42, 0x00, 0x1F})
+                .flags(MediaCodec.BUFFER_FLAG_CODEC_CONFIG)
+                .build());
+        for (int i = 0; i < frames; i++) {
+            sink.onFrame(new VideoFrame.Builder(VideoFrame.Type.DATA)
+                    .data(new byte[]{0, 0, 0, 1, 0x41, (byte) i})
+                    .presentationTimeUs(timeOf(i))
+                    .flags(i % iframeInterval == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0)
+                    .build());
+        }
+        sink.close();
+    }
+
+    private static long timeOf(int frame) {
+        return frame * 1_000_000L / 30;
+    }
+
+    private static VideoFrame readFrame(DataInputStream inputStream) throws IOException {
+        byte[] length = new byte[4];
+        inputStream.readFully(length);
+        byte[] frame = new byte[Ints.fromByteArray(length)];
+        inputStream.readFully(frame);
+        return VideoFrame.fromBytes(frame);
+    }
+}
@@ -0,0 +1,178 @@
+package com.xlythe.view.camera.stream;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = 21)
+public class StreamMetricsTest {
+
+    @Test
+    public void testEncoderStats() {
+        StreamMetrics metrics = new StreamMetrics();
+        long nowUs = System.nanoTime() / 1000;
+        metrics.onFrameEncoded(1000, nowUs - 20_000, true);
+        metrics.onFrameEncoded(200, nowUs - 10_000, false);
+        metrics.onFrameEncoded(300, nowUs - 10_000, false);
+
+        StreamStats stats = metrics.getStats();
+        assertEquals(3, stats.getEncodedFrameCount());
+        assertEquals(1, stats.getKeyFrameCount());
+        assertEquals(1500, stats.getEncodedBytes());
+        assertEquals(500, stats.getAverageFrameSize());
+        assertEquals(1000, stats.getMaxFrameSize());
+        assertTrue(stats.getMaxEncodeLatencyUs() >= 20_000);
+        assertTrue(stats.getAverageEncodeLatencyUs() >= 13_333);
+    }
+
+    @Test
+    public void testUnrelatedClocksAreIgnored() {
+        StreamMetrics metrics = new StreamMetrics();
+        metrics.onFrameEncoded(100, 0, true);
+        metrics.onFrameEncoded(100, Long.MAX_VALUE, false);
+
+        StreamStats stats = metrics.getStats();
+        assertEquals(2, stats.getEncodedFrameCount());
+        assertEquals(0, stats.getAverageEncodeLatencyUs());
+        assertEquals(0, stats.getMaxEncodeLatencyUs());
+    }
+
+    @Test
+    public void testIntervalsResetBetweenReports() {
+        StreamMetrics metrics = new StreamMetrics();
+        metrics.onFrameEncoded(1000, 0, true);
+        metrics.onFrameWritten(500);
+        metrics.takeIntervalStats();
+
+        metrics.onFrameEncoded(100, 0, false);
+        metrics.onFrameWritten(100);
+        metrics.onFrameWritten(300);
+        StreamStats stats = metrics.takeIntervalStats();
+
+        assertEquals(2, stats.getEncodedFrameCount());
+        assertEquals(100, stats.getAverageFrameSize());
+        assertEquals(100, stats.getMaxFrameSize());
+        assertEquals(200, stats.getAverageWriteLatencyUs());
+        assertEquals(300, stats.getMaxWriteLatencyUs());
+    }
+
+    @Test
+    public void testGetStatsIsPure() {
+        StreamMetrics metrics = new StreamMetrics();
+        metrics.onFrameEncoded(1000, 0, true);
+        metrics.onFrameWritten(500);
+        metrics.getStats();
+        metrics.takeIntervalStats();
+
+        metrics.onFrameEncoded(100, 0, false);
+        metrics.onFrameWritten(100);
+        StreamStats first = metrics.getStats();
+        StreamStats second = metrics.getStats();
+
+        // Reading the stats, or reporting an interval, doesn't reset what everyone else sees.
+        assertEquals(1000, first.getMaxFrameSize());
+        assertEquals(1000, second.getMaxFrameSize());
+        assertEquals(550, second.getAverageFrameSize());
+        assertEquals(500, second.getMaxWriteLatencyUs());
+        assertEquals(300, second.getAverageWriteLatencyUs());
+
+        // And reading the stats doesn't shorten the reporter's interval.
+        StreamStats interval = metrics.takeIntervalStats();
+        assertEquals(100, interval.getMaxFrameSize());
+        assertEquals(100, interval.getMaxWriteLatencyUs());
+    }
+
+    @Test
+    public void testDecoderStats() {
+        StreamMetrics metrics = new StreamMetrics();
+        metrics.onFrameQueued();
+        metrics.onFrameQueued();
+        metrics.onFrameQueued();
+        metrics.onFrameDecoded(true);
+        metrics.onFrameDecoded(false);
+
+        StreamStats stats = metrics.getStats();
+        assertEquals(1, stats.getDecoderQueueDepth());
+        assertEquals(1, stats.getRenderedFrameCount());
+    }
+
+    @Test
+    public void testAudioLatencyStats() {
+        StreamMetrics metrics = new StreamMetrics();
+        metrics.onLatency(LatencyHistogram.Stage.AUDIO_INPUT, 12_000);
+        metrics.onLatency(LatencyHistogram.Stage.AUDIO_INPUT, 8_000);
+        metrics.onLatency(LatencyHistogram.Stage.AUDIO_OUTPUT, 20_000);
+
+        StreamStats stats = metrics.getStats();
+        assertEquals(8_000, stats.getAudioInputLatencyUs());
+        assertEquals(20_000, stats.getAudioOutputLatencyUs());
+        assertEquals(28_000, stats.getAudioRoundTripLatencyUs());
+        assertEquals(2, metrics.getLatencyHistogram(LatencyHistogram.Stage.AUDIO_INPUT).getCount());
+    }
+
+    @Test
+    public void testAudioSuppressionStats() {
+        StreamMetrics metrics = new StreamMetrics();
+        assertEquals(0, metrics.getStats().getAudioSuppressionRatio(), 0);
+
+        metrics.onAudioRecorded(320, false);
+        metrics.onAudioRecorded(320, true);
+        metrics.onAudioRecorded(320, true);
+        metrics.onAudioRecorded(320, true);
+
+        StreamStats stats = metrics.getStats();
+        assertEquals(1280, stats.getAudioRecordedBytes());
+        assertEquals(960, stats.getAudioSuppressedBytes());
+        assertEquals(0.75f, stats.getAudioSuppressionRatio(), 0.0001f);
+    }
+
+    @Test
+    public void testPipeStats() throws IOException {
+        StreamMetrics metrics = new StreamMetrics();
+        PipedInputStream in = new PipedInputStream();
+        LossyPipedOutputStream out = new LossyPipedOutputStream(in);
+        out.setMetrics(metrics);
+        metrics.setPipe(in);
+
+        out.write(new byte[] {1, 2, 3});
+        out.flush();
+
+        // The reader hasn't caught up, so this frame is dropped.
+        out.write(new byte[] {0, 0, 0, 2});
+        out.write(new byte[] {4, 5});
+        out.flush();
+
+        StreamStats stats = metrics.getStats();
+        assertEquals(3, stats.getPipeOccupancy());
+        assertEquals(1, stats.getDroppedFrameCount());
+        assertEquals(6, stats.getDroppedBytes());
+
+        out.close();
+        in.close();
+    }
+
+    @Test
+    public void testLosslessPipeOccupancy() throws IOException {
+        StreamMetrics metrics = new StreamMetrics();
+        PipedInputStream in = new PipedInputStream();
+        PipedOutputStream out = new PipedOutputStream(in);
+        metrics.setPipe(in);
+
+        out.write(new byte[] {1, 2, 3, 4});
+        assertEquals(4, metrics.getStats().getPipeOccupancy());
+        assertEquals(1, in.read());
+        assertEquals(3, metrics.getStats().getPipeOccupancy());
+
+        out.close();
+        in.close();
+    }
+}
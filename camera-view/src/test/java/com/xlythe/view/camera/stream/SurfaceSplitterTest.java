@@ -0,0 +1,179 @@
+package com.xlythe.view.camera.stream;
+
+import android.graphics.SurfaceTexture;
+import android.view.Surface;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = 21)
+public class SurfaceSplitterTest {
+
+    @Test
+    public void testScaledSizesAreEven() {
+        assertEquals(960, SurfaceSplitter.scale(1920, 0.5f));
+        assertEquals(540, SurfaceSplitter.scale(1080, 0.5f));
+        assertEquals(360, SurfaceSplitter.scale(1080, 1 / 3f));
+        assertEquals(106, SurfaceSplitter.scale(427, 0.25f));
+        assertEquals(2, SurfaceSplitter.scale(3, 0.1f));
+    }
+
+    @Test
+    public void testCameraAttachedOnceAllOutputsAttach() {
+        TestCanvas camera = new TestCanvas();
+        SurfaceSplitter splitter = new SurfaceSplitter(camera, 1f, 0.5f);
+        VideoRecorder.SurfaceProvider full = (width, height, orientation, flipped) -> null;
+        VideoRecorder.SurfaceProvider low = (width, height, orientation, flipped) -> null;
+
+        splitter.getCanvas(0).attachSurface(full);
+        assertEquals(0, camera.mAttached.size());
+
+        splitter.getCanvas(1).attachSurface(low);
+        assertEquals(1, camera.mAttached.size());
+
+        // The camera keeps drawing for the other output.
+        splitter.getCanvas(0).detachSurface(full);
+        assertEquals(1, camera.mAttached.size());
+
+        splitter.getCanvas(1).detachSurface(low);
+        assertEquals(0, camera.mAttached.size());
+
+        // The camera stays detached until every output is attached again.
+        splitter.getCanvas(1).attachSurface(low);
+        assertEquals(0, camera.mAttached.size());
+    }
+
+    @Test
+    public void testRestartingOneLayerKeepsTheOtherRunning() throws InterruptedException {
+        TestCanvas camera = new TestCanvas();
+        List<TestRenderer> renderers = new ArrayList<>();
+        SurfaceSplitter splitter = new SurfaceSplitter(camera, (width, height) -> {
+            TestRenderer renderer = new TestRenderer();
+            renderers.add(renderer);
+            return renderer;
+        }, 1f, 0.5f);
+        TestProvider full = new TestProvider();
+        TestProvider low = new TestProvider();
+        splitter.getCanvas(0).attachSurface(full);
+        splitter.getCanvas(1).attachSurface(low);
+        camera.mAttached.get(0).getSurface(1920, 1080, 90, false);
+
+        TestRenderer renderer = renderers.get(0);
+        assertEquals(2, renderer.getOutputCount());
+        assertEquals(960, low.mRequests.get(0)[0]);
+        assertEquals(540, low.mRequests.get(0)[1]);
+
+        // The low layer restarts its encoder, as it would when its quality changes.
+        splitter.getCanvas(1).detachSurface(low);
+        assertEquals(1, renderer.getOutputCount());
+        assertFalse(renderer.hasOutput(low.mSurface));
+
+        TestProvider restarted = new TestProvider();
+        splitter.getCanvas(1).attachSurface(restarted);
+        renderer.awaitOutputCount(2);
+        assertTrue(renderer.hasOutput(restarted.mSurface));
+        assertEquals(960, restarted.mRequests.get(0)[0]);
+
+        // Neither the camera nor the full layer noticed.
+        assertEquals(1, camera.mAttachCount);
+        assertEquals(1, renderers.size());
+        assertEquals(1, full.mRequests.size());
+        assertTrue(renderer.hasOutput(full.mSurface));
+        assertFalse(renderer.mIsReleased);
+
+        splitter.getCanvas(0).detachSurface(full);
+        splitter.getCanvas(1).detachSurface(restarted);
+        assertTrue(camera.mAttached.isEmpty());
+        assertTrue(renderer.mIsReleased);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidScale() {
+        new SurfaceSplitter(new TestCanvas(), 1f, 2f);
+    }
+
+    private static class TestProvider implements VideoRecorder.SurfaceProvider {
+        private final Surface mSurface = new Surface(new SurfaceTexture(0));
+        private final List<int[]> mRequests = new ArrayList<>();
+
+        @Override
+        public Surface getSurface(int width, int height, int orientation, boolean flipped) {
+            mRequests.add(new int[] {width, height});
+            return mSurface;
+        }
+    }
+
+    private static class TestRenderer implements SurfaceSplitter.Renderer {
+        private final Surface mInputSurface = new Surface(new SurfaceTexture(0));
+        private final List<Surface> mOutputs = new ArrayList<>();
+        private boolean mIsReleased;
+
+        @Override
+        public Surface getInputSurface() {
+            return mInputSurface;
+        }
+
+        @Override
+        public void setInputSize(int width, int height) {}
+
+        @Override
+        public synchronized void addOutput(Surface surface, int width, int height) {
+            mOutputs.add(surface);
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void removeOutput(Surface surface) {
+            mOutputs.remove(surface);
+        }
+
+        @Override
+        public synchronized void release() {
+            mOutputs.clear();
+            mIsReleased = true;
+        }
+
+        synchronized int getOutputCount() {
+            return mOutputs.size();
+        }
+
+        synchronized boolean hasOutput(Surface surface) {
+            return mOutputs.contains(surface);
+        }
+
+        /** Outputs attached while the camera is running are added in the background. */
+        synchronized void awaitOutputCount(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 1000;
+            while (mOutputs.size() < count && System.currentTimeMillis() < deadline) {
+                wait(100);
+            }
+            assertEquals(count, mOutputs.size());
+        }
+    }
+
+    private static class TestCanvas implements VideoRecorder.Canvas {
+        private final List<VideoRecorder.SurfaceProvider> mAttached = new ArrayList<>();
+        private int mAttachCount;
+
+        @Override
+        public void attachSurface(VideoRecorder.SurfaceProvider surfaceProvider) {
+            mAttached.add(surfaceProvider);
+            mAttachCount++;
+        }
+
+        @Override
+        public void detachSurface(VideoRecorder.SurfaceProvider surfaceProvider) {
+            mAttached.remove(surfaceProvider);
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.xlythe.view.camera.stream;
 
+import android.media.MediaCodec;
+
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
@@ -7,6 +9,7 @@ import org.robolectric.annotation.Config;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 @RunWith(RobolectricTestRunner.class)
@@ -55,4 +58,74 @@ public class VideoFrameTest {
         assertEquals(123456789L, deserialized.getPresentationTimeUs());
         assertEquals(1, deserialized.getFlags());
     }
+
+    @Test
+    public void testTraceSerialization() {
+        VideoFrame frame = new VideoFrame.Builder(VideoFrame.Type.DATA)
+                .data(new byte[]{1, 2, 3})
+                .presentationTimeUs(1000L)
+                .captureTimeUs(1000L)
+                .encodeTimeUs(5000L)
+                .writeTimeUs(6000L)
+                .build();
+
+        VideoFrame deserialized = VideoFrame.fromBytes(frame.asBytes());
+        assertTrue(deserialized.hasTrace());
+        assertEquals(1000L, deserialized.getCaptureTimeUs());
+        assertEquals(5000L, deserialized.getEncodeTimeUs());
+        assertEquals(6000L, deserialized.getWriteTimeUs());
+    }
+
+    @Test
+    public void testUntracedFramesOmitTrace() {
+        VideoFrame untraced = new VideoFrame.Builder(VideoFrame.Type.DATA)
+                .data(new byte[]{1, 2, 3})
+                .build();
+        VideoFrame traced = new VideoFrame.Builder(VideoFrame.Type.DATA)
+                .data(new byte[]{1, 2, 3})
+                .writeTimeUs(6000L)
+                .build();
+
+        assertFalse(VideoFrame.fromBytes(untraced.asBytes()).hasTrace());
+        assertEquals(untraced.asBytes().length + 39, traced.asBytes().length);
+    }
+
+    @Test
+    public void testLayerSerialization() {
+        VideoFrame header = new VideoFrame.Builder(VideoFrame.Type.HEADER)
+                .layer(1)
+                .width(320)
+                .height(240)
+                .build();
+        VideoFrame data = new VideoFrame.Builder(VideoFrame.Type.DATA)
+                .layer(1)
+                .data(new byte[]{1, 2, 3})
+                .build();
+        VideoFrame fullLayer = new VideoFrame.Builder(VideoFrame.Type.DATA)
+                .data(new byte[]{1, 2, 3})
+                .build();
+
+        assertEquals(1, VideoFrame.fromBytes(header.asBytes()).getLayer());
+        assertEquals(320, VideoFrame.fromBytes(header.asBytes()).getWidth());
+        assertEquals(1, VideoFrame.fromBytes(data.asBytes()).getLayer());
+        assertEquals(0, VideoFrame.fromBytes(fullLayer.asBytes()).getLayer());
+        // The full sized layer is the default, and isn't written at all.
+        assertEquals(fullLayer.asBytes().length + 9, data.asBytes().length);
+    }
+
+    @Test
+    public void testFlags() {
+        VideoFrame keyFrame = new VideoFrame.Builder(VideoFrame.Type.DATA)
+                .flags(MediaCodec.BUFFER_FLAG_KEY_FRAME)
+                .build();
+        assertTrue(keyFrame.isKeyFrame());
+        assertFalse(keyFrame.isCodecConfig());
+        assertFalse(keyFrame.isEndOfStream());
+
+        VideoFrame codecConfig = new VideoFrame.Builder(VideoFrame.Type.DATA)
+                .flags(MediaCodec.BUFFER_FLAG_CODEC_CONFIG)
+                .build();
+        assertFalse(codecConfig.isKeyFrame());
+        assertTrue(codecConfig.isCodecConfig());
+    }
 }
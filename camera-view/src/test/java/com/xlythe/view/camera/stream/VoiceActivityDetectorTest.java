@@ -0,0 +1,64 @@
+package com.xlythe.view.camera.stream;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = 21)
+public class VoiceActivityDetectorTest {
+    private static final int SAMPLE_RATE = 8000;
+    /** 20ms of audio. */
+    private static final int FRAMES = 160;
+
+    /** Returns 16 bit little endian PCM, alternating between +amplitude and -amplitude. */
+    private static byte[] tone(int amplitude) {
+        byte[] data = new byte[FRAMES * 2];
+        for (int i = 0; i < FRAMES; i++) {
+            int sample = i % 2 == 0 ? amplitude : -amplitude;
+            data[i * 2] = (byte) sample;
+            data[i * 2 + 1] = (byte) (sample >> 8);
+        }
+        return data;
+    }
+
+    @Test
+    public void testThreshold() {
+        // -40dBFS is an amplitude of about 328.
+        VoiceActivityDetector detector = new VoiceActivityDetector(SAMPLE_RATE, -40, 0);
+
+        assertFalse(detector.isSpeech(tone(0), FRAMES * 2));
+        assertFalse(detector.isSpeech(tone(300), FRAMES * 2));
+        assertTrue(detector.isSpeech(tone(360), FRAMES * 2));
+        assertTrue(detector.isSpeech(tone(-Short.MIN_VALUE - 1), FRAMES * 2));
+        assertFalse(detector.isSpeech(tone(300), FRAMES * 2));
+    }
+
+    @Test
+    public void testHangover() {
+        VoiceActivityDetector detector = new VoiceActivityDetector(SAMPLE_RATE, -40, 50);
+
+        assertTrue(detector.isSpeech(tone(10000), FRAMES * 2));
+
+        // 50ms of hangover covers the next two and a half reads.
+        assertTrue(detector.isSpeech(tone(0), FRAMES * 2));
+        assertTrue(detector.isSpeech(tone(0), FRAMES * 2));
+        assertTrue(detector.isSpeech(tone(0), FRAMES * 2));
+        assertFalse(detector.isSpeech(tone(0), FRAMES * 2));
+
+        // Loud audio restarts the hangover.
+        assertTrue(detector.isSpeech(tone(10000), FRAMES * 2));
+        detector.reset();
+        assertFalse(detector.isSpeech(tone(0), FRAMES * 2));
+    }
+
+    @Test
+    public void testEmptyRead() {
+        VoiceActivityDetector detector = new VoiceActivityDetector(SAMPLE_RATE, -40, 0);
+        assertFalse(detector.isSpeech(new byte[0], 0));
+    }
+}